@@ -0,0 +1,388 @@
+/*
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package eu.peppol.start.client;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads the documents to send in bulk mode. The source is either a directory,
+ * whose XML files are all sent with the default identifiers, or a manifest
+ * listing sender, receiver, document type, process and file of each message.
+ * A manifest ending in .json holds an array of objects with these keys; any
+ * other manifest is read as CSV with these columns, an optional header line
+ * and lines starting with # ignored. Relative files are resolved against the
+ * directory of the manifest and empty values take the defaults.
+ */
+public final class BulkManifest {
+
+    /**
+     * Column and key names of a manifest, in CSV column order.
+     */
+    static final String[] COLUMNS = {"sender", "receiver", "docType", "process", "file"};
+
+    /**
+     * Extension of JSON manifests.
+     */
+    private static final String EXT_JSON = ".json";
+
+    /**
+     * Extension of the documents of a directory.
+     */
+    private static final String EXT_XML = ".xml";
+
+    /**
+     * Encoding of manifests.
+     */
+    private static final String ENCODING = "UTF-8";
+
+    /**
+     * Sole constructor to avoid instance.
+     */
+    private BulkManifest() {
+    }
+
+    /**
+     * A message to send.
+     */
+    public static final class Entry {
+
+        private final String sender;
+        private final String receiver;
+        private final String documentType;
+        private final String process;
+        private final File file;
+
+        Entry(String sender, String receiver, String documentType,
+                String process, File file) {
+            this.sender = sender;
+            this.receiver = receiver;
+            this.documentType = documentType;
+            this.process = process;
+            this.file = file;
+        }
+
+        public String getSender() {
+            return sender;
+        }
+
+        public String getReceiver() {
+            return receiver;
+        }
+
+        public String getDocumentType() {
+            return documentType;
+        }
+
+        public String getProcess() {
+            return process;
+        }
+
+        public File getFile() {
+            return file;
+        }
+    }
+
+    /**
+     * Reads the messages of a directory or manifest.
+     * @param source
+     *          Directory or manifest.
+     * @param defaults
+     *          Sender, receiver, document type and process used when the
+     *          source does not give them; entries may be null.
+     * @return
+     *          The messages, in the order of the source.
+     * @throws Exception
+     *          If the source cannot be read or an entry is incomplete.
+     */
+    public static List<Entry> load(File source, String[] defaults) throws Exception {
+        List<String[]> rows = new ArrayList<String[]>();
+        File baseDir;
+
+        if (source.isDirectory()) {
+            baseDir = source;
+            File[] files = source.listFiles();
+            Arrays.sort(files);
+            for (File file : files) {
+                if (file.isFile() && file.getName().toLowerCase().endsWith(EXT_XML)) {
+                    rows.add(new String[]{null, null, null, null, file.getName()});
+                }
+            }
+        } else {
+            baseDir = source.getAbsoluteFile().getParentFile();
+            Reader reader = new InputStreamReader(new FileInputStream(source), ENCODING);
+            try {
+                if (source.getName().toLowerCase().endsWith(EXT_JSON)) {
+                    readJson(reader, rows);
+                } else {
+                    readCsv(new BufferedReader(reader), rows);
+                }
+            } finally {
+                reader.close();
+            }
+        }
+
+        List<Entry> entries = new ArrayList<Entry>(rows.size());
+        for (int i = 0; i < rows.size(); i++) {
+            String[] row = rows.get(i);
+            for (int c = 0; c < defaults.length; c++) {
+                if (isEmpty(row[c])) {
+                    row[c] = defaults[c];
+                }
+            }
+            for (int c = 0; c < COLUMNS.length; c++) {
+                if (isEmpty(row[c])) {
+                    throw new IOException("Entry " + (i + 1) + " of " + source
+                            + " has no " + COLUMNS[c]);
+                }
+            }
+            File file = new File(row[4]);
+            if (!file.isAbsolute()) {
+                file = new File(baseDir, row[4]);
+            }
+            entries.add(new Entry(row[0], row[1], row[2], row[3], file));
+        }
+        return entries;
+    }
+
+    private static boolean isEmpty(String value) {
+        return value == null || value.trim().length() == 0;
+    }
+
+    /**
+     * Reads a CSV manifest. Values may be enclosed in double quotes, with
+     * doubled quotes inside them.
+     */
+    static void readCsv(BufferedReader reader, List<String[]> rows) throws IOException {
+        String line;
+        boolean first = true;
+        while ((line = reader.readLine()) != null) {
+            if (line.trim().length() == 0 || line.trim().startsWith("#")) {
+                continue;
+            }
+            String[] row = new String[COLUMNS.length];
+            List<String> values = splitCsv(line);
+            for (int c = 0; c < row.length && c < values.size(); c++) {
+                row[c] = values.get(c).trim();
+            }
+            if (first && COLUMNS[0].equalsIgnoreCase(row[0])) {
+                first = false;
+                continue;
+            }
+            first = false;
+            rows.add(row);
+        }
+    }
+
+    private static List<String> splitCsv(String line) {
+        List<String> values = new ArrayList<String>();
+        StringBuilder value = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    value.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    value.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                values.add(value.toString());
+                value.setLength(0);
+            } else {
+                value.append(c);
+            }
+        }
+        values.add(value.toString());
+        return values;
+    }
+
+    /**
+     * Reads a JSON manifest: an array of objects whose values are strings.
+     * Keys other than the manifest columns are ignored.
+     */
+    static void readJson(Reader reader, List<String[]> rows) throws IOException {
+        JsonReader json = new JsonReader(reader);
+        json.expect('[');
+        if (json.peek() == ']') {
+            json.next();
+            return;
+        }
+        do {
+            json.expect('{');
+            Map<String, String> object = new HashMap<String, String>();
+            if (json.peek() != '}') {
+                do {
+                    String key = json.readString();
+                    json.expect(':');
+                    object.put(key, json.readValue());
+                } while (json.skipComma());
+            }
+            json.expect('}');
+
+            String[] row = new String[COLUMNS.length];
+            for (int c = 0; c < row.length; c++) {
+                row[c] = object.get(COLUMNS[c]);
+            }
+            rows.add(row);
+        } while (json.skipComma());
+        json.expect(']');
+    }
+
+    /**
+     * Minimal reader of the JSON subset used by manifests.
+     */
+    private static final class JsonReader {
+
+        private final Reader reader;
+        private int current = -2;
+
+        JsonReader(Reader reader) {
+            this.reader = reader;
+        }
+
+        /**
+         * Returns the next character that is not white space, without
+         * consuming it.
+         */
+        int peek() throws IOException {
+            if (current == -2) {
+                current = reader.read();
+            }
+            while (current != -1 && Character.isWhitespace((char) current)) {
+                current = reader.read();
+            }
+            return current;
+        }
+
+        int next() throws IOException {
+            int c = peek();
+            current = -2;
+            return c;
+        }
+
+        void expect(char expected) throws IOException {
+            int c = next();
+            if (c != expected) {
+                throw new IOException("Invalid manifest: expected '" + expected
+                        + "' but found " + (c == -1 ? "end of file" : "'" + (char) c + "'"));
+            }
+        }
+
+        boolean skipComma() throws IOException {
+            if (peek() == ',') {
+                next();
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Reads a string, number, boolean or null value as a string.
+         */
+        String readValue() throws IOException {
+            if (peek() == '"') {
+                return readString();
+            }
+            StringBuilder value = new StringBuilder();
+            while (peek() != -1 && peek() != ',' && peek() != '}' && peek() != ']') {
+                value.append((char) next());
+            }
+            return "null".equals(value.toString()) ? null : value.toString();
+        }
+
+        String readString() throws IOException {
+            expect('"');
+            StringBuilder value = new StringBuilder();
+            int c;
+            while ((c = reader.read()) != '"') {
+                if (c == -1) {
+                    throw new IOException("Invalid manifest: unterminated string");
+                }
+                if (c == '\\') {
+                    c = reader.read();
+                    switch (c) {
+                        case 'n':
+                            value.append('\n');
+                            break;
+                        case 't':
+                            value.append('\t');
+                            break;
+                        case 'r':
+                            value.append('\r');
+                            break;
+                        case 'b':
+                            value.append('\b');
+                            break;
+                        case 'f':
+                            value.append('\f');
+                            break;
+                        case 'u':
+                            char[] hex = new char[4];
+                            for (int i = 0; i < hex.length; i++) {
+                                hex[i] = (char) reader.read();
+                            }
+                            value.append((char) Integer.parseInt(new String(hex), 16));
+                            break;
+                        case -1:
+                            throw new IOException("Invalid manifest: unterminated string");
+                        default:
+                            value.append((char) c);
+                    }
+                } else {
+                    value.append((char) c);
+                }
+            }
+            return value.toString();
+        }
+    }
+}
@@ -0,0 +1,355 @@
+/*
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package eu.peppol.start.client;
+
+import eu.peppol.start.client.util.MessageSetup;
+import eu.peppol.start.client.util.SendProcessUtil;
+import eu.peppol.start.exception.DocumentTypeNotAcceptedException;
+import eu.peppol.start.exception.UnknownEndpointException;
+import eu.peppol.start.metadata.MessageMetadata;
+import eu.peppol.start.soap.SOAPHeaderObject;
+import eu.peppol.start.util.Configuration;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.cert.X509Certificate;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import org.apache.log4j.Logger;
+import org.w3._2009._02.ws_tra.Create;
+import org.w3c.dom.Document;
+
+/**
+ * Sends the messages of a BulkManifest in one JVM with bounded parallelism.
+ * The SMP lookup, signature verification and certificate of each
+ * receiver, document type and process are resolved once per run, and the
+ * ports, with their SSL setup, are borrowed from the pool of
+ * accessPointClient so that they stay open across messages to the same
+ * endpoint. The outcome of each message is written as one line of a CSV
+ * report as soon as it is known.
+ */
+public class BulkSender {
+
+    /**
+     * Logger to follow this class behavior.
+     */
+    private static final Logger logger4J = Logger.getLogger(BulkSender.class);
+
+    /**
+     * Status of a delivered message in the report.
+     */
+    public static final String STATUS_SENT = "SENT";
+
+    /**
+     * Status of a message that could not be delivered in the report.
+     */
+    public static final String STATUS_FAILED = "FAILED";
+
+    /**
+     * Suffix of the default report file, next to the source.
+     */
+    private static final String REPORT_SUFFIX = ".report.csv";
+
+    /**
+     * Header line of the report.
+     */
+    private static final String REPORT_HEADER =
+            "file,messageId,sender,receiver,docType,process,status,endpoint,millis,error";
+
+    /**
+     * Messages queued per worker before the reading thread sends itself.
+     */
+    private static final int QUEUE_PER_THREAD = 4;
+
+    /**
+     * Number of messages sent at the same time.
+     */
+    private final int parallelism;
+
+    /**
+     * Report file configured with bulk.report.file, or null.
+     */
+    private final String reportFile;
+
+    /**
+     * Resolved endpoints by receiver, document type and process, with their schemes.
+     */
+    private final Map<String, Route> routes = new ConcurrentHashMap<String, Route>();
+
+    /**
+     * Creates a sender configured by bulk.parallelism and bulk.report.file.
+     */
+    public BulkSender() {
+        Configuration conf = Configuration.getInstance();
+        String value = conf.getProperty("bulk.parallelism");
+        int threads = (value != null && value.trim().length() > 0)
+                ? Integer.parseInt(value.trim()) : 4;
+        this.parallelism = Math.max(1, threads);
+        String report = conf.getProperty("bulk.report.file");
+        this.reportFile = (report != null && report.trim().length() > 0) ? report.trim() : null;
+    }
+
+    /**
+     * Returns the report file for a source: the configured one, or the
+     * source path with a .report.csv suffix.
+     * @param source
+     *          Directory or manifest being sent.
+     * @return
+     *          The report file.
+     */
+    public File getReportFile(File source) {
+        if (reportFile != null) {
+            return new File(reportFile);
+        }
+        return new File(source.getAbsoluteFile().getParentFile(), source.getName() + REPORT_SUFFIX);
+    }
+
+    /**
+     * Sends the messages and writes the report.
+     * @param entries
+     *          Messages to send.
+     * @param report
+     *          Report file, replaced if it exists.
+     * @return
+     *          The number of messages that could not be delivered.
+     * @throws Exception
+     *          If the report cannot be written or the run is interrupted.
+     */
+    public int send(List<BulkManifest.Entry> entries, File report) throws Exception {
+        final Writer writer = new OutputStreamWriter(new FileOutputStream(report), "UTF-8");
+        final AtomicInteger failed = new AtomicInteger();
+        writer.write(REPORT_HEADER + "\n");
+
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(parallelism, parallelism,
+                0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(parallelism * QUEUE_PER_THREAD),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        try {
+            logger4J.info("Sending " + entries.size() + " messages with "
+                    + parallelism + " threads.");
+            for (final BulkManifest.Entry entry : entries) {
+                executor.execute(new Runnable() {
+
+                    public void run() {
+                        if (!sendEntry(entry, writer)) {
+                            failed.incrementAndGet();
+                        }
+                    }
+                });
+            }
+            executor.shutdown();
+            while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                logger4J.info("Waiting for " + executor.getActiveCount() + " sends...");
+            }
+        } finally {
+            executor.shutdownNow();
+            closePorts();
+            writer.close();
+        }
+        return failed.get();
+    }
+
+    /**
+     * Sends one message and writes its report line.
+     * @return true if the message was delivered.
+     */
+    private boolean sendEntry(BulkManifest.Entry entry, Writer writer) {
+        long start = System.currentTimeMillis();
+        String messageId = "";
+        String endpoint = "";
+        String status = STATUS_FAILED;
+        String error = "";
+
+        try {
+            MessageMetadata metadata = Main.createMetadata(entry.getSender(),
+                    entry.getReceiver(), entry.getDocumentType(), entry.getProcess());
+            Route route = getRoute(metadata);
+            endpoint = route.address;
+
+            Document document = MessageSetup.setUpMessage(null, entry.getFile().getPath());
+            if (document == null) {
+                throw new IllegalArgumentException("Document not readable: " + entry.getFile());
+            }
+            SOAPHeaderObject soapHeader = MessageSetup.setUpHeaders(null, metadata);
+            messageId = soapHeader.getMessageIdentifier();
+
+            Create body = new Create();
+            body.getAny().add(document.getDocumentElement());
+
+            deliver(route, soapHeader, body);
+            status = STATUS_SENT;
+            logger4J.info("Message " + messageId + " delivered to " + endpoint);
+        } catch (Exception ex) {
+            error = ex.getMessage() != null ? ex.getMessage() : ex.toString();
+            logger4J.error("Message not delivered: " + entry.getFile(), ex);
+            java.util.logging.Logger.getLogger(BulkSender.class.getName()).log(Level.SEVERE, error);
+        }
+
+        long millis = System.currentTimeMillis() - start;
+        String line = csv(entry.getFile().getPath()) + "," + csv(messageId) + ","
+                + csv(entry.getSender()) + "," + csv(entry.getReceiver()) + ","
+                + csv(entry.getDocumentType()) + "," + csv(entry.getProcess()) + ","
+                + status + "," + csv(endpoint) + "," + millis + "," + csv(error) + "\n";
+        synchronized (writer) {
+            try {
+                writer.write(line);
+                writer.flush();
+            } catch (Exception ex) {
+                logger4J.error("Report not written: " + line, ex);
+            }
+        }
+        return STATUS_SENT.equals(status);
+    }
+
+    /**
+     * Sends through a pooled port of the endpoint, checking the response
+     * against the certificate of the route.
+     */
+    private void deliver(Route route, SOAPHeaderObject soapHeader, Create body) {
+        SendProcessUtil.setThreadCertificate(route.certificateEntry, route.certificate);
+        try {
+            accessPointClient.getInstance().send(route.address, route.certificate,
+                    soapHeader, body);
+        } finally {
+            SendProcessUtil.setThreadCertificate(null, null);
+        }
+    }
+
+    /**
+     * Returns the endpoint of the receiver, document type and process of the
+     * message, looking it up on first use. Lookups failed because the
+     * receiver is unknown or does not accept the document type are kept
+     * too, so that its messages fail without new lookups; other failures,
+     * such as an SMP that cannot be reached, are retried by the next message.
+     * The lookup itself is serialized because the SMP redirection is
+     * published through static fields of MessageSetup and SendProcessUtil.
+     */
+    private Route getRoute(MessageMetadata metadata) throws Exception {
+        String key = metadata.getRecipientScheme() + "::" + metadata.getRecipientValue()
+                + "\n" + metadata.getDocumentIdScheme() + "::" + metadata.getDocumentIdValue()
+                + "\n" + metadata.getProcessIdScheme() + "::" + metadata.getProcessIdValue();
+        Route route = routes.get(key);
+        if (route == null) {
+            synchronized (routes) {
+                route = routes.get(key);
+                if (route == null) {
+                    route = lookup(metadata);
+                    if (route.error == null || isPermanent(route.error)) {
+                        routes.put(key, route);
+                    }
+                }
+            }
+        }
+        if (route.error != null) {
+            throw route.error;
+        }
+        return route;
+    }
+
+    private Route lookup(MessageMetadata metadata) {
+        Route route = new Route();
+        SendProcessUtil.setThreadCertificate(null, null);
+        try {
+            Document smpDocument = SendProcessUtil.getSMPdata(metadata);
+            MessageSetup.executeSMPVerification(smpDocument);
+            boolean isRedirect = MessageSetup.isSMPRedirection(smpDocument);
+            if (isRedirect) {
+                route.address = MessageSetup.AP_REDIRECT_URL;
+            } else {
+                route.address = SendProcessUtil.getAccessPointAddress(metadata);
+            }
+            SendProcessUtil.prepareCertificatesValidation(metadata, isRedirect);
+            route.certificate = SendProcessUtil.getApSmlCertificate();
+            route.certificateEntry = SendProcessUtil.getApSmlCertificateString();
+            logger4J.info("Endpoint of " + metadata.getRecipientValue() + ": " + route.address);
+        } catch (Exception ex) {
+            logger4J.error("Lookup failed for " + metadata.getRecipientValue(), ex);
+            route.error = ex;
+        }
+        return route;
+    }
+
+    /**
+     * Tells whether a lookup failure will not change during the run.
+     */
+    private static boolean isPermanent(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof UnknownEndpointException
+                    || cause instanceof DocumentTypeNotAcceptedException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void closePorts() {
+        accessPointClient.getInstance().closePooledPorts();
+    }
+
+    /**
+     * Quotes a report value when needed.
+     */
+    static String csv(String value) {
+        if (value == null) {
+            return "";
+        }
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0
+                && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+            return value;
+        }
+        return "\"" + value.replace("\"", "\"\"") + "\"";
+    }
+
+    /**
+     * Endpoint of a receiver, document type and process.
+     */
+    private static final class Route {
+
+        private String address;
+        private X509Certificate certificate;
+        private String certificateEntry;
+        private Exception error;
+    }
+}
@@ -43,7 +43,9 @@ import eu.peppol.start.exception.AccessPointClientException;
 import eu.peppol.start.soap.SOAPHeaderObject;
 import eu.peppol.start.metadata.MessageMetadata;
 import org.w3c.dom.Document;
+import java.io.File;
 import java.security.cert.CertificateException;
+import java.util.List;
 
 /**
  * The accessPointClient class aims to hold all the processes required for
@@ -57,6 +59,7 @@ import java.security.cert.CertificateException;
 public class Main {
 
     private static org.apache.log4j.Logger logger4J = org.apache.log4j.Logger.getLogger(Main.class);
+    private static final String BULK_OPTION = "--bulk";
     private static String XML_FILE_PATH = null;
     private static String DOCUMENT_IDENTIFIER_TYPE_VALUE = null;
     private static String DOCUMENT_IDENTIFIER_TYPE_SCHEME = null;
@@ -77,7 +80,12 @@ public class Main {
      *          Thrown if an issue is found while working with certificates.
      */
     public static void main(String[] args) throws AccessPointClientException, CertificateException {
-        
+
+        if (args.length > 0 && BULK_OPTION.equals(args[0])) {
+            bulk(args);
+            return;
+        }
+
         /*Setting arguments for .jar version.*/    	
     	SENDER_PARTICIPANT_IDENTIFIER_VALUE = args[0];
         RECEIVER_PARTICIPANT_IDENTIFIER_VALUE = args[1];
@@ -92,15 +100,9 @@ public class Main {
         SendProcessUtil.readConfigurationProperties();
         boolean isRedirect = false;
 
-        MessageMetadata metadata = new MessageMetadata();
-        metadata.setRecipientScheme(PARTICIPANT_IDENTIFIER_SCHEME);
-        metadata.setRecipientValue(RECEIVER_PARTICIPANT_IDENTIFIER_VALUE);
-        metadata.setDocumentIdScheme(DOCUMENT_IDENTIFIER_TYPE_SCHEME);
-        metadata.setDocumentIdValue(DOCUMENT_IDENTIFIER_TYPE_VALUE);
-        metadata.setProcessIdScheme(PROCESS_IDENTIFIER_TYPE_SCHEME);
-        metadata.setProcessIdValue(PROCESS_IDENTIFIER_TYPE_VALUE);
-        metadata.setSenderScheme(PARTICIPANT_IDENTIFIER_SCHEME);
-        metadata.setSenderValue(SENDER_PARTICIPANT_IDENTIFIER_VALUE);        
+        MessageMetadata metadata = createMetadata(SENDER_PARTICIPANT_IDENTIFIER_VALUE,
+                RECEIVER_PARTICIPANT_IDENTIFIER_VALUE, DOCUMENT_IDENTIFIER_TYPE_VALUE,
+                PROCESS_IDENTIFIER_TYPE_VALUE);
         document = MessageSetup.setUpMessage(document, XML_FILE_PATH);
         
         smpDocument = SendProcessUtil.getSMPdata(metadata);
@@ -118,6 +120,69 @@ public class Main {
         }
         soapHeaderbject = MessageSetup.setUpHeaders(soapHeaderbject, metadata);
         SendProcessUtil.prepareCertificatesValidation(metadata, isRedirect);
-        SendProcessUtil.sendMessage(soapHeaderbject, recipientAPUrl, SendProcessUtil.getApSmlCertificate(), document);
+        try {
+            SendProcessUtil.sendMessage(soapHeaderbject, recipientAPUrl, SendProcessUtil.getApSmlCertificate(), document);
+        } finally {
+            accessPointClient.getInstance().closePooledPorts();
+        }
+    }
+
+    /**
+     * Sends every document of a directory or manifest in a single run.
+     * Arguments are --bulk, the directory or manifest and optionally the
+     * sender, receiver, document type and process used for the documents
+     * of a directory and for the empty columns of a manifest.
+     * @param args
+     *          Arguments for the application.
+     */
+    private static void bulk(String[] args) {
+        if (args.length != 2 && args.length != 6) {
+            throw new IllegalArgumentException("Usage: " + BULK_OPTION
+                    + " <directory|manifest> [sender receiver documentType process]");
+        }
+        String[] defaults = new String[4];
+        if (args.length == 6) {
+            System.arraycopy(args, 2, defaults, 0, 4);
+        }
+
+        SendProcessUtil.readConfigurationProperties();
+        File source = new File(args[1]);
+        try {
+            List<BulkManifest.Entry> entries = BulkManifest.load(source, defaults);
+            BulkSender sender = new BulkSender();
+            int failed = sender.send(entries, sender.getReportFile(source));
+            logger4J.info("Bulk sending finished: " + (entries.size() - failed)
+                    + " sent, " + failed + " failed.");
+        } catch (Exception ex) {
+            logger4J.error("Bulk sending aborted: " + ex.getMessage(), ex);
+            throw new AccessPointClientException("Bulk sending aborted: " + source, ex);
+        }
+    }
+
+    /**
+     * Creates the metadata of a message.
+     * @param sender
+     *          Sender participant identifier.
+     * @param receiver
+     *          Receiver participant identifier.
+     * @param documentType
+     *          Document type identifier.
+     * @param process
+     *          Process identifier.
+     * @return
+     *          The metadata.
+     */
+    static MessageMetadata createMetadata(String sender, String receiver,
+            String documentType, String process) {
+        MessageMetadata metadata = new MessageMetadata();
+        metadata.setRecipientScheme(PARTICIPANT_IDENTIFIER_SCHEME);
+        metadata.setRecipientValue(receiver);
+        metadata.setDocumentIdScheme(DOCUMENT_IDENTIFIER_TYPE_SCHEME);
+        metadata.setDocumentIdValue(documentType);
+        metadata.setProcessIdScheme(PROCESS_IDENTIFIER_TYPE_SCHEME);
+        metadata.setProcessIdValue(process);
+        metadata.setSenderScheme(PARTICIPANT_IDENTIFIER_SCHEME);
+        metadata.setSenderValue(sender);
+        return metadata;
     }
 }
@@ -0,0 +1,317 @@
+/*
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package eu.peppol.start.client;
+
+import java.security.cert.X509Certificate;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.Logger;
+import org.w3._2009._02.ws_tra.Resource;
+
+/**
+ * Pool of initialized Resource ports, keyed by endpoint address and
+ * recipient certificate.
+ * <p>
+ * Creating a port builds the Metro client runtime with its security and
+ * reliable messaging policies, so ports are kept open and reused. A port is
+ * used by one thread at a time: it is borrowed from the pool of its key and
+ * given back once the call is done, telling whether it is still healthy:
+ * <pre>
+ * PortPool.Lease lease = pool.borrow(address, certificate);
+ * boolean healthy = false;
+ * try {
+ *     lease.getPort().create(body);
+ *     healthy = true;
+ * } finally {
+ *     pool.release(lease, healthy);
+ * }
+ * </pre>
+ * The health of a port is only known from its calls: a port given back
+ * unhealthy (after a transport failure, which may also have broken its
+ * reliable messaging sequence) is closed instead of pooled. So are the
+ * ports idle for longer than the idle timeout, the ports older than the
+ * maximum age, whose sequence and TLS session are then renewed, and the
+ * ports beyond the idle limit of their key.
+ */
+public final class PortPool {
+
+    /**
+     * Logger to follow this class behavior.
+     */
+    private static final Logger logger4J = Logger.getLogger(PortPool.class);
+
+    /**
+     * Creates and closes the pooled ports.
+     */
+    interface Factory {
+
+        /**
+         * Creates a port for an endpoint.
+         */
+        Resource create(String address, X509Certificate certificate) throws Exception;
+
+        /**
+         * Closes a port.
+         */
+        void close(Resource port);
+    }
+
+    /**
+     * A borrowed port.
+     */
+    public static final class Lease {
+
+        private final String key;
+        private final Resource port;
+        private final long created;
+
+        private Lease(String key, Resource port, long created) {
+            this.key = key;
+            this.port = port;
+            this.created = created;
+        }
+
+        public Resource getPort() {
+            return port;
+        }
+    }
+
+    private final Factory factory;
+
+    /**
+     * Maximum number of idle ports kept per key.
+     */
+    private final int maxIdle;
+
+    /**
+     * Time after which an idle port is closed, in milliseconds.
+     */
+    private final long idleTimeout;
+
+    /**
+     * Time after which a port is closed once given back, in milliseconds.
+     */
+    private final long maxAge;
+
+    /**
+     * Idle ports by key, most recently used first.
+     */
+    private final ConcurrentMap<String, ArrayDeque<Idle>> pools =
+            new ConcurrentHashMap<String, ArrayDeque<Idle>>();
+
+    /**
+     * Time of the last eviction of idle ports.
+     */
+    private final AtomicLong lastEviction = new AtomicLong(System.currentTimeMillis());
+
+    /**
+     * Creates a pool.
+     * @param factory     Factory of the ports.
+     * @param maxIdle     Maximum number of idle ports kept per key; 0
+     *                    disables pooling.
+     * @param idleTimeout Time after which an idle port is closed, in
+     *                    milliseconds.
+     * @param maxAge      Time after which a port is closed once given
+     *                    back, in milliseconds.
+     */
+    PortPool(Factory factory, int maxIdle, long idleTimeout, long maxAge) {
+        this.factory = factory;
+        this.maxIdle = maxIdle;
+        this.idleTimeout = idleTimeout;
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * Borrows a port for an endpoint, reusing an idle one when possible.
+     * @param address     Endpoint address.
+     * @param certificate Certificate of the recipient, may be null.
+     * @return the lease to release after use.
+     * @throws Exception if a new port cannot be created.
+     */
+    public Lease borrow(String address, X509Certificate certificate) throws Exception {
+        long now = System.currentTimeMillis();
+        evictIdle(now);
+
+        String key = key(address, certificate);
+        ArrayDeque<Idle> pool = pools.get(key);
+        if (pool != null) {
+            while (true) {
+                Idle idle;
+                synchronized (pool) {
+                    idle = pool.pollFirst();
+                }
+                if (idle == null) {
+                    break;
+                }
+                if (now - idle.since < idleTimeout && now - idle.created < maxAge) {
+                    return new Lease(key, idle.port, idle.created);
+                }
+                close(idle.port);
+            }
+        }
+        return new Lease(key, factory.create(address, certificate), now);
+    }
+
+    /**
+     * Gives back a borrowed port.
+     * @param lease   Lease of the port.
+     * @param healthy Whether the port completed its call; unhealthy ports
+     *                are closed.
+     */
+    public void release(Lease lease, boolean healthy) {
+        if (lease == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (healthy && maxIdle > 0 && now - lease.created < maxAge) {
+            ArrayDeque<Idle> pool = getPool(lease.key);
+            synchronized (pool) {
+                if (pool.size() < maxIdle) {
+                    pool.addFirst(new Idle(lease.port, lease.created, now));
+                    return;
+                }
+            }
+        }
+        close(lease.port);
+    }
+
+    /**
+     * Closes all idle ports.
+     */
+    public void clear() {
+        for (ArrayDeque<Idle> pool : pools.values()) {
+            while (true) {
+                Idle idle;
+                synchronized (pool) {
+                    idle = pool.pollFirst();
+                }
+                if (idle == null) {
+                    break;
+                }
+                close(idle.port);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of idle ports of an endpoint.
+     */
+    int getIdleCount(String address, X509Certificate certificate) {
+        ArrayDeque<Idle> pool = pools.get(key(address, certificate));
+        if (pool == null) {
+            return 0;
+        }
+        synchronized (pool) {
+            return pool.size();
+        }
+    }
+
+    /**
+     * Closes the ports idle for longer than the idle timeout, at most once
+     * per half timeout.
+     */
+    private void evictIdle(long now) {
+        long last = lastEviction.get();
+        if (now - last < idleTimeout / 2 || !lastEviction.compareAndSet(last, now)) {
+            return;
+        }
+        for (ArrayDeque<Idle> pool : pools.values()) {
+            while (true) {
+                Idle idle;
+                synchronized (pool) {
+                    idle = pool.peekLast();
+                    if (idle == null || now - idle.since < idleTimeout) {
+                        break;
+                    }
+                    pool.pollLast();
+                }
+                close(idle.port);
+            }
+        }
+    }
+
+    private ArrayDeque<Idle> getPool(String key) {
+        ArrayDeque<Idle> pool = pools.get(key);
+        if (pool == null) {
+            pool = new ArrayDeque<Idle>();
+            ArrayDeque<Idle> existing = pools.putIfAbsent(key, pool);
+            if (existing != null) {
+                pool = existing;
+            }
+        }
+        return pool;
+    }
+
+    private void close(Resource port) {
+        try {
+            factory.close(port);
+        } catch (Exception ex) {
+            logger4J.warn("Port not closed: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Key of an endpoint: address, and issuer and serial number of the
+     * certificate.
+     */
+    static String key(String address, X509Certificate certificate) {
+        if (certificate == null) {
+            return address;
+        }
+        return address + "\n" + certificate.getIssuerX500Principal().getName()
+                + "\n" + certificate.getSerialNumber();
+    }
+
+    /**
+     * An idle port, the time it was created and the time it was given back.
+     */
+    private static final class Idle {
+
+        private final Resource port;
+        private final long created;
+        private final long since;
+
+        Idle(Resource port, long created, long since) {
+            this.port = port;
+            this.created = created;
+            this.since = since;
+        }
+    }
+}
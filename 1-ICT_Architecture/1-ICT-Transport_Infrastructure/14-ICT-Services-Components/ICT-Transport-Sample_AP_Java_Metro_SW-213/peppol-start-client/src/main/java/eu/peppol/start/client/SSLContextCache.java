@@ -0,0 +1,178 @@
+/*
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package eu.peppol.start.client;
+
+import java.security.SecureRandom;
+import java.security.cert.X509Certificate;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.TrustManager;
+import org.apache.log4j.Logger;
+
+/**
+ * Cache of the SSLContexts used to reach recipient access points, keyed by
+ * the accepted recipient certificate.
+ * <p>
+ * Building an SSLContext initializes a trust manager and seeds a
+ * SecureRandom, and a new context also starts with an empty TLS session
+ * cache. Reusing the context of a certificate lets repeated sends to the
+ * same access point resume their TLS session instead of doing a full
+ * handshake. The least recently used contexts are dropped beyond the
+ * maximum size.
+ */
+public final class SSLContextCache {
+
+    /**
+     * Logger to follow this class behavior.
+     */
+    private static final Logger logger4J = Logger.getLogger(SSLContextCache.class);
+
+    /**
+     * String that represents the SSL security provided.
+     */
+    private static final String SECURITY_PROVIDER = "SSL";
+
+    /**
+     * Key of the context used when no recipient certificate is known.
+     */
+    private static final String NO_CERTIFICATE = "";
+
+    /**
+     * Contexts by certificate key, least recently used first.
+     */
+    private final Map<String, SSLContext> contexts;
+
+    /**
+     * Maximum number of TLS sessions kept per context, 0 for no limit.
+     */
+    private final int sessionCacheSize;
+
+    /**
+     * Time a TLS session can be resumed, in seconds, 0 for no limit.
+     */
+    private final int sessionTimeout;
+
+    /**
+     * Creates a cache.
+     * @param maxSize          Maximum number of cached contexts.
+     * @param sessionCacheSize Maximum number of TLS sessions kept per
+     *                         context, 0 for no limit.
+     * @param sessionTimeout   Time a TLS session can be resumed, in seconds,
+     *                         0 for no limit.
+     */
+    SSLContextCache(final int maxSize, int sessionCacheSize, int sessionTimeout) {
+        this.sessionCacheSize = sessionCacheSize;
+        this.sessionTimeout = sessionTimeout;
+        this.contexts = new LinkedHashMap<String, SSLContext>(16, 0.75f, true) {
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, SSLContext> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Returns the context trusting a recipient certificate, building it on
+     * first use.
+     * @param certificate Certificate of the recipient, may be null.
+     * @return the shared SSLContext.
+     * @throws Exception if the context cannot be initialized.
+     */
+    public SSLContext getContext(X509Certificate certificate) throws Exception {
+        String key = key(certificate);
+        synchronized (contexts) {
+            SSLContext context = contexts.get(key);
+            if (context != null) {
+                return context;
+            }
+        }
+
+        SSLContext context = createContext(certificate);
+        synchronized (contexts) {
+            SSLContext existing = contexts.get(key);
+            if (existing != null) {
+                return existing;
+            }
+            contexts.put(key, context);
+        }
+        return context;
+    }
+
+    /**
+     * Returns the number of cached contexts.
+     */
+    int size() {
+        synchronized (contexts) {
+            return contexts.size();
+        }
+    }
+
+    private SSLContext createContext(X509Certificate certificate) throws Exception {
+        logger4J.debug("Creating SSL context for " + (certificate == null
+                ? "unknown recipient" : certificate.getSubjectX500Principal().getName()));
+        String acceptedCommonNames = null;
+        if (certificate != null) {
+            acceptedCommonNames = certificate.getSubjectX500Principal().getName();
+        }
+        TrustManager[] trustManagers = new TrustManager[]{
+            new AccessPointX509TrustManager(acceptedCommonNames, null)};
+        SSLContext context = SSLContext.getInstance(SECURITY_PROVIDER);
+        context.init(null, trustManagers, new SecureRandom());
+
+        SSLSessionContext sessions = context.getClientSessionContext();
+        if (sessions != null) {
+            sessions.setSessionCacheSize(sessionCacheSize);
+            sessions.setSessionTimeout(sessionTimeout);
+        }
+        return context;
+    }
+
+    /**
+     * Key of a certificate: its issuer and serial number.
+     */
+    private static String key(X509Certificate certificate) {
+        if (certificate == null) {
+            return NO_CERTIFICATE;
+        }
+        return certificate.getIssuerX500Principal().getName() + "\n"
+                + certificate.getSerialNumber();
+    }
+}
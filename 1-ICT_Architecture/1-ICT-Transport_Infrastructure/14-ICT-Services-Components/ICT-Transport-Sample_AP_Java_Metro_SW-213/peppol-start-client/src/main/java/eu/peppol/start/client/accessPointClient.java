@@ -39,6 +39,7 @@ package eu.peppol.start.client;
 
 import eu.peppol.start.soap.SOAPHeaderObject;
 import com.sun.xml.ws.Closeable;
+import com.sun.xml.ws.developer.JAXWSProperties;
 import eu.peppol.start.exception.AccessPointClientException;
 import eu.peppol.start.soap.handler.SOAPOutboundHandler;
 import eu.peppol.start.util.Configuration;
@@ -48,10 +49,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.logging.Level;
 import javax.net.ssl.HostnameVerifier;
-import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSession;
-import javax.net.ssl.TrustManager;
 import javax.xml.ws.BindingProvider;
 import javax.xml.ws.handler.Handler;
 import javax.xml.ws.handler.HandlerResolver;
@@ -76,8 +75,13 @@ public class accessPointClient {
     /** Logger to follow this class behavior. */
     private static final Logger logger4J =  Logger.getLogger(accessPointClient.class);
 
-    /** String that represents the SSL security provided. */
-    private static final  String SECURITY_PROVIDER = "SSL";
+    /** Hostname verifier of the ports, the recipient is checked by certificate. */
+    private static final HostnameVerifier HOSTNAME_VERIFIER = new HostnameVerifier() {
+        @Override
+        public boolean verify(final String hostname, final SSLSession session) {
+            return true;
+        }
+    };
 
     /** String that represents the SSL Certificate provided. */
     private X509Certificate metadataCertificate = null;
@@ -88,12 +92,45 @@ public class accessPointClient {
     /** Instance of an accesspoint client (service consumer) */
     private static accessPointClient instance;
 
+    /** Pool of open ports by endpoint and recipient certificate. */
+    private final PortPool portPool;
+
+    /** SSL contexts by recipient certificate. */
+    private final SSLContextCache sslContexts;
+
     /**
      * Private constructor to avoid normal instance.
      * Initialize configuration loader to access properties.
      */
     private accessPointClient() {
         config = Configuration.getInstance();
+
+        String contexts = config.getProperty("client.ssl.context.cache.size");
+        String sessions = config.getProperty("client.ssl.session.cache.size");
+        String sessionTimeout = config.getProperty("client.ssl.session.timeout.seconds");
+        sslContexts = new SSLContextCache(
+                (contexts != null && contexts.trim().length() > 0) ? Integer.parseInt(contexts.trim()) : 256,
+                (sessions != null && sessions.trim().length() > 0) ? Integer.parseInt(sessions.trim()) : 0,
+                (sessionTimeout != null && sessionTimeout.trim().length() > 0)
+                ? Integer.parseInt(sessionTimeout.trim()) : 86400);
+
+        String maxIdle = config.getProperty("client.port.pool.max.idle");
+        String idleTimeout = config.getProperty("client.port.pool.idle.timeout.millis");
+        String maxAge = config.getProperty("client.port.pool.max.age.millis");
+        portPool = new PortPool(new PortPool.Factory() {
+
+            public Resource create(String address, X509Certificate certificate) {
+                return getPort(address, certificate);
+            }
+
+            public void close(Resource port) {
+                accessPointClient.this.close(port);
+            }
+        }, (maxIdle != null && maxIdle.trim().length() > 0) ? Integer.parseInt(maxIdle.trim()) : 8,
+                (idleTimeout != null && idleTimeout.trim().length() > 0)
+                ? Long.parseLong(idleTimeout.trim()) : 300000L,
+                (maxAge != null && maxAge.trim().length() > 0)
+                ? Long.parseLong(maxAge.trim()) : 3600000L);
     }
 
     /**
@@ -123,56 +160,50 @@ public class accessPointClient {
     }
 
     /**
-     * Sets up the certficate TrustManager.
+     * Sets up the SSL socket factory and hostname verifier of a port. The
+     * SSLContext of the recipient certificate is shared by all its ports, so
+     * that their TLS sessions can be resumed.
      * @throws Exception
      *          Generic exception.
      */
-    private void setupCertificateTrustManager() throws Exception{
-        logger4J.debug("setupCertificateTrustManager");
-        String acceptedCommonNames = null;
-        if (metadataCertificate != null) {
-            acceptedCommonNames = metadataCertificate.getSubjectX500Principal().getName();
-        }
-        TrustManager[] trustManagers = new TrustManager[]{new AccessPointX509TrustManager(acceptedCommonNames, null)};
-        SSLContext sc = SSLContext.getInstance(SECURITY_PROVIDER);
-        sc.init(null, trustManagers, new java.security.SecureRandom());
+    private void setupTransportSecurity(Map<String, Object> requestContext,
+            X509Certificate metadataCertificate) throws Exception{
+        logger4J.debug("setupTransportSecurity");
+        SSLContext sc = sslContexts.getContext(metadataCertificate);
 
-        HttpsURLConnection.setDefaultSSLSocketFactory(sc.getSocketFactory());
+        requestContext.put(JAXWSProperties.SSL_SOCKET_FACTORY, sc.getSocketFactory());
+        requestContext.put(JAXWSProperties.HOSTNAME_VERIFIER, HOSTNAME_VERIFIER);
     }
 
     /**
-     * Sets up the default hostname verifier.
+     * Configures and returns a port that points to the a specific endpoint
+     * address.
+     *
+     * @param address the address of the webservice.
+     *
+     * @return the port.
      */
-    private void setupHostNameVerifier() {
-        HostnameVerifier hv = new HostnameVerifier() {
-            @Override
-            public boolean verify(final String hostname, final SSLSession session) {
-                return true;
-            }
-        };
-        HttpsURLConnection.setDefaultHostnameVerifier(hv);
+    public final Resource getPort(final String address) {
+        return getPort(address, metadataCertificate);
     }
 
     /**
      * Configures and returns a port that points to the a specific endpoint
-     * address.
+     * address, trusting the given recipient certificate instead of the one
+     * set with setMetadataCertificate. Ports obtained this way may be used
+     * by different threads at the same time as long as each port is only
+     * used by one of them.
      *
      * @param address the address of the webservice.
+     * @param certificate the certificate of the recipient.
      *
      * @return the port.
      */
-    public final Resource getPort(final String address) {
+    public final Resource getPort(final String address, final X509Certificate certificate) {
         logger4J.debug("getPort");
         Resource port = null;
         try {
-            HostnameVerifier hv = new HostnameVerifier() {
-            @Override
-            public boolean verify(final String hostname, final SSLSession session) {
-                return true;
-            }
-        };
-        HttpsURLConnection.setDefaultHostnameVerifier(hv);
-            port = setupEndpointAddress(address);
+            port = setupEndpointAddress(address, certificate);
         } catch (Exception ex) {
             java.util.logging.Logger.getLogger(accessPointClient.class.getName()).log(Level.SEVERE, ex.getMessage());
             logger4J.error(ex.getMessage(), ex);
@@ -187,18 +218,17 @@ public class accessPointClient {
      * Gets and configures a port that points to a given webservice address.
      *
      * @param address the address of the webservice.
+     * @param metadataCertificate the certificate of the recipient.
      *
      * @return the configured port.
      */
-    private Resource setupEndpointAddress(final String address) throws Exception{
+    private Resource setupEndpointAddress(final String address,
+            final X509Certificate metadataCertificate) throws Exception{
         logger4J.debug("setupEndpointAddress");        
         AccessPointService service = new AccessPointService();
         Map<String, Object> requestContext = null;
         Resource port = null;
 
-        setupHostNameVerifier();
-        setupCertificateTrustManager();
-
         service.setHandlerResolver(new HandlerResolver() {
 
             @Override
@@ -212,6 +242,7 @@ public class accessPointClient {
         port = service.getResourceBindingPort();
         requestContext = ((BindingProvider) port).getRequestContext();
         requestContext.put(BindingProvider.ENDPOINT_ADDRESS_PROPERTY, address);
+        setupTransportSecurity(requestContext, metadataCertificate);
 
         return port;
     }
@@ -228,6 +259,71 @@ public class accessPointClient {
     public final void send(final Resource port,
             final SOAPHeaderObject soapHeader, final Create body) {
 
+        try {
+            deliver(port, soapHeader, body);
+        } finally {
+            close(port);
+        }
+    }
+
+    /**
+     * Sends a Create object to an endpoint through a pooled port. The port
+     * is borrowed for the duration of the call, so concurrent sends to the
+     * same endpoint use different ports, and given back afterwards unless
+     * the call failed without an answer from the endpoint.
+     *
+     * @param address the address of the webservice.
+     * @param certificate the certificate of the recipient.
+     * @param soapHeader the SOAPHeaderObject holding the BUSDOX headers
+     *      information that will be attached into the SOAP-envelope.
+     * @param body Create object holding the SOAP-envelope payload.
+     */
+    public final void send(final String address, final X509Certificate certificate,
+            final SOAPHeaderObject soapHeader, final Create body) {
+
+        PortPool.Lease lease = null;
+        try {
+            lease = portPool.borrow(address, certificate);
+        } catch (AccessPointClientException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            String erroMSG = config.getProperty("error.message.client.port") + address;
+            throw new AccessPointClientException(erroMSG, ex);
+        }
+
+        boolean healthy = false;
+        try {
+            deliver(lease.getPort(), soapHeader, body);
+            healthy = true;
+        } catch (AccessPointClientException ex) {
+            /* The endpoint answered with a fault, the port is still usable. */
+            healthy = true;
+            throw ex;
+        } finally {
+            portPool.release(lease, healthy);
+        }
+    }
+
+    /**
+     * Closes the idle pooled ports.
+     */
+    public final void closePooledPorts() {
+        portPool.clear();
+    }
+
+    /**
+     * Sends a Create object like send does, but leaves the port open so that
+     * it can be reused for further messages to the same endpoint. The caller
+     * closes the port with close once it is no longer needed.
+     *
+     * @param port the port which will be used to send the message.
+     * @param soapHeader the SOAPHeaderObject holding the BUSDOX headers
+     *      information that will be attached into the SOAP-envelope.
+     * @param body Create object holding the SOAP-envelope payload.
+     */
+    public final void deliver(final Resource port,
+            final SOAPHeaderObject soapHeader, final Create body) {
+
         SOAPOutboundHandler.setSoapHeader(soapHeader);
         logger4J.info("MessageIdentifier: " + soapHeader.getMessageIdentifier());
         logger4J.info("ChannelIdentifier: " + soapHeader.getChannelIdentifier());
@@ -249,9 +345,18 @@ public class accessPointClient {
 
             throw new AccessPointClientException(erroMSG, ex);
         } finally {
-            if (port != null) {
-                ((Closeable) port).close();
-            }
+            SOAPOutboundHandler.setSoapHeader(null);
+        }
+    }
+
+    /**
+     * Closes a port obtained with getPort.
+     *
+     * @param port the port to close, may be null.
+     */
+    public final void close(final Resource port) {
+        if (port != null) {
+            ((Closeable) port).close();
         }
     }
 }
@@ -40,11 +40,11 @@ package eu.peppol.start.client.util;
 import eu.peppol.start.smp.SMPValidationManager;
 import eu.peppol.start.metadata.MessageMetadata;
 import eu.peppol.start.soap.SOAPHeaderObject;
+import eu.peppol.start.util.XMLToolkit;
 import java.io.File;
 import java.io.IOException;
 import java.util.UUID;
 import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 import org.busdox.servicemetadata.types.DocumentIdentifierType;
 import org.busdox.servicemetadata.types.ParticipantIdentifierType;
@@ -94,11 +94,9 @@ public class MessageSetup {
 
         String xmlFile = targetXmlFile;
 
-        DocumentBuilderFactory domFactory = DocumentBuilderFactory.newInstance();
-
         DocumentBuilder parser = null;
         try {
-            parser = domFactory.newDocumentBuilder();
+            parser = XMLToolkit.getDocumentBuilder(false);
             document = parser.parse(new File(xmlFile));
         } catch (SAXException ex) {
             logger4J.error("SAXException has been thrown, please "
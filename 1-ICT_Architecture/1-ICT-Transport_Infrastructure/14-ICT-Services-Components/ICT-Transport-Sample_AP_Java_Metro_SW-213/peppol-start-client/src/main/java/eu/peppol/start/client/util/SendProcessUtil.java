@@ -51,7 +51,6 @@ import java.security.cert.X509Certificate;
 import java.util.List;
 import org.apache.log4j.Logger;
 import org.w3._2009._02.ws_tra.Create;
-import org.w3._2009._02.ws_tra.Resource;
 import org.w3c.dom.Document;
 
 /**
@@ -72,10 +71,6 @@ public final class SendProcessUtil {
      * Configuration instance to access properties data.
      */
     private static Configuration conf;
-    /**
-     * The connecting port to execute Web Service Operations.
-     */
-    private static Resource port;
     /**
      * X509 Certificate from the receiver.
      */
@@ -84,6 +79,17 @@ public final class SendProcessUtil {
      * Certificate in String format.
      */
     private static String CERTIFICATE_ENTRY = null;
+    /**
+     * Certificate of the receiver of the message sent by the current thread,
+     * overriding RECEIVER_CERTIFICATE when several messages are sent at once.
+     */
+    private static final ThreadLocal<X509Certificate> THREAD_RECEIVER_CERTIFICATE =
+            new ThreadLocal<X509Certificate>();
+    /**
+     * Certificate entry matching THREAD_RECEIVER_CERTIFICATE.
+     */
+    private static final ThreadLocal<String> THREAD_CERTIFICATE_ENTRY =
+            new ThreadLocal<String>();
 
     /**
      * Sole constructor to avoid instance.
@@ -169,11 +175,8 @@ public final class SendProcessUtil {
     public static void sendPingMessage(Create body, String recipientAPUrl, X509Certificate metaCert) {
         accessPointClient client = accessPointClient.getInstance();
         MessageMetadata metadata = new MessageMetadata();
-        client.setMetadataCertificate(metaCert);
-        client.printSOAPLogging(true);
-        Resource port = client.getPort(recipientAPUrl);
         logger4J.debug("Sending ping message...");
-        client.send(port, metadata.getSoapHeader(), body);
+        client.send(recipientAPUrl, metaCert, metadata.getSoapHeader(), body);
         logger4J.debug("Ping Message Sent");
     }
 
@@ -192,12 +195,8 @@ public final class SendProcessUtil {
 
         accessPointClient = accessPointClient.getInstance();
 
-        accessPointClient.setMetadataCertificate(receiverCert);
-        accessPointClient.printSOAPLogging(true);
-        port = accessPointClient.getPort(recipientAPUrl);
-
         logger4J.info("Sending message...");
-        accessPointClient.send(port, soapHeaderbject, body);
+        accessPointClient.send(recipientAPUrl, receiverCert, soapHeaderbject, body);
         logger4J.info("Message Delivered to Endpoint: " + recipientAPUrl);
     }
 
@@ -207,7 +206,8 @@ public final class SendProcessUtil {
      *          X509Certificate object.
      */
     public static X509Certificate getApSmlCertificate() {
-        return RECEIVER_CERTIFICATE;
+        X509Certificate certificate = THREAD_RECEIVER_CERTIFICATE.get();
+        return (certificate != null) ? certificate : RECEIVER_CERTIFICATE;
     }
 
     /**
@@ -216,7 +216,27 @@ public final class SendProcessUtil {
      *          String containing certificate data.
      */
     public static String getApSmlCertificateString() {
-        return CERTIFICATE_ENTRY;
+        String entry = THREAD_CERTIFICATE_ENTRY.get();
+        return (entry != null) ? entry : CERTIFICATE_ENTRY;
+    }
+
+    /**
+     * Sets the receiver certificate checked against the responses received by
+     * the current thread, for senders that send several messages at once.
+     * @param entry
+     *                  Certificate entry, or null to use the one prepared
+     *                  by prepareCertificatesValidation.
+     * @param certificate
+     *                  Certificate matching the entry.
+     */
+    public static void setThreadCertificate(String entry, X509Certificate certificate) {
+        if (entry == null) {
+            THREAD_CERTIFICATE_ENTRY.remove();
+            THREAD_RECEIVER_CERTIFICATE.remove();
+        } else {
+            THREAD_CERTIFICATE_ENTRY.set(entry);
+            THREAD_RECEIVER_CERTIFICATE.set(certificate);
+        }
     }
 
     /**
@@ -241,10 +261,7 @@ public final class SendProcessUtil {
      */
     public static void terminateSendingProcess() {
         logger4J.error("The process has been terminated since the certificates are not valid.");
-        if (port != null) {
-            logger4J.warn("Port for Create operation has been closed...");
-            throw new RuntimeException("ERROR: Certificate of recipient found in Metadata"
-                    + " does not match the certificate used to sign the response");
-        }
+        throw new RuntimeException("ERROR: Certificate of recipient found in Metadata"
+                + " does not match the certificate used to sign the response");
     }
 }
@@ -41,15 +41,16 @@ import eu.peppol.start.exception.DocumentTypeNotAcceptedException;
 import eu.peppol.start.exception.LookupException;
 import eu.peppol.start.exception.UnknownEndpointException;
 import eu.peppol.start.util.Configuration;
+import eu.peppol.start.util.JAXBContextRegistry;
 import eu.peppol.start.util.Util;
-import java.io.BufferedReader;
+import eu.peppol.start.util.XMLToolkit;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLEncoder;
+import java.net.UnknownHostException;
 import java.security.NoSuchAlgorithmException;
 import java.util.List;
 import java.util.logging.Level;
@@ -60,11 +61,13 @@ import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBElement;
 import javax.xml.bind.JAXBException;
 import javax.xml.bind.Unmarshaller;
+import javax.xml.parsers.ParserConfigurationException;
 import org.busdox.servicemetadata.types.EndpointType;
 import org.busdox.servicemetadata.types.ProcessType;
 import org.busdox.servicemetadata.types.ServiceMetadataType;
 import org.busdox.servicemetadata.types.SignedServiceMetadataType;
 import org.w3c.dom.Document;
+import org.xml.sax.SAXException;
 
 /**
  * The SMLLookup aims to hold the entire processes required for getting
@@ -84,6 +87,14 @@ public class SMLLookup {
      * Encoding DEFLATE.
      */
     private static final String ENCODING_DEFLATE = "deflate";
+    /**
+     * HTTP headers of the SMP requests and responses.
+     */
+    private static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+    private static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+    private static final String HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
+    private static final String HEADER_ETAG = "ETag";
+    private static final String HEADER_LAST_MODIFIED = "Last-Modified";
     /**
      * Configuration instance used to get the application properties.
      */
@@ -98,12 +109,25 @@ public class SMLLookup {
     private static org.apache.log4j.Logger logger4J =
             org.apache.log4j.Logger.getLogger(SMLLookup.class);
     private static SMLLookup instance;
+    /**
+     * Cache of the SMP documents and lookup failures.
+     */
+    private final SMPCache cache;
 
     /*
      * Constructor Method.
      */
     private SMLLookup() {
         config = Configuration.getInstance();
+
+        String size = config.getProperty("sml.cache.size");
+        String ttl = config.getProperty("sml.cache.ttl.seconds");
+        String negativeTtl = config.getProperty("sml.cache.negative.ttl.seconds");
+        cache = new SMPCache(
+                (size != null && size.trim().length() > 0) ? Integer.parseInt(size.trim()) : 1000,
+                ((ttl != null && ttl.trim().length() > 0) ? Long.parseLong(ttl.trim()) : 600L) * 1000L,
+                ((negativeTtl != null && negativeTtl.trim().length() > 0)
+                ? Long.parseLong(negativeTtl.trim()) : 60L) * 1000L);
     }
 
     /**
@@ -174,28 +198,6 @@ public class SMLLookup {
         return serviceURL;
     }
 
-    /**
-     * Open a connection from an url.
-     * @param address   Url address to open the connection.
-     * @return opened connection.
-     */
-    private HttpURLConnection openConnection(String address) {
-
-        HttpURLConnection httpConn = null;
-
-        try {
-            URL url = new URL(address);
-
-            httpConn = (HttpURLConnection) url.openConnection();
-            httpConn.connect();
-        } catch (IOException ex) {
-            Logger.getLogger(SMLLookup.class.getName()).log(Level.SEVERE, ex.getMessage());
-            logger4J.error(ex.getMessage(), ex);
-            throw new LookupException();
-        }
-        return httpConn;
-    }
-
     /**
      * Check the status of an url address.
      * @param address   URL address to check.
@@ -225,95 +227,206 @@ public class SMLLookup {
     }
 
     /**
-     * Close the connection.
-     * @param conn  Connection to close.
+     * Parse the metadata document with jaxb.
+     * @param document  Metadata document.
+     * @return ServiceMetadataType object instantiated.
      */
-    private void closeConnection(HttpURLConnection conn) {
-        if (conn != null) {
-            conn.disconnect();
+    private ServiceMetadataType getServiceMetadata(Document document) {
+
+        ServiceMetadataType metaType = null;
+        try {
+            JAXBContext context = JAXBContextRegistry.getContext(SignedServiceMetadataType.class);
+            Unmarshaller unmarshaller = JAXBContextRegistry.acquireUnmarshaller(context);
+            try {
+                JAXBElement<SignedServiceMetadataType> root = unmarshaller.unmarshal(document, SignedServiceMetadataType.class);
+                metaType = root.getValue().getServiceMetadata();
+            } finally {
+                JAXBContextRegistry.releaseUnmarshaller(context, unmarshaller);
+            }
+        } catch (JAXBException ex) {
+            Logger.getLogger(SMLLookup.class.getName()).log(Level.SEVERE, ex.getMessage());
+            logger4J.error(ex.getMessage(), ex);
+            throw new LookupException();
         }
+        return metaType;
     }
 
     /**
-     * Get the InputStream from the connection and read it.
-     * @param conn  Opened connection.
-     * @return The contend of the InputStream as String.
+     * Returns the cache of SMP documents.
+     * @return the SMPCache of this lookup.
      */
-    private String getMetadata(HttpURLConnection conn) {
-
-        InputStream in = null;
-        InputStream result = null;
-        BufferedReader buffReader = null;
-        StringBuilder strBuffer = null;
+    public SMPCache getCache() {
+        return cache;
+    }
 
-        try {
-            String encoding = conn.getContentEncoding();
-            in = conn.getInputStream();
+    /**
+     * Returns the cached SMP document of a Business Identifier and Document
+     * Identifier, fetching it on a miss. Unknown participants and document
+     * types not accepted are cached too and thrown by the entry.
+     * @param smlUrl                Service Metadata Locator url address.
+     * @param businesssIdScheme     Scheme of the Business Identifier.
+     * @param businesssIdValue      Business Identifier.
+     * @param documentIdScheme      Scheme of the Document Identifier.
+     * @param documentIdValue       Document Identifier.
+     * @return the cache entry.
+     */
+    private SMPCache.Entry lookup(String smlUrl,
+            String businesssIdScheme, String businesssIdValue,
+            String documentIdScheme, String documentIdValue) {
 
-            if (encoding != null && encoding.equalsIgnoreCase(ENCODING_GZIP)) {
-                result = new GZIPInputStream(in);
-            } else if (encoding != null && encoding.equalsIgnoreCase(ENCODING_DEFLATE)) {
-                result = new InflaterInputStream(in);
-            } else {
-                result = in;
+        String key = SMPCache.key(smlUrl, businesssIdScheme, businesssIdValue,
+                documentIdScheme, documentIdValue);
+        SMPCache.Entry entry = cache.get(key);
+        if (entry == null) {
+            try {
+                entry = fetch(key, smlUrl, businesssIdScheme, businesssIdValue,
+                        documentIdScheme, documentIdValue);
+            } catch (UnknownEndpointException ex) {
+                cache.putFailure(key, ex);
+                throw ex;
+            } catch (DocumentTypeNotAcceptedException ex) {
+                cache.putFailure(key, ex);
+                throw ex;
             }
+            logger4J.debug("SMP document fetched for " + businesssIdValue + ": " + cache);
+        }
+        return entry;
+    }
+
+    /**
+     * Fetches the SMP document of a Business Identifier and Document Identifier
+     * with a single GET and caches it. An expired cached document is
+     * revalidated with If-None-Match and If-Modified-Since, and kept if the
+     * SMP answers 304. The body is decoded and parsed as it is read. The
+     * connection is not disconnected, so that it returns to the keep-alive
+     * pool of HttpURLConnection. Only a 404 costs a second request, to tell
+     * an unknown participant from a document type not accepted.
+     * @param key                   Cache key of the lookup.
+     * @param smlUrl                Service Metadata Locator url address.
+     * @param businesssIdScheme     Scheme of the Business Identifier.
+     * @param businesssIdValue      Business Identifier.
+     * @param documentIdScheme      Scheme of the Document Identifier.
+     * @param documentIdValue       Document Identifier.
+     * @return the cache entry of the SMP document.
+     */
+    private SMPCache.Entry fetch(String key, String smlUrl,
+            String businesssIdScheme, String businesssIdValue,
+            String documentIdScheme, String documentIdValue) {
+
+        String businessIdURL = generateBusinessIdURL(smlUrl,
+                businesssIdScheme, businesssIdValue);
+        String documentURL = generateServiceURL(businessIdURL,
+                documentIdScheme, documentIdValue);
+        SMPCache.Entry stale = cache.getStale(key);
 
-            buffReader = new BufferedReader(new InputStreamReader(result));
+        int code;
+        try {
+            HttpURLConnection conn = (HttpURLConnection) new URL(documentURL).openConnection();
+            conn.setRequestProperty(HEADER_ACCEPT_ENCODING, ENCODING_GZIP + ", " + ENCODING_DEFLATE);
+            if (stale != null && stale.getETag() != null) {
+                conn.setRequestProperty(HEADER_IF_NONE_MATCH, stale.getETag());
+            }
+            if (stale != null && stale.getLastModified() != null) {
+                conn.setRequestProperty(HEADER_IF_MODIFIED_SINCE, stale.getLastModified());
+            }
 
-            String line = null;
-            strBuffer = new StringBuilder();
-            while ((line = buffReader.readLine()) != null) {
-                strBuffer.append(line).append("\n");
+            code = conn.getResponseCode();
+            if (code == HttpURLConnection.HTTP_OK) {
+                Document document = parseMetadata(conn);
+                return cache.put(key, document,
+                        conn.getHeaderField(HEADER_ETAG), conn.getHeaderField(HEADER_LAST_MODIFIED));
+            }
+            if (code == HttpURLConnection.HTTP_NOT_MODIFIED && stale != null) {
+                close(conn.getInputStream());
+                logger4J.debug("SMP document not modified: " + documentURL);
+                return cache.revalidate(key, stale);
             }
+            close(conn.getErrorStream());
+        } catch (UnknownHostException ex) {
+            Logger.getLogger(SMLLookup.class.getName()).log(Level.SEVERE, "UnknownEndpointException");
+            logger4J.error("UnknownEndpointException: Not metadata found for Participant " + businesssIdValue);
+            throw new UnknownEndpointException();
         } catch (IOException ex) {
             Logger.getLogger(SMLLookup.class.getName()).log(Level.SEVERE, ex.getMessage());
             logger4J.error(ex.getMessage(), ex);
             throw new LookupException();
-        } finally {
-            if (in != null) {
-                try {
-                    in.close();
-                } catch (IOException ex) {
-                    Logger.getLogger(SMLLookup.class.getName()).log(Level.SEVERE, ex.getMessage());
-                    logger4J.error(ex.getMessage(), ex);
-                }
-            }
-            if (result != null) {
-                try {
-                    result.close();
-                } catch (IOException ex) {
-                    Logger.getLogger(SMLLookup.class.getName()).log(Level.SEVERE, ex.getMessage());
-                    logger4J.error(ex.getMessage(), ex);
-                }
-            }
-            if (buffReader != null) {
-                try {
-                    buffReader.close();
-                } catch (IOException ex) {
-                    Logger.getLogger(SMLLookup.class.getName()).log(Level.SEVERE, ex.getMessage());
-                    logger4J.error(ex.getMessage(), ex);
-                }
-            }
         }
-        return (strBuffer != null) ? strBuffer.toString() : null;
+
+        if (code != HttpURLConnection.HTTP_NOT_FOUND) {
+            logger4J.error("The SMP answered " + code + " for " + documentURL);
+            throw new LookupException();
+        }
+        if (checkAddressStatus(businessIdURL)) {
+            Logger.getLogger(SMLLookup.class.getName()).log(Level.INFO, "DocumentTypeNotAccepted");
+            logger4J.debug("DocumentTypeNotAccepted : Not capability found for " + documentIdValue);
+            throw new DocumentTypeNotAcceptedException();
+        } else {
+            Logger.getLogger(SMLLookup.class.getName()).log(Level.SEVERE, "UnknownEndpointException");
+            logger4J.error("UnknownEndpointException: Not metadata found for Participant " + businesssIdValue);
+            throw new UnknownEndpointException();
+        }
     }
 
     /**
-     * Parse the metadata document with jaxb.
-     * @param document  Metadata document.
-     * @return ServiceMetadataType object instantiated.
+     * Parses the body of a response, decoding gzip or deflate on the fly.
+     * @param conn  Connection with a successful response.
+     * @return The parsed metadata document.
      */
-    private ServiceMetadataType getServiceMetadata(Document document) {
+    private Document parseMetadata(HttpURLConnection conn) throws IOException {
 
-        ServiceMetadataType metaType = null;
+        InputStream in = conn.getInputStream();
         try {
-            Unmarshaller unmarshaller = JAXBContext.newInstance(SignedServiceMetadataType.class).createUnmarshaller();
-            JAXBElement<SignedServiceMetadataType> root = unmarshaller.unmarshal(document, SignedServiceMetadataType.class);
-            metaType = root.getValue().getServiceMetadata();
-        } catch (JAXBException ex) {
+            String encoding = conn.getContentEncoding();
+            InputStream body = in;
+            if (encoding != null && encoding.equalsIgnoreCase(ENCODING_GZIP)) {
+                body = new GZIPInputStream(in);
+            } else if (encoding != null && encoding.equalsIgnoreCase(ENCODING_DEFLATE)) {
+                body = new InflaterInputStream(in);
+            }
+            return XMLToolkit.getDocumentBuilder(true).parse(body);
+        } catch (SAXException ex) {
+            Logger.getLogger(SMLLookup.class.getName()).log(Level.SEVERE, ex.getMessage());
+            logger4J.error("The SMP document cannot be parsed: " + ex.getMessage(), ex);
+            throw new LookupException();
+        } catch (ParserConfigurationException ex) {
             Logger.getLogger(SMLLookup.class.getName()).log(Level.SEVERE, ex.getMessage());
             logger4J.error(ex.getMessage(), ex);
             throw new LookupException();
+        } finally {
+            close(in);
+        }
+    }
+
+    /**
+     * Reads what is left of a response body and closes it, so that the
+     * connection can be kept alive.
+     * @param in  Body of the response, may be null.
+     */
+    private void close(InputStream in) {
+        if (in == null) {
+            return;
+        }
+        try {
+            byte[] buffer = new byte[1024];
+            while (in.read(buffer) != -1) {
+                /* Drain the body. */
+            }
+            in.close();
+        } catch (IOException ex) {
+            logger4J.debug("Response body not drained: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Returns the service metadata of a cache entry, unmarshalling it once.
+     * @param entry Cache entry.
+     * @return ServiceMetadataType object instantiated.
+     */
+    private ServiceMetadataType getServiceMetadata(SMPCache.Entry entry) {
+        ServiceMetadataType metaType = entry.getServiceMetadata();
+        if (metaType == null) {
+            metaType = getServiceMetadata(entry.getDocument());
+            entry.setServiceMetadata(metaType);
         }
         return metaType;
     }
@@ -331,30 +444,10 @@ public class SMLLookup {
             String businesssIdScheme, String businesssIdValue,
             String documentIdScheme, String documentIdValue) {
 
-        String address = null;
+        ServiceMetadataType serviceMetadata = getServiceMetadata(lookup(smlUrl,
+                businesssIdScheme, businesssIdValue, documentIdScheme, documentIdValue));
 
-        String businessIdURL = generateBusinessIdURL(smlUrl,
-                businesssIdScheme, businesssIdValue);
-        String documentURL = generateServiceURL(businessIdURL,
-                documentIdScheme, documentIdValue);
-        if (checkAddressStatus(businessIdURL)) {
-            if (checkAddressStatus(documentURL)) {
-                HttpURLConnection smlConn = openConnection(documentURL);
-                String metadata = getMetadata(smlConn);
-                closeConnection(smlConn);
-                Document document = Util.parseStringtoDocument(metadata);
-
-                ServiceMetadataType serviceMetadata = getServiceMetadata(document);
-
-                address = serviceMetadata.getServiceInformation().getProcessList().getProcess().get(0).getServiceEndpointList().getEndpoint().get(0).getEndpointReference().getAddress().getValue();
-            } else {                
-                logger4J.debug("DocumentTypeNotAccepted : Not capability found for " + documentIdValue);
-                throw new DocumentTypeNotAcceptedException();
-            }
-        } else {            
-            logger4J.error("UnknownEndpointException: Not metadata found for Participant " + businesssIdValue);
-            throw new UnknownEndpointException();
-        }
+        String address = serviceMetadata.getServiceInformation().getProcessList().getProcess().get(0).getServiceEndpointList().getEndpoint().get(0).getEndpointReference().getAddress().getValue();
         return address;
     }
 
@@ -376,39 +469,18 @@ public class SMLLookup {
 
         String certificate = null;
 
-        String businessIdURL = generateBusinessIdURL(smlUrl,
-                businesssIdScheme, businesssIdValue);
-        String documentURL = generateServiceURL(businessIdURL,
-                documentIdScheme, documentIdValue);
+        ServiceMetadataType serviceMetadata = getServiceMetadata(lookup(smlUrl,
+                businesssIdScheme, businesssIdValue, documentIdScheme, documentIdValue));
 
-        if (checkAddressStatus(businessIdURL)) {
-            if (checkAddressStatus(documentURL)) {
-                HttpURLConnection smlConn = openConnection(documentURL);
-                String metadata = getMetadata(smlConn);
-                closeConnection(smlConn);
-                Document document = Util.parseStringtoDocument(metadata);
-
-                ServiceMetadataType serviceMetadata = getServiceMetadata(document);
-
-                List<ProcessType> processes = serviceMetadata.getServiceInformation().getProcessList().getProcess();
-
-                for (ProcessType process : processes) {
-                    if (processIdScheme.equals(process.getProcessIdentifier().getScheme())
-                            && processIdValue.equals(process.getProcessIdentifier().getValue())) {
-                        EndpointType enpointType = process.getServiceEndpointList().getEndpoint().get(0);
-                        certificate = enpointType.getCertificate();
-                        break;
-                    }
-                }
-            } else {
-                Logger.getLogger(SMLLookup.class.getName()).log(Level.INFO, "DocumentTypeNotAccepted");
-                logger4J.debug("DocumentTypeNotAccepted");
-                throw new DocumentTypeNotAcceptedException();
+        List<ProcessType> processes = serviceMetadata.getServiceInformation().getProcessList().getProcess();
+
+        for (ProcessType process : processes) {
+            if (processIdScheme.equals(process.getProcessIdentifier().getScheme())
+                    && processIdValue.equals(process.getProcessIdentifier().getValue())) {
+                EndpointType enpointType = process.getServiceEndpointList().getEndpoint().get(0);
+                certificate = enpointType.getCertificate();
+                break;
             }
-        } else {
-            Logger.getLogger(SMLLookup.class.getName()).log(Level.SEVERE, "UnknownEndpointException");
-            logger4J.debug("UnknownEndpointException");
-            throw new UnknownEndpointException();
         }
         return certificate;
     }
@@ -429,28 +501,8 @@ public class SMLLookup {
             String businesssIdScheme, String businesssIdValue,
             String documentIdScheme, String documentIdValue,
             String processIdScheme, String processIdValue) {  
-        Document smpData = null;
-        String businessIdURL = generateBusinessIdURL(smlUrl,
-                businesssIdScheme, businesssIdValue);
-        String documentURL = generateServiceURL(businessIdURL,
-                documentIdScheme, documentIdValue);
-
-        if (checkAddressStatus(businessIdURL)) {
-            if (checkAddressStatus(documentURL)) {
-                HttpURLConnection smlConn = openConnection(documentURL);
-                String metadata = getMetadata(smlConn);
-                closeConnection(smlConn);
-                smpData = Util.parseStringtoDocument(metadata);                
-            } else {
-                Logger.getLogger(SMLLookup.class.getName()).log(Level.INFO, "DocumentTypeNotAccepted");
-                logger4J.debug("DocumentTypeNotAccepted");
-                throw new DocumentTypeNotAcceptedException();
-            }
-        } else {
-            Logger.getLogger(SMLLookup.class.getName()).log(Level.SEVERE, "UnknownEndpointException");
-            logger4J.debug("UnknownEndpointException");
-            throw new UnknownEndpointException();
-        }
+        Document smpData = lookup(smlUrl, businesssIdScheme, businesssIdValue,
+                documentIdScheme, documentIdValue).getDocument();
         return smpData;
     }
 }
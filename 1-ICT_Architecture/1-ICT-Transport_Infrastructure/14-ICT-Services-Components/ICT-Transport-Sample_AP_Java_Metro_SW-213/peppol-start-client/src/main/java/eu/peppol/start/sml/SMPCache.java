@@ -0,0 +1,313 @@
+/*
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package eu.peppol.start.sml;
+
+import eu.peppol.start.exception.DocumentTypeNotAcceptedException;
+import eu.peppol.start.exception.LookupException;
+import eu.peppol.start.exception.UnknownEndpointException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.busdox.servicemetadata.types.ServiceMetadataType;
+import org.w3c.dom.Document;
+
+/**
+ * Bounded cache of the service metadata fetched from SMPs, keyed by SML,
+ * participant identifier and document identifier.
+ * <p>
+ * A fetched document is kept for the TTL; after that it stays in the cache,
+ * with its ETag and Last-Modified validators, so that it can be revalidated
+ * with a conditional request instead of fetched again. An unknown
+ * participant or a document type the participant does not accept is kept
+ * for the shorter negative TTL and thrown again on lookup. Beyond the maximum size the least
+ * recently used entries are dropped. Hits, misses and evictions are counted.
+ */
+public final class SMPCache {
+
+    /**
+     * Entries by key, least recently used first.
+     */
+    private final Map<String, Entry> entries;
+
+    /**
+     * Time a fetched document is kept, in milliseconds.
+     */
+    private final long ttl;
+
+    /**
+     * Time a lookup failure is kept, in milliseconds.
+     */
+    private final long negativeTtl;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong negativeHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Creates a cache.
+     * @param maxSize     Maximum number of entries; 0 disables the cache.
+     * @param ttl         Time a fetched document is kept, in milliseconds.
+     * @param negativeTtl Time a lookup failure is kept, in milliseconds.
+     */
+    SMPCache(final int maxSize, long ttl, long negativeTtl) {
+        this.ttl = ttl;
+        this.negativeTtl = negativeTtl;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > maxSize) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * A cached SMP document or lookup failure.
+     */
+    static final class Entry {
+
+        private final Document document;
+        private final LookupException failure;
+        private final long expires;
+        private final String etag;
+        private final String lastModified;
+        private ServiceMetadataType serviceMetadata;
+
+        private Entry(Document document, LookupException failure, long expires,
+                String etag, String lastModified) {
+            this.document = document;
+            this.failure = failure;
+            this.expires = expires;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * Returns the ETag the SMP sent with the document, or null.
+         */
+        String getETag() {
+            return etag;
+        }
+
+        /**
+         * Returns the Last-Modified date the SMP sent with the document, or null.
+         */
+        String getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * Returns a copy of the document that the caller may modify, or
+         * throws the cached lookup failure.
+         */
+        synchronized Document getDocument() {
+            throwFailure();
+            return (Document) document.cloneNode(true);
+        }
+
+        /**
+         * Returns the unmarshalled service metadata, or null if not set yet.
+         */
+        synchronized ServiceMetadataType getServiceMetadata() {
+            throwFailure();
+            return serviceMetadata;
+        }
+
+        synchronized void setServiceMetadata(ServiceMetadataType serviceMetadata) {
+            this.serviceMetadata = serviceMetadata;
+        }
+
+        /**
+         * Throws a new exception of the type of the cached failure.
+         */
+        private void throwFailure() {
+            if (failure instanceof UnknownEndpointException) {
+                throw new UnknownEndpointException();
+            }
+            if (failure instanceof DocumentTypeNotAcceptedException) {
+                throw new DocumentTypeNotAcceptedException();
+            }
+        }
+    }
+
+    /**
+     * Returns the key of a lookup.
+     */
+    static String key(String smlUrl, String businessIdScheme, String businessIdValue,
+            String documentIdScheme, String documentIdValue) {
+        return smlUrl + "\n" + businessIdScheme + "\n" + businessIdValue
+                + "\n" + documentIdScheme + "\n" + documentIdValue;
+    }
+
+    /**
+     * Returns the live entry of a key, or null.
+     */
+    Entry get(String key) {
+        return get(key, System.currentTimeMillis());
+    }
+
+    Entry get(String key, long now) {
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+            if (entry != null && entry.expires <= now) {
+                entry = null;
+            }
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+        } else if (entry.failure != null) {
+            negativeHits.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return entry;
+    }
+
+    /**
+     * Returns the entry of a key holding a document, live or expired, to
+     * revalidate it; or null.
+     */
+    Entry getStale(String key) {
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            return (entry != null && entry.failure == null) ? entry : null;
+        }
+    }
+
+    /**
+     * Caches a fetched document and returns its entry.
+     * @param etag         ETag of the response, or null.
+     * @param lastModified Last-Modified date of the response, or null.
+     */
+    Entry put(String key, Document document, String etag, String lastModified) {
+        return put(key, document, etag, lastModified, System.currentTimeMillis());
+    }
+
+    Entry put(String key, Document document, String etag, String lastModified, long now) {
+        return put(key, new Entry(document, null, now + ttl, etag, lastModified));
+    }
+
+    /**
+     * Renews the TTL of an entry the SMP reported as not modified and
+     * returns the renewed entry.
+     */
+    Entry revalidate(String key, Entry stale) {
+        return revalidate(key, stale, System.currentTimeMillis());
+    }
+
+    Entry revalidate(String key, Entry stale, long now) {
+        Entry entry = new Entry(stale.document, null, now + ttl, stale.etag, stale.lastModified);
+        entry.setServiceMetadata(stale.getServiceMetadata());
+        return put(key, entry);
+    }
+
+    /**
+     * Caches a lookup failure and returns its entry. Only unknown
+     * participants and document types not accepted are cached.
+     */
+    Entry putFailure(String key, LookupException failure) {
+        return putFailure(key, failure, System.currentTimeMillis());
+    }
+
+    Entry putFailure(String key, LookupException failure, long now) {
+        return put(key, new Entry(null, failure, now + negativeTtl, null, null));
+    }
+
+    private Entry put(String key, Entry entry) {
+        synchronized (entries) {
+            entries.put(key, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Drops all entries.
+     */
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * Number of lookups answered with a cached document.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Number of lookups answered with a cached failure.
+     */
+    public long getNegativeHits() {
+        return negativeHits.get();
+    }
+
+    /**
+     * Number of lookups that had to fetch from the SMP.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Number of entries dropped to respect the maximum size.
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    @Override
+    public String toString() {
+        return "SMPCache[size=" + size() + ", hits=" + getHits()
+                + ", negativeHits=" + getNegativeHits() + ", misses=" + getMisses()
+                + ", evictions=" + getEvictions() + "]";
+    }
+}
@@ -63,11 +63,14 @@ import javax.xml.crypto.dsig.dom.DOMValidateContext;
 import org.apache.log4j.Logger;
 import org.bouncycastle.asn1.ocsp.OCSPResponseStatus;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.ocsp.BasicOCSPResp;
 import org.bouncycastle.ocsp.CertificateID;
+import org.bouncycastle.ocsp.CertificateStatus;
 import org.bouncycastle.ocsp.OCSPException;
 import org.bouncycastle.ocsp.OCSPReq;
 import org.bouncycastle.ocsp.OCSPReqGenerator;
 import org.bouncycastle.ocsp.OCSPResp;
+import org.bouncycastle.ocsp.SingleResp;
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
@@ -94,6 +97,10 @@ public class SMPValidationManager {
      * Configuration instance to load the properties.
      */
     private static Configuration config = Configuration.getInstance();
+    /**
+     * SMP documents already verified.
+     */
+    private static final SMPVerificationCache VERIFIED = createVerificationCache();
 
     /*
      * Sole constructor to avoid instance of this class.
@@ -102,7 +109,29 @@ public class SMPValidationManager {
     }
 
     /**
-     * This method executes all the validations for SMP Signature.
+     * Creates the cache of verified SMP documents from smp.verification.cache.*.
+     */
+    private static SMPVerificationCache createVerificationCache() {
+        String size = config.getProperty("smp.verification.cache.size");
+        String ttl = config.getProperty("smp.verification.cache.ttl.seconds");
+        return new SMPVerificationCache(
+                (size != null && size.trim().length() > 0) ? Integer.parseInt(size.trim()) : 1000,
+                ((ttl != null && ttl.trim().length() > 0) ? Long.parseLong(ttl.trim()) : 3600L) * 1000L);
+    }
+
+    /**
+     * Returns the cache of verified SMP documents.
+     * @return
+     *              The SMPVerificationCache.
+     */
+    public static SMPVerificationCache getVerificationCache() {
+        return VERIFIED;
+    }
+
+    /**
+     * This method executes all the validations for SMP Signature. A document
+     * byte-identical to one verified before, signed by the same certificate,
+     * is accepted without verifying it again while the verification is fresh.
      * @param smpData
      *              The document obtained while connecting to SMP.
      * @return 
@@ -117,16 +146,34 @@ public class SMPValidationManager {
         String smpCertificate = extractSMPCertificate(smpData);
         smpCertificate = Util.completeCertificateEntry(smpCertificate);
 
+        String key = null;
+        X509Certificate smpSignCertificate = null;
+        try {
+            smpSignCertificate = Util.generateX509Certificate(smpCertificate);
+            key = SMPVerificationCache.key(smpData, smpSignCertificate);
+        } catch (Exception ex) {
+            logger4J.warn("The SMP verification cannot be cached: " + ex.getMessage());
+        }
+        if (key != null && VERIFIED.isVerified(key)) {
+            logger4J.debug("SMP Signature already verified.");
+            return true;
+        }
+
         isSignatureValid = checkSignature(smpData);
 
         if (isSignatureValid) {
             hasRootTrusted = verifyRootIssuers(smpCertificate);
             if (hasRootTrusted) {
-                isRevoked = getRevocationStatus(smpCertificate);
+                long[] nextUpdate = {Long.MAX_VALUE};
+                isRevoked = getRevocationStatus(smpCertificate, nextUpdate);
                 if (isRevoked) {
                     return flag;
                 } else {
                     flag = true;
+                    if (key != null) {
+                        VERIFIED.put(key, Math.min(nextUpdate[0],
+                                smpSignCertificate.getNotAfter().getTime()));
+                    }
                 }
             } else {
                 return flag;
@@ -141,16 +188,19 @@ public class SMPValidationManager {
      * Validates date and begins the process of revocation validation.
      * @param certificate
      *                  Certificate in String format.
+     * @param nextUpdate
+     *                  Set to the time of the next update of the OCSP
+     *                  response, if the responder gives it.
      * @return 
      *                  Boolean value to indicates validity of certificate.
      */
-    private static boolean getRevocationStatus(String certificate) {
+    private static boolean getRevocationStatus(String certificate, long[] nextUpdate) {
         boolean flag = false;
         X509Certificate smpSignCertificate = null;
         try {
             smpSignCertificate = Util.generateX509Certificate(certificate);
             smpSignCertificate.checkValidity();
-            flag = validateRevocationStatus(smpSignCertificate);
+            flag = validateRevocationStatus(smpSignCertificate, nextUpdate);
         } catch (CertificateException ex) {
             logger4J.error("An exception has been found while processing certificate "
                     + "data. The process ends with message: " + ex.getMessage());
@@ -231,10 +281,15 @@ public class SMPValidationManager {
      * Validates the revocation status of Certificate included in SMP Signature. 
      * @param targetCertificate
      *                  The SMP obtained from x509 data.
+     * @param nextUpdate
+     *                  Set to the time of the next update of the OCSP
+     *                  response, if the responder gives it.
      * @return 
-     *                  True if is revoked or invalid, false if is ok.
+     *                  True if is revoked or invalid, false if the responder
+     *                  answered that the certificate is good.
      */
-    private static boolean validateRevocationStatus(X509Certificate targetCertificate) {
+    private static boolean validateRevocationStatus(X509Certificate targetCertificate,
+            long[] nextUpdate) {
         boolean flag = false;
         Security.addProvider(new BouncyCastleProvider());
         OCSPReqGenerator ocspRequest = null;
@@ -246,8 +301,9 @@ public class SMPValidationManager {
                     config.getProperty("server.truststore.password"));
             trustedCA = (X509Certificate) ks.getCertificate(config.getProperty("server.truststore.alias"));
             ocspRequest = new OCSPReqGenerator();
-            ocspRequest.addRequest(new CertificateID(CertificateID.HASH_SHA1,
-                    trustedCA, targetCertificate.getSerialNumber()));
+            CertificateID certificateID = new CertificateID(CertificateID.HASH_SHA1,
+                    trustedCA, targetCertificate.getSerialNumber());
+            ocspRequest.addRequest(certificateID);
             req = ocspRequest.generate();
             verifierUrl = new URL(TEST_RESPONDER_URL);
             HttpURLConnection connection = (HttpURLConnection) verifierUrl.openConnection();
@@ -269,7 +325,22 @@ public class SMPValidationManager {
 
             if (status == OCSPResponseStatus.SUCCESSFUL) {
                 logger4J.debug("OCSP for SMP Signature is successful.");
-                return false;
+                Object basicResponse = response.getResponseObject();
+                SingleResp[] responses = (basicResponse instanceof BasicOCSPResp)
+                        ? ((BasicOCSPResp) basicResponse).getResponses() : null;
+                if (responses != null) {
+                    for (SingleResp singleResponse : responses) {
+                        if (certificateID.equals(singleResponse.getCertID())
+                                && singleResponse.getCertStatus() == CertificateStatus.GOOD) {
+                            if (singleResponse.getNextUpdate() != null) {
+                                nextUpdate[0] = singleResponse.getNextUpdate().getTime();
+                            }
+                            return false;
+                        }
+                    }
+                }
+                logger4J.debug("OCSP has not found the Certificate good: revoked or unknown");
+                flag = true;
             } else if (status == OCSPResponseStatus.TRY_LATER) {
                 logger4J.debug("OCSP could not be executed, please try later or "
                         + "verify your connection.");
@@ -0,0 +1,203 @@
+/*
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package eu.peppol.start.smp;
+
+import eu.peppol.start.util.XMLToolkit;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.cert.X509Certificate;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import org.w3c.dom.Document;
+
+/**
+ * Bounded cache of the SMP documents whose signature, issuer and revocation
+ * status have been verified.
+ * <p>
+ * The key is the SHA-256 digest of the serialized document, which covers its
+ * SignatureValue and the content the signature digests, together with the
+ * SHA-256 fingerprint of the signing certificate. The SignatureValue alone
+ * is not a key: it does not prove that the rest of the document is the one
+ * that was signed. An entry lives until the earliest of the configured TTL,
+ * the next update of the OCSP response and the expiry of the certificate.
+ */
+public final class SMPVerificationCache {
+
+    /**
+     * Digest algorithm of the keys.
+     */
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+
+    /**
+     * Expiry times by key, least recently used first.
+     */
+    private final Map<String, Long> verified;
+
+    /**
+     * Maximum time a verification is kept, in milliseconds.
+     */
+    private final long ttl;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Creates a cache.
+     * @param maxSize Maximum number of verified documents; 0 disables the cache.
+     * @param ttl     Maximum time a verification is kept, in milliseconds.
+     */
+    SMPVerificationCache(final int maxSize, long ttl) {
+        this.ttl = ttl;
+        this.verified = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Returns the key of a signed SMP document.
+     * @param smpData     SMP document.
+     * @param certificate Certificate that signed the document.
+     * @return the key.
+     * @throws Exception if the document cannot be serialized.
+     */
+    static String key(Document smpData, X509Certificate certificate) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+        OutputStream out = new DigestOutputStream(new OutputStream() {
+
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }, digest);
+        XMLToolkit.getTransformer().transform(new DOMSource(smpData), new StreamResult(out));
+        out.close();
+        String documentDigest = toHex(digest.digest());
+
+        digest.reset();
+        return documentDigest + ":" + toHex(digest.digest(certificate.getEncoded()));
+    }
+
+    /**
+     * Tells whether a document was verified and the verification is still fresh.
+     */
+    boolean isVerified(String key) {
+        return isVerified(key, System.currentTimeMillis());
+    }
+
+    boolean isVerified(String key, long now) {
+        Long expires;
+        synchronized (verified) {
+            expires = verified.get(key);
+            if (expires != null && expires.longValue() <= now) {
+                verified.remove(key);
+                expires = null;
+            }
+        }
+        if (expires == null) {
+            misses.incrementAndGet();
+            return false;
+        }
+        hits.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Records a successful verification.
+     * @param key        Key of the document.
+     * @param validUntil Time after which the verification must be repeated,
+     *                   such as the next update of the OCSP response or the
+     *                   expiry of the certificate; it is further bounded by
+     *                   the TTL.
+     */
+    void put(String key, long validUntil) {
+        put(key, validUntil, System.currentTimeMillis());
+    }
+
+    void put(String key, long validUntil, long now) {
+        long expires = Math.min(validUntil, now + ttl);
+        if (expires <= now) {
+            return;
+        }
+        synchronized (verified) {
+            verified.put(key, Long.valueOf(expires));
+        }
+    }
+
+    /**
+     * Drops all verifications.
+     */
+    public void clear() {
+        synchronized (verified) {
+            verified.clear();
+        }
+    }
+
+    /**
+     * Number of documents found verified.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Number of documents that had to be verified.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+            hex.append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package eu.peppol.start.client;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class BulkManifestTest {
+
+    private static final String[] NO_DEFAULTS = new String[4];
+
+    /**
+     * Test of load with a CSV manifest, of class BulkManifest.
+     */
+    @Test
+    public void testLoadCsv() throws Exception {
+
+        File dir = createDir();
+        File manifest = write(dir, "manifest.csv",
+                "sender,receiver,docType,process,file\n"
+                + "# comment\n"
+                + "9908:1,9908:2,\"urn:doc,1\",urn:proc,invoice.xml\n"
+                + "9908:1,9908:3,urn:doc,,/tmp/other.xml\n");
+
+        List<BulkManifest.Entry> entries = BulkManifest.load(manifest,
+                new String[]{null, null, null, "urn:default"});
+        assertEquals(2, entries.size());
+        assertEquals("9908:2", entries.get(0).getReceiver());
+        assertEquals("urn:doc,1", entries.get(0).getDocumentType());
+        assertEquals(new File(dir, "invoice.xml"), entries.get(0).getFile());
+        assertEquals("urn:default", entries.get(1).getProcess());
+        assertEquals(new File("/tmp/other.xml"), entries.get(1).getFile());
+    }
+
+    /**
+     * Test of load with a JSON manifest, of class BulkManifest.
+     */
+    @Test
+    public void testLoadJson() throws Exception {
+
+        File dir = createDir();
+        File manifest = write(dir, "manifest.json",
+                "[ {\"sender\": \"9908:1\", \"receiver\": \"9908:2\", \"docType\": \"urn:doc\",\n"
+                + "   \"process\": \"urn:proc\", \"file\": \"a\\\\b.xml\", \"note\": 1},\n"
+                + "  {\"sender\": \"9908:1\", \"receiver\": \"9908:\\u0033\", \"docType\": \"urn:doc\","
+                + " \"process\": \"urn:proc\", \"file\": \"c.xml\"} ]");
+
+        List<BulkManifest.Entry> entries = BulkManifest.load(manifest, NO_DEFAULTS);
+        assertEquals(2, entries.size());
+        assertEquals(new File(dir, "a\\b.xml"), entries.get(0).getFile());
+        assertEquals("9908:3", entries.get(1).getReceiver());
+    }
+
+    /**
+     * Test of load with a directory and of incomplete entries.
+     */
+    @Test
+    public void testLoadDirectory() throws Exception {
+
+        File dir = createDir();
+        write(dir, "b.xml", "<B/>");
+        write(dir, "a.xml", "<A/>");
+        write(dir, "notes.txt", "");
+
+        List<BulkManifest.Entry> entries = BulkManifest.load(dir,
+                new String[]{"9908:1", "9908:2", "urn:doc", "urn:proc"});
+        assertEquals(2, entries.size());
+        assertEquals(new File(dir, "a.xml"), entries.get(0).getFile());
+        assertEquals("9908:2", entries.get(1).getReceiver());
+
+        try {
+            BulkManifest.load(dir, NO_DEFAULTS);
+            fail("Entries without identifiers accepted");
+        } catch (Exception ex) {
+            assertTrue(ex.getMessage().contains("sender"));
+        }
+    }
+
+    private static File write(File dir, String name, String content) throws Exception {
+        File file = new File(dir, name);
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(content.getBytes("UTF-8"));
+        out.close();
+        file.deleteOnExit();
+        return file;
+    }
+
+    private static File createDir() throws Exception {
+        File dir = File.createTempFile("bulk", "");
+        dir.delete();
+        dir.mkdirs();
+        dir.deleteOnExit();
+        return dir;
+    }
+}
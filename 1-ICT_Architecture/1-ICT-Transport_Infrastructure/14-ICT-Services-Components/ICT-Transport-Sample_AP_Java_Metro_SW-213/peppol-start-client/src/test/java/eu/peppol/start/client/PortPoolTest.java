@@ -0,0 +1,128 @@
+/*
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package eu.peppol.start.client;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.security.cert.X509Certificate;
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.w3._2009._02.ws_tra.Resource;
+
+public class PortPoolTest {
+
+    /**
+     * Test of borrow and release, of class PortPool.
+     */
+    @Test
+    public void testBorrowAndRelease() throws Exception {
+
+        TestFactory factory = new TestFactory();
+        PortPool pool = new PortPool(factory, 1, 60000, 60000);
+
+        PortPool.Lease first = pool.borrow("https://ap1", null);
+        PortPool.Lease second = pool.borrow("https://ap1", null);
+        assertNotSame(first.getPort(), second.getPort());
+        assertEquals(2, factory.created);
+
+        pool.release(first, true);
+        pool.release(second, true);
+        assertEquals(1, pool.getIdleCount("https://ap1", null));
+        assertEquals(1, factory.closed.size());
+
+        assertSame(first.getPort(), pool.borrow("https://ap1", null).getPort());
+        assertNotSame(first.getPort(), pool.borrow("https://ap2", null).getPort());
+        assertEquals(3, factory.created);
+    }
+
+    /**
+     * Test that unhealthy, idle and old ports are not reused.
+     */
+    @Test
+    public void testDiscard() throws Exception {
+
+        TestFactory factory = new TestFactory();
+        PortPool pool = new PortPool(factory, 4, 60000, 60000);
+
+        PortPool.Lease lease = pool.borrow("https://ap1", null);
+        pool.release(lease, false);
+        assertTrue(factory.closed.contains(lease.getPort()));
+        assertEquals(0, pool.getIdleCount("https://ap1", null));
+
+        PortPool aging = new PortPool(factory, 4, 60000, 0);
+        lease = aging.borrow("https://ap1", null);
+        aging.release(lease, true);
+        assertTrue(factory.closed.contains(lease.getPort()));
+        assertEquals(0, aging.getIdleCount("https://ap1", null));
+
+        PortPool expiring = new PortPool(factory, 4, 0, 60000);
+        lease = expiring.borrow("https://ap1", null);
+        expiring.release(lease, true);
+        assertNotSame(lease.getPort(), expiring.borrow("https://ap1", null).getPort());
+    }
+
+    private static final class TestFactory implements PortPool.Factory {
+
+        private int created;
+        private final Set<Resource> closed = new HashSet<Resource>();
+
+        public Resource create(String address, X509Certificate certificate) {
+            created++;
+            return (Resource) Proxy.newProxyInstance(Resource.class.getClassLoader(),
+                    new Class<?>[]{Resource.class}, new InvocationHandler() {
+
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    if ("hashCode".equals(method.getName())) {
+                        return System.identityHashCode(proxy);
+                    }
+                    if ("equals".equals(method.getName())) {
+                        return proxy == args[0];
+                    }
+                    return null;
+                }
+            });
+        }
+
+        public void close(Resource port) {
+            closed.add(port);
+        }
+    }
+}
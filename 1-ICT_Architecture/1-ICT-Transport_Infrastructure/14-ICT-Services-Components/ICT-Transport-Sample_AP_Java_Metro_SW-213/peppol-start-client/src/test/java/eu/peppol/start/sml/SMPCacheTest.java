@@ -0,0 +1,127 @@
+/*
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package eu.peppol.start.sml;
+
+import eu.peppol.start.exception.DocumentTypeNotAcceptedException;
+import eu.peppol.start.exception.UnknownEndpointException;
+import eu.peppol.start.util.Util;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.w3c.dom.Document;
+
+public class SMPCacheTest {
+
+    /**
+     * Test of get and put, of class SMPCache.
+     */
+    @Test
+    public void testTtlAndEviction() throws Exception {
+
+        SMPCache cache = new SMPCache(2, 1000, 100);
+        Document document = Util.parseStringtoDocument("<SignedServiceMetadata/>");
+
+        assertNull(cache.get("a", 0));
+        cache.put("a", document, null, null, 0);
+        SMPCache.Entry entry = cache.get("a", 999);
+        assertNotNull(entry);
+        assertNotSame(document, entry.getDocument());
+        assertEquals("SignedServiceMetadata",
+                entry.getDocument().getDocumentElement().getLocalName());
+        assertNull(cache.get("a", 1000));
+
+        cache.put("a", document, null, null, 0);
+        cache.put("b", document, null, null, 0);
+        cache.get("a", 1);
+        cache.put("c", document, null, null, 0);
+        assertNotNull(cache.get("a", 1));
+        assertNull(cache.get("b", 1));
+
+        assertEquals(3, cache.getHits());
+        assertEquals(3, cache.getMisses());
+        assertEquals(1, cache.getEvictions());
+    }
+
+    /**
+     * Test of revalidate, of class SMPCache.
+     */
+    @Test
+    public void testRevalidate() throws Exception {
+
+        SMPCache cache = new SMPCache(10, 1000, 100);
+        Document document = Util.parseStringtoDocument("<SignedServiceMetadata/>");
+        cache.put("a", document, "\"v1\"", "Tue, 01 Oct 2024 10:00:00 GMT", 0);
+
+        assertNull(cache.get("a", 1500));
+        SMPCache.Entry stale = cache.getStale("a");
+        assertEquals("\"v1\"", stale.getETag());
+        assertEquals("Tue, 01 Oct 2024 10:00:00 GMT", stale.getLastModified());
+
+        cache.revalidate("a", stale, 1500);
+        SMPCache.Entry entry = cache.get("a", 2000);
+        assertNotNull(entry);
+        assertEquals("\"v1\"", entry.getETag());
+
+        cache.putFailure("b", new UnknownEndpointException(), 0);
+        assertNull(cache.getStale("b"));
+    }
+
+    /**
+     * Test of negative caching, of class SMPCache.
+     */
+    @Test
+    public void testNegative() throws Exception {
+
+        SMPCache cache = new SMPCache(10, 1000, 100);
+        cache.putFailure("unknown", new UnknownEndpointException(), 0);
+        cache.putFailure("notaccepted", new DocumentTypeNotAcceptedException(), 0);
+
+        try {
+            cache.get("unknown", 50).getDocument();
+            fail("Unknown participant not thrown");
+        } catch (UnknownEndpointException ex) {
+        }
+        try {
+            cache.get("notaccepted", 50).getServiceMetadata();
+            fail("Document type not accepted not thrown");
+        } catch (DocumentTypeNotAcceptedException ex) {
+        }
+        assertNull(cache.get("unknown", 100));
+        assertEquals(2, cache.getNegativeHits());
+        assertEquals(0, cache.getHits());
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package eu.peppol.start.smp;
+
+import eu.peppol.start.util.Util;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class SMPVerificationCacheTest {
+
+    private static final String TRUSTSTORE = "certs/sample-truststore.jks";
+
+    private static final String SIGNED = "<SignedServiceMetadata><ServiceMetadata>%s</ServiceMetadata>"
+            + "<Signature><SignatureValue>c2lnbmF0dXJl</SignatureValue></Signature>"
+            + "</SignedServiceMetadata>";
+
+    /**
+     * Test of key, of class SMPVerificationCache.
+     */
+    @Test
+    public void testKey() throws Exception {
+
+        KeyStore truststore = KeyStore.getInstance("JKS");
+        InputStream in = new FileInputStream(TRUSTSTORE);
+        truststore.load(in, "peppol".toCharArray());
+        in.close();
+        X509Certificate ca = (X509Certificate) truststore.getCertificate("ca");
+        X509Certificate root = (X509Certificate) truststore.getCertificate("root");
+
+        String key = SMPVerificationCache.key(
+                Util.parseStringtoDocument(String.format(SIGNED, "https://ap1")), ca);
+        assertEquals(key, SMPVerificationCache.key(
+                Util.parseStringtoDocument(String.format(SIGNED, "https://ap1")), ca));
+        assertFalse(key.equals(SMPVerificationCache.key(
+                Util.parseStringtoDocument(String.format(SIGNED, "https://ap2")), ca)));
+        assertFalse(key.equals(SMPVerificationCache.key(
+                Util.parseStringtoDocument(String.format(SIGNED, "https://ap1")), root)));
+    }
+
+    /**
+     * Test of isVerified and put, of class SMPVerificationCache.
+     */
+    @Test
+    public void testFreshness() throws Exception {
+
+        SMPVerificationCache cache = new SMPVerificationCache(2, 1000);
+
+        cache.put("a", Long.MAX_VALUE, 0);
+        assertTrue(cache.isVerified("a", 999));
+        assertFalse(cache.isVerified("a", 1000));
+
+        cache.put("b", 500, 0);
+        assertTrue(cache.isVerified("b", 499));
+        assertFalse(cache.isVerified("b", 500));
+
+        cache.put("expired", 0, 0);
+        assertFalse(cache.isVerified("expired", 0));
+
+        cache.put("a", Long.MAX_VALUE, 0);
+        cache.put("b", Long.MAX_VALUE, 0);
+        cache.put("c", Long.MAX_VALUE, 0);
+        assertFalse(cache.isVerified("a", 1));
+        assertTrue(cache.isVerified("c", 1));
+        assertEquals(3, cache.getHits());
+    }
+}
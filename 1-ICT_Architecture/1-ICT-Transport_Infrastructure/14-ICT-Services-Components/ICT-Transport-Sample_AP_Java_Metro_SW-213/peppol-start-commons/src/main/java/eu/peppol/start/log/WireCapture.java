@@ -0,0 +1,383 @@
+/*
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package eu.peppol.start.log;
+
+import eu.peppol.start.util.Configuration;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.xml.soap.SOAPException;
+import javax.xml.soap.SOAPMessage;
+
+/**
+ * Sampled capture of SOAP envelopes for diagnostics.
+ * <p>
+ * One message out of every 1/capture.sample.rate is captured, optionally
+ * only for the senders listed in capture.senders. Captured envelopes are
+ * kept in a fixed-size ring buffer outside the Java heap
+ * (capture.buffer.size bytes); the oldest envelopes are overwritten by new
+ * ones. The buffer is written out on demand with export.
+ * <p>
+ * When the capture is enabled, operators export the buffer through JMX:
+ * the exportToFile operation of the eu.peppol.start:type=WireCapture
+ * MBean writes it to a new file of capture.export.dir (the temporary
+ * directory by default) and returns its path. The envelopes hold business
+ * documents, so the JMX access of the container must be authenticated.
+ * <p>
+ * Handlers call shouldCapture first, so that a message not sampled is
+ * never serialized.
+ */
+public final class WireCapture implements WireCaptureMBean {
+
+    /**
+     * Name of the MBean of the configured instance.
+     */
+    public static final String OBJECT_NAME = "eu.peppol.start:type=WireCapture";
+
+    /**
+     * Direction of a message received.
+     */
+    public static final String INBOUND = "Inbound";
+
+    /**
+     * Direction of a message sent.
+     */
+    public static final String OUTBOUND = "Outbound";
+
+    /**
+     * Default size of the ring buffer.
+     */
+    private static final int DEFAULT_BUFFER_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * Logger to follow this class behavior.
+     */
+    private static org.apache.log4j.Logger logger4J =
+            org.apache.log4j.Logger.getLogger(WireCapture.class);
+
+    /**
+     * Instance configured from the properties.
+     */
+    private static WireCapture instance;
+
+    /**
+     * Capture one message out of this many; 0 disables the capture.
+     */
+    private final long sampleInterval;
+
+    /**
+     * Senders whose messages are captured; empty for all senders.
+     */
+    private final Set<String> senders;
+
+    /**
+     * Messages seen by shouldCapture.
+     */
+    private final AtomicLong seen = new AtomicLong();
+
+    /**
+     * Ring buffer of the envelopes, guarded by this.
+     */
+    private final ByteBuffer ring;
+
+    /**
+     * Captured envelopes still in the ring, oldest first, guarded by this.
+     */
+    private final ArrayDeque<Entry> entries = new ArrayDeque<Entry>();
+
+    /**
+     * Directory of the files written by exportToFile.
+     */
+    private File exportDir = new File(System.getProperty("java.io.tmpdir"));
+
+    /**
+     * Next write position in the ring.
+     */
+    private int writePosition;
+
+    /**
+     * Bytes of the ring used by the entries.
+     */
+    private int used;
+
+    /**
+     * Returns the instance configured from the properties.
+     * @return Instance of WireCapture.
+     */
+    public static synchronized WireCapture getInstance() {
+        if (instance == null) {
+            Configuration conf;
+            try {
+                conf = Configuration.getInstance();
+            } catch (RuntimeException ex) {
+                logger4J.warn("Wire capture disabled, no configuration available", ex);
+                instance = new WireCapture(0, new HashSet<String>(), 0);
+                return instance;
+            }
+            String rate = conf.getProperty("capture.sample.rate");
+            String senderList = conf.getProperty("capture.senders");
+            String size = conf.getProperty("capture.buffer.size");
+
+            Set<String> senders = new HashSet<String>();
+            if (senderList != null) {
+                for (String sender : senderList.split(",")) {
+                    if (sender.trim().length() > 0) {
+                        senders.add(sender.trim());
+                    }
+                }
+            }
+            instance = new WireCapture(
+                    (rate != null && rate.trim().length() > 0) ? Double.parseDouble(rate.trim()) : 0,
+                    senders,
+                    (size != null && size.trim().length() > 0)
+                    ? Integer.parseInt(size.trim()) : DEFAULT_BUFFER_SIZE);
+            String dir = conf.getProperty("capture.export.dir");
+            if (dir != null && dir.trim().length() > 0) {
+                instance.exportDir = new File(dir.trim());
+            }
+            if (instance.sampleInterval > 0) {
+                register(instance);
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Registers the capture in the platform MBean server, replacing the
+     * capture of a previous deployment.
+     */
+    static void register(final WireCapture capture) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            try {
+                server.registerMBean(capture, name);
+            } catch (InstanceAlreadyExistsException ex) {
+                server.unregisterMBean(name);
+                server.registerMBean(capture, name);
+            }
+            logger4J.info("Wire capture exported as " + OBJECT_NAME);
+        } catch (JMException ex) {
+            logger4J.warn("Wire capture not registered in JMX", ex);
+        }
+    }
+
+    /**
+     * Creates a capture; use getInstance for the configured one.
+     * @param sampleRate Fraction of the messages captured, from 0 to 1.
+     * @param senders    Senders whose messages are captured; empty for all.
+     * @param bufferSize Size of the ring buffer in bytes.
+     */
+    WireCapture(final double sampleRate, final Set<String> senders, final int bufferSize) {
+        this.sampleInterval = (sampleRate > 0) ? Math.max(1L, Math.round(1 / sampleRate)) : 0;
+        this.senders = senders;
+        this.ring = ByteBuffer.allocateDirect((sampleInterval > 0) ? bufferSize : 0);
+    }
+
+    /**
+     * Decides if a message is captured; cheap enough for every message.
+     * @param sender Value of the sender identifier, or null if unknown.
+     * @return true if the message must be passed to capture.
+     */
+    public boolean shouldCapture(final String sender) {
+        if (sampleInterval == 0) {
+            return false;
+        }
+        if (!senders.isEmpty() && (sender == null || !senders.contains(sender))) {
+            return false;
+        }
+        return seen.getAndIncrement() % sampleInterval == 0;
+    }
+
+    /**
+     * Serializes an envelope into the ring buffer.
+     * @param direction INBOUND or OUTBOUND.
+     * @param sender    Value of the sender identifier, or null if unknown.
+     * @param message   Message to capture.
+     */
+    public void capture(final String direction, final String sender, final SOAPMessage message) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            message.writeTo(out);
+        } catch (IOException ex) {
+            logger4J.error("Error capturing the SOAP envelope", ex);
+            return;
+        } catch (SOAPException ex) {
+            logger4J.error("Error capturing the SOAP envelope", ex);
+            return;
+        }
+        capture(direction, sender, out.toByteArray());
+    }
+
+    /**
+     * Copies a serialized envelope into the ring buffer, evicting the oldest
+     * envelopes to make room. Envelopes larger than the buffer are dropped.
+     */
+    synchronized void capture(final String direction, final String sender, final byte[] envelope) {
+        int capacity = ring.capacity();
+        if (envelope.length > capacity) {
+            logger4J.debug("Envelope larger than the capture buffer: " + envelope.length);
+            return;
+        }
+        while (used + envelope.length > capacity) {
+            used -= entries.removeFirst().length;
+        }
+
+        int first = Math.min(envelope.length, capacity - writePosition);
+        ByteBuffer out = ring.duplicate();
+        out.position(writePosition);
+        out.put(envelope, 0, first);
+        if (first < envelope.length) {
+            out.position(0);
+            out.put(envelope, first, envelope.length - first);
+        }
+        entries.addLast(new Entry(System.currentTimeMillis(), direction, sender,
+                writePosition, envelope.length));
+        writePosition = (writePosition + envelope.length) % capacity;
+        used += envelope.length;
+    }
+
+    /**
+     * Writes the captured envelopes, oldest first.
+     * @param out Stream to write to.
+     * @throws IOException if the stream cannot be written.
+     */
+    public synchronized void export(final OutputStream out) throws IOException {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+        int capacity = ring.capacity();
+        byte[] buffer = new byte[8192];
+        for (Entry entry : entries) {
+            out.write(("\n=== " + format.format(new Date(entry.timestamp)) + " "
+                    + entry.direction + " Envelope"
+                    + ((entry.sender != null) ? " from " + entry.sender : "")
+                    + " ===\n").getBytes("UTF-8"));
+
+            ByteBuffer in = ring.duplicate();
+            int position = entry.offset;
+            int remaining = entry.length;
+            while (remaining > 0) {
+                int chunk = Math.min(Math.min(remaining, buffer.length), capacity - position);
+                in.position(position);
+                in.get(buffer, 0, chunk);
+                out.write(buffer, 0, chunk);
+                position = (position + chunk) % capacity;
+                remaining -= chunk;
+            }
+            out.write('\n');
+        }
+        out.flush();
+    }
+
+    /**
+     * Writes the captured envelopes to a file.
+     * @param file File to write.
+     * @throws IOException if the file cannot be written.
+     */
+    public void export(final File file) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            export(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Writes the captured envelopes to a new file of capture.export.dir.
+     * @return path of the written file.
+     * @throws IOException if the file cannot be written.
+     */
+    public String exportToFile() throws IOException {
+        File file = new File(exportDir, "wire-capture-"
+                + new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(new Date()) + ".txt");
+        export(file);
+        logger4J.info("Wire capture exported to " + file.getAbsolutePath());
+        return file.getAbsolutePath();
+    }
+
+    /**
+     * Number of envelopes in the buffer.
+     * @return count of captured envelopes.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public int getSize() {
+        return size();
+    }
+
+    /**
+     * A captured envelope.
+     */
+    private static final class Entry {
+
+        private final long timestamp;
+
+        private final String direction;
+
+        private final String sender;
+
+        private final int offset;
+
+        private final int length;
+
+        Entry(final long timestamp, final String direction, final String sender,
+              final int offset, final int length) {
+            this.timestamp = timestamp;
+            this.direction = direction;
+            this.sender = sender;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
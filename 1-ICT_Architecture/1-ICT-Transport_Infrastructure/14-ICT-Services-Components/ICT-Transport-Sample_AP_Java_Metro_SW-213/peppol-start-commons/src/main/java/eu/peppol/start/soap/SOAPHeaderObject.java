@@ -37,13 +37,14 @@
  */
 package eu.peppol.start.soap;
 
+import eu.peppol.start.util.JAXBContextRegistry;
+import eu.peppol.start.util.XMLToolkit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
 import javax.xml.bind.Marshaller;
 import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 import org.busdox.servicemetadata.types.DocumentIdentifierType;
 import org.busdox.servicemetadata.types.ObjectFactory;
@@ -216,23 +217,23 @@ public class SOAPHeaderObject {
 
         try {
             ObjectFactory objFactory = new ObjectFactory();
-            DocumentBuilderFactory docBuilderFactory = DocumentBuilderFactory.newInstance();
-            DocumentBuilder docBuilder = docBuilderFactory.newDocumentBuilder();
+            DocumentBuilder docBuilder = XMLToolkit.getDocumentBuilder(false);
             document = docBuilder.newDocument();
 
             Element top = document.createElementNS(Identifiers.NAMESPACE_TRANSPORT_IDS, "Headers");
 
             document.appendChild(top);
 
-            Marshaller marshaller = JAXBContext.newInstance(ParticipantIdentifierType.class).createMarshaller();
-            marshaller.marshal(objFactory.createSenderIdentifier(soapHeader.getSenderIdentifier()), top);
-            marshaller.marshal(objFactory.createRecipientIdentifier(soapHeader.getRecipientIdentifier()), top);
-
-            marshaller = JAXBContext.newInstance(DocumentIdentifierType.class).createMarshaller();
-            marshaller.marshal(objFactory.createDocumentIdentifier(soapHeader.getDocumentIdentifier()), top);
-
-            marshaller = JAXBContext.newInstance(ProcessIdentifierType.class).createMarshaller();
-            marshaller.marshal(objFactory.createProcessIdentifier(soapHeader.getProcessIdentifier()), top);
+            JAXBContext context = JAXBContextRegistry.getTransportContext();
+            Marshaller marshaller = JAXBContextRegistry.acquireMarshaller(context);
+            try {
+                marshaller.marshal(objFactory.createSenderIdentifier(soapHeader.getSenderIdentifier()), top);
+                marshaller.marshal(objFactory.createRecipientIdentifier(soapHeader.getRecipientIdentifier()), top);
+                marshaller.marshal(objFactory.createDocumentIdentifier(soapHeader.getDocumentIdentifier()), top);
+                marshaller.marshal(objFactory.createProcessIdentifier(soapHeader.getProcessIdentifier()), top);
+            } finally {
+                JAXBContextRegistry.releaseMarshaller(context, marshaller);
+            }
 
         } catch(DOMException ex) {
             Logger.getLogger(SOAPHeaderObject.class.getName()).log(Level.SEVERE,ex.getMessage());
@@ -37,9 +37,8 @@
  */
 package eu.peppol.start.soap.handler;
 
+import eu.peppol.start.log.WireCapture;
 import eu.peppol.start.soap.SOAPHeaderObject;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
 import java.util.Iterator;
 import java.util.Set;
 import java.util.logging.Level;
@@ -54,52 +53,24 @@ import javax.xml.soap.SOAPMessage;
 import javax.xml.ws.handler.MessageContext;
 import javax.xml.ws.handler.soap.SOAPHandler;
 import javax.xml.ws.handler.soap.SOAPMessageContext;
-import org.busdox.servicemetadata.types.DocumentIdentifierType;
-import org.busdox.servicemetadata.types.ParticipantIdentifierType;
-import org.busdox.servicemetadata.types.ProcessIdentifierType;
 import org.busdox.transport.Identifiers.Identifiers;
 
 /**
  * The SOAPInboundHandler class is used to handle an Inbound SOAP message.
+ * <p>
+ * Being a SOAPHandler it makes the runtime build the whole envelope as a
+ * SAAJ tree; the access point service reads the same headers with
+ * TransportHeaderTube instead, leaving the body as a stream.
  *
  * @author Jose Gorvenia Narvaez(jose@alfa1lab.com)
  */
 public class SOAPInboundHandler implements SOAPHandler<SOAPMessageContext> {
 
     /**
-     * MessageIdentifier.
+     * Name of the message context property holding the SOAPHeaderObject
+     * of the current exchange.
      */
-    private static String messageId;
-
-    /**
-     * ChannelIdentifier.
-     */
-    private static String channelId;
-
-    /**
-     * SenderIdentifier.
-     */
-    private static ParticipantIdentifierType sender;
-
-    /**
-     * RecipientIdentifier.
-     */
-    private static ParticipantIdentifierType recipient;
-
-    /**
-     * DocumentIdentifier.
-     */
-    private static DocumentIdentifierType document;
-
-    /**
-     * ProcessIdentifier.
-     */
-    private static ProcessIdentifierType process;
-
-    /**
-     * SOAPHeaderObject instance.
-     */
-    public static final SOAPHeaderObject SOAPHEADER = new SOAPHeaderObject();;
+    public static final String SOAP_HEADER_PROPERTY = "eu.peppol.start.soap.header";
 
     /**
      * Logger to follow this class behavior.
@@ -117,39 +88,40 @@ public class SOAPInboundHandler implements SOAPHandler<SOAPMessageContext> {
             SOAPMessage message = context.getMessage();
             SOAPEnvelope envelope = message.getSOAPPart().getEnvelope();
 
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
-            message.writeTo(out);
-            logger4J.debug("Inbound Envelope:\n" + new String(out.toByteArray()) +"\n");
-
             Boolean outbound = (Boolean) context.get(MessageContext.MESSAGE_OUTBOUND_PROPERTY);
 
             if (!outbound) {
+                SOAPHeaderObject soapHeader = new SOAPHeaderObject();
                 SOAPHeader header = envelope.getHeader();
                 @SuppressWarnings("unchecked")
                 Iterator<SOAPHeaderElement> headerElements = header.examineAllHeaderElements();
 
-                StringBuilder log = new StringBuilder();
-                log.append("Inbound Headers:");
+                boolean debug = logger4J.isDebugEnabled();
+                StringBuilder log = debug ? new StringBuilder("Inbound Headers:") : null;
                 while (headerElements.hasNext()) {
                     SOAPElement element = headerElements.next();
-                    log.append("\n\tSOAP Header:");
-                    log.append("\n\t- Name: " + element.getElementName().getLocalName());
-                    log.append("\n\t- Value: " + element.getValue());
-                    setHeaderElement(element);
+                    if (debug) {
+                        log.append("\n\tSOAP Header:");
+                        log.append("\n\t- Name: ").append(element.getElementName().getLocalName());
+                        log.append("\n\t- Value: ").append(element.getValue());
+                    }
+                    setHeaderElement(element, soapHeader);
+                }
+
+                if (debug) {
+                    logger4J.debug(log);
                 }
 
-                logger4J.debug(log);
+                String sender = (soapHeader.getSenderIdentifier() != null)
+                        ? soapHeader.getSenderIdentifier().getValue() : null;
+                WireCapture capture = WireCapture.getInstance();
+                if (capture.shouldCapture(sender)) {
+                    capture.capture(WireCapture.INBOUND, sender, message);
+                }
 
-                SOAPInboundHandler.SOAPHEADER.setMessageIdentifier(messageId);
-                SOAPInboundHandler.SOAPHEADER.setChannelIdentifier(channelId);
-                SOAPInboundHandler.SOAPHEADER.setSenderIdentifier(sender);
-                SOAPInboundHandler.SOAPHEADER.setRecipientIdentifier(recipient);
-                SOAPInboundHandler.SOAPHEADER.setDocumentIdentifier(document);
-                SOAPInboundHandler.SOAPHEADER.setProcessIdentifier(process);
+                context.put(SOAP_HEADER_PROPERTY, soapHeader);
+                context.setScope(SOAP_HEADER_PROPERTY, MessageContext.Scope.APPLICATION);
             }
-        } catch (IOException ex) {
-            Logger.getLogger(SOAPInboundHandler.class.getName()).log(Level.SEVERE, "Error reading the SOAP envelope", ex);
-            logger4J.error("Error reading the SOAP envelop", ex);
         } catch (SOAPException ex) {
             Logger.getLogger(SOAPInboundHandler.class.getName()).log(Level.SEVERE, "Error retrieving the SOAP envelope", ex);
             logger4J.error("Error retrieving the SOAP envelope", ex);
@@ -166,34 +138,20 @@ public class SOAPInboundHandler implements SOAPHandler<SOAPMessageContext> {
     /**
      * Storage the value of the headers.
      * @param element Soap element.
+     * @param soapHeader Header object of the current exchange.
      */
-    private void setHeaderElement(SOAPElement element) {
+    private void setHeaderElement(SOAPElement element, SOAPHeaderObject soapHeader) {
+        TransportHeaderReader.setHeader(element.getElementName().getLocalName(),
+                element.getValue(), element.getAttribute(Identifiers.SCHEME_ATTR), soapHeader);
+    }
 
-        if (element.getElementName().getLocalName().equalsIgnoreCase(Identifiers.MESSAGEID)) {
-            messageId = element.getValue();
-        }
-        if (element.getElementName().getLocalName().equalsIgnoreCase(Identifiers.CHANNELID)) {
-            channelId = element.getValue();
-        }
-        if (element.getElementName().getLocalName().equalsIgnoreCase(Identifiers.RECIPIENTID)) {
-            recipient = new ParticipantIdentifierType();
-            recipient.setScheme(element.getAttribute(Identifiers.SCHEME_ATTR));
-            recipient.setValue(element.getValue());
-        }
-        if (element.getElementName().getLocalName().equalsIgnoreCase(Identifiers.SENDERID)) {
-            sender = new ParticipantIdentifierType();
-            sender.setScheme(element.getAttribute(Identifiers.SCHEME_ATTR));
-            sender.setValue(element.getValue());
-        }
-        if (element.getElementName().getLocalName().equalsIgnoreCase(Identifiers.DOCUMENTID)) {
-            document =  new DocumentIdentifierType();
-            document.setScheme(element.getAttribute(Identifiers.SCHEME_ATTR));
-            document.setValue(element.getValue());
-        }
-        if (element.getElementName().getLocalName().equalsIgnoreCase(Identifiers.PROCESSID)) {
-            process = new ProcessIdentifierType();
-            process.setScheme(element.getAttribute(Identifiers.SCHEME_ATTR));
-            process.setValue(element.getValue());
-        }
+    /**
+     * Returns the SOAPHeaderObject stored by this handler for the given
+     * exchange.
+     * @param context Message context of the current exchange.
+     * @return the header object, or null if no BUSDOX headers were read.
+     */
+    public static SOAPHeaderObject getSoapHeader(MessageContext context) {
+        return (SOAPHeaderObject) context.get(SOAP_HEADER_PROPERTY);
     }
 }
\ No newline at end of file
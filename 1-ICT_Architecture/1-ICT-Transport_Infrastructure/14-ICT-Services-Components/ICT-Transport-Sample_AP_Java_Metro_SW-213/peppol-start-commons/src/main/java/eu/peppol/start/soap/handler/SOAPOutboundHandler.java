@@ -39,9 +39,9 @@ package eu.peppol.start.soap.handler;
 
 import com.sun.xml.wss.SubjectAccessor;
 import com.sun.xml.wss.XWSSecurityException;
+import eu.peppol.start.log.WireCapture;
 import eu.peppol.start.soap.SOAPHeaderObject;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
+import eu.peppol.start.util.JAXBContextRegistry;
 import java.security.Principal;
 import java.security.cert.X509Certificate;
 import java.util.Iterator;
@@ -82,9 +82,11 @@ public class SOAPOutboundHandler implements SOAPHandler<SOAPMessageContext> {
     private static final Logger logger4J =  Logger.getLogger(SOAPOutboundHandler.class);
 
     /**
-     * Holds an static SOAPHeaderObject object.
+     * Holds the SOAPHeaderObject of the message being sent by each thread,
+     * so that concurrent senders do not overwrite each other's headers.
      */
-    private static SOAPHeaderObject soapHeader;
+    private static final ThreadLocal<SOAPHeaderObject> soapHeaders =
+            new ThreadLocal<SOAPHeaderObject>();
 
     /**
      * Holds an X509 certificate object.
@@ -99,14 +101,14 @@ public class SOAPOutboundHandler implements SOAPHandler<SOAPMessageContext> {
      * @return the soapHeader
      */
     public static SOAPHeaderObject getSoapHeader() {
-        return soapHeader;
+        return soapHeaders.get();
     }
 
     /**
      * @param aSoapHeader the soapHeader to set
      */
     public static void setSoapHeader(SOAPHeaderObject aSoapHeader) {
-        soapHeader = aSoapHeader;
+        soapHeaders.set(aSoapHeader);
     }
 
     @Override
@@ -121,18 +123,18 @@ public class SOAPOutboundHandler implements SOAPHandler<SOAPMessageContext> {
             SOAPMessage message = context.getMessage();
             SOAPEnvelope envelope = message.getSOAPPart().getEnvelope();
 
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
-            message.writeTo(out);
-            logger4J.debug("Outbound Envelope:\n" +new String(out.toByteArray()));
-
             Boolean isOutboundMessage = (Boolean) context.get(MessageContext.MESSAGE_OUTBOUND_PROPERTY);
 
             if (isOutboundMessage) {
-                createSOAPHeader(envelope);
+                SOAPHeaderObject soapHeader = soapHeaders.get();
+                createSOAPHeader(envelope, soapHeader);
+
+                String sender = soapHeader.getSenderIdentifier().getValue();
+                WireCapture capture = WireCapture.getInstance();
+                if (capture.shouldCapture(sender)) {
+                    capture.capture(WireCapture.OUTBOUND, sender, message);
+                }
             } 
-        } catch (IOException ex) {
-            java.util.logging.Logger.getLogger(SOAPOutboundHandler.class.getName()).log(Level.SEVERE, null, ex);
-            logger4J.error(ex.getMessage());
         } catch (JAXBException ex) {
             java.util.logging.Logger.getLogger(SOAPOutboundHandler.class.getName()).log(Level.SEVERE, null, ex);
             logger4J.fatal("An error occurred while marshalling headers.", ex);
@@ -147,14 +149,15 @@ public class SOAPOutboundHandler implements SOAPHandler<SOAPMessageContext> {
      * Adds the BUSDOX headers to the header part of the given SOAP-envelope.
      *
      * @param envelope the SOAP-envelope.
+     * @param soapHeader the headers of the message being sent.
      *
      * @throws SOAPException thrown if there is a problem with the
      *      SOAPHeader object.
      * @throws JAXBException thown if there is a problem marshalling the BUSDOX
      *      headers into the SOAP-envelope.
      */
-    private void createSOAPHeader(final SOAPEnvelope envelope)
-            throws SOAPException, JAXBException {
+    private void createSOAPHeader(final SOAPEnvelope envelope,
+            final SOAPHeaderObject soapHeader) throws SOAPException, JAXBException {
         logger4J.debug("Outbound Headers:"
                     + "\n\tSOAP Header:"
                     + "\n\t- Name: MessageIdentifier"
@@ -205,29 +208,31 @@ public class SOAPOutboundHandler implements SOAPHandler<SOAPMessageContext> {
 
         /* Proceed to put information as headers in the header block */
 
-        marshaller = JAXBContext.newInstance(String.class).createMarshaller();
-        marshaller.marshal(objFactory.createMessageIdentifier(messageId),
-                new DOMResult(header));
+        JAXBContext context = JAXBContextRegistry.getTransportContext();
+        marshaller = JAXBContextRegistry.acquireMarshaller(context);
+        try {
+            marshaller.marshal(objFactory.createMessageIdentifier(messageId),
+                    new DOMResult(header));
 
-        JAXBElement auxChannelId = objFactory.createChannelIdentifier(channelId);
-        auxChannelId.setNil(true);
-        marshaller.marshal(auxChannelId,
-                new DOMResult(header));
+            JAXBElement auxChannelId = objFactory.createChannelIdentifier(channelId);
+            auxChannelId.setNil(true);
+            marshaller.marshal(auxChannelId,
+                    new DOMResult(header));
 
-        marshaller = JAXBContext.newInstance(ParticipantIdentifierType.class).createMarshaller();
-        marshaller.marshal(objFactory.createRecipientIdentifier(recipientId),
-                new DOMResult(header));
+            marshaller.marshal(objFactory.createRecipientIdentifier(recipientId),
+                    new DOMResult(header));
 
-        marshaller.marshal(objFactory.createSenderIdentifier(senderId),
-                new DOMResult(header));
+            marshaller.marshal(objFactory.createSenderIdentifier(senderId),
+                    new DOMResult(header));
 
-        marshaller = JAXBContext.newInstance(DocumentIdentifierType.class).createMarshaller();
-        marshaller.marshal(objFactory.createDocumentIdentifier(documentId),
-                new DOMResult(header));
+            marshaller.marshal(objFactory.createDocumentIdentifier(documentId),
+                    new DOMResult(header));
 
-        marshaller = JAXBContext.newInstance(ProcessIdentifierType.class).createMarshaller();
-        marshaller.marshal(objFactory.createProcessIdentifier(processId),
-                new DOMResult(header));
+            marshaller.marshal(objFactory.createProcessIdentifier(processId),
+                    new DOMResult(header));
+        } finally {
+            JAXBContextRegistry.releaseMarshaller(context, marshaller);
+        }
     }
 
     @Override
@@ -0,0 +1,174 @@
+/*
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package eu.peppol.start.soap.handler;
+
+import eu.peppol.start.soap.SOAPHeaderObject;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import org.busdox.servicemetadata.types.DocumentIdentifierType;
+import org.busdox.servicemetadata.types.ParticipantIdentifierType;
+import org.busdox.servicemetadata.types.ProcessIdentifierType;
+import org.busdox.transport.Identifiers.Identifiers;
+
+/**
+ * Reads the BUSDOX transport headers into a SOAPHeaderObject.
+ * <p>
+ * The headers are read with StAX, one header element at a time, so that
+ * neither the envelope nor the body has to be materialized to know the
+ * routing information of a message.
+ * <p>
+ * As SOAPInboundHandler always did, a header is recognized by its local
+ * name ignoring case and whatever its namespace, and a missing scheme
+ * attribute is read as an empty string.
+ */
+public final class TransportHeaderReader {
+
+    private static final int MESSAGE = 1;
+
+    private static final int CHANNEL = 2;
+
+    private static final int RECIPIENT = 3;
+
+    private static final int SENDER = 4;
+
+    private static final int DOCUMENT = 5;
+
+    private static final int PROCESS = 6;
+
+    /**
+     * Header local names, in lower case.
+     */
+    private static final Map<String, Integer> HEADERS = new HashMap<String, Integer>();
+
+    static {
+        HEADERS.put(key(Identifiers.MESSAGEID), MESSAGE);
+        HEADERS.put(key(Identifiers.CHANNELID), CHANNEL);
+        HEADERS.put(key(Identifiers.RECIPIENTID), RECIPIENT);
+        HEADERS.put(key(Identifiers.SENDERID), SENDER);
+        HEADERS.put(key(Identifiers.DOCUMENTID), DOCUMENT);
+        HEADERS.put(key(Identifiers.PROCESSID), PROCESS);
+    }
+
+    private TransportHeaderReader() {
+    }
+
+    /**
+     * Checks if a header is one of the BUSDOX transport headers.
+     * @param localName     Local name of the header element, in any case.
+     * @return true if the header is read by this class.
+     */
+    public static boolean isTransportHeader(String localName) {
+        return HEADERS.containsKey(key(localName));
+    }
+
+    /**
+     * Reads a header element into the header object. The reader must be
+     * positioned on the start element of the header; it is left on its end
+     * element.
+     * @param reader        Reader of the header.
+     * @param soapHeader    Header object of the current exchange.
+     * @throws XMLStreamException if the header is not well formed.
+     */
+    public static void readHeader(XMLStreamReader reader, SOAPHeaderObject soapHeader)
+            throws XMLStreamException {
+
+        String localName = reader.getLocalName();
+        String scheme = reader.getAttributeValue(null, Identifiers.SCHEME_ATTR);
+        String value = reader.getElementText();
+        setHeader(localName, (value.length() > 0) ? value : null,
+                (scheme != null) ? scheme : "", soapHeader);
+    }
+
+    /**
+     * Stores the value of a header in the header object. Unknown headers
+     * are ignored.
+     * @param localName     Local name of the header element, in any case.
+     * @param value         Text content of the header.
+     * @param scheme        Value of the scheme attribute, if any.
+     * @param soapHeader    Header object of the current exchange.
+     */
+    public static void setHeader(String localName, String value, String scheme,
+            SOAPHeaderObject soapHeader) {
+
+        Integer header = HEADERS.get(key(localName));
+        if (header == null) {
+            return;
+        }
+        switch (header.intValue()) {
+            case MESSAGE:
+                soapHeader.setMessageIdentifier(value);
+                break;
+            case CHANNEL:
+                soapHeader.setChannelIdentifier(value);
+                break;
+            case RECIPIENT:
+                ParticipantIdentifierType recipient = new ParticipantIdentifierType();
+                recipient.setScheme(scheme);
+                recipient.setValue(value);
+                soapHeader.setRecipientIdentifier(recipient);
+                break;
+            case SENDER:
+                ParticipantIdentifierType sender = new ParticipantIdentifierType();
+                sender.setScheme(scheme);
+                sender.setValue(value);
+                soapHeader.setSenderIdentifier(sender);
+                break;
+            case DOCUMENT:
+                DocumentIdentifierType document = new DocumentIdentifierType();
+                document.setScheme(scheme);
+                document.setValue(value);
+                soapHeader.setDocumentIdentifier(document);
+                break;
+            case PROCESS:
+                ProcessIdentifierType process = new ProcessIdentifierType();
+                process.setScheme(scheme);
+                process.setValue(value);
+                soapHeader.setProcessIdentifier(process);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private static String key(String localName) {
+        return localName.toLowerCase(Locale.ENGLISH);
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package eu.peppol.start.util;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.bind.Unmarshaller;
+import org.busdox.servicemetadata.types.DocumentIdentifierType;
+import org.busdox.servicemetadata.types.ParticipantIdentifierType;
+import org.busdox.servicemetadata.types.ProcessIdentifierType;
+
+/**
+ * Process-wide registry of JAXBContexts, with pools of Marshallers and
+ * Unmarshallers.
+ * <p>
+ * A JAXBContext is thread safe but expensive to build, so each set of
+ * classes gets one, built on first use. Marshallers and Unmarshallers are
+ * not thread safe; they are borrowed from the pool of their context and
+ * must be given back, unchanged, once the call is done:
+ * <pre>
+ * Marshaller marshaller = JAXBContextRegistry.acquireMarshaller(context);
+ * try {
+ *     marshaller.marshal(element, result);
+ * } finally {
+ *     JAXBContextRegistry.releaseMarshaller(context, marshaller);
+ * }
+ * </pre>
+ */
+public final class JAXBContextRegistry {
+
+    /**
+     * Maximum number of idle Marshallers or Unmarshallers kept per context.
+     */
+    private static final int MAX_POOLED = 32;
+
+    /**
+     * Contexts by bound classes.
+     */
+    private static final ConcurrentMap<List<Class<?>>, JAXBContext> CONTEXTS =
+            new ConcurrentHashMap<List<Class<?>>, JAXBContext>();
+
+    /**
+     * Idle Marshallers by context.
+     */
+    private static final ConcurrentMap<JAXBContext, Pool<Marshaller>> MARSHALLERS =
+            new ConcurrentHashMap<JAXBContext, Pool<Marshaller>>();
+
+    /**
+     * Idle Unmarshallers by context.
+     */
+    private static final ConcurrentMap<JAXBContext, Pool<Unmarshaller>> UNMARSHALLERS =
+            new ConcurrentHashMap<JAXBContext, Pool<Unmarshaller>>();
+
+    /**
+     * Utility class.
+     */
+    private JAXBContextRegistry() {
+    }
+
+    /**
+     * Returns the context of the transport identifier types: participant,
+     * document and process identifiers, and the String headers.
+     * @return the shared JAXBContext.
+     * @throws JAXBException if the context cannot be built.
+     */
+    public static JAXBContext getTransportContext() throws JAXBException {
+        return getContext(ParticipantIdentifierType.class,
+                DocumentIdentifierType.class, ProcessIdentifierType.class);
+    }
+
+    /**
+     * Returns the context of a set of classes, building it on first use.
+     * @param classes Classes bound by the context.
+     * @return the shared JAXBContext.
+     * @throws JAXBException if the context cannot be built.
+     */
+    public static JAXBContext getContext(Class<?>... classes) throws JAXBException {
+        List<Class<?>> key = Arrays.asList(classes);
+        JAXBContext context = CONTEXTS.get(key);
+        if (context == null) {
+            context = JAXBContext.newInstance(classes);
+            JAXBContext existing = CONTEXTS.putIfAbsent(key, context);
+            if (existing != null) {
+                context = existing;
+            }
+        }
+        return context;
+    }
+
+    /**
+     * Borrows a Marshaller of a context.
+     * @param context Context of the Marshaller.
+     * @return a Marshaller to release after use.
+     * @throws JAXBException if a Marshaller cannot be created.
+     */
+    public static Marshaller acquireMarshaller(JAXBContext context) throws JAXBException {
+        Marshaller marshaller = getPool(MARSHALLERS, context).poll();
+        return (marshaller != null) ? marshaller : context.createMarshaller();
+    }
+
+    /**
+     * Gives back a borrowed Marshaller.
+     * @param context    Context of the Marshaller.
+     * @param marshaller Marshaller to give back.
+     */
+    public static void releaseMarshaller(JAXBContext context, Marshaller marshaller) {
+        getPool(MARSHALLERS, context).offer(marshaller);
+    }
+
+    /**
+     * Borrows an Unmarshaller of a context.
+     * @param context Context of the Unmarshaller.
+     * @return an Unmarshaller to release after use.
+     * @throws JAXBException if an Unmarshaller cannot be created.
+     */
+    public static Unmarshaller acquireUnmarshaller(JAXBContext context) throws JAXBException {
+        Unmarshaller unmarshaller = getPool(UNMARSHALLERS, context).poll();
+        return (unmarshaller != null) ? unmarshaller : context.createUnmarshaller();
+    }
+
+    /**
+     * Gives back a borrowed Unmarshaller.
+     * @param context      Context of the Unmarshaller.
+     * @param unmarshaller Unmarshaller to give back.
+     */
+    public static void releaseUnmarshaller(JAXBContext context, Unmarshaller unmarshaller) {
+        getPool(UNMARSHALLERS, context).offer(unmarshaller);
+    }
+
+    private static <T> Pool<T> getPool(ConcurrentMap<JAXBContext, Pool<T>> pools,
+                                       JAXBContext context) {
+        Pool<T> pool = pools.get(context);
+        if (pool == null) {
+            pool = new Pool<T>();
+            Pool<T> existing = pools.putIfAbsent(context, pool);
+            if (existing != null) {
+                pool = existing;
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * Bounded pool of idle instances.
+     */
+    private static final class Pool<T> {
+
+        private final Queue<T> idle = new ConcurrentLinkedQueue<T>();
+
+        private final AtomicInteger size = new AtomicInteger();
+
+        T poll() {
+            T item = idle.poll();
+            if (item != null) {
+                size.decrementAndGet();
+            }
+            return item;
+        }
+
+        void offer(T item) {
+            if (item != null && size.incrementAndGet() <= MAX_POOLED) {
+                idle.offer(item);
+            } else if (item != null) {
+                size.decrementAndGet();
+            }
+        }
+    }
+}
@@ -53,7 +53,6 @@ import java.security.cert.X509Certificate;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 import org.w3c.dom.Document;
 import org.xml.sax.InputSource;
@@ -155,9 +154,7 @@ public class Util {
         Document document = null;
 
         try {
-            DocumentBuilderFactory docBuilderFactory = DocumentBuilderFactory.newInstance();
-            docBuilderFactory.setNamespaceAware(true);
-            DocumentBuilder docBuilder = docBuilderFactory.newDocumentBuilder();
+            DocumentBuilder docBuilder = XMLToolkit.getDocumentBuilder(true);
             document = docBuilder.parse(new InputSource(new StringReader(content)));
         } catch (ParserConfigurationException ex) {
             Logger.getLogger(Util.class.getName()).log(Level.SEVERE, ex.getMessage());
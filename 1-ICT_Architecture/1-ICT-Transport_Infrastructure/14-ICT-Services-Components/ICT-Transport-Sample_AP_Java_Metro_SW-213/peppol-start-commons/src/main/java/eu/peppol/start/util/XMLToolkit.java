@@ -0,0 +1,176 @@
+/*
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package eu.peppol.start.util;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerFactory;
+
+/**
+ * Shared XML processing objects.
+ * <p>
+ * The JAXP and StAX factories are looked up once, as every lookup scans the
+ * class path for a provider. DocumentBuilders and Transformers are not
+ * thread safe, so one of each is kept per thread and reset before it is
+ * handed out again. A builder or transformer obtained here must only be
+ * used within the calling method and never kept nor shared.
+ */
+public final class XMLToolkit {
+
+    /**
+     * Factory of namespace aware DocumentBuilders.
+     */
+    private static final DocumentBuilderFactory NAMESPACE_AWARE_FACTORY =
+            newDocumentBuilderFactory(true);
+
+    /**
+     * Factory of DocumentBuilders without namespace support.
+     */
+    private static final DocumentBuilderFactory PLAIN_FACTORY =
+            newDocumentBuilderFactory(false);
+
+    /**
+     * Factory of Transformers.
+     */
+    private static final TransformerFactory TRANSFORMER_FACTORY =
+            TransformerFactory.newInstance();
+
+    /**
+     * Factory of StAX readers.
+     */
+    private static final XMLInputFactory INPUT_FACTORY = XMLInputFactory.newInstance();
+
+    /**
+     * Factory of StAX writers.
+     */
+    private static final XMLOutputFactory OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+
+    /**
+     * Namespace aware DocumentBuilder of each thread.
+     */
+    private static final ThreadLocal<DocumentBuilder> NAMESPACE_AWARE_BUILDER =
+            new ThreadLocal<DocumentBuilder>();
+
+    /**
+     * DocumentBuilder without namespace support of each thread.
+     */
+    private static final ThreadLocal<DocumentBuilder> PLAIN_BUILDER =
+            new ThreadLocal<DocumentBuilder>();
+
+    /**
+     * Identity Transformer of each thread.
+     */
+    private static final ThreadLocal<Transformer> TRANSFORMER =
+            new ThreadLocal<Transformer>();
+
+    /**
+     * Utility class.
+     */
+    private XMLToolkit() {
+    }
+
+    /**
+     * Returns the DocumentBuilder of the calling thread.
+     * @param namespaceAware true for a namespace aware builder.
+     * @return a reset DocumentBuilder.
+     * @throws ParserConfigurationException if no builder can be created.
+     */
+    public static DocumentBuilder getDocumentBuilder(boolean namespaceAware)
+            throws ParserConfigurationException {
+
+        ThreadLocal<DocumentBuilder> local = namespaceAware
+                ? NAMESPACE_AWARE_BUILDER : PLAIN_BUILDER;
+        DocumentBuilder builder = local.get();
+        if (builder == null) {
+            DocumentBuilderFactory factory = namespaceAware
+                    ? NAMESPACE_AWARE_FACTORY : PLAIN_FACTORY;
+            synchronized (factory) {
+                builder = factory.newDocumentBuilder();
+            }
+            local.set(builder);
+        } else {
+            builder.reset();
+        }
+        return builder;
+    }
+
+    /**
+     * Returns the identity Transformer of the calling thread.
+     * @return a reset Transformer.
+     * @throws TransformerConfigurationException if no transformer can be created.
+     */
+    public static Transformer getTransformer() throws TransformerConfigurationException {
+        Transformer transformer = TRANSFORMER.get();
+        if (transformer == null) {
+            synchronized (TRANSFORMER_FACTORY) {
+                transformer = TRANSFORMER_FACTORY.newTransformer();
+            }
+            TRANSFORMER.set(transformer);
+        } else {
+            transformer.reset();
+        }
+        return transformer;
+    }
+
+    /**
+     * Returns the shared StAX input factory; do not change its properties.
+     * @return the XMLInputFactory.
+     */
+    public static XMLInputFactory getXMLInputFactory() {
+        return INPUT_FACTORY;
+    }
+
+    /**
+     * Returns the shared StAX output factory; do not change its properties.
+     * @return the XMLOutputFactory.
+     */
+    public static XMLOutputFactory getXMLOutputFactory() {
+        return OUTPUT_FACTORY;
+    }
+
+    private static DocumentBuilderFactory newDocumentBuilderFactory(boolean namespaceAware) {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(namespaceAware);
+        return factory;
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package eu.peppol.start.log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.HashSet;
+import javax.management.ObjectName;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class WireCaptureTest {
+
+    /**
+     * Test of shouldCapture, of class WireCapture.
+     */
+    @Test
+    public void testShouldCapture() {
+
+        WireCapture disabled = new WireCapture(0, new HashSet<String>(), 1024);
+        assertFalse(disabled.shouldCapture("sender"));
+
+        WireCapture sampled = new WireCapture(0.25, new HashSet<String>(), 1024);
+        int captured = 0;
+        for (int i = 0; i < 100; i++) {
+            if (sampled.shouldCapture("sender")) {
+                captured++;
+            }
+        }
+        assertEquals(25, captured);
+
+        WireCapture filtered = new WireCapture(1, Collections.singleton("busdox:sender"), 1024);
+        assertTrue(filtered.shouldCapture("busdox:sender"));
+        assertFalse(filtered.shouldCapture("other"));
+        assertFalse(filtered.shouldCapture(null));
+    }
+
+    /**
+     * Test that the oldest envelopes are overwritten, of class WireCapture.
+     */
+    @Test
+    public void testRingBuffer() throws Exception {
+
+        WireCapture capture = new WireCapture(1, new HashSet<String>(), 64);
+        for (int i = 0; i < 10; i++) {
+            capture.capture(WireCapture.INBOUND, "sender", ("<Envelope" + i + "/>").getBytes("UTF-8"));
+        }
+        capture.capture(WireCapture.INBOUND, "sender", new byte[100]);
+        assertEquals(5, capture.size());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        capture.export(out);
+        String exported = new String(out.toByteArray(), "UTF-8");
+        assertFalse(exported.contains("<Envelope4/>"));
+        for (int i = 5; i < 10; i++) {
+            assertTrue(exported.contains("<Envelope" + i + "/>"));
+        }
+    }
+
+    /**
+     * Test of the export through JMX, of class WireCapture.
+     */
+    @Test
+    public void testExportToFile() throws Exception {
+
+        WireCapture capture = new WireCapture(1, new HashSet<String>(), 1024);
+        capture.capture(WireCapture.OUTBOUND, "sender", "<Envelope/>".getBytes("UTF-8"));
+        WireCapture.register(capture);
+
+        String path = (String) ManagementFactory.getPlatformMBeanServer().invoke(
+                new ObjectName(WireCapture.OBJECT_NAME), "exportToFile", null, null);
+        File file = new File(path);
+        file.deleteOnExit();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[512];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        assertTrue(new String(out.toByteArray(), "UTF-8").contains("<Envelope/>"));
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package eu.peppol.start.soap.handler;
+
+import eu.peppol.start.soap.SOAPHeaderObject;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.xml.bind.JAXBContext;
+import javax.xml.namespace.QName;
+import javax.xml.soap.MessageFactory;
+import javax.xml.soap.SOAPHeader;
+import javax.xml.soap.SOAPHeaderElement;
+import javax.xml.soap.SOAPMessage;
+import javax.xml.ws.handler.MessageContext;
+import javax.xml.ws.handler.soap.SOAPMessageContext;
+import org.busdox.transport.Identifiers.Identifiers;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks that concurrent inbound exchanges never see each other's headers.
+ */
+public class SOAPInboundHandlerTest {
+
+    private static final int THREADS = 8;
+
+    private static final int MESSAGES_PER_THREAD = 200;
+
+    /**
+     * Test of handleMessage method, of class SOAPInboundHandler, with
+     * several threads sharing the same handler instance.
+     */
+    @Test
+    public void testConcurrentHandleMessage() throws Exception {
+
+        final SOAPInboundHandler handler = new SOAPInboundHandler();
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+
+        for (int t = 0; t < THREADS; t++) {
+            final int thread = t;
+            results.add(executor.submit(new Callable<Integer>() {
+
+                public Integer call() throws Exception {
+                    start.await();
+                    int mismatches = 0;
+                    for (int i = 0; i < MESSAGES_PER_THREAD; i++) {
+                        String messageId = "uuid:" + thread + "-" + i;
+                        String recipient = "0088:" + thread;
+                        TestMessageContext context =
+                                new TestMessageContext(createMessage(messageId, recipient));
+
+                        handler.handleMessage(context);
+
+                        SOAPHeaderObject header = SOAPInboundHandler.getSoapHeader(context);
+                        if (!messageId.equals(header.getMessageIdentifier())
+                                || !recipient.equals(header.getRecipientIdentifier().getValue())) {
+                            mismatches++;
+                        }
+                    }
+                    return mismatches;
+                }
+            }));
+        }
+        start.countDown();
+
+        int mismatches = 0;
+        for (Future<Integer> result : results) {
+            mismatches += result.get();
+        }
+        executor.shutdown();
+
+        assertEquals("Headers leaked between concurrent exchanges", 0, mismatches);
+    }
+
+    private static SOAPMessage createMessage(String messageId, String recipient)
+            throws Exception {
+
+        SOAPMessage message = MessageFactory.newInstance().createMessage();
+        SOAPHeader header = message.getSOAPHeader();
+
+        SOAPHeaderElement element = header.addHeaderElement(
+                new QName(Identifiers.NAMESPACE_TRANSPORT_IDS, Identifiers.MESSAGEID));
+        element.addTextNode(messageId);
+
+        element = header.addHeaderElement(
+                new QName(Identifiers.NAMESPACE_TRANSPORT_IDS, Identifiers.RECIPIENTID));
+        element.setAttribute(Identifiers.SCHEME_ATTR, "iso6523-actorid-upis");
+        element.addTextNode(recipient);
+
+        message.saveChanges();
+        return message;
+    }
+
+    /**
+     * Minimal inbound SOAPMessageContext backed by a HashMap.
+     */
+    private static class TestMessageContext extends HashMap<String, Object>
+            implements SOAPMessageContext {
+
+        private SOAPMessage message;
+
+        TestMessageContext(SOAPMessage message) {
+            this.message = message;
+            put(MessageContext.MESSAGE_OUTBOUND_PROPERTY, Boolean.FALSE);
+        }
+
+        public SOAPMessage getMessage() {
+            return message;
+        }
+
+        public void setMessage(SOAPMessage message) {
+            this.message = message;
+        }
+
+        public Object[] getHeaders(QName header, JAXBContext context, boolean allRoles) {
+            return new Object[0];
+        }
+
+        public Set<String> getRoles() {
+            return null;
+        }
+
+        public void setScope(String name, Scope scope) {
+        }
+
+        public Scope getScope(String name) {
+            return Scope.APPLICATION;
+        }
+    }
+}
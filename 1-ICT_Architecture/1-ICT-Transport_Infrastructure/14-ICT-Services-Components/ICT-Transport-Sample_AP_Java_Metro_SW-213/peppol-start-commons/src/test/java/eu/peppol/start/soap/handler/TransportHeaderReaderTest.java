@@ -0,0 +1,108 @@
+/*
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package eu.peppol.start.soap.handler;
+
+import eu.peppol.start.soap.SOAPHeaderObject;
+import eu.peppol.start.util.XMLToolkit;
+import java.io.StringReader;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+import org.busdox.transport.Identifiers.Identifiers;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class TransportHeaderReaderTest {
+
+    private static final String ENVELOPE =
+            "<S:Envelope xmlns:S=\"http://schemas.xmlsoap.org/soap/envelope/\""
+            + " xmlns:ids=\"" + Identifiers.NAMESPACE_TRANSPORT_IDS + "\">"
+            + "<S:Header>"
+            + "<ids:MessageIdentifier>uuid:1</ids:MessageIdentifier>"
+            + "<ids:ChannelIdentifier xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\" xsi:nil=\"true\"/>"
+            + "<ids:RecipientIdentifier scheme=\"iso6523-actorid-upis\">0088:recipient</ids:RecipientIdentifier>"
+            + "<ids:SenderIdentifier scheme=\"iso6523-actorid-upis\">0088:sender</ids:SenderIdentifier>"
+            + "<ids:documentidentifier>invoice</ids:documentidentifier>"
+            + "<ids:ProcessIdentifier scheme=\"cenbii-procid-ubl\">process</ids:ProcessIdentifier>"
+            + "<Other xmlns=\"urn:other\">ignored</Other>"
+            + "</S:Header>"
+            + "<S:Body><Invoice/></S:Body>"
+            + "</S:Envelope>";
+
+    /**
+     * Test of readHeader, of class TransportHeaderReader.
+     */
+    @Test
+    public void testReadHeader() throws Exception {
+
+        XMLStreamReader reader = XMLToolkit.getXMLInputFactory()
+                .createXMLStreamReader(new StringReader(ENVELOPE));
+        SOAPHeaderObject soapHeader = new SOAPHeaderObject();
+
+        while (reader.hasNext()) {
+            if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+                if ("Body".equals(reader.getLocalName())) {
+                    break;
+                }
+                if (TransportHeaderReader.isTransportHeader(reader.getLocalName())) {
+                    TransportHeaderReader.readHeader(reader, soapHeader);
+                }
+            }
+        }
+        reader.close();
+
+        assertEquals("uuid:1", soapHeader.getMessageIdentifier());
+        assertNull(soapHeader.getChannelIdentifier());
+        assertEquals("0088:recipient", soapHeader.getRecipientIdentifier().getValue());
+        assertEquals("iso6523-actorid-upis", soapHeader.getRecipientIdentifier().getScheme());
+        assertEquals("0088:sender", soapHeader.getSenderIdentifier().getValue());
+        assertEquals("invoice", soapHeader.getDocumentIdentifier().getValue());
+        assertEquals("", soapHeader.getDocumentIdentifier().getScheme());
+        assertEquals("cenbii-procid-ubl", soapHeader.getProcessIdentifier().getScheme());
+        assertEquals("process", soapHeader.getProcessIdentifier().getValue());
+    }
+
+    /**
+     * Test of isTransportHeader, of class TransportHeaderReader.
+     */
+    @Test
+    public void testIsTransportHeader() {
+        assertTrue(TransportHeaderReader.isTransportHeader(Identifiers.SENDERID));
+        assertTrue(TransportHeaderReader.isTransportHeader("senderidentifier"));
+        assertFalse(TransportHeaderReader.isTransportHeader("Other"));
+    }
+}
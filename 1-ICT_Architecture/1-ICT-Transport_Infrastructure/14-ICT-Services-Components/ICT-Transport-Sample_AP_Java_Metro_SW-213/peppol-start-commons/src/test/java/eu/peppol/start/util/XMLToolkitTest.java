@@ -0,0 +1,83 @@
+/*
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package eu.peppol.start.util;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+import static org.junit.Assert.*;
+
+public class XMLToolkitTest {
+
+    /**
+     * Test that builders are reused per thread and keep their configuration.
+     */
+    @Test
+    public void testGetDocumentBuilder() throws Exception {
+
+        DocumentBuilder builder = XMLToolkit.getDocumentBuilder(true);
+        assertSame(builder, XMLToolkit.getDocumentBuilder(true));
+        assertNotSame(builder, XMLToolkit.getDocumentBuilder(false));
+        assertTrue(builder.isNamespaceAware());
+        assertFalse(XMLToolkit.getDocumentBuilder(false).isNamespaceAware());
+
+        Document document = XMLToolkit.getDocumentBuilder(true).parse(
+                new InputSource(new StringReader("<a:Invoice xmlns:a=\"urn:a\"/>")));
+        assertEquals("urn:a", document.getDocumentElement().getNamespaceURI());
+    }
+
+    /**
+     * Test that a transformer is reset before being reused.
+     */
+    @Test
+    public void testGetTransformer() throws Exception {
+
+        Document document = XMLToolkit.getDocumentBuilder(false).parse(
+                new InputSource(new StringReader("<Invoice/>")));
+        XMLToolkit.getTransformer().setOutputProperty("omit-xml-declaration", "yes");
+
+        StringWriter out = new StringWriter();
+        XMLToolkit.getTransformer().transform(new DOMSource(document), new StreamResult(out));
+        assertTrue(out.toString().startsWith("<?xml"));
+    }
+}
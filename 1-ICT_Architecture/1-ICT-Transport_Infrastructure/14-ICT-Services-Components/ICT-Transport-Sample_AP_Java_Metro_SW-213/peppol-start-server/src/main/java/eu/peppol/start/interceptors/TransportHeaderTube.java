@@ -0,0 +1,227 @@
+/*
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package eu.peppol.start.interceptors;
+
+import com.sun.xml.ws.api.SOAPVersion;
+import com.sun.xml.ws.api.message.Header;
+import com.sun.xml.ws.api.message.Message;
+import com.sun.xml.ws.api.message.Messages;
+import com.sun.xml.ws.api.message.Packet;
+import com.sun.xml.ws.api.pipe.NextAction;
+import com.sun.xml.ws.api.pipe.Tube;
+import com.sun.xml.ws.api.pipe.TubeCloner;
+import com.sun.xml.ws.api.pipe.helper.AbstractFilterTubeImpl;
+import eu.peppol.start.log.WireCapture;
+import eu.peppol.start.soap.SOAPHeaderObject;
+import eu.peppol.start.soap.handler.SOAPInboundHandler;
+import eu.peppol.start.soap.handler.TransportHeaderReader;
+import java.io.StringReader;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.xml.soap.SOAPException;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.transform.stax.StAXSource;
+import javax.xml.transform.stream.StreamSource;
+
+/**
+ * Endpoint side tube reading the BUSDOX transport headers of a request.
+ * <p>
+ * The headers are pulled with StAX from the header list of the message,
+ * which the runtime keeps apart from the body; the body is left unread for
+ * the service. The headers are exposed to the service under
+ * SOAPInboundHandler.SOAP_HEADER_PROPERTY, as the handler used to do.
+ * <p>
+ * The business document of a Create request is handed to the service as
+ * a StAXSource over the request stream, under
+ * TransportHeaderTubeFactory.PAYLOAD_PROPERTY, and the service is given
+ * an empty Create instead, so that the document is never unmarshalled into
+ * a DOM. The service must read the source before returning.
+ */
+final class TransportHeaderTube extends AbstractFilterTubeImpl {
+
+    /**
+     * Logger to follow this class behavior.
+     */
+    private static final org.apache.log4j.Logger logger4J =
+            org.apache.log4j.Logger.getLogger(TransportHeaderTube.class);
+
+    /**
+     * Namespace of the Create request.
+     */
+    private static final String NAMESPACE_WS_TRA = "http://www.w3.org/2009/02/ws-tra";
+
+    /**
+     * Payload of the Create request.
+     */
+    private static final String CREATE = "Create";
+
+    /**
+     * SOAP version of the endpoint.
+     */
+    private final SOAPVersion soapVersion;
+
+    /**
+     * Creates the tube in front of the next one of the tubeline.
+     * @param next          Next tube.
+     * @param soapVersion   SOAP version of the endpoint.
+     */
+    TransportHeaderTube(Tube next, SOAPVersion soapVersion) {
+        super(next);
+        this.soapVersion = soapVersion;
+    }
+
+    /**
+     * Copy constructor.
+     * @param original  Tube copied.
+     * @param cloner    Cloner of the tubeline.
+     */
+    private TransportHeaderTube(TransportHeaderTube original, TubeCloner cloner) {
+        super(original, cloner);
+        this.soapVersion = original.soapVersion;
+    }
+
+    @Override
+    public TransportHeaderTube copy(TubeCloner cloner) {
+        return new TransportHeaderTube(this, cloner);
+    }
+
+    @Override
+    public NextAction processRequest(Packet request) {
+
+        Message message = request.getMessage();
+        if (message != null && message.hasHeaders()) {
+            SOAPHeaderObject soapHeader = new SOAPHeaderObject();
+            try {
+                readHeaders(message, soapHeader);
+            } catch (XMLStreamException ex) {
+                Logger.getLogger(TransportHeaderTube.class.getName()).log(Level.SEVERE, "Error reading the SOAP headers", ex);
+                logger4J.error("Error reading the SOAP headers", ex);
+            }
+            request.invocationProperties.put(SOAPInboundHandler.SOAP_HEADER_PROPERTY, soapHeader);
+
+            capture(message, soapHeader);
+        }
+        if (message != null && message.hasPayload()
+                && CREATE.equals(message.getPayloadLocalPart())
+                && NAMESPACE_WS_TRA.equals(message.getPayloadNamespaceURI())) {
+            try {
+                streamPayload(request, message);
+            } catch (XMLStreamException ex) {
+                Logger.getLogger(TransportHeaderTube.class.getName()).log(Level.SEVERE, "Error reading the SOAP body", ex);
+                logger4J.error("Error reading the SOAP body", ex);
+            }
+        }
+        return super.processRequest(request);
+    }
+
+    /**
+     * Publishes the business document of a Create request as a StAXSource
+     * and replaces the message with one holding an empty Create and the
+     * same headers.
+     * @param request   Request packet.
+     * @param message   Message of the request.
+     * @throws XMLStreamException if the body cannot be read.
+     */
+    private void streamPayload(Packet request, Message message) throws XMLStreamException {
+
+        XMLStreamReader reader = message.readPayload();
+        Message replacement = Messages.createUsingPayload(new StreamSource(new StringReader(
+                "<" + CREATE + " xmlns=\"" + NAMESPACE_WS_TRA + "\"/>")), soapVersion);
+        if (message.hasHeaders()) {
+            replacement.getHeaders().addAll(message.getHeaders());
+        }
+        request.setMessage(replacement);
+
+        if (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            request.invocationProperties.put(TransportHeaderTubeFactory.PAYLOAD_PROPERTY,
+                    new StAXSource(reader));
+        }
+    }
+
+    /**
+     * Reads the transport headers of a message.
+     * @param message       Message of the request.
+     * @param soapHeader    Header object of the current exchange.
+     * @throws XMLStreamException if a header is not well formed.
+     */
+    static void readHeaders(Message message, SOAPHeaderObject soapHeader)
+            throws XMLStreamException {
+
+        boolean debug = logger4J.isDebugEnabled();
+        StringBuilder log = debug ? new StringBuilder("Inbound Headers:") : null;
+
+        for (Header header : message.getHeaders()) {
+            if (!TransportHeaderReader.isTransportHeader(header.getLocalPart())) {
+                continue;
+            }
+            XMLStreamReader reader = header.readHeader();
+            try {
+                TransportHeaderReader.readHeader(reader, soapHeader);
+            } finally {
+                reader.close();
+            }
+            if (debug) {
+                log.append("\n\tSOAP Header:");
+                log.append("\n\t- Name: ").append(header.getLocalPart());
+            }
+        }
+
+        if (debug) {
+            logger4J.debug(log);
+        }
+    }
+
+    /**
+     * Passes a copy of the message to the wire capture if it is sampled, so
+     * that the message itself is left unread.
+     */
+    private static void capture(Message message, SOAPHeaderObject soapHeader) {
+        String sender = (soapHeader.getSenderIdentifier() != null)
+                ? soapHeader.getSenderIdentifier().getValue() : null;
+        WireCapture capture = WireCapture.getInstance();
+        if (capture.shouldCapture(sender)) {
+            try {
+                capture.capture(WireCapture.INBOUND, sender, message.copy().readAsSOAPMessage());
+            } catch (SOAPException ex) {
+                logger4J.error("Error capturing the SOAP envelope", ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package eu.peppol.start.interceptors;
+
+import com.sun.xml.ws.api.pipe.Tube;
+import com.sun.xml.ws.assembler.dev.ClientTubelineAssemblyContext;
+import com.sun.xml.ws.assembler.dev.ServerTubelineAssemblyContext;
+import com.sun.xml.ws.assembler.dev.TubeFactory;
+import javax.xml.ws.WebServiceException;
+
+/**
+ * Creates the TransportHeaderTube of the endpoint side tubeline.
+ */
+public final class TransportHeaderTubeFactory implements TubeFactory {
+
+    /**
+     * Invocation property holding the Source of the business document of
+     * a Create request, streamed from the request.
+     */
+    public static final String PAYLOAD_PROPERTY = "eu.peppol.start.payload";
+
+    /**
+     * The client side tubeline is left unchanged.
+     * @param context Context of the client tubeline.
+     * @return the current head of the tubeline.
+     * @throws WebServiceException never.
+     */
+    public Tube createTube(ClientTubelineAssemblyContext context) throws WebServiceException {
+        return context.getTubelineHead();
+    }
+
+    /**
+     * Creates the tube reading the transport headers.
+     * @param context Context of the endpoint tubeline.
+     * @return the tube reading the transport headers.
+     * @throws WebServiceException never.
+     */
+    public Tube createTube(ServerTubelineAssemblyContext context) throws WebServiceException {
+        return new TransportHeaderTube(context.getTubelineHead(),
+                context.getEndpoint().getBinding().getSOAPVersion());
+    }
+}
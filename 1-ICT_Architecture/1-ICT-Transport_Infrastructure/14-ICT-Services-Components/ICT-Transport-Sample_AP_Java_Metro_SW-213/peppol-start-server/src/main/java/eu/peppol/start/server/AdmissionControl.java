@@ -0,0 +1,365 @@
+/*
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package eu.peppol.start.server;
+
+import eu.peppol.start.util.Configuration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Admission control of the business documents received, so that one
+ * sending Access Point cannot take the capacity of all the others.
+ * <p>
+ * Each sender and each channel (recipient) has a TokenBucket; a message
+ * over the rate of its bucket waits for a token, up to the maximum wait.
+ * The messages admitted by the buckets then go through a FairScheduler,
+ * which runs a limited number of them at once and queues the others in
+ * weighted fair order across senders. A message that cannot get a token
+ * or a slot in time, or that is shed from a full queue, is refused.
+ * <p>
+ * The rate, burst and weight are read from admission.&lt;sender|channel&gt;.&lt;setting&gt;,
+ * and can be set per scheme by appending .&lt;scheme&gt; to the key, or per
+ * identifier by appending .&lt;scheme&gt;.&lt;value&gt;. A rate of 0 means no limit.
+ * The buckets and weights are kept, with the identifiers found without a
+ * limit, up to admission.max.identifiers of each, least recently used
+ * first; an identifier evicted starts again with a full bucket. The
+ * tokens reserved for a message refused are given back.
+ * <p>
+ * A message waiting for a token or a slot holds the container thread that
+ * received it for up to admission.max.wait.millis, so the queue size and
+ * the maximum wait must leave enough threads of the connector free.
+ */
+public final class AdmissionControl {
+
+    /**
+     * Default longest wait for a token or a slot.
+     */
+    public static final long DEFAULT_MAX_WAIT_MILLIS = 5000L;
+
+    /**
+     * Default number of queued messages.
+     */
+    public static final int DEFAULT_QUEUE_SIZE = 256;
+
+    /**
+     * Default capacity of the token buckets.
+     */
+    public static final int DEFAULT_BURST = 20;
+
+    /**
+     * Default number of identifiers whose buckets and weights are kept.
+     */
+    public static final int DEFAULT_MAX_IDENTIFIERS = 10000;
+
+    /**
+     * Kept in the bucket maps for the identifiers without a limit; never reserved.
+     */
+    private static final TokenBucket UNLIMITED = new TokenBucket(1.0, 1);
+
+    /**
+     * Settings, or null to read the configuration.
+     */
+    private final Properties settings;
+
+    /**
+     * Buckets of the senders, least recently used first, guarded by itself.
+     */
+    private final Map<String, TokenBucket> senderBuckets;
+
+    /**
+     * Buckets of the channels, least recently used first, guarded by itself.
+     */
+    private final Map<String, TokenBucket> channelBuckets;
+
+    /**
+     * Weights of the senders, least recently used first, guarded by itself.
+     */
+    private final Map<String, Double> weights;
+
+    /**
+     * Queue in front of the concurrent messages, or null for no limit.
+     */
+    private final FairScheduler scheduler;
+
+    /**
+     * Longest wait for a token or a slot.
+     */
+    private final long maxWaitMillis;
+
+    /**
+     * Messages admitted.
+     */
+    private final AtomicLong admitted = new AtomicLong();
+
+    /**
+     * Messages refused by a token bucket.
+     */
+    private final AtomicLong throttled = new AtomicLong();
+
+    /**
+     * Messages refused by the fair queue.
+     */
+    private final AtomicLong shed = new AtomicLong();
+
+    /**
+     * Creates the admission control configured by the admission.* properties.
+     */
+    public AdmissionControl() {
+        this(null);
+    }
+
+    /**
+     * Creates an admission control.
+     * @param settings Settings, or null to read the configuration.
+     */
+    AdmissionControl(final Properties settings) {
+        this.settings = settings;
+        this.maxWaitMillis = (long) getNumber("admission.max.wait.millis",
+                DEFAULT_MAX_WAIT_MILLIS);
+        int maxConcurrent = (int) getNumber("admission.max.concurrent", 0);
+        this.scheduler = (maxConcurrent > 0)
+                ? new FairScheduler(maxConcurrent,
+                        (int) getNumber("admission.queue.size", DEFAULT_QUEUE_SIZE))
+                : null;
+        int maxIdentifiers = (int) getNumber("admission.max.identifiers",
+                DEFAULT_MAX_IDENTIFIERS);
+        this.senderBuckets = newCache(maxIdentifiers);
+        this.channelBuckets = newCache(maxIdentifiers);
+        this.weights = newCache(maxIdentifiers);
+    }
+
+    /**
+     * Waits until a message can be processed. A message admitted must be
+     * released once processed.
+     * @param senderScheme     Scheme of the sender identifier.
+     * @param senderValue      Value of the sender identifier.
+     * @param recipientScheme  Scheme of the recipient identifier.
+     * @param recipientValue   Value of the recipient identifier.
+     * @return true if the message is admitted, false if it must be refused.
+     */
+    public boolean admit(final String senderScheme, final String senderValue,
+                         final String recipientScheme, final String recipientValue) {
+
+        String sender = senderScheme + "::" + senderValue;
+        TokenBucket senderBucket = getBucket(senderBuckets, "admission.sender",
+                senderScheme, senderValue);
+        TokenBucket channelBucket = getBucket(channelBuckets, "admission.channel",
+                recipientScheme, recipientValue);
+        long now = System.nanoTime();
+        long maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+
+        long senderDelay = (senderBucket != null)
+                ? senderBucket.reserve(now, maxWaitNanos) : 0L;
+        if (senderDelay < 0) {
+            throttled.incrementAndGet();
+            return false;
+        }
+        long channelDelay = (channelBucket != null)
+                ? channelBucket.reserve(now, maxWaitNanos) : 0L;
+        if (channelDelay < 0) {
+            cancel(senderBucket, null);
+            throttled.incrementAndGet();
+            return false;
+        }
+
+        long delay = Math.max(senderDelay, channelDelay);
+        if (delay > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(delay);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                cancel(senderBucket, channelBucket);
+                return false;
+            }
+        }
+
+        if (scheduler != null
+                && !scheduler.acquire(sender, getWeight(senderScheme, senderValue),
+                        maxWaitMillis - TimeUnit.NANOSECONDS.toMillis(delay))) {
+            cancel(senderBucket, channelBucket);
+            shed.incrementAndGet();
+            return false;
+        }
+        admitted.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Frees the slot of an admitted message once processed.
+     */
+    public void release() {
+        if (scheduler != null) {
+            scheduler.release();
+        }
+    }
+
+    /**
+     * @return the number of messages admitted.
+     */
+    public long getAdmitted() {
+        return admitted.get();
+    }
+
+    /**
+     * @return the number of messages refused by a token bucket.
+     */
+    public long getThrottled() {
+        return throttled.get();
+    }
+
+    /**
+     * @return the number of messages refused by the fair queue.
+     */
+    public long getShed() {
+        return shed.get();
+    }
+
+    @Override
+    public String toString() {
+        return "Messages admitted: " + admitted.get()
+                + ", throttled: " + throttled.get()
+                + ", shed: " + shed.get()
+                + ((scheduler != null) ? ", queued: " + scheduler.getQueued() : "");
+    }
+
+    /**
+     * Gives back the tokens reserved for a message refused.
+     */
+    private static void cancel(TokenBucket senderBucket, TokenBucket channelBucket) {
+        if (senderBucket != null) {
+            senderBucket.cancel();
+        }
+        if (channelBucket != null) {
+            channelBucket.cancel();
+        }
+    }
+
+    /**
+     * Returns the bucket of an identifier, creating it on first use, or
+     * null if the identifier has no limit.
+     */
+    private TokenBucket getBucket(Map<String, TokenBucket> buckets,
+                                  String prefix, String scheme, String value) {
+        String key = scheme + "::" + value;
+        TokenBucket bucket;
+        synchronized (buckets) {
+            bucket = buckets.get(key);
+        }
+        if (bucket == null) {
+            double rate = getNumber(prefix + ".rate", scheme, value, 0);
+            bucket = (rate > 0)
+                    ? new TokenBucket(rate,
+                            (int) getNumber(prefix + ".burst", scheme, value, DEFAULT_BURST))
+                    : UNLIMITED;
+            synchronized (buckets) {
+                TokenBucket existing = buckets.get(key);
+                if (existing != null) {
+                    bucket = existing;
+                } else {
+                    buckets.put(key, bucket);
+                }
+            }
+        }
+        return (bucket != UNLIMITED) ? bucket : null;
+    }
+
+    /**
+     * Returns the weight of a sender, 1 unless configured.
+     */
+    private double getWeight(String scheme, String value) {
+        String key = scheme + "::" + value;
+        synchronized (weights) {
+            Double weight = weights.get(key);
+            if (weight != null) {
+                return weight.doubleValue();
+            }
+        }
+        double configured = getNumber("admission.sender.weight", scheme, value, 1);
+        if (configured <= 0) {
+            configured = 1;
+        }
+        synchronized (weights) {
+            weights.put(key, Double.valueOf(configured));
+        }
+        return configured;
+    }
+
+    /**
+     * Creates a map keeping at most maxSize entries, least recently used first.
+     */
+    private static <V> Map<String, V> newCache(final int maxSize) {
+        return new LinkedHashMap<String, V>(16, 0.75f, true) {
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Reads a setting of an identifier, falling back to its scheme, then
+     * to the setting itself.
+     */
+    private double getNumber(String key, String scheme, String value, double defaultValue) {
+        String setting = getProperty(key + "." + scheme + "." + value);
+        if (setting == null || setting.trim().length() == 0) {
+            setting = getProperty(key + "." + scheme);
+        }
+        if (setting == null || setting.trim().length() == 0) {
+            setting = getProperty(key);
+        }
+        return (setting != null && setting.trim().length() > 0)
+                ? Double.parseDouble(setting.trim()) : defaultValue;
+    }
+
+    private double getNumber(String key, double defaultValue) {
+        String setting = getProperty(key);
+        return (setting != null && setting.trim().length() > 0)
+                ? Double.parseDouble(setting.trim()) : defaultValue;
+    }
+
+    private String getProperty(String key) {
+        return (settings != null)
+                ? settings.getProperty(key)
+                : Configuration.getInstance().getProperty(key);
+    }
+}
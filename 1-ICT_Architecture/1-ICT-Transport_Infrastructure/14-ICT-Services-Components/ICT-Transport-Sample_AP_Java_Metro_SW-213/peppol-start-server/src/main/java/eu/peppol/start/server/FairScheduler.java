@@ -0,0 +1,211 @@
+/*
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package eu.peppol.start.server;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Weighted fair queue in front of a fixed number of concurrent messages.
+ * <p>
+ * A message that cannot run at once waits with a virtual finish tag: the
+ * later of the virtual time and the last tag of its sender, plus the
+ * inverse of the sender weight. Free slots go to the smallest tag, so
+ * each waiting sender gets its weighted share however many messages it
+ * sends. When the queue is full the message with the largest tag is shed,
+ * which is the newest message of the sender furthest over its share.
+ */
+public final class FairScheduler {
+
+    private static final int WAITING = 0;
+
+    private static final int ADMITTED = 1;
+
+    private static final int SHED = 2;
+
+    /**
+     * Messages running at the same time.
+     */
+    private final int maxRunning;
+
+    /**
+     * Messages waiting at the same time.
+     */
+    private final int maxQueued;
+
+    /**
+     * Messages running, guarded by this.
+     */
+    private int running;
+
+    /**
+     * Start tag of the last message admitted from the queue.
+     */
+    private double virtualTime;
+
+    /**
+     * Order of arrival, breaking ties between equal tags.
+     */
+    private long sequence;
+
+    /**
+     * Last finish tag of each sender with waiting messages.
+     */
+    private final Map<String, Double> finishTags = new HashMap<String, Double>();
+
+    /**
+     * Waiting messages by finish tag.
+     */
+    private final TreeSet<Waiter> queue = new TreeSet<Waiter>();
+
+    /**
+     * Creates a scheduler.
+     * @param maxRunning Messages running at the same time.
+     * @param maxQueued  Messages waiting at the same time.
+     */
+    public FairScheduler(final int maxRunning, final int maxQueued) {
+        this.maxRunning = maxRunning;
+        this.maxQueued = maxQueued;
+    }
+
+    /**
+     * Waits for a slot, in weighted fair order.
+     * @param sender        Sender of the message.
+     * @param weight        Weight of the sender.
+     * @param timeoutMillis Longest wait.
+     * @return true if the message can run, false if it was shed or timed
+     *         out; release must be called after a message ran.
+     */
+    public synchronized boolean acquire(final String sender, final double weight,
+                                        final long timeoutMillis) {
+        if (running < maxRunning && queue.isEmpty()) {
+            running++;
+            return true;
+        }
+
+        Double last = finishTags.get(sender);
+        double start = (last != null && last.doubleValue() > virtualTime)
+                ? last.doubleValue() : virtualTime;
+        Waiter waiter = new Waiter(start, start + 1.0 / weight, sequence++);
+
+        if (queue.size() >= maxQueued) {
+            if (queue.isEmpty() || queue.last().compareTo(waiter) < 0) {
+                return false;
+            }
+            Waiter latest = queue.pollLast();
+            latest.state = SHED;
+            notifyAll();
+        }
+        finishTags.put(sender, Double.valueOf(waiter.finish));
+        queue.add(waiter);
+
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        try {
+            while (waiter.state == WAITING) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    queue.remove(waiter);
+                    return false;
+                }
+                wait(remaining);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            if (waiter.state == ADMITTED) {
+                release();
+            } else {
+                queue.remove(waiter);
+            }
+            return false;
+        }
+        return waiter.state == ADMITTED;
+    }
+
+    /**
+     * Frees the slot of a message that ran, admitting the next waiting one.
+     */
+    public synchronized void release() {
+        running--;
+        while (running < maxRunning && !queue.isEmpty()) {
+            Waiter next = queue.pollFirst();
+            virtualTime = next.start;
+            next.state = ADMITTED;
+            running++;
+        }
+        if (queue.isEmpty()) {
+            finishTags.clear();
+            virtualTime = 0;
+        }
+        notifyAll();
+    }
+
+    /**
+     * @return the number of waiting messages.
+     */
+    public synchronized int getQueued() {
+        return queue.size();
+    }
+
+    /**
+     * A waiting message.
+     */
+    private static final class Waiter implements Comparable<Waiter> {
+
+        private final double start;
+
+        private final double finish;
+
+        private final long sequence;
+
+        private int state = WAITING;
+
+        Waiter(double start, double finish, long sequence) {
+            this.start = start;
+            this.finish = finish;
+            this.sequence = sequence;
+        }
+
+        public int compareTo(Waiter other) {
+            if (finish != other.finish) {
+                return (finish < other.finish) ? -1 : 1;
+            }
+            return (sequence < other.sequence) ? -1 : ((sequence > other.sequence) ? 1 : 0);
+        }
+    }
+}
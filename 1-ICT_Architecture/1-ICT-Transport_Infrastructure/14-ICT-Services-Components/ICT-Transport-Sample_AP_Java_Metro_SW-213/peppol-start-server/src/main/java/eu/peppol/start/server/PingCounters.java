@@ -0,0 +1,141 @@
+/*
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package eu.peppol.start.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of the ping messages received, with a per-second budget so
+ * that ping traffic is answered cheaply and cannot take the capacity
+ * meant for business documents.
+ */
+public final class PingCounters {
+
+    /**
+     * Maximum pings answered per second; 0 for no limit.
+     */
+    private final long maxPerSecond;
+
+    /**
+     * Second of the current budget.
+     */
+    private final AtomicLong currentSecond = new AtomicLong();
+
+    /**
+     * Pings received in the current second.
+     */
+    private final AtomicLong inCurrentSecond = new AtomicLong();
+
+    /**
+     * Pings answered.
+     */
+    private final AtomicLong accepted = new AtomicLong();
+
+    /**
+     * Pings rejected for exceeding the budget.
+     */
+    private final AtomicLong throttled = new AtomicLong();
+
+    /**
+     * Messages with some, but not all, of the ping identifiers.
+     */
+    private final AtomicLong invalid = new AtomicLong();
+
+    /**
+     * Creates the counters.
+     * @param maxPerSecond Maximum pings answered per second; 0 for no limit.
+     */
+    public PingCounters(final long maxPerSecond) {
+        this.maxPerSecond = maxPerSecond;
+    }
+
+    /**
+     * Counts a ping and checks it against the budget of the current second.
+     * @return true if the ping can be answered.
+     */
+    public boolean tryAcquire() {
+        if (maxPerSecond > 0) {
+            long second = System.currentTimeMillis() / 1000L;
+            long current = currentSecond.get();
+            if (second != current && currentSecond.compareAndSet(current, second)) {
+                inCurrentSecond.set(0);
+            }
+            if (inCurrentSecond.incrementAndGet() > maxPerSecond) {
+                throttled.incrementAndGet();
+                return false;
+            }
+        }
+        accepted.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Counts a message with some, but not all, of the ping identifiers.
+     */
+    public void recordInvalid() {
+        invalid.incrementAndGet();
+    }
+
+    /**
+     * @return the number of pings answered.
+     */
+    public long getAccepted() {
+        return accepted.get();
+    }
+
+    /**
+     * @return the number of pings rejected for exceeding the budget.
+     */
+    public long getThrottled() {
+        return throttled.get();
+    }
+
+    /**
+     * @return the number of invalid ping messages.
+     */
+    public long getInvalid() {
+        return invalid.get();
+    }
+
+    @Override
+    public String toString() {
+        return "Pings accepted: " + accepted.get()
+                + ", throttled: " + throttled.get()
+                + ", invalid: " + invalid.get();
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package eu.peppol.start.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free token bucket, kept as the theoretical arrival time of the
+ * next message (the generic cell rate algorithm) in a single AtomicLong.
+ * <p>
+ * A message conforms while the arrival time is less than the burst
+ * tolerance ahead of now; taking a token moves it one interval forward.
+ * A caller can also reserve a token up to a maximum wait, and sleep for
+ * the returned delay, which queues the excess messages of a sender at the
+ * configured rate.
+ */
+public final class TokenBucket {
+
+    /**
+     * Nanoseconds between two tokens.
+     */
+    private final long intervalNanos;
+
+    /**
+     * How far ahead of now the arrival time can go, for the burst.
+     */
+    private final long toleranceNanos;
+
+    /**
+     * Theoretical arrival time of the next message, in System.nanoTime units.
+     */
+    private final AtomicLong arrivalTime;
+
+    /**
+     * Creates a full bucket.
+     * @param ratePerSecond Tokens added per second.
+     * @param burst         Capacity of the bucket.
+     */
+    public TokenBucket(final double ratePerSecond, final int burst) {
+        this(ratePerSecond, burst, System.nanoTime());
+    }
+
+    /**
+     * Creates a bucket full at a given time.
+     * @param ratePerSecond Tokens added per second.
+     * @param burst         Capacity of the bucket.
+     * @param now           Current time in nanoseconds.
+     */
+    TokenBucket(final double ratePerSecond, final int burst, final long now) {
+        if (ratePerSecond <= 0 || burst < 1) {
+            throw new IllegalArgumentException("Invalid token bucket: rate "
+                    + ratePerSecond + ", burst " + burst);
+        }
+        this.intervalNanos = Math.max(1L, (long) (1000000000L / ratePerSecond));
+        this.toleranceNanos = intervalNanos * (burst - 1);
+        this.arrivalTime = new AtomicLong(now);
+    }
+
+    /**
+     * Takes a token if one is available now.
+     * @return true if the token was taken.
+     */
+    public boolean tryAcquire() {
+        return reserve(System.nanoTime(), 0L) == 0L;
+    }
+
+    /**
+     * Reserves a token available within a maximum wait.
+     * @param now          Current time in nanoseconds.
+     * @param maxWaitNanos Longest wait accepted.
+     * @return nanoseconds to wait before using the token, or -1 if none is
+     *         available within the maximum wait.
+     */
+    public long reserve(final long now, final long maxWaitNanos) {
+        while (true) {
+            long current = arrivalTime.get();
+            long delay = current - now - toleranceNanos;
+            if (delay < 0) {
+                delay = 0;
+            }
+            if (delay > maxWaitNanos) {
+                return -1L;
+            }
+            long next = ((current - now > 0) ? current : now) + intervalNanos;
+            if (arrivalTime.compareAndSet(current, next)) {
+                return delay;
+            }
+        }
+    }
+
+    /**
+     * Gives back a reserved token that was not used.
+     */
+    public void cancel() {
+        arrivalTime.addAndGet(-intervalNanos);
+    }
+}
@@ -38,18 +38,19 @@
 package eu.peppol.start.server;
 
 import com.sun.xml.ws.rx.mc.api.MakeConnectionSupported;
+import eu.peppol.start.interceptors.TransportHeaderTubeFactory;
 import eu.peppol.start.exception.PingMessageException;
 import eu.peppol.start.exception.TransportException;
-import javax.jws.HandlerChain;
 import javax.jws.WebService;
 import javax.servlet.ServletContext;
+import javax.xml.transform.Source;
+import javax.xml.transform.dom.DOMSource;
 import javax.xml.ws.BindingType;
 import javax.xml.ws.WebServiceContext;
 import javax.xml.ws.handler.MessageContext;
 import javax.xml.ws.soap.Addressing;
 import org.w3._2009._02.ws_tra.Create;
 import org.w3._2009._02.ws_tra.CreateResponse;
-import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 
 import eu.peppol.start.metadata.MessageMetadata;
@@ -64,6 +65,9 @@ import java.util.logging.Logger;
 import javax.xml.ws.Action;
 import javax.xml.ws.FaultAction;
 import org.busdox._2010._02.channel.fault.StartException;
+import org.busdox.servicemetadata.types.DocumentIdentifierType;
+import org.busdox.servicemetadata.types.ParticipantIdentifierType;
+import org.busdox.servicemetadata.types.ProcessIdentifierType;
 import org.busdox.transport.Identifiers.Identifiers;
 import org.w3._2009._02.ws_tra.FaultMessage;
 
@@ -81,7 +85,6 @@ endpointInterface = "org.w3._2009._02.ws_tra.Resource",
 targetNamespace = "http://www.w3.org/2009/02/ws-tra",
 wsdlLocation = "WEB-INF/wsdl/peppol-start-2.0.wsdl")
 @BindingType(value = javax.xml.ws.soap.SOAPBinding.SOAP11HTTP_BINDING)
-@HandlerChain(file = "soap-handlers.xml")
 @Addressing
 @MakeConnectionSupported
 public class accessPointService {
@@ -92,16 +95,41 @@ public class accessPointService {
     private static Configuration conf;
     
     /**
-     * Context of the Web Service.
+     * Context of the Web Service, resolved per exchange by the container.
      */
     @javax.annotation.Resource
-    private static WebServiceContext webServiceContext;
+    private WebServiceContext webServiceContext;
     /**
      * Logger to follow this class behavior.
      */
     private static org.apache.log4j.Logger logger4J =
             org.apache.log4j.Logger.getLogger(accessPointService.class);
 
+    /**
+     * Number of identifiers compared to recognize a ping.
+     */
+    private static final int PING_IDENTIFIERS = 7;
+
+    /**
+     * Counters and budget of the ping messages.
+     */
+    private static final PingCounters PING_COUNTERS = createPingCounters();
+
+    /**
+     * Rate limits and fair queue of the business documents.
+     */
+    private static final AdmissionControl ADMISSION = new AdmissionControl();
+
+    /**
+     * Fault of the messages refused by the admission control.
+     */
+    private static final String FAULT_CHANNEL_FULL = "channelfull";
+
+    /**
+     * Fault of the other errors.
+     */
+    private static final String FAULT_SERVER_ERROR = "servererror";
+
     /**
      * Constructor of the service in which configuration loader is initialized
      * to retrieve properties from config files.
@@ -110,6 +138,12 @@ public class accessPointService {
         conf = Configuration.getInstance();        
     }
 
+    private static PingCounters createPingCounters() {
+        String max = Configuration.getInstance().getProperty("ping.max.per.second");
+        return new PingCounters((max != null && max.trim().length() > 0)
+                ? Long.parseLong(max.trim()) : 0L);
+    }
+
     public org.w3._2009._02.ws_tra.GetResponse get(org.w3._2009._02.ws_tra.Get body) {
         throw new UnsupportedOperationException("Not supported by the current implementation according to the specifications");
     }
@@ -137,139 +171,219 @@ public class accessPointService {
     public org.w3._2009._02.ws_tra.CreateResponse create(org.w3._2009._02.ws_tra.Create body)
             throws FaultMessage {
 
-        SOAPHeaderObject soapHeader = SOAPInboundHandler.SOAPHEADER;
+        SOAPHeaderObject soapHeader =
+                SOAPInboundHandler.getSoapHeader(webServiceContext.getMessageContext());
+        String missingHeaders = getMissingHeaders(soapHeader);
 
         try {
-            //Check if it is a Ping Message
-            if (!isPingMessage(soapHeader)) {
-
-                MessageMetadata metadata = new MessageMetadata(soapHeader);
-                
-                logger4J.info("Store Incoming Message: " + metadata.getRecipientValue());
-                try {
-                    storeMessage(metadata, body);
-                } catch (TransportException ex) {
-                    logger4J.error(ex.getMessage(), ex);
-                    Logger.getLogger(accessPointService.class.getName()).log(Level.SEVERE, ex.getMessage());
-
-                    StartException startEx = new StartException();
-                    startEx.setAction(conf.getProperty("fault.action"));
-                    startEx.setDetails(conf.getProperty("fault.servererror.detail"));
-                    startEx.setFaultcode(conf.getProperty("fault.code"));
-                    startEx.setFaultstring(conf.getProperty("fault.servererror.reason"));
-
-                    throw new FaultMessage(ex.getMessage(), startEx);
+            //Ping messages are answered without storage nor info logging
+            if (isPingMessage(soapHeader)) {
+                if (!PING_COUNTERS.tryAcquire()) {
+                    logger4J.debug("Ping rejected, " + PING_COUNTERS);
+                    throw createFault("Ping rate exceeded");
                 }
-                                
-                logger4J.info("Transaction Complete:"
-                        + "\n\tSender: " + metadata.getSenderValue()
-                        + "\n\tRecipient: " + metadata.getRecipientValue()
-                        + "\n\tDocument: " + metadata.getDocumentIdValue());
+                return new CreateResponse();
+            }
+            if (missingHeaders.length() > 0) {
+                logger4J.warn("Message refused, missing headers:" + missingHeaders);
+                throw createFault(conf.getProperty("error.message.server.headers")
+                        + missingHeaders);
+            }
+
+            MessageMetadata metadata = new MessageMetadata(soapHeader);
+
+            if (!ADMISSION.admit(metadata.getSenderScheme(), metadata.getSenderValue(),
+                    metadata.getRecipientScheme(), metadata.getRecipientValue())) {
+                logger4J.warn("Message refused from " + metadata.getSenderValue()
+                        + " to " + metadata.getRecipientValue() + ", " + ADMISSION);
+                throw createFault(conf.getProperty("fault.channelfull.reason"), FAULT_CHANNEL_FULL);
             }
-        } catch (PingMessageException ex) {
-            StartException startEx = new StartException();
-            startEx.setAction(conf.getProperty("fault.action"));
-            startEx.setDetails(conf.getProperty("fault.servererror.detail"));
-            startEx.setFaultcode(conf.getProperty("fault.code"));
-            startEx.setFaultstring(conf.getProperty("fault.servererror.reason"));
 
-            throw new FaultMessage(ex.getMessage(), startEx);
+            logger4J.info("Store Incoming Message: " + metadata.getRecipientValue());
+            try {
+                storeMessage(metadata, body);
+            } catch (TransportException ex) {
+                logger4J.error(ex.getMessage(), ex);
+                Logger.getLogger(accessPointService.class.getName()).log(Level.SEVERE, ex.getMessage());
+
+                throw createFault(ex.getMessage());
+            } finally {
+                ADMISSION.release();
+            }
+
+            logger4J.info("Transaction Complete:"
+                    + "\n\tSender: " + metadata.getSenderValue()
+                    + "\n\tRecipient: " + metadata.getRecipientValue()
+                    + "\n\tDocument: " + metadata.getDocumentIdValue());
+        } catch (PingMessageException ex) {
+            throw createFault(ex.getMessage());
         }
         return new CreateResponse();
     }
 
+    /**
+     * Returns the counters of the ping messages.
+     * @return the ping counters.
+     */
+    public static PingCounters getPingCounters() {
+        return PING_COUNTERS;
+    }
+
+    /**
+     * Returns the admission control of the business documents.
+     * @return the admission control.
+     */
+    public static AdmissionControl getAdmissionControl() {
+        return ADMISSION;
+    }
+
+    /**
+     * Builds the server error fault.
+     * @param message description of the error.
+     * @return the FaultMessage.
+     */
+    private FaultMessage createFault(String message) {
+        return createFault(message, FAULT_SERVER_ERROR);
+    }
+
+    /**
+     * Builds a fault from its fault.&lt;fault&gt;.* properties.
+     * @param message description of the error.
+     * @param fault name of the fault in the properties.
+     * @return the FaultMessage.
+     */
+    private FaultMessage createFault(String message, String fault) {
+        StartException startEx = new StartException();
+        startEx.setAction(conf.getProperty("fault.action"));
+        startEx.setDetails(conf.getProperty("fault." + fault + ".detail"));
+        startEx.setFaultcode(conf.getProperty("fault.code"));
+        startEx.setFaultstring(conf.getProperty("fault." + fault + ".reason"));
+
+        return new FaultMessage(message, startEx);
+    }
+
+    /**
+     * Lists the participant, document and process headers missing from a
+     * request, which the message metadata cannot be built without.
+     * @param header the SOAP header as part of the envelope, or null.
+     * @return the names of the missing headers, or an empty string.
+     */
+    private static String getMissingHeaders(SOAPHeaderObject header) {
+        StringBuffer missing = new StringBuffer();
+        if (header == null || header.getSenderIdentifier() == null) {
+            missing.append(' ').append(Identifiers.SENDERID);
+        }
+        if (header == null || header.getRecipientIdentifier() == null) {
+            missing.append(' ').append(Identifiers.RECIPIENTID);
+        }
+        if (header == null || header.getDocumentIdentifier() == null) {
+            missing.append(' ').append(Identifiers.DOCUMENTID);
+        }
+        if (header == null || header.getProcessIdentifier() == null) {
+            missing.append(' ').append(Identifiers.PROCESSID);
+        }
+        return missing.toString();
+    }
+
     /**
      * Validates if the operation is a ping and not a sending process.
+     * Only the seven ping identifiers are compared, without allocation;
+     * the error description is built only for an invalid ping.
      * @param header which is the SOAP header as part of the envelope.
      * @return true if is a ping, false if it is another process.
      */
     private boolean isPingMessage(SOAPHeaderObject header) {
 
-        boolean looksLikePingMessage = false;
-        boolean pingProtocolCheck = true;
-        StringBuffer headerErrors = new StringBuffer();
+        if (header == null) {
+            return false;
+        }
+        int matches = countPingIdentifiers(header);
+        if (matches == PING_IDENTIFIERS) {
+            return true;
+        }
+        if (matches == 0) {
+            return false;
+        }
 
-        if (header.getSenderIdentifier() != null
-                && header.getSenderIdentifier().getScheme() != null
-                && header.getSenderIdentifier().getScheme().equals(Identifiers.PING_SENDER_SCHEME)) {
-            looksLikePingMessage = true;
+        PING_COUNTERS.recordInvalid();
+        StringBuffer headerErrors = new StringBuffer();
+        ParticipantIdentifierType sender = header.getSenderIdentifier();
+        ParticipantIdentifierType recipient = header.getRecipientIdentifier();
+        DocumentIdentifierType document = header.getDocumentIdentifier();
+        ProcessIdentifierType process = header.getProcessIdentifier();
 
-        } else {
-            pingProtocolCheck = false;
+        if (sender == null || !Identifiers.PING_SENDER_SCHEME.equals(sender.getScheme())) {
             headerErrors.append(" Sender scheme invalid.");
         }
-
-        if (header.getSenderIdentifier() != null
-                && header.getSenderIdentifier().getValue() != null
-                && header.getSenderIdentifier().getValue().equals(Identifiers.PING_SENDER_VALUE)) {
-            looksLikePingMessage = true;
-
-        } else {
-            pingProtocolCheck = false;
+        if (sender == null || !Identifiers.PING_SENDER_VALUE.equals(sender.getValue())) {
             headerErrors.append("Sender id invalid.");
         }
-
-        if (header.getRecipientIdentifier() != null
-                && header.getRecipientIdentifier().getScheme() != null
-                && header.getRecipientIdentifier().getScheme().equals(Identifiers.PING_RECPIENT_SCHEME)) {
-            looksLikePingMessage = true;
-
-        } else {
-            pingProtocolCheck = false;
+        if (recipient == null || !Identifiers.PING_RECPIENT_SCHEME.equals(recipient.getScheme())) {
             headerErrors.append("Recipient sheme invalid.");
         }
-
-        if (header.getRecipientIdentifier() != null
-                && header.getRecipientIdentifier().getValue() != null
-                && header.getRecipientIdentifier().getValue().equals(Identifiers.PING_RECIPIENT_VALUE)) {
-            looksLikePingMessage = true;
-
-        } else {
-            pingProtocolCheck = false;
+        if (recipient == null || !Identifiers.PING_RECIPIENT_VALUE.equals(recipient.getValue())) {
             headerErrors.append(" Recipient id invalid.");
         }
-
-        if (header.getDocumentIdentifier() != null
-                && header.getDocumentIdentifier().getValue() != null
-                && header.getDocumentIdentifier().getValue().equals(Identifiers.PING_DOCUMENT_VALUE)) {
-            looksLikePingMessage = true;
-
-        } else {
-            pingProtocolCheck = false;
+        if (document == null || !Identifiers.PING_DOCUMENT_VALUE.equals(document.getValue())) {
             headerErrors.append(" Document value invalid.");
         }
-
-        if (header.getProcessIdentifier() != null
-                && header.getProcessIdentifier().getScheme() != null
-                && header.getProcessIdentifier().getScheme().equals(Identifiers.PING_PROCESS_SCHEME)) {
-            looksLikePingMessage = true;
-
-        } else {
-            pingProtocolCheck = false;
+        if (process == null || !Identifiers.PING_PROCESS_SCHEME.equals(process.getScheme())) {
             headerErrors.append(" Process scheme invalid.");
         }
-
-        if (header.getProcessIdentifier() != null
-                && header.getProcessIdentifier().getValue() != null
-                && header.getProcessIdentifier().getValue().equals(Identifiers.PING_PROCESS_VALUE)) {
-            looksLikePingMessage = true;
-
-        } else {
-            pingProtocolCheck = false;
+        if (process == null || !Identifiers.PING_PROCESS_VALUE.equals(process.getValue())) {
             headerErrors.append(" Process value invalid.");
         }
 
-        if (looksLikePingMessage && !pingProtocolCheck) {
-            String errorMSG = conf.getProperty("error.message.server.ping");
-            throw new PingMessageException(errorMSG + headerErrors.toString());
+        String errorMSG = conf.getProperty("error.message.server.ping");
+        throw new PingMessageException(errorMSG + headerErrors.toString());
+    }
+
+    /**
+     * Counts the ping identifiers present in a header.
+     * @param header which is the SOAP header as part of the envelope.
+     * @return number of matching identifiers, from 0 to PING_IDENTIFIERS.
+     */
+    private static int countPingIdentifiers(SOAPHeaderObject header) {
+        int matches = 0;
+
+        ParticipantIdentifierType sender = header.getSenderIdentifier();
+        if (sender != null) {
+            if (Identifiers.PING_SENDER_SCHEME.equals(sender.getScheme())) {
+                matches++;
+            }
+            if (Identifiers.PING_SENDER_VALUE.equals(sender.getValue())) {
+                matches++;
+            }
         }
-        logger4J.info("looksLikePingMessage: " + looksLikePingMessage);
-        logger4J.info("pingProtocolCheck: " + pingProtocolCheck);
-        return looksLikePingMessage;
+        ParticipantIdentifierType recipient = header.getRecipientIdentifier();
+        if (recipient != null) {
+            if (Identifiers.PING_RECPIENT_SCHEME.equals(recipient.getScheme())) {
+                matches++;
+            }
+            if (Identifiers.PING_RECIPIENT_VALUE.equals(recipient.getValue())) {
+                matches++;
+            }
+        }
+        DocumentIdentifierType document = header.getDocumentIdentifier();
+        if (document != null && Identifiers.PING_DOCUMENT_VALUE.equals(document.getValue())) {
+            matches++;
+        }
+        ProcessIdentifierType process = header.getProcessIdentifier();
+        if (process != null) {
+            if (Identifiers.PING_PROCESS_SCHEME.equals(process.getScheme())) {
+                matches++;
+            }
+            if (Identifiers.PING_PROCESS_VALUE.equals(process.getValue())) {
+                matches++;
+            }
+        }
+        return matches;
     }
 
     /**
-     * Storing Message in AP.
+     * Storing Message in AP. The document streamed by TransportHeaderTube is
+     * stored straight from the request; the document unmarshalled in the
+     * body is stored otherwise.
      * @param metadata which contains data of identifiers.
      * @param body which contains document and binary data.
      */
@@ -282,16 +396,22 @@ public class accessPointService {
             metadata.setChannelId(channelId);
         }
 
+        MessageContext messageContext = webServiceContext.getMessageContext();
+        ServletContext context = (ServletContext) messageContext.get(MessageContext.SERVLET_CONTEXT);
+        Source payload = (Source) messageContext.get(TransportHeaderTubeFactory.PAYLOAD_PROPERTY);
+
+        if (payload != null) {
+            new ReceiverChannel().deliverMessage(context, metadata, payload);
+            return;
+        }
+
         List< Object> objects = body.getAny();
 
         if (objects != null && objects.size() == 1) {
             Element element = (Element) objects.iterator().next();
-            Document businessDocument = element.getOwnerDocument();
-
-            ServletContext context = (ServletContext) webServiceContext.getMessageContext().get(MessageContext.SERVLET_CONTEXT);
 
             ReceiverChannel receiverChannel = new ReceiverChannel();
-            receiverChannel.deliverMessage(context, metadata, businessDocument);
+            receiverChannel.deliverMessage(context, metadata, new DOMSource(element));
         }
     }
     
@@ -41,6 +41,7 @@ import eu.peppol.start.exception.DocumentTypeNotAcceptedException;
 import eu.peppol.start.exception.LookupException;
 import eu.peppol.start.exception.UnknownEndpointException;
 import eu.peppol.start.util.Configuration;
+import eu.peppol.start.util.JAXBContextRegistry;
 import eu.peppol.start.util.Util;
 import java.io.BufferedReader;
 import java.io.IOException;
@@ -306,9 +307,14 @@ public class SMLLookup {
 
         ServiceMetadataType metaType = null;
         try {
-            Unmarshaller unmarshaller = JAXBContext.newInstance(SignedServiceMetadataType.class).createUnmarshaller();
-            JAXBElement<SignedServiceMetadataType> root = unmarshaller.unmarshal(document, SignedServiceMetadataType.class);
-            metaType = root.getValue().getServiceMetadata();
+            JAXBContext context = JAXBContextRegistry.getContext(SignedServiceMetadataType.class);
+            Unmarshaller unmarshaller = JAXBContextRegistry.acquireUnmarshaller(context);
+            try {
+                JAXBElement<SignedServiceMetadataType> root = unmarshaller.unmarshal(document, SignedServiceMetadataType.class);
+                metaType = root.getValue().getServiceMetadata();
+            } finally {
+                JAXBContextRegistry.releaseUnmarshaller(context, unmarshaller);
+            }
         } catch (JAXBException ex) {
             Logger.getLogger(SMLLookup.class.getName()).log(Level.SEVERE, ex.getMessage());
             logger4J.error(ex.getMessage(), ex);
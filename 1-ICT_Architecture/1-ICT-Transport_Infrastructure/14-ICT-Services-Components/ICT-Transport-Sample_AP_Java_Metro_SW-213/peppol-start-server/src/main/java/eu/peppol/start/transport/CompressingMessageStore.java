@@ -0,0 +1,411 @@
+/*
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package eu.peppol.start.transport;
+
+import eu.peppol.start.util.Configuration;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * MessageStore compressing the metadata and the payload of the messages
+ * kept by another store.
+ * <p>
+ * Each compressed entry is framed as a magic number, the name of the codec,
+ * the compressed data and the uncompressed length as a trailing long. The
+ * content is compressed while it is streamed to the store. Entries
+ * without the magic number, stored before compression was enabled, are
+ * read as they are.
+ * <p>
+ * Only the registered codecs are used to read: deflate, the codec of
+ * inbox.compression and the PayloadCodec classes listed in
+ * inbox.compression.codecs. An entry naming another codec is refused, so
+ * the stored bytes never choose a class to load.
+ */
+public class CompressingMessageStore implements MessageStore {
+
+    /**
+     * Magic number of a compressed entry. XML never starts with 0x89.
+     */
+    static final byte[] MAGIC = {(byte) 0x89, 'P', 'Z', 1};
+
+    /**
+     * Length of the trailer holding the uncompressed length.
+     */
+    private static final int TRAILER_LENGTH = 8;
+
+    /**
+     * Size of the buffer used when copying decompressed payloads.
+     */
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Logger to follow this class behavior.
+     */
+    private static org.apache.log4j.Logger logger =
+            org.apache.log4j.Logger.getLogger(CompressingMessageStore.class);
+
+    /**
+     * Registered codecs by name.
+     */
+    private static final Map<String, PayloadCodec> CODECS =
+            new ConcurrentHashMap<String, PayloadCodec>();
+
+    static {
+        CODECS.put(DeflateCodec.NAME, new DeflateCodec());
+        Configuration conf = Configuration.getInstance();
+        registerCodecs(conf.getProperty("inbox.compression"));
+        registerCodecs(conf.getProperty("inbox.compression.codecs"));
+    }
+
+    /**
+     * Store holding the compressed entries.
+     */
+    private final MessageStore backend;
+
+    /**
+     * Codec of the new entries.
+     */
+    private final PayloadCodec codec;
+
+    /**
+     * Creates a store compressing into another one.
+     * @param backend   Store holding the compressed entries.
+     * @param codec     Codec of the new entries.
+     */
+    public CompressingMessageStore(MessageStore backend, PayloadCodec codec) {
+        this.backend = backend;
+        this.codec = codec;
+    }
+
+    /**
+     * Returns a registered codec: "deflate" or the class name of a
+     * PayloadCodec configured in inbox.compression or
+     * inbox.compression.codecs.
+     * @param name  Name of the codec.
+     * @return the codec.
+     * @throws IOException if no codec of that name is registered.
+     */
+    public static PayloadCodec getCodec(String name) throws IOException {
+        PayloadCodec codec = CODECS.get(name);
+        if (codec == null) {
+            throw new IOException("Payload codec not registered: " + name);
+        }
+        return codec;
+    }
+
+    /**
+     * Registers the PayloadCodec classes of a comma separated list; "none"
+     * and "deflate" are skipped.
+     */
+    private static void registerCodecs(String classNames) {
+        if (classNames == null) {
+            return;
+        }
+        for (String className : classNames.split(",")) {
+            className = className.trim();
+            if (className.length() == 0 || CODECS.containsKey(className)
+                    || TransportChannel.COMPRESSION_NONE.equalsIgnoreCase(className)
+                    || DeflateCodec.NAME.equalsIgnoreCase(className)) {
+                continue;
+            }
+            try {
+                PayloadCodec codec = (PayloadCodec) Class.forName(className).newInstance();
+                CODECS.put(codec.getName(), codec);
+            } catch (Exception ex) {
+                logger.error("Payload codec not registered: " + className, ex);
+            }
+        }
+    }
+
+    public void save(String channelID, String messageID, Content metadata, Content payload)
+            throws Exception {
+        backend.save(channelID, messageID, compressed(metadata), compressed(payload));
+    }
+
+    public InputStream openMetadata(String channelID, String messageID) throws Exception {
+        return decompressed(backend.openMetadata(channelID, messageID));
+    }
+
+    public InputStream openPayload(String channelID, String messageID) throws Exception {
+        return decompressed(backend.openPayload(channelID, messageID));
+    }
+
+    /**
+     * Maps an uncompressed Payload from the backend; a compressed one is
+     * decompressed into a read-only heap buffer.
+     */
+    public ByteBuffer mapPayload(String channelID, String messageID) throws Exception {
+        if (!isCompressed(channelID, messageID)) {
+            return backend.mapPayload(channelID, messageID);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(
+                (int) Math.min(Integer.MAX_VALUE, getPayloadLength(channelID, messageID)));
+        InputStream in = openPayload(channelID, messageID);
+        try {
+            copy(in, out);
+        } finally {
+            in.close();
+        }
+        return ByteBuffer.wrap(out.toByteArray()).asReadOnlyBuffer();
+    }
+
+    /**
+     * Transfers an uncompressed Payload through the backend; a compressed
+     * one is decompressed on the way.
+     */
+    public long transferPayload(String channelID, String messageID, WritableByteChannel target)
+            throws Exception {
+        if (!isCompressed(channelID, messageID)) {
+            return backend.transferPayload(channelID, messageID, target);
+        }
+        InputStream in = openPayload(channelID, messageID);
+        try {
+            long count = 0;
+            byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, n);
+                while (chunk.hasRemaining()) {
+                    target.write(chunk);
+                }
+                count += n;
+            }
+            return count;
+        } finally {
+            in.close();
+        }
+    }
+
+    public boolean delete(String channelID, String messageID) throws Exception {
+        return backend.delete(channelID, messageID);
+    }
+
+    public List<String> getMessageIDs(String channelID) throws Exception {
+        return backend.getMessageIDs(channelID);
+    }
+
+    /**
+     * Returns the uncompressed length of the Payload, read from the
+     * trailer of the entry.
+     */
+    public long getPayloadLength(String channelID, String messageID) throws Exception {
+
+        long storedLength = backend.getPayloadLength(channelID, messageID);
+        if (storedLength < MAGIC.length + TRAILER_LENGTH) {
+            return storedLength;
+        }
+        DataInputStream in = new DataInputStream(backend.openPayload(channelID, messageID));
+        try {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!isMagic(magic)) {
+                return storedLength;
+            }
+            skipFully(in, storedLength - MAGIC.length - TRAILER_LENGTH);
+            return in.readLong();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Returns the length of the Payload as kept by the backend.
+     * @param channelID ID of the Channel.
+     * @param messageID ID of the Message.
+     * @return stored length in bytes.
+     * @throws Exception if the message cannot be read.
+     */
+    public long getStoredPayloadLength(String channelID, String messageID) throws Exception {
+        return backend.getPayloadLength(channelID, messageID);
+    }
+
+    public long getCreationTime(String channelID, String messageID) throws Exception {
+        return backend.getCreationTime(channelID, messageID);
+    }
+
+    /**
+     * Wraps a content so that it is compressed while written.
+     */
+    private Content compressed(final Content content) {
+        return new Content() {
+
+            public void writeTo(OutputStream out) throws Exception {
+                DataOutputStream header = new DataOutputStream(out);
+                header.write(MAGIC);
+                header.writeUTF(codec.getName());
+                header.flush();
+
+                CountingOutputStream counter =
+                        new CountingOutputStream(codec.compress(new UnclosableOutputStream(out)));
+                try {
+                    content.writeTo(counter);
+                } finally {
+                    counter.close();
+                }
+
+                header.writeLong(counter.count);
+                header.flush();
+            }
+        };
+    }
+
+    /**
+     * Wraps a stored entry so that it is read uncompressed.
+     */
+    private static InputStream decompressed(InputStream stored) throws Exception {
+        PushbackInputStream in = new PushbackInputStream(stored, MAGIC.length);
+        byte[] magic = new byte[MAGIC.length];
+        int n = readMagic(in, magic);
+        if (n < magic.length || !isMagic(magic)) {
+            in.unread(magic, 0, n);
+            return in;
+        }
+        String name = new DataInputStream(in).readUTF();
+        return getCodec(name).decompress(in);
+    }
+
+    /**
+     * Checks if the Payload of a message was stored compressed.
+     */
+    private boolean isCompressed(String channelID, String messageID) throws Exception {
+        InputStream in = backend.openPayload(channelID, messageID);
+        try {
+            byte[] magic = new byte[MAGIC.length];
+            return readMagic(in, magic) == magic.length && isMagic(magic);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+    }
+
+    /**
+     * Reads the first bytes of an entry, fewer if the entry is shorter.
+     */
+    private static int readMagic(InputStream in, byte[] magic) throws IOException {
+        int n = 0;
+        int read;
+        while (n < magic.length && (read = in.read(magic, n, magic.length - n)) != -1) {
+            n += read;
+        }
+        return n;
+    }
+
+    private static boolean isMagic(byte[] bytes) {
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (bytes[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void skipFully(InputStream in, long count) throws IOException {
+        while (count > 0) {
+            long skipped = in.skip(count);
+            if (skipped <= 0) {
+                if (in.read() == -1) {
+                    throw new IOException("Truncated message entry");
+                }
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+    }
+
+    /**
+     * Counts the uncompressed bytes written.
+     */
+    private static final class CountingOutputStream extends FilterOutputStream {
+
+        private long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            out.write(bytes, offset, length);
+            count += length;
+        }
+    }
+
+    /**
+     * Lets the codec finish its stream without closing the store's one.
+     */
+    private static final class UnclosableOutputStream extends FilterOutputStream {
+
+        UnclosableOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            out.write(bytes, offset, length);
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.flush();
+        }
+    }
+}
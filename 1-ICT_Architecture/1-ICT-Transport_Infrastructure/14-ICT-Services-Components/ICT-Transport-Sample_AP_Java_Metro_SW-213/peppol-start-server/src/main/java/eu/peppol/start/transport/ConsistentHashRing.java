@@ -0,0 +1,154 @@
+/*
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package eu.peppol.start.transport;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Consistent hash ring assigning keys to nodes.
+ * <p>
+ * Each node is placed on the ring at a number of points (virtual nodes)
+ * given by the MD5 of its name, and a key belongs to the first node point
+ * at or after the hash of the key. Adding or removing a node only moves
+ * the keys of the ring arcs it takes or gives back. A ring is immutable;
+ * withNode and withoutNode return a new ring.
+ */
+public final class ConsistentHashRing {
+
+    /**
+     * Node names by ring point.
+     */
+    private final TreeMap<Long, String> points = new TreeMap<Long, String>();
+
+    /**
+     * Names of the nodes.
+     */
+    private final Set<String> nodes;
+
+    /**
+     * Points of each node on the ring.
+     */
+    private final int virtualNodes;
+
+    /**
+     * Creates a ring.
+     * @param nodes        Names of the nodes.
+     * @param virtualNodes Points of each node on the ring.
+     */
+    public ConsistentHashRing(final Collection<String> nodes, final int virtualNodes) {
+        if (virtualNodes < 1) {
+            throw new IllegalArgumentException("virtualNodes must be positive: " + virtualNodes);
+        }
+        this.nodes = Collections.unmodifiableSet(new TreeSet<String>(nodes));
+        this.virtualNodes = virtualNodes;
+        for (String node : this.nodes) {
+            for (int i = 0; i < virtualNodes; i++) {
+                points.put(Long.valueOf(hash(node + "#" + i)), node);
+            }
+        }
+    }
+
+    /**
+     * Returns the node a key belongs to.
+     * @param key Key, such as a channel ID.
+     * @return name of the node, or null if the ring has no nodes.
+     */
+    public String getNode(final String key) {
+        if (points.isEmpty()) {
+            return null;
+        }
+        Map.Entry<Long, String> point = points.ceilingEntry(Long.valueOf(hash(key)));
+        return (point != null) ? point.getValue() : points.firstEntry().getValue();
+    }
+
+    /**
+     * Returns the names of the nodes.
+     * @return unmodifiable set of the node names.
+     */
+    public Set<String> getNodes() {
+        return nodes;
+    }
+
+    /**
+     * Returns a ring with one more node.
+     * @param node Name of the node.
+     * @return the new ring.
+     */
+    public ConsistentHashRing withNode(final String node) {
+        Set<String> names = new TreeSet<String>(nodes);
+        names.add(node);
+        return new ConsistentHashRing(names, virtualNodes);
+    }
+
+    /**
+     * Returns a ring without a node.
+     * @param node Name of the node.
+     * @return the new ring.
+     */
+    public ConsistentHashRing withoutNode(final String node) {
+        Set<String> names = new TreeSet<String>(nodes);
+        names.remove(node);
+        return new ConsistentHashRing(names, virtualNodes);
+    }
+
+    /**
+     * Hashes a key to a ring point, the first 8 bytes of its MD5.
+     */
+    static long hash(final String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes("UTF-8"));
+            long hash = 0;
+            for (int i = 0; i < 8; i++) {
+                hash = (hash << 8) | (digest[i] & 0xff);
+            }
+            return hash;
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package eu.peppol.start.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * PayloadCodec using the zlib format of java.util.zip.
+ */
+public class DeflateCodec implements PayloadCodec {
+
+    /**
+     * Name of this codec.
+     */
+    public static final String NAME = "deflate";
+
+    /**
+     * Size of the buffers of the streams.
+     */
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    /**
+     * Compression level, from 0 to 9.
+     */
+    private final int level;
+
+    /**
+     * Creates a codec with the default compression level.
+     */
+    public DeflateCodec() {
+        this(Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * Creates a codec.
+     * @param level Compression level, from 0 to 9.
+     */
+    public DeflateCodec(int level) {
+        this.level = level;
+    }
+
+    public String getName() {
+        return NAME;
+    }
+
+    public OutputStream compress(OutputStream out) throws IOException {
+        final Deflater deflater = new Deflater(level);
+        return new DeflaterOutputStream(out, deflater, BUFFER_SIZE) {
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    deflater.end();
+                }
+            }
+        };
+    }
+
+    public InputStream decompress(InputStream in) throws IOException {
+        final Inflater inflater = new Inflater();
+        return new InflaterInputStream(in, inflater, BUFFER_SIZE) {
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    inflater.end();
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,462 @@
+/*
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package eu.peppol.start.transport;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.IllegalBlockingModeException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * MessageStore keeping each message as a pair of files,
+ * &lt;id&gt;.metadata and &lt;id&gt;.payload, in one directory per channel.
+ */
+public class FileMessageStore implements MessageStore {
+
+    /**
+     * Size of the buffer used when writing message files.
+     */
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Logger to follow this class behavior.
+     */
+    private static org.apache.log4j.Logger logger =
+            org.apache.log4j.Logger.getLogger(FileMessageStore.class);
+
+    /**
+     * Path of the Store.
+     */
+    private final String storePath;
+
+    /**
+     * Forces the message files to disk.
+     */
+    private final GroupCommit durability;
+
+    /**
+     * Set the path of the Store.
+     *
+     * @param storePath Path of the store.
+     */
+    public FileMessageStore(final String storePath) {
+        this(storePath, GroupCommit.getInstance());
+    }
+
+    /**
+     * Set the path of the Store and how the messages are forced to disk.
+     *
+     * @param storePath  Path of the store.
+     * @param durability Forces the message files to disk.
+     */
+    public FileMessageStore(final String storePath, final GroupCommit durability) {
+        this.storePath = storePath;
+        this.durability = durability;
+    }
+
+    public void save(String channelID, String messageID,
+                     Content metadata, Content payload) throws Exception {
+
+        File channelInboxDir = getChannelInboxDir(channelID);
+
+        File metadataFile = getMetadataFile(channelInboxDir, messageID);
+        File payloadFile = getPayloadFile(channelInboxDir, messageID);
+
+        if (!metadataFile.createNewFile()) {
+            Logger.getLogger(FileMessageStore.class.getName()).log(Level.SEVERE,
+                                "Cannot create new metadata file for message ID "
+                                + messageID
+                                + " in inbox for channel "
+                                + channelID);
+            logger.error("Cannot create new metadata file for message ID "
+                                + messageID
+                                + " in inbox for channel "
+                                + channelID);
+            throw new Exception(
+                                "Cannot create new metadata file for message ID "
+                                + messageID
+                                + " in inbox for channel "
+                                + channelID);
+        }
+        if (!payloadFile.createNewFile()) {
+            Logger.getLogger(FileMessageStore.class.getName()).log(Level.SEVERE,
+                                "Cannot create new payload file for message ID "
+                                + messageID
+                                + " in inbox for channel "
+                                + channelID);
+            logger.error("Cannot create new payload file for message ID "
+                                + messageID
+                                + " in inbox for channel "
+                                + channelID);
+            if (!metadataFile.delete()) {
+                logger.debug("Cannot delete metadata file for message ID "
+                                + messageID
+                                + " in inbox for channel "
+                                + channelID);
+            } else {
+                logger.debug("Metadata file deleted: " + metadataFile.getAbsolutePath());
+            }
+            throw new Exception(
+                                "Cannot create new payload file for message ID "
+                                + messageID
+                                + " in inbox for channel "
+                                + channelID);
+        }
+
+        FileOutputStream metadataOut = null;
+        FileOutputStream payloadOut = null;
+        try {
+            metadataOut = writeContentToFile(metadataFile, metadata);
+            logger.info("Metadata created: " + metadataFile.getName());
+            payloadOut = writeContentToFile(payloadFile, payload);
+            logger.info("Payload created: " + payloadFile.getName());
+
+            durability.commit(Arrays.asList(
+                    GroupCommit.forChannel(metadataOut.getChannel()),
+                    GroupCommit.forChannel(payloadOut.getChannel())),
+                    metadataOut.getChannel().size() + payloadOut.getChannel().size());
+            metadataOut.close();
+            payloadOut.close();
+        } catch (Exception ex) {
+            close(metadataOut);
+            close(payloadOut);
+            if (metadataFile.delete()) {
+                logger.debug("Metadata file deleted: " + metadataFile.getAbsolutePath());
+            } else {
+                logger.debug("Cannot delete Metadata file: " + metadataFile.getAbsolutePath());
+            }
+            if (payloadFile.delete()) {
+                logger.debug("Payload file deleted: " + payloadFile.getAbsolutePath());
+            } else {
+                logger.debug("Cannot delete Payload file: " + payloadFile.getAbsolutePath());
+            }
+            throw ex;
+        }
+    }
+
+    public InputStream openMetadata(String channelID, String messageID) throws Exception {
+        File metadataFile = getMetadataFile(getChannelInboxDir(channelID), messageID);
+        return new BufferedInputStream(new FileInputStream(metadataFile));
+    }
+
+    public InputStream openPayload(String channelID, String messageID) throws Exception {
+        File payloadFile = getPayloadFile(getChannelInboxDir(channelID), messageID);
+        return new BufferedInputStream(new FileInputStream(payloadFile));
+    }
+
+    public ByteBuffer mapPayload(String channelID, String messageID) throws Exception {
+        FileInputStream in = new FileInputStream(getPayloadFile(getChannelInboxDir(channelID), messageID));
+        try {
+            FileChannel channel = in.getChannel();
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            in.close();
+        }
+    }
+
+    public long transferPayload(String channelID, String messageID, WritableByteChannel target)
+            throws Exception {
+        FileInputStream in = new FileInputStream(getPayloadFile(getChannelInboxDir(channelID), messageID));
+        try {
+            return transfer(in.getChannel(), 0, in.getChannel().size(), target);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Copies a region of a file to a channel with FileChannel.transferTo,
+     * which the operating system may do without copying to user space.
+     * When transferTo copies nothing, the next chunk is copied through a
+     * buffer instead. The target must be in blocking mode.
+     * @param source    File to copy from.
+     * @param position  Start of the region.
+     * @param count     Length of the region.
+     * @param target    Channel to copy to, in blocking mode.
+     * @return number of bytes copied.
+     * @throws IOException if the region cannot be copied.
+     * @throws IllegalBlockingModeException if the target is non-blocking.
+     */
+    static long transfer(FileChannel source, long position, long count,
+                         WritableByteChannel target) throws IOException {
+        if (target instanceof SelectableChannel && !((SelectableChannel) target).isBlocking()) {
+            throw new IllegalBlockingModeException();
+        }
+        long done = 0;
+        ByteBuffer buffer = null;
+        while (done < count) {
+            long n = source.transferTo(position + done, count - done, target);
+            if (n == 0) {
+                if (buffer == null) {
+                    buffer = ByteBuffer.allocate(8192);
+                }
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), count - done));
+                if (source.read(buffer, position + done) <= 0) {
+                    throw new IOException("Transfer stopped after " + done + " of "
+                            + count + " bytes: end of file");
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    n += target.write(buffer);
+                }
+            }
+            done += n;
+        }
+        return done;
+    }
+
+    public boolean delete(String channelID, String messageID) throws Exception {
+
+        boolean removed = false;
+        File channelInboxDir = getChannelInboxDir(channelID);
+        File metadataFile = getMetadataFile(channelInboxDir, messageID);
+        File payloadFile = getPayloadFile(channelInboxDir, messageID);
+
+        if (metadataFile.exists()) {
+            if (metadataFile.delete()) {
+                removed = true;
+                logger.debug("Metadata file deleted: " + metadataFile.getAbsolutePath());
+            } else {
+                logger.debug("Cannot delete Metadata file: " + metadataFile.getAbsolutePath());
+            }
+        }
+        if (payloadFile.exists()) {
+            if (payloadFile.delete()) {
+                removed = true;
+                logger.debug("Payload file deleted: " + payloadFile.getAbsolutePath());
+            } else {
+                logger.debug("Cannot delete Payload file: " + payloadFile.getAbsolutePath());
+            }
+        }
+        return removed;
+    }
+
+    public List<String> getMessageIDs(String channelID) throws Exception {
+
+        File dir = getChannelInboxDir(channelID);
+        File[] files = dir.listFiles(new FilenameFilter() {
+
+            public boolean accept(final File dir, final String name) {
+                return (name.endsWith(TransportChannel.EXT_PAYLOAD));
+            }
+        });
+
+        List<String> messageIDs = new ArrayList<String>(files.length);
+        for (File payloadFile : files) {
+            messageIDs.add(getMessageIDFromPayloadFile(payloadFile));
+        }
+        return messageIDs;
+    }
+
+    public long getPayloadLength(String channelID, String messageID) throws Exception {
+        return getPayloadFile(getChannelInboxDir(channelID), messageID).length();
+    }
+
+    public long getCreationTime(String channelID, String messageID) throws Exception {
+        return getPayloadFile(getChannelInboxDir(channelID), messageID).lastModified();
+    }
+
+    /**
+     * Returns the message ID of a payload file.
+     * @param payloadFile
+     *              File containing the document data.
+     * @return
+     *          String data type containing the message id.
+     */
+    private String getMessageIDFromPayloadFile(final File payloadFile) {
+
+        String str = payloadFile.getName();
+
+        String messageID =
+                str.substring(
+                0, str.length()
+                - TransportChannel.EXT_PAYLOAD.length());
+
+        messageID = messageID.replace('_', ':');
+        return messageID;
+    }
+
+    /**
+     * Returns a file in binary format containing data of soap header.
+     * @param channelInboxDir
+     *              Represents the path in which message will be saved.
+     * @param messageID
+     *              Represents identifier of the message.
+     * @return
+     *          File complex type containing information of SOAP Header.
+     */
+    protected File getMetadataFile(final File channelInboxDir, String messageID) {
+        File messageDir = getMessageDir(channelInboxDir, messageID);
+        messageID = removeSpecialChars(messageID);
+        return new File(messageDir, messageID + TransportChannel.EXT_METADATA);
+    }
+
+    /**
+     * Returns a file in binary format containing data of document.
+     * @param channelInboxDir
+     *              Represents the path in which message will be saved.
+     * @param messageID
+     *              Represents identifier of the message.
+     * @return
+     *          File complex type containing information of xml document.
+     */
+    protected File getPayloadFile(final File channelInboxDir, String messageID) {
+        File messageDir = getMessageDir(channelInboxDir, messageID);
+        messageID = removeSpecialChars(messageID);
+        File file = new File(messageDir, messageID + TransportChannel.EXT_PAYLOAD);
+
+        return file;
+    }
+
+    /**
+     * Returns the directory holding the files of a message.
+     * @param channelInboxDir
+     *              Represents the inbox directory of the channel.
+     * @param messageID
+     *              Represents identifier of the message.
+     * @return
+     *          the channel inbox directory itself.
+     */
+    protected File getMessageDir(final File channelInboxDir, final String messageID) {
+        return channelInboxDir;
+    }
+
+    /**
+     * Returns the path in which messages will be stored.
+     * @param channelID
+     *              Represents the channel identifier.
+     * @return
+     *              File representing storage path.
+     * @throws Exception
+     *              Generic exception.
+     */
+    protected File getChannelInboxDir(String channelID) throws Exception {
+
+        File inboxDir = new File(storePath, TransportChannel.INBOX_DIR);
+        if (!inboxDir.exists()) {
+            if (!inboxDir.mkdir()) {
+                logger.debug("Cannot create the inbox directory: "
+                            + storePath + "/" + inboxDir);
+            }
+        }
+        channelID = removeSpecialChars(channelID);
+
+        File channelDir = new File(inboxDir, channelID);
+        if (!channelDir.exists()) {
+            if (!channelDir.mkdir()) {
+                logger.debug("Cannot create the channel directory: "
+                            + inboxDir + "/" + channelID);
+            }
+        }
+        if (!channelDir.exists()) {
+
+            Logger.getLogger(FileMessageStore.class.getName()).log(Level.SEVERE,
+                    "Inbox for channel \""
+                    + channelID
+                    + "\" could not be found or created: "
+                    + channelDir.getAbsolutePath());
+
+            logger.error("Inbox for channel \""
+                    + channelID
+                    + "\" could not be found or created: "
+                    + channelDir.getAbsolutePath());
+
+            throw new Exception("Inbox for channel \""
+                    + channelID
+                    + "\" could not be found or created: "
+                    + channelDir.getAbsolutePath());
+        }
+        return channelDir;
+    }
+
+    /**
+     * Remove characters that are not allowed for folder creation.
+     * @param fileOrDirName
+     *              Name of the directory or path to be created.
+     * @return
+     *              String with special characters removed.
+     */
+    protected String removeSpecialChars(String fileOrDirName) {
+        fileOrDirName = fileOrDirName.replace(':', '_');
+        return fileOrDirName;
+    }
+
+    /**
+     * Writes a content to a message file, leaving the file open so that
+     * it can be forced to disk.
+     */
+    private FileOutputStream writeContentToFile(File messageFile, Content content)
+            throws Exception {
+        FileOutputStream file = new FileOutputStream(messageFile);
+        try {
+            OutputStream out = new BufferedOutputStream(file, WRITE_BUFFER_SIZE);
+            content.writeTo(out);
+            out.flush();
+            return file;
+        } catch (Exception ex) {
+            file.close();
+            throw ex;
+        }
+    }
+
+    private static void close(FileOutputStream out) {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException ex) {
+                logger.debug("Cannot close message file", ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,324 @@
+/*
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package eu.peppol.start.transport;
+
+import eu.peppol.start.util.Configuration;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Forces stored messages to disk according to the inbox.durability mode:
+ * <ul>
+ * <li>none: nothing is forced, the operating system writes back the data;</li>
+ * <li>message: every message is forced before save returns;</li>
+ * <li>group: concurrent saves share one force. The first save of a batch
+ * waits up to inbox.group.commit.window.millis, or until the batch holds
+ * inbox.group.commit.bytes, then forces every file of the batch once and
+ * releases all the saves of the batch together.</li>
+ * </ul>
+ * In every mode a save returns only when its data is as durable as the
+ * mode promises; a failed force fails all the saves of its batch.
+ */
+public final class GroupCommit {
+
+    /**
+     * Durability mode leaving the write back to the operating system.
+     */
+    public static final String DURABILITY_NONE = "none";
+
+    /**
+     * Durability mode forcing every message.
+     */
+    public static final String DURABILITY_MESSAGE = "message";
+
+    /**
+     * Durability mode forcing the messages in batches.
+     */
+    public static final String DURABILITY_GROUP = "group";
+
+    /**
+     * Default time the first save of a batch waits for others.
+     */
+    private static final long DEFAULT_WINDOW_MILLIS = 5L;
+
+    /**
+     * Default amount of data that closes a batch before its window ends.
+     */
+    private static final long DEFAULT_BATCH_BYTES = 1024L * 1024L;
+
+    /**
+     * Something that can be forced to disk.
+     */
+    public interface Syncable {
+
+        /**
+         * Forces the written data to disk.
+         * @throws IOException if the data cannot be forced.
+         */
+        void sync() throws IOException;
+    }
+
+    /**
+     * Logger to follow this class behavior.
+     */
+    private static org.apache.log4j.Logger logger =
+            org.apache.log4j.Logger.getLogger(GroupCommit.class);
+
+    /**
+     * Instance configured from the properties.
+     */
+    private static GroupCommit instance;
+
+    /**
+     * Instance forcing the data even when the mode is none.
+     */
+    private static GroupCommit forcing;
+
+    /**
+     * Durability mode.
+     */
+    private final String mode;
+
+    /**
+     * Time the first save of a batch waits for others.
+     */
+    private final long windowMillis;
+
+    /**
+     * Amount of data that closes a batch.
+     */
+    private final long batchBytes;
+
+    /**
+     * Batch accepting saves, guarded by this.
+     */
+    private Batch current;
+
+    /**
+     * Returns the instance configured from the properties.
+     * @return Instance of GroupCommit.
+     */
+    public static synchronized GroupCommit getInstance() {
+        if (instance == null) {
+            Configuration conf = Configuration.getInstance();
+            String mode = conf.getProperty("inbox.durability");
+            String window = conf.getProperty("inbox.group.commit.window.millis");
+            String bytes = conf.getProperty("inbox.group.commit.bytes");
+
+            instance = new GroupCommit(
+                    (mode != null && mode.trim().length() > 0) ? mode.trim() : DURABILITY_NONE,
+                    (window != null && window.trim().length() > 0)
+                    ? Long.parseLong(window.trim()) : DEFAULT_WINDOW_MILLIS,
+                    (bytes != null && bytes.trim().length() > 0)
+                    ? Long.parseLong(bytes.trim()) : DEFAULT_BATCH_BYTES);
+            logger.info("Inbox durability: " + instance.mode);
+        }
+        return instance;
+    }
+
+    /**
+     * Returns the configured instance, or a group instance with the same
+     * window and batch size when the configured mode is none, for the data
+     * that must be on disk before it is acknowledged.
+     * @return Instance of GroupCommit.
+     */
+    public static synchronized GroupCommit getForcingInstance() {
+        if (forcing == null) {
+            GroupCommit configured = getInstance();
+            forcing = DURABILITY_NONE.equalsIgnoreCase(configured.mode)
+                    ? new GroupCommit(DURABILITY_GROUP, configured.windowMillis,
+                            configured.batchBytes)
+                    : configured;
+        }
+        return forcing;
+    }
+
+    /**
+     * Creates a GroupCommit; use getInstance for the configured one.
+     * @param mode         Durability mode.
+     * @param windowMillis Time the first save of a batch waits for others.
+     * @param batchBytes   Amount of data that closes a batch.
+     */
+    GroupCommit(final String mode, final long windowMillis, final long batchBytes) {
+        this.mode = mode;
+        this.windowMillis = windowMillis;
+        this.batchBytes = batchBytes;
+    }
+
+    /**
+     * Returns a Syncable forcing a file channel.
+     * @param channel Channel of a written file.
+     * @return the Syncable.
+     */
+    public static Syncable forChannel(final FileChannel channel) {
+        return new Syncable() {
+
+            public void sync() throws IOException {
+                channel.force(false);
+            }
+        };
+    }
+
+    /**
+     * Makes a written message durable according to the mode.
+     * @param target Data to force.
+     * @param bytes  Size of the message.
+     * @throws IOException if the data cannot be forced.
+     */
+    public void commit(final Syncable target, final long bytes) throws IOException {
+        commit(Collections.singletonList(target), bytes);
+    }
+
+    /**
+     * Makes a written message durable according to the mode.
+     * @param targets Data to force.
+     * @param bytes   Size of the message.
+     * @throws IOException if the data cannot be forced.
+     */
+    public void commit(final Collection<? extends Syncable> targets, final long bytes)
+            throws IOException {
+
+        if (DURABILITY_MESSAGE.equalsIgnoreCase(mode)) {
+            for (Syncable target : targets) {
+                target.sync();
+            }
+        } else if (DURABILITY_GROUP.equalsIgnoreCase(mode)) {
+            groupCommit(targets, bytes);
+        }
+    }
+
+    private void groupCommit(final Collection<? extends Syncable> targets, final long bytes)
+            throws IOException {
+
+        Batch batch;
+        boolean leader = false;
+        synchronized (this) {
+            if (current == null) {
+                current = new Batch();
+                leader = true;
+            }
+            batch = current;
+            batch.targets.addAll(targets);
+            batch.bytes += bytes;
+            batch.saves++;
+            if (batch.bytes >= batchBytes) {
+                notifyAll();
+            }
+        }
+
+        if (leader) {
+            try {
+                synchronized (this) {
+                    long end = System.currentTimeMillis() + windowMillis;
+                    long remaining = windowMillis;
+                    while (batch.bytes < batchBytes && remaining > 0) {
+                        wait(remaining);
+                        remaining = end - System.currentTimeMillis();
+                    }
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } finally {
+                synchronized (this) {
+                    current = null;
+                }
+            }
+
+            IOException failure = null;
+            for (Syncable target : batch.targets) {
+                try {
+                    target.sync();
+                } catch (IOException ex) {
+                    failure = ex;
+                }
+            }
+            logger.debug("Group commit: " + batch.saves + " messages, "
+                    + batch.targets.size() + " files");
+            batch.complete(failure);
+        } else {
+            batch.await();
+        }
+
+        if (batch.failure != null) {
+            IOException ex = new IOException("Cannot force the message to disk");
+            ex.initCause(batch.failure);
+            throw ex;
+        }
+    }
+
+    /**
+     * Saves sharing one force.
+     */
+    private static final class Batch {
+
+        /**
+         * Data to force, each once.
+         */
+        private final Set<Syncable> targets = new LinkedHashSet<Syncable>();
+
+        private long bytes;
+
+        private int saves;
+
+        private boolean done;
+
+        private IOException failure;
+
+        synchronized void complete(IOException failure) {
+            this.failure = failure;
+            this.done = true;
+            notifyAll();
+        }
+
+        synchronized void await() throws IOException {
+            while (!done) {
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for group commit");
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,350 @@
+/*
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package eu.peppol.start.transport;
+
+import eu.peppol.start.util.Configuration;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Deletes the inbox messages whose retention has elapsed.
+ * <p>
+ * Messages are kept in a timing wheel by expiry time: new messages are
+ * added when saved, and the messages already in a channel are loaded the
+ * first time the channel is used. A scheduled task advances the wheel and
+ * deletes what is due, so listing a channel never deletes nor stats
+ * messages on the caller's thread.
+ * <p>
+ * The retention defaults to inbox.retention.millis and can be set per
+ * channel with inbox.retention.millis.&lt;channelID&gt;, with the ':' of
+ * the channel ID written as '_' as in the store directory names, since a
+ * ':' would end the key in a properties file.
+ */
+public final class InboxExpirySweeper implements Runnable {
+
+    /**
+     * Default interval between two sweeps.
+     */
+    public static final long DEFAULT_SWEEP_INTERVAL_MILLIS = 1000L * 60L;
+
+    /**
+     * Number of slots of each level of the timing wheel.
+     */
+    private static final int WHEEL_SIZE = 64;
+
+    /**
+     * Logger to follow this class behavior.
+     */
+    private static org.apache.log4j.Logger logger =
+            org.apache.log4j.Logger.getLogger(InboxExpirySweeper.class);
+
+    /**
+     * Sweepers by absolute store path.
+     */
+    private static final ConcurrentMap<String, InboxExpirySweeper> SWEEPERS =
+            new ConcurrentHashMap<String, InboxExpirySweeper>();
+
+    /**
+     * Thread running the sweeps of all stores.
+     */
+    private static ScheduledExecutorService scheduler;
+
+    /**
+     * Store the messages are deleted from.
+     */
+    private final MessageStore store;
+
+    /**
+     * Retention of the channels without their own setting.
+     */
+    private final long defaultRetention;
+
+    /**
+     * Retention by channel.
+     */
+    private final ConcurrentMap<String, Long> retentions =
+            new ConcurrentHashMap<String, Long>();
+
+    /**
+     * Channels whose stored messages have been scheduled.
+     */
+    private final ConcurrentMap<String, Boolean> trackedChannels =
+            new ConcurrentHashMap<String, Boolean>();
+
+    /**
+     * Channels waiting for their stored messages to be scheduled.
+     */
+    private final Queue<String> pendingChannels = new ConcurrentLinkedQueue<String>();
+
+    /**
+     * Messages by expiry time, guarded by this.
+     */
+    private final TimingWheel<Expiry> wheel;
+
+    /**
+     * Secondary indexes the deleted messages are removed from, if any.
+     */
+    private volatile InboxIndex index;
+
+    /**
+     * Returns the sweeper of a store path, starting it on first use.
+     * @param storePath Path of the store.
+     * @param store     Backend holding the messages.
+     * @return the sweeper of that path.
+     */
+    public static InboxExpirySweeper getInstance(String storePath, MessageStore store) {
+        String key = new File(storePath).getAbsolutePath();
+        InboxExpirySweeper sweeper = SWEEPERS.get(key);
+        if (sweeper == null) {
+            Configuration conf = Configuration.getInstance();
+            long interval = parseMillis(conf.getProperty("inbox.expiry.sweep.interval"),
+                    DEFAULT_SWEEP_INTERVAL_MILLIS);
+            long retention = parseMillis(conf.getProperty("inbox.retention.millis"),
+                    TransportChannel.MESSAGE_INVALID_TIME_IN_MILLIS);
+
+            sweeper = new InboxExpirySweeper(store, retention, interval,
+                    System.currentTimeMillis());
+            InboxExpirySweeper existing = SWEEPERS.putIfAbsent(key, sweeper);
+            if (existing != null) {
+                sweeper = existing;
+            } else {
+                getScheduler().scheduleWithFixedDelay(sweeper, interval, interval,
+                        TimeUnit.MILLISECONDS);
+                logger.info("Inbox expiry sweeper started for " + key);
+            }
+        }
+        return sweeper;
+    }
+
+    /**
+     * Creates a sweeper; use getInstance so that a store has a single one.
+     * @param store            Backend holding the messages.
+     * @param defaultRetention Retention of the messages in milliseconds.
+     * @param tick             Resolution of the expiry times in milliseconds.
+     * @param startTime        Current time in milliseconds.
+     */
+    InboxExpirySweeper(final MessageStore store, final long defaultRetention,
+                       final long tick, final long startTime) {
+        this.store = store;
+        this.defaultRetention = defaultRetention;
+        this.wheel = new TimingWheel<Expiry>(tick, WHEEL_SIZE, startTime);
+    }
+
+    /**
+     * Sets the index the deleted messages are removed from.
+     * @param index Secondary indexes of the store.
+     */
+    void setIndex(final InboxIndex index) {
+        this.index = index;
+    }
+
+    /**
+     * Schedules the stored messages of a channel, once. The messages are
+     * read by the next sweep, not on the caller's thread.
+     * @param channelID ID of the Channel.
+     */
+    public void track(final String channelID) {
+        if (trackedChannels.putIfAbsent(channelID, Boolean.TRUE) == null) {
+            pendingChannels.add(channelID);
+        }
+    }
+
+    /**
+     * Schedules a message for deletion when its retention elapses.
+     * @param channelID    ID of the Channel.
+     * @param messageID    ID of the Message.
+     * @param creationTime Time the message was stored, in milliseconds.
+     */
+    public void schedule(final String channelID, final String messageID,
+                         final long creationTime) {
+        track(channelID);
+        synchronized (this) {
+            wheel.add(new Expiry(channelID, messageID),
+                    creationTime + getRetention(channelID));
+        }
+    }
+
+    /**
+     * Returns the retention of a channel.
+     * @param channelID ID of the Channel.
+     * @return retention in milliseconds.
+     */
+    public long getRetention(final String channelID) {
+        Long retention = retentions.get(channelID);
+        if (retention == null) {
+            Configuration conf = Configuration.getInstance();
+            String value = conf.getProperty("inbox.retention.millis."
+                    + channelID.replace(':', '_'));
+            if (value == null || value.trim().length() == 0) {
+                // also accepted with the ':' escaped as "\:"
+                value = conf.getProperty("inbox.retention.millis." + channelID);
+            }
+            retention = Long.valueOf(parseMillis(value, defaultRetention));
+            retentions.put(channelID, retention);
+        }
+        return retention.longValue();
+    }
+
+    /**
+     * Runs a sweep; failures are logged so that later sweeps still run.
+     */
+    public void run() {
+        try {
+            sweep(System.currentTimeMillis());
+        } catch (Throwable ex) {
+            Logger.getLogger(InboxExpirySweeper.class.getName()).log(Level.SEVERE,
+                    "Error sweeping expired messages.", ex);
+            logger.error("Error sweeping expired messages.", ex);
+        }
+    }
+
+    /**
+     * Schedules the pending channels and deletes the messages due.
+     * @param now Current time in milliseconds.
+     * @return number of messages deleted.
+     * @throws Exception
+     *         Throws an exception.
+     */
+    int sweep(final long now) throws Exception {
+        String channelID;
+        while ((channelID = pendingChannels.poll()) != null) {
+            for (String messageID : store.getMessageIDs(channelID)) {
+                try {
+                    long creationTime = store.getCreationTime(channelID, messageID);
+                    synchronized (this) {
+                        wheel.add(new Expiry(channelID, messageID),
+                                creationTime + getRetention(channelID));
+                    }
+                } catch (Exception ex) {
+                    logger.debug("Message " + messageID + " removed while loading "
+                            + channelID);
+                }
+            }
+        }
+
+        List<Expiry> due = new ArrayList<Expiry>();
+        synchronized (this) {
+            wheel.advance(now, due);
+        }
+
+        int deleted = 0;
+        for (Expiry expiry : due) {
+            if (isExpired(expiry, now) && store.delete(expiry.channelID, expiry.messageID)) {
+                deleted++;
+                unindex(expiry);
+            }
+        }
+        if (deleted > 0) {
+            logger.info("Expired messages deleted: " + deleted);
+        }
+        return deleted;
+    }
+
+    /**
+     * Removes a deleted message from the index, if any.
+     */
+    private void unindex(final Expiry expiry) {
+        InboxIndex current = index;
+        if (current == null) {
+            return;
+        }
+        try {
+            current.remove(expiry.channelID, expiry.messageID);
+        } catch (Exception ex) {
+            logger.error("Message not removed from the index: " + expiry.messageID, ex);
+        }
+    }
+
+    /**
+     * Checks the message against its stored creation time, as a message
+     * can be deleted and stored again with the same ID.
+     */
+    private boolean isExpired(final Expiry expiry, final long now) {
+        try {
+            return now - store.getCreationTime(expiry.channelID, expiry.messageID)
+                    >= getRetention(expiry.channelID);
+        } catch (Exception ex) {
+            return false;
+        }
+    }
+
+    private static synchronized ScheduledExecutorService getScheduler() {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "inbox-expiry-sweeper");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return scheduler;
+    }
+
+    private static long parseMillis(String value, long defaultValue) {
+        return (value != null && value.trim().length() > 0)
+                ? Long.parseLong(value.trim()) : defaultValue;
+    }
+
+    /**
+     * Message scheduled for deletion.
+     */
+    private static final class Expiry {
+
+        private final String channelID;
+
+        private final String messageID;
+
+        Expiry(final String channelID, final String messageID) {
+            this.channelID = channelID;
+            this.messageID = messageID;
+        }
+    }
+}
@@ -0,0 +1,612 @@
+/*
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package eu.peppol.start.transport;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Secondary indexes of the inbox, answering queries by sender, recipient,
+ * document type, process and receive time without reading the stored
+ * messages.
+ * <p>
+ * Each channel keeps in memory a posting set of message IDs per identifier
+ * value and a sorted map by receive time. A query starts from the smallest
+ * posting set of its identifiers (or from the time range, when it has no
+ * identifiers) and checks the remaining criteria on those messages only.
+ * <p>
+ * The indexes are maintained as messages are saved and deleted, and are
+ * persisted as an append-only journal per channel under &lt;store&gt;/index,
+ * compacted like the index of ShardedFileMessageStore. On first use the
+ * journal of a channel is reconciled with the messages of the store, like
+ * the index of ShardedFileMessageStore with its shard directories: the
+ * messages it misses (saved while the index was off, or around a crash)
+ * are indexed from their metadata and the messages no longer stored are
+ * dropped; a channel without journal is indexed that way entirely. A
+ * channel is loaded under its own lock, so that the others stay usable.
+ */
+public final class InboxIndex {
+
+    /**
+     * Directory of the journals, under the store path.
+     */
+    public static final String INDEX_DIR = "index";
+
+    /**
+     * Extension of the journals.
+     */
+    private static final String EXT_INDEX = ".idx";
+
+    /**
+     * Journal entry of a stored message.
+     */
+    private static final char ENTRY_ADD = 'A';
+
+    /**
+     * Journal entry of a deleted message.
+     */
+    private static final char ENTRY_DELETE = 'D';
+
+    /**
+     * Minimum number of deletions before a journal is compacted.
+     */
+    private static final int COMPACT_THRESHOLD = 1024;
+
+    /**
+     * Logger to follow this class behavior.
+     */
+    private static org.apache.log4j.Logger logger =
+            org.apache.log4j.Logger.getLogger(InboxIndex.class);
+
+    /**
+     * Indexes by absolute store path.
+     */
+    private static final ConcurrentMap<String, InboxIndex> INDEXES =
+            new ConcurrentHashMap<String, InboxIndex>();
+
+    /**
+     * Directory of the journals.
+     */
+    private final File dir;
+
+    /**
+     * Backend holding the messages, read when a channel is indexed.
+     */
+    private final MessageStore store;
+
+    /**
+     * Loaded channel indexes by channel ID.
+     */
+    private final ConcurrentMap<String, ChannelIndex> channels =
+            new ConcurrentHashMap<String, ChannelIndex>();
+
+    /**
+     * Returns the index of a store path, creating it on first use.
+     * @param storePath Path of the store.
+     * @param store     Backend holding the messages.
+     * @return the index of that path.
+     */
+    public static InboxIndex getInstance(String storePath, MessageStore store) {
+        String key = new File(storePath).getAbsolutePath();
+        InboxIndex index = INDEXES.get(key);
+        if (index == null) {
+            index = new InboxIndex(new File(key, INDEX_DIR), store);
+            InboxIndex existing = INDEXES.putIfAbsent(key, index);
+            if (existing != null) {
+                index = existing;
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Creates an index; use getInstance so that a store has a single one.
+     * @param dir   Directory of the journals.
+     * @param store Backend holding the messages.
+     */
+    InboxIndex(final File dir, final MessageStore store) {
+        this.dir = dir;
+        this.store = store;
+    }
+
+    /**
+     * Indexes a stored message.
+     * @param channelID    ID of the Channel.
+     * @param messageID    ID of the Message.
+     * @param record       Metadata of the message.
+     * @param receivedTime Time the message was stored, in milliseconds.
+     * @throws Exception if the journal cannot be written.
+     */
+    public void add(final String channelID, final String messageID,
+                    final MetadataRecord record, final long receivedTime) throws Exception {
+        getChannel(channelID).add(new Entry(messageID, record.getSenderValue(),
+                record.getRecipientValue(), record.getDocumentIdValue(),
+                record.getProcessIdValue(), receivedTime));
+    }
+
+    /**
+     * Removes a deleted message from the index.
+     * @param channelID ID of the Channel.
+     * @param messageID ID of the Message.
+     * @throws Exception if the journal cannot be written.
+     */
+    public void remove(final String channelID, final String messageID) throws Exception {
+        getChannel(channelID).remove(messageID);
+    }
+
+    /**
+     * Finds the messages of a channel matching a query.
+     * @param channelID ID of the Channel.
+     * @param query     Criteria of the messages.
+     * @return IDs of the matching messages, by receive time.
+     * @throws Exception if the channel cannot be indexed.
+     */
+    public List<String> query(final String channelID, final InboxQuery query) throws Exception {
+        return getChannel(channelID).query(query);
+    }
+
+    /**
+     * Returns the index of a channel, loading it on first use.
+     */
+    private ChannelIndex getChannel(String channelID) {
+        ChannelIndex channel = channels.get(channelID);
+        if (channel == null) {
+            channel = new ChannelIndex(channelID);
+            ChannelIndex existing = channels.putIfAbsent(channelID, channel);
+            if (existing != null) {
+                channel = existing;
+            }
+        }
+        return channel;
+    }
+
+    /**
+     * Indexed fields of a message.
+     */
+    private static final class Entry {
+
+        private final String messageID;
+
+        private final String sender;
+
+        private final String recipient;
+
+        private final String documentId;
+
+        private final String processId;
+
+        private final long time;
+
+        Entry(String messageID, String sender, String recipient,
+              String documentId, String processId, long time) {
+            this.messageID = messageID;
+            this.sender = sender;
+            this.recipient = recipient;
+            this.documentId = documentId;
+            this.processId = processId;
+            this.time = time;
+        }
+
+        boolean matches(InboxQuery query) {
+            return query.matches(sender, recipient, documentId, processId, time);
+        }
+    }
+
+    /**
+     * Orders entries by receive time.
+     */
+    private static final Comparator<Entry> BY_TIME = new Comparator<Entry>() {
+
+        public int compare(Entry a, Entry b) {
+            return (a.time < b.time) ? -1 : ((a.time > b.time) ? 1 : 0);
+        }
+    };
+
+    /**
+     * In-memory indexes of a channel, kept in sync with its journal.
+     */
+    private final class ChannelIndex {
+
+        private final String channelID;
+
+        private final File journalFile;
+
+        private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+
+        private final Map<String, Set<Entry>> bySender = new HashMap<String, Set<Entry>>();
+
+        private final Map<String, Set<Entry>> byRecipient = new HashMap<String, Set<Entry>>();
+
+        private final Map<String, Set<Entry>> byDocument = new HashMap<String, Set<Entry>>();
+
+        private final Map<String, Set<Entry>> byProcess = new HashMap<String, Set<Entry>>();
+
+        private final TreeMap<Long, Set<Entry>> byTime = new TreeMap<Long, Set<Entry>>();
+
+        private int deletions;
+
+        private Writer journal;
+
+        ChannelIndex(String channelID) {
+            this.channelID = channelID;
+            this.journalFile = new File(dir, channelID.replace(':', '_') + EXT_INDEX);
+        }
+
+        /**
+         * Loads the journal and reconciles it with the store, on first use.
+         */
+        private void open() throws Exception {
+            if (journal != null) {
+                return;
+            }
+            if (journalFile.exists()) {
+                load();
+            }
+            reconcile();
+            journal = openJournal();
+        }
+
+        synchronized void add(Entry entry) throws Exception {
+            open();
+            put(entry);
+            journal.write(toLine(entry));
+            journal.flush();
+        }
+
+        synchronized void remove(String messageID) throws Exception {
+            open();
+            if (!unlink(messageID)) {
+                return;
+            }
+            journal.write(ENTRY_DELETE + "\t" + escape(messageID) + "\n");
+            journal.flush();
+            deletions++;
+            if (deletions > COMPACT_THRESHOLD && deletions > entries.size()) {
+                compact();
+            }
+        }
+
+        synchronized List<String> query(InboxQuery query) throws Exception {
+            open();
+            Collection<Entry> candidates = null;
+            candidates = narrow(candidates, bySender, query.getSenderValue());
+            candidates = narrow(candidates, byRecipient, query.getRecipientValue());
+            candidates = narrow(candidates, byDocument, query.getDocumentIdValue());
+            candidates = narrow(candidates, byProcess, query.getProcessIdValue());
+            if (candidates == null) {
+                candidates = inRange(query);
+            }
+
+            List<Entry> matches = new ArrayList<Entry>();
+            for (Entry entry : candidates) {
+                if (entry.matches(query)) {
+                    matches.add(entry);
+                }
+            }
+            Collections.sort(matches, BY_TIME);
+
+            List<String> ids = new ArrayList<String>(matches.size());
+            for (Entry entry : matches) {
+                ids.add(entry.messageID);
+            }
+            return ids;
+        }
+
+        /**
+         * Keeps the smaller of the candidates and the posting set of a value.
+         */
+        private Collection<Entry> narrow(Collection<Entry> candidates,
+                                         Map<String, Set<Entry>> postings, String value) {
+            if (value == null) {
+                return candidates;
+            }
+            Set<Entry> posting = postings.get(value);
+            if (posting == null) {
+                return Collections.<Entry>emptySet();
+            }
+            return (candidates == null || posting.size() < candidates.size())
+                    ? posting : candidates;
+        }
+
+        /**
+         * Returns the entries in the time range of a query.
+         */
+        private Collection<Entry> inRange(InboxQuery query) {
+            if (query.getFrom() == null && query.getTo() == null) {
+                return entries.values();
+            }
+            NavigableMap<Long, Set<Entry>> range = byTime;
+            if (query.getFrom() != null) {
+                range = range.tailMap(Long.valueOf(query.getFrom().getTime()), true);
+            }
+            if (query.getTo() != null) {
+                range = range.headMap(Long.valueOf(query.getTo().getTime()), true);
+            }
+            List<Entry> inRange = new ArrayList<Entry>();
+            for (Set<Entry> atTime : range.values()) {
+                inRange.addAll(atTime);
+            }
+            return inRange;
+        }
+
+        private void put(Entry entry) {
+            unlink(entry.messageID);
+            entries.put(entry.messageID, entry);
+            link(bySender, entry.sender, entry);
+            link(byRecipient, entry.recipient, entry);
+            link(byDocument, entry.documentId, entry);
+            link(byProcess, entry.processId, entry);
+            Set<Entry> atTime = byTime.get(Long.valueOf(entry.time));
+            if (atTime == null) {
+                atTime = new LinkedHashSet<Entry>();
+                byTime.put(Long.valueOf(entry.time), atTime);
+            }
+            atTime.add(entry);
+        }
+
+        private boolean unlink(String messageID) {
+            Entry entry = entries.remove(messageID);
+            if (entry == null) {
+                return false;
+            }
+            unlink(bySender, entry.sender, entry);
+            unlink(byRecipient, entry.recipient, entry);
+            unlink(byDocument, entry.documentId, entry);
+            unlink(byProcess, entry.processId, entry);
+            Set<Entry> atTime = byTime.get(Long.valueOf(entry.time));
+            if (atTime != null) {
+                atTime.remove(entry);
+                if (atTime.isEmpty()) {
+                    byTime.remove(Long.valueOf(entry.time));
+                }
+            }
+            return true;
+        }
+
+        private void link(Map<String, Set<Entry>> postings, String value, Entry entry) {
+            if (value == null) {
+                return;
+            }
+            Set<Entry> posting = postings.get(value);
+            if (posting == null) {
+                posting = new LinkedHashSet<Entry>();
+                postings.put(value, posting);
+            }
+            posting.add(entry);
+        }
+
+        private void unlink(Map<String, Set<Entry>> postings, String value, Entry entry) {
+            if (value == null) {
+                return;
+            }
+            Set<Entry> posting = postings.get(value);
+            if (posting != null) {
+                posting.remove(entry);
+                if (posting.isEmpty()) {
+                    postings.remove(value);
+                }
+            }
+        }
+
+        /**
+         * Replays the journal.
+         */
+        private void load() throws IOException {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(journalFile), "UTF-8"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.length() < 2) {
+                        continue;
+                    }
+                    if (line.charAt(0) == ENTRY_ADD) {
+                        String[] fields = line.split("\t", -1);
+                        if (fields.length == 7) {
+                            put(new Entry(unescape(fields[6]), unescape(fields[2]),
+                                    unescape(fields[3]), unescape(fields[4]),
+                                    unescape(fields[5]), Long.parseLong(fields[1])));
+                        }
+                    } else if (line.charAt(0) == ENTRY_DELETE) {
+                        unlink(unescape(line.substring(2)));
+                        deletions++;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+
+        /**
+         * Brings the index in line with the store: indexes the stored
+         * messages it misses from their metadata, and drops the messages no
+         * longer stored.
+         */
+        private void reconcile() throws Exception {
+            if (!dir.exists() && !dir.mkdirs()) {
+                throw new IOException("Cannot create the inbox index: " + dir.getAbsolutePath());
+            }
+            Set<String> stored = new LinkedHashSet<String>(store.getMessageIDs(channelID));
+            int changes = 0;
+            for (String messageID : new ArrayList<String>(entries.keySet())) {
+                if (!stored.contains(messageID)) {
+                    unlink(messageID);
+                    changes++;
+                }
+            }
+            for (String messageID : stored) {
+                if (entries.containsKey(messageID)) {
+                    continue;
+                }
+                try {
+                    MetadataRecord record = MetadataRecord.load(store, channelID, messageID);
+                    put(new Entry(messageID, record.getSenderValue(),
+                            record.getRecipientValue(), record.getDocumentIdValue(),
+                            record.getProcessIdValue(),
+                            store.getCreationTime(channelID, messageID)));
+                    changes++;
+                } catch (Exception ex) {
+                    logger.debug("Message " + messageID + " not indexed in " + channelID, ex);
+                }
+            }
+            if (changes > 0 || !journalFile.exists()) {
+                writeSnapshot();
+                logger.info("Inbox index reconciled for " + channelID + ": " + changes
+                        + " changes, " + entries.size() + " messages");
+            }
+        }
+
+        /**
+         * Rewrites the journal with the live entries only.
+         */
+        private void compact() throws IOException {
+            journal.close();
+            writeSnapshot();
+            journal = openJournal();
+            logger.debug("Inbox index compacted for " + channelID);
+        }
+
+        private void writeSnapshot() throws IOException {
+            File tmp = new File(dir, journalFile.getName() + ".tmp");
+            Writer writer = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(tmp), "UTF-8"));
+            try {
+                for (Entry entry : entries.values()) {
+                    writer.write(toLine(entry));
+                }
+            } finally {
+                writer.close();
+            }
+            if (journalFile.exists() && !journalFile.delete()) {
+                throw new IOException("Cannot replace index " + journalFile.getAbsolutePath());
+            }
+            if (!tmp.renameTo(journalFile)) {
+                throw new IOException("Cannot replace index " + journalFile.getAbsolutePath());
+            }
+            deletions = 0;
+        }
+
+        private Writer openJournal() throws IOException {
+            return new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(journalFile, true), "UTF-8"));
+        }
+    }
+
+    /**
+     * Formats the journal entry of a stored message.
+     */
+    private static String toLine(Entry entry) {
+        return ENTRY_ADD + "\t" + entry.time
+                + "\t" + escape(entry.sender) + "\t" + escape(entry.recipient)
+                + "\t" + escape(entry.documentId) + "\t" + escape(entry.processId)
+                + "\t" + escape(entry.messageID) + "\n";
+    }
+
+    /**
+     * Escapes a journal field; null is written as an empty field.
+     */
+    static String escape(String value) {
+        if (value == null) {
+            return "";
+        }
+        StringBuilder escaped = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\':
+                    escaped.append("\\\\");
+                    break;
+                case '\t':
+                    escaped.append("\\t");
+                    break;
+                case '\n':
+                    escaped.append("\\n");
+                    break;
+                case '\r':
+                    escaped.append("\\r");
+                    break;
+                default:
+                    escaped.append(c);
+                    break;
+            }
+        }
+        return escaped.toString();
+    }
+
+    static String unescape(String field) {
+        if (field.length() == 0) {
+            return null;
+        }
+        if (field.indexOf('\\') < 0) {
+            return field;
+        }
+        StringBuilder value = new StringBuilder(field.length());
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+            if (c == '\\' && i + 1 < field.length()) {
+                char next = field.charAt(++i);
+                value.append((next == 't') ? '\t'
+                        : (next == 'n') ? '\n' : (next == 'r') ? '\r' : next);
+            } else {
+                value.append(c);
+            }
+        }
+        return value.toString();
+    }
+}
@@ -0,0 +1,340 @@
+/*
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package eu.peppol.start.transport;
+
+import eu.peppol.start.util.Configuration;
+import java.io.DataInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Serves the local store of a node of a partitioned inbox to the other
+ * nodes, which reach it through RemoteMessageStore.
+ * <p>
+ * Nothing is answered unless the inbox is partitioned. The servlet only
+ * answers requests received over TLS on the internal connector of
+ * inbox.partition.port, which must not be reachable from the PEPPOL
+ * network, and carrying inbox.partition.secret in the X-Inbox-Node-Secret
+ * header; any other request is answered as if the servlet did not exist
+ * or refused. On start the node moves the channels it no longer owns,
+ * then announces itself to the other nodes, which move to it the channels
+ * it owns; the nodes that do not answer are announced to every minute.
+ * A node joining is put on the ring at once, and the channels it owns are
+ * moved to it in the background.
+ */
+public class InboxNodeServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Context parameter name;
+     */
+    private static final String STORAGE_PATH = "userfolder";
+
+    /**
+     * Largest metadata accepted in a save.
+     */
+    private static final int MAX_METADATA_LENGTH = 1024 * 1024;
+
+    /**
+     * Interval of the announces to the nodes not joined yet.
+     */
+    private static final long ANNOUNCE_INTERVAL_MILLIS = 60000L;
+
+    /**
+     * Logger to follow this class behavior.
+     */
+    private static org.apache.log4j.Logger logger =
+            org.apache.log4j.Logger.getLogger(InboxNodeServlet.class);
+
+    /**
+     * Partitioned store of this node.
+     */
+    private transient PartitionedMessageStore partition;
+
+    /**
+     * Port of the internal connector serving the nodes.
+     */
+    private int nodePort;
+
+    /**
+     * Secret shared by the nodes.
+     */
+    private transient byte[] secret;
+
+    /**
+     * Thread announcing this node to the others, stopped on destroy.
+     */
+    private transient Thread announcer;
+
+    @Override
+    public void init() throws ServletException {
+        if (!PartitionedMessageStore.isEnabled()) {
+            logger.debug("Inbox not partitioned, inbox node requests are refused");
+            return;
+        }
+        String port = Configuration.getInstance().getProperty("inbox.partition.port");
+        if (port == null || port.trim().length() == 0
+                || PartitionedMessageStore.getSecret() == null) {
+            throw new ServletException(
+                    "inbox.partition.port and inbox.partition.secret must be set");
+        }
+        nodePort = Integer.parseInt(port.trim());
+        try {
+            secret = PartitionedMessageStore.getSecret().getBytes("UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            throw new ServletException(ex);
+        }
+        partition = PartitionedMessageStore.getInstance(
+                getServletContext().getInitParameter(STORAGE_PATH));
+
+        announcer = new Thread(new Runnable() {
+
+            public void run() {
+                partition.rebalance();
+                // the nodes down at start join when they answer
+                while (!Thread.currentThread().isInterrupted()
+                        && partition.announce() > 0) {
+                    try {
+                        Thread.sleep(ANNOUNCE_INTERVAL_MILLIS);
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                }
+            }
+        }, "inbox-node-announce");
+        announcer.setDaemon(true);
+        announcer.start();
+    }
+
+    @Override
+    public void destroy() {
+        if (announcer != null) {
+            announcer.interrupt();
+            announcer = null;
+        }
+        super.destroy();
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        if (!isNode(request, response)) {
+            return;
+        }
+        String op = request.getParameter("op");
+        String channelID = request.getParameter("channel");
+        String messageID = request.getParameter("message");
+        MessageStore store = partition.getLocalStore();
+        try {
+            if (RemoteMessageStore.OP_IDS.equals(op)) {
+                StringBuilder ids = new StringBuilder();
+                for (String id : store.getMessageIDs(channelID)) {
+                    ids.append(id).append('\n');
+                }
+                writeText(response, ids.toString());
+            } else if (RemoteMessageStore.OP_METADATA.equals(op)) {
+                writeStream(response, store.openMetadata(channelID, messageID));
+            } else if (RemoteMessageStore.OP_PAYLOAD.equals(op)) {
+                writeStream(response, store.openPayload(channelID, messageID));
+            } else if (RemoteMessageStore.OP_LENGTH.equals(op)) {
+                writeText(response, String.valueOf(store.getPayloadLength(channelID, messageID)));
+            } else if (RemoteMessageStore.OP_TIME.equals(op)) {
+                writeText(response, String.valueOf(store.getCreationTime(channelID, messageID)));
+            } else {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Unknown operation: " + op);
+            }
+        } catch (Exception ex) {
+            sendError(response, op, messageID, ex);
+        }
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        if (!isNode(request, response)) {
+            return;
+        }
+        String op = request.getParameter("op");
+        String channelID = request.getParameter("channel");
+        String messageID = request.getParameter("message");
+        try {
+            if (RemoteMessageStore.OP_SAVE.equals(op)) {
+                int length = getMetadataLength(request);
+                if (length < 0) {
+                    response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+                            "Missing or invalid " + RemoteMessageStore.METADATA_LENGTH_HEADER);
+                    return;
+                }
+                if (length > MAX_METADATA_LENGTH) {
+                    response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE,
+                            "Metadata larger than " + MAX_METADATA_LENGTH + " bytes");
+                    return;
+                }
+                save(request, channelID, messageID, length);
+                writeText(response, "true");
+            } else if (RemoteMessageStore.OP_DELETE.equals(op)) {
+                writeText(response, String.valueOf(
+                        partition.getLocalStore().delete(channelID, messageID)));
+            } else if (RemoteMessageStore.OP_JOIN.equals(op)) {
+                String node = request.getParameter("node");
+                String url = request.getParameter("url");
+                MessageStore store = partition.getNodeStore(node);
+                if (store == null || url == null || !url.equals(partition.getNodeURLs().get(node))) {
+                    response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+                            "Node not configured in inbox.partition.nodes: " + node);
+                    return;
+                }
+                partition.addNode(node, store);
+                writeText(response, "true");
+            } else {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Unknown operation: " + op);
+            }
+        } catch (Exception ex) {
+            sendError(response, op, messageID, ex);
+        }
+    }
+
+    /**
+     * Returns the length of the metadata of a save, from its header.
+     * @return the length, or -1 if the header is missing or invalid.
+     */
+    private static int getMetadataLength(HttpServletRequest request) {
+        String header = request.getHeader(RemoteMessageStore.METADATA_LENGTH_HEADER);
+        if (header == null) {
+            return -1;
+        }
+        try {
+            return Math.max(-1, Integer.parseInt(header.trim()));
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    /**
+     * Saves a message sent by another node: the metadata, of the length
+     * checked by the caller, then the payload.
+     */
+    private void save(HttpServletRequest request, String channelID, String messageID,
+                      int metadataLength) throws Exception {
+        final InputStream in = request.getInputStream();
+        final byte[] metadata = new byte[metadataLength];
+        new DataInputStream(in).readFully(metadata);
+
+        partition.getLocalStore().save(channelID, messageID, new MessageStore.Content() {
+
+            public void writeTo(OutputStream out) throws Exception {
+                out.write(metadata);
+            }
+        }, new MessageStore.Content() {
+
+            public void writeTo(OutputStream out) throws Exception {
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            }
+        });
+    }
+
+    /**
+     * Checks that the request comes from one of the inbox nodes: received
+     * over TLS on the internal connector, with the shared secret.
+     */
+    private boolean isNode(HttpServletRequest request, HttpServletResponse response)
+            throws IOException {
+        if (partition == null || request.getLocalPort() != nodePort) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return false;
+        }
+        String header = request.getHeader(RemoteMessageStore.SECRET_HEADER);
+        if (request.isSecure() && header != null
+                && MessageDigest.isEqual(secret, header.getBytes("UTF-8"))) {
+            return true;
+        }
+        logger.warn("Inbox node request refused from " + request.getRemoteAddr());
+        response.sendError(HttpServletResponse.SC_FORBIDDEN, "Not an inbox node");
+        return false;
+    }
+
+    private void sendError(HttpServletResponse response, String op, String messageID,
+                           Exception ex) throws IOException {
+        if (ex instanceof FileNotFoundException) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, ex.getMessage());
+            return;
+        }
+        logger.error("Inbox node operation " + op + " failed for " + messageID, ex);
+        Logger.getLogger(InboxNodeServlet.class.getName()).log(Level.SEVERE, ex.getMessage());
+        response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, ex.getMessage());
+    }
+
+    private static void writeText(HttpServletResponse response, String text)
+            throws UnsupportedEncodingException, IOException {
+        response.setContentType("text/plain; charset=UTF-8");
+        OutputStream out = response.getOutputStream();
+        out.write(text.getBytes("UTF-8"));
+        out.flush();
+    }
+
+    private static void writeStream(HttpServletResponse response, InputStream in)
+            throws IOException {
+        response.setContentType("application/octet-stream");
+        OutputStream out = response.getOutputStream();
+        try {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        out.flush();
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package eu.peppol.start.transport;
+
+import java.util.Date;
+
+/**
+ * Criteria of an inbox query. Unset criteria match every message; the
+ * identifiers are compared on their value, the time range on the receive
+ * time of the messages, both bounds included.
+ */
+public class InboxQuery {
+
+    /**
+     * Value of the sender identifier.
+     */
+    private String senderValue;
+
+    /**
+     * Value of the recipient identifier.
+     */
+    private String recipientValue;
+
+    /**
+     * Value of the document identifier.
+     */
+    private String documentIdValue;
+
+    /**
+     * Value of the process identifier.
+     */
+    private String processIdValue;
+
+    /**
+     * Earliest receive time.
+     */
+    private Date from;
+
+    /**
+     * Latest receive time.
+     */
+    private Date to;
+
+    /**
+     * Gets the value of the sender identifier.
+     * @return sender value, or null.
+     */
+    public final String getSenderValue() {
+        return senderValue;
+    }
+
+    /**
+     * Sets the value of the sender identifier.
+     * @param senderValue sender value, or null for any sender.
+     */
+    public final void setSenderValue(final String senderValue) {
+        this.senderValue = senderValue;
+    }
+
+    /**
+     * Gets the value of the recipient identifier.
+     * @return recipient value, or null.
+     */
+    public final String getRecipientValue() {
+        return recipientValue;
+    }
+
+    /**
+     * Sets the value of the recipient identifier.
+     * @param recipientValue recipient value, or null for any recipient.
+     */
+    public final void setRecipientValue(final String recipientValue) {
+        this.recipientValue = recipientValue;
+    }
+
+    /**
+     * Gets the value of the document identifier.
+     * @return document identifier value, or null.
+     */
+    public final String getDocumentIdValue() {
+        return documentIdValue;
+    }
+
+    /**
+     * Sets the value of the document identifier.
+     * @param documentIdValue document identifier value, or null for any document type.
+     */
+    public final void setDocumentIdValue(final String documentIdValue) {
+        this.documentIdValue = documentIdValue;
+    }
+
+    /**
+     * Gets the value of the process identifier.
+     * @return process identifier value, or null.
+     */
+    public final String getProcessIdValue() {
+        return processIdValue;
+    }
+
+    /**
+     * Sets the value of the process identifier.
+     * @param processIdValue process identifier value, or null for any process.
+     */
+    public final void setProcessIdValue(final String processIdValue) {
+        this.processIdValue = processIdValue;
+    }
+
+    /**
+     * Gets the earliest receive time.
+     * @return earliest receive time, or null.
+     */
+    public final Date getFrom() {
+        return from;
+    }
+
+    /**
+     * Sets the earliest receive time.
+     * @param from earliest receive time, or null for no lower bound.
+     */
+    public final void setFrom(final Date from) {
+        this.from = from;
+    }
+
+    /**
+     * Gets the latest receive time.
+     * @return latest receive time, or null.
+     */
+    public final Date getTo() {
+        return to;
+    }
+
+    /**
+     * Sets the latest receive time.
+     * @param to latest receive time, or null for no upper bound.
+     */
+    public final void setTo(final Date to) {
+        this.to = to;
+    }
+
+    /**
+     * Checks a message against the criteria.
+     * @param sender    Sender value of the message.
+     * @param recipient Recipient value of the message.
+     * @param documentId Document identifier value of the message.
+     * @param processId Process identifier value of the message.
+     * @param time      Receive time of the message, in milliseconds.
+     * @return true if the message matches every set criterion.
+     */
+    public boolean matches(String sender, String recipient, String documentId,
+                           String processId, long time) {
+        return matches(senderValue, sender)
+                && matches(recipientValue, recipient)
+                && matches(documentIdValue, documentId)
+                && matches(processIdValue, processId)
+                && (from == null || time >= from.getTime())
+                && (to == null || time <= to.getTime());
+    }
+
+    private static boolean matches(String criterion, String value) {
+        return criterion == null || criterion.equals(value);
+    }
+}
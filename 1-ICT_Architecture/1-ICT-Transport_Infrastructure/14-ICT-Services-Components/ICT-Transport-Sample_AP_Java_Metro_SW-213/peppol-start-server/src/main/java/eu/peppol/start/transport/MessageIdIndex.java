@@ -0,0 +1,526 @@
+/*
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package eu.peppol.start.transport;
+
+import eu.peppol.start.util.Configuration;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Index of the message IDs received during a time window, used to
+ * acknowledge the retries of a sending Access Point without storing the
+ * same message twice.
+ * <p>
+ * Every ID is reduced to a 64-bit fingerprint. A Bloom filter answers most
+ * lookups of new IDs; a possible hit is confirmed in the fingerprint sets
+ * of the window slices, which are open-addressing tables of longs, so that
+ * both steps are O(1) and tens of millions of IDs fit in memory.
+ * <p>
+ * The window is split in slices, each one persisted as an append-only file
+ * of fingerprints under &lt;store&gt;/dedup. Slices older than the window are
+ * dropped together with their file, and the Bloom filter is then rebuilt
+ * from the remaining slices. All the slices are loaded on start.
+ * <p>
+ * A message being stored is claimed first, so that a retry received at the
+ * same time is not stored twice; the claim is kept in memory only, until
+ * the ID is added once the message is stored or released if it is not.
+ */
+public final class MessageIdIndex {
+
+    /**
+     * Directory of the slice files, under the store path.
+     */
+    public static final String DEDUP_DIR = "dedup";
+
+    /**
+     * Extension of the slice files.
+     */
+    private static final String EXT_SLICE = ".ids";
+
+    /**
+     * Number of slices in the window.
+     */
+    private static final int SLICES = 24;
+
+    /**
+     * Default time a message ID is remembered.
+     */
+    private static final long DEFAULT_WINDOW_MILLIS = 1000L * 60L * 60L * 24L;
+
+    /**
+     * Default number of IDs the Bloom filter is sized for.
+     */
+    private static final int DEFAULT_EXPECTED_IDS = 1000000;
+
+    /**
+     * Logger to follow this class behavior.
+     */
+    private static org.apache.log4j.Logger logger =
+            org.apache.log4j.Logger.getLogger(MessageIdIndex.class);
+
+    /**
+     * Indexes by absolute store path.
+     */
+    private static final ConcurrentMap<String, MessageIdIndex> INDEXES =
+            new ConcurrentHashMap<String, MessageIdIndex>();
+
+    /**
+     * Directory of the slice files.
+     */
+    private final File dir;
+
+    /**
+     * Time a message ID is remembered.
+     */
+    private final long windowMillis;
+
+    /**
+     * Time covered by one slice.
+     */
+    private final long sliceMillis;
+
+    /**
+     * Filter in front of the slices.
+     */
+    private final BloomFilter filter;
+
+    /**
+     * Slices of the window, oldest first.
+     */
+    private final LinkedList<Slice> slices = new LinkedList<Slice>();
+
+    /**
+     * Fingerprints of the messages claimed and not yet added or released.
+     */
+    private final Set<Long> claimed = new HashSet<Long>();
+
+    /**
+     * Returns the index of a store path, loading it on first use.
+     * @param storePath Path of the store.
+     * @return the index of that path.
+     * @throws IOException if the slices cannot be loaded.
+     */
+    public static MessageIdIndex getInstance(String storePath) throws IOException {
+        String key = new File(storePath).getAbsolutePath();
+        MessageIdIndex index = INDEXES.get(key);
+        if (index == null) {
+            synchronized (INDEXES) {
+                index = INDEXES.get(key);
+                if (index == null) {
+                    Configuration conf = Configuration.getInstance();
+                    String window = conf.getProperty("inbox.dedup.window.millis");
+                    String expected = conf.getProperty("inbox.dedup.expected.ids");
+
+                    index = new MessageIdIndex(new File(key, DEDUP_DIR),
+                            (window != null && window.trim().length() > 0)
+                            ? Long.parseLong(window.trim()) : DEFAULT_WINDOW_MILLIS,
+                            (expected != null && expected.trim().length() > 0)
+                            ? Integer.parseInt(expected.trim()) : DEFAULT_EXPECTED_IDS,
+                            System.currentTimeMillis());
+                    INDEXES.put(key, index);
+                }
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Creates an index; use getInstance so that a store has a single one.
+     * @param dir          Directory of the slice files.
+     * @param windowMillis Time a message ID is remembered.
+     * @param expectedIDs  Number of IDs the Bloom filter is sized for.
+     * @param now          Current time in milliseconds.
+     * @throws IOException if the slices cannot be loaded.
+     */
+    MessageIdIndex(final File dir, final long windowMillis, final int expectedIDs,
+                   final long now) throws IOException {
+        this.dir = dir;
+        this.windowMillis = windowMillis;
+        this.sliceMillis = Math.max(1L, windowMillis / SLICES);
+        this.filter = new BloomFilter(expectedIDs);
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Cannot create the message ID index: "
+                    + dir.getAbsolutePath());
+        }
+        load(now);
+    }
+
+    /**
+     * Checks if a message was already received in the window.
+     * @param channelID ID of the Channel.
+     * @param messageID ID of the Message.
+     * @return true if the message is a duplicate.
+     */
+    public boolean contains(final String channelID, final String messageID) {
+        return contains(channelID, messageID, System.currentTimeMillis());
+    }
+
+    /**
+     * Claims a message before storing it, unless it was already received
+     * in the window or is being stored by another request.
+     * @param channelID ID of the Channel.
+     * @param messageID ID of the Message.
+     * @return true if the message was claimed and must be stored, then
+     *         added or released.
+     */
+    public boolean claim(final String channelID, final String messageID) {
+        return claim(channelID, messageID, System.currentTimeMillis());
+    }
+
+    /**
+     * Releases the claim of a message that could not be stored.
+     * @param channelID ID of the Channel.
+     * @param messageID ID of the Message.
+     */
+    public synchronized void release(final String channelID, final String messageID) {
+        claimed.remove(Long.valueOf(fingerprint(channelID, messageID)));
+    }
+
+    /**
+     * Remembers a message stored in the inbox, ending its claim.
+     * @param channelID ID of the Channel.
+     * @param messageID ID of the Message.
+     * @throws IOException if the ID cannot be persisted.
+     */
+    public void add(final String channelID, final String messageID) throws IOException {
+        add(channelID, messageID, System.currentTimeMillis());
+    }
+
+    synchronized boolean contains(final String channelID, final String messageID,
+                                  final long now) {
+        long fingerprint = fingerprint(channelID, messageID);
+        if (!filter.mightContain(fingerprint)) {
+            return false;
+        }
+        long oldest = now - windowMillis;
+        for (Slice slice : slices) {
+            if (slice.start + sliceMillis > oldest && slice.ids.contains(fingerprint)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    synchronized boolean claim(final String channelID, final String messageID,
+                               final long now) {
+        return !contains(channelID, messageID, now)
+                && claimed.add(Long.valueOf(fingerprint(channelID, messageID)));
+    }
+
+    synchronized void add(final String channelID, final String messageID,
+                          final long now) throws IOException {
+        long fingerprint = fingerprint(channelID, messageID);
+        claimed.remove(Long.valueOf(fingerprint));
+        Slice slice = getSlice(now);
+        if (slice.ids.add(fingerprint)) {
+            filter.add(fingerprint);
+            slice.out.writeLong(fingerprint);
+            slice.out.flush();
+        }
+    }
+
+    /**
+     * Returns the slice of a time, dropping the slices out of the window.
+     */
+    private Slice getSlice(final long now) throws IOException {
+        long start = now - (now % sliceMillis);
+        Slice last = slices.isEmpty() ? null : slices.getLast();
+        if (last != null && last.start == start) {
+            return last;
+        }
+
+        boolean dropped = false;
+        Iterator<Slice> it = slices.iterator();
+        while (it.hasNext()) {
+            Slice slice = it.next();
+            if (slice.start + sliceMillis <= now - windowMillis) {
+                it.remove();
+                slice.close();
+                if (!slice.file.delete()) {
+                    logger.debug("Cannot delete ID slice: " + slice.file.getAbsolutePath());
+                }
+                dropped = true;
+            }
+        }
+        if (dropped) {
+            filter.clear();
+            for (Slice slice : slices) {
+                slice.ids.addAllTo(filter);
+            }
+        }
+
+        Slice slice = new Slice(start, new File(dir, start + EXT_SLICE), new LongHashSet(1024));
+        slice.open();
+        slices.add(slice);
+        return slice;
+    }
+
+    /**
+     * Loads the slice files still in the window.
+     */
+    private void load(final long now) throws IOException {
+        File[] files = dir.listFiles(new FilenameFilter() {
+
+            public boolean accept(final File dir, final String name) {
+                return name.endsWith(EXT_SLICE);
+            }
+        });
+        long[] starts = new long[files.length];
+        for (int i = 0; i < files.length; i++) {
+            String name = files[i].getName();
+            starts[i] = Long.parseLong(name.substring(0, name.length() - EXT_SLICE.length()));
+        }
+        Arrays.sort(starts);
+
+        int count = 0;
+        for (long start : starts) {
+            File file = new File(dir, start + EXT_SLICE);
+            if (start + sliceMillis <= now - windowMillis) {
+                if (!file.delete()) {
+                    logger.debug("Cannot delete ID slice: " + file.getAbsolutePath());
+                }
+                continue;
+            }
+            LongHashSet ids = new LongHashSet((int) Math.min(Integer.MAX_VALUE / 2,
+                    file.length() / 8));
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(file)));
+            try {
+                while (true) {
+                    long fingerprint = in.readLong();
+                    ids.add(fingerprint);
+                    filter.add(fingerprint);
+                }
+            } catch (EOFException ex) {
+                // end of the slice, possibly after a torn fingerprint
+            } finally {
+                in.close();
+            }
+            count += ids.size();
+            Slice slice = new Slice(start, file, ids);
+            slice.open();
+            slices.add(slice);
+        }
+        logger.info("Message ID index loaded: " + count + " IDs");
+    }
+
+    /**
+     * Non-zero 64-bit fingerprint of a message ID in a channel.
+     */
+    static long fingerprint(final String channelID, final String messageID) {
+        long hash = 0xcbf29ce484222325L;
+        String key = channelID + '\n' + messageID;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return (hash != 0L) ? hash : 1L;
+    }
+
+    /**
+     * IDs received during one slice of the window.
+     */
+    private static final class Slice {
+
+        private final long start;
+
+        private final File file;
+
+        private final LongHashSet ids;
+
+        private DataOutputStream out;
+
+        Slice(final long start, final File file, final LongHashSet ids) {
+            this.start = start;
+            this.file = file;
+            this.ids = ids;
+        }
+
+        void open() throws IOException {
+            out = new DataOutputStream(new FileOutputStream(file, true));
+        }
+
+        void close() {
+            try {
+                out.close();
+            } catch (IOException ex) {
+                logger.debug("Cannot close ID slice: " + file.getAbsolutePath(), ex);
+            }
+        }
+    }
+
+    /**
+     * Bloom filter over fingerprints, with about one percent of false
+     * positives at its expected number of entries.
+     */
+    private static final class BloomFilter {
+
+        private static final int BITS_PER_ENTRY = 10;
+
+        private static final int HASHES = 7;
+
+        private final long[] bits;
+
+        private final long size;
+
+        BloomFilter(final int expectedEntries) {
+            long bitCount = Math.max(64L, (long) expectedEntries * BITS_PER_ENTRY);
+            this.bits = new long[(int) ((bitCount + 63) / 64)];
+            this.size = bits.length * 64L;
+        }
+
+        void add(final long fingerprint) {
+            int h1 = (int) fingerprint;
+            int h2 = (int) (fingerprint >>> 32);
+            for (int i = 1; i <= HASHES; i++) {
+                long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % size;
+                bits[(int) (bit >>> 6)] |= 1L << bit;
+            }
+        }
+
+        boolean mightContain(final long fingerprint) {
+            int h1 = (int) fingerprint;
+            int h2 = (int) (fingerprint >>> 32);
+            for (int i = 1; i <= HASHES; i++) {
+                long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % size;
+                if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void clear() {
+            Arrays.fill(bits, 0L);
+        }
+    }
+
+    /**
+     * Open-addressing set of non-zero longs.
+     */
+    private static final class LongHashSet {
+
+        /**
+         * Marks an empty entry; fingerprints are never zero.
+         */
+        private static final long FREE = 0L;
+
+        private long[] table;
+
+        private int size;
+
+        LongHashSet(final int expected) {
+            int capacity = 16;
+            while (capacity < expected * 2) {
+                capacity <<= 1;
+            }
+            table = new long[capacity];
+        }
+
+        int size() {
+            return size;
+        }
+
+        boolean contains(final long key) {
+            int mask = table.length - 1;
+            int i = (int) (key ^ (key >>> 32)) & mask;
+            while (table[i] != FREE) {
+                if (table[i] == key) {
+                    return true;
+                }
+                i = (i + 1) & mask;
+            }
+            return false;
+        }
+
+        boolean add(final long key) {
+            if ((size + 1) * 4L > table.length * 3L) {
+                grow();
+            }
+            int mask = table.length - 1;
+            int i = (int) (key ^ (key >>> 32)) & mask;
+            while (table[i] != FREE) {
+                if (table[i] == key) {
+                    return false;
+                }
+                i = (i + 1) & mask;
+            }
+            table[i] = key;
+            size++;
+            return true;
+        }
+
+        void addAllTo(final BloomFilter filter) {
+            for (long key : table) {
+                if (key != FREE) {
+                    filter.add(key);
+                }
+            }
+        }
+
+        private void grow() {
+            long[] old = table;
+            table = new long[old.length * 2];
+            size = 0;
+            for (long key : old) {
+                if (key != FREE) {
+                    add(key);
+                }
+            }
+        }
+    }
+}
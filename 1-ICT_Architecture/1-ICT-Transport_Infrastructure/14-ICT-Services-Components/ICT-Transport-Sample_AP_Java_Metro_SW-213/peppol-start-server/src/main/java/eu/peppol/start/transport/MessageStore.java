@@ -0,0 +1,150 @@
+/*
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package eu.peppol.start.transport;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+
+/**
+ * Storage backend of a TransportChannel. A store keeps the metadata and the
+ * payload of each message of a channel as opaque bytes; XML handling is
+ * left to the TransportChannel.
+ */
+public interface MessageStore {
+
+    /**
+     * Content to be written into the store.
+     */
+    interface Content {
+
+        /**
+         * Writes the content.
+         * @param out   Stream to write the content to.
+         * @throws Exception if the content cannot be written.
+         */
+        void writeTo(OutputStream out) throws Exception;
+    }
+
+    /**
+     * Save a message.
+     * @param channelID ID for channel.
+     * @param messageID ID for message.
+     * @param metadata  Content of the Metadata.
+     * @param payload   Content of the Payload.
+     * @throws Exception if the message cannot be saved.
+     */
+    void save(String channelID, String messageID, Content metadata, Content payload)
+            throws Exception;
+
+    /**
+     * Opens the stored Metadata of a message.
+     * @param channelID ID of the Channel.
+     * @param messageID ID of the Message.
+     * @return stream over the Metadata.
+     * @throws Exception if the message cannot be read.
+     */
+    InputStream openMetadata(String channelID, String messageID) throws Exception;
+
+    /**
+     * Opens the stored Payload of a message.
+     * @param channelID ID of the Channel.
+     * @param messageID ID of the Message.
+     * @return stream over the Payload.
+     * @throws Exception if the message cannot be read.
+     */
+    InputStream openPayload(String channelID, String messageID) throws Exception;
+
+    /**
+     * Maps the stored Payload of a message, read-only.
+     * @param channelID ID of the Channel.
+     * @param messageID ID of the Message.
+     * @return read-only buffer over the Payload.
+     * @throws Exception if the message cannot be read.
+     */
+    ByteBuffer mapPayload(String channelID, String messageID) throws Exception;
+
+    /**
+     * Writes the stored Payload of a message to a channel, without copying
+     * it through the Java heap where the store allows it.
+     * @param channelID ID of the Channel.
+     * @param messageID ID of the Message.
+     * @param target    Channel to write the Payload to.
+     * @return number of bytes written.
+     * @throws Exception if the message cannot be read or written.
+     */
+    long transferPayload(String channelID, String messageID, WritableByteChannel target)
+            throws Exception;
+
+    /**
+     * Delete a message.
+     * @param channelID ID of the Channel.
+     * @param messageID ID of the Message.
+     * @return true if the message was found and removed.
+     * @throws Exception if the message cannot be deleted.
+     */
+    boolean delete(String channelID, String messageID) throws Exception;
+
+    /**
+     * Get the IDs of the messages stored for a channel.
+     * @param channelID ID of the Channel.
+     * @return message IDs, oldest first where the store knows the order.
+     * @throws Exception if the channel cannot be read.
+     */
+    List<String> getMessageIDs(String channelID) throws Exception;
+
+    /**
+     * Returns the length of the Payload of a message, as read by openPayload.
+     * @param channelID ID of the Channel.
+     * @param messageID ID of the Message.
+     * @return length in bytes.
+     * @throws Exception if the message cannot be read.
+     */
+    long getPayloadLength(String channelID, String messageID) throws Exception;
+
+    /**
+     * Returns the time in which a message was stored.
+     * @param channelID ID of the Channel.
+     * @param messageID ID of the Message.
+     * @return time in milliseconds.
+     * @throws Exception if the message cannot be read.
+     */
+    long getCreationTime(String channelID, String messageID) throws Exception;
+}
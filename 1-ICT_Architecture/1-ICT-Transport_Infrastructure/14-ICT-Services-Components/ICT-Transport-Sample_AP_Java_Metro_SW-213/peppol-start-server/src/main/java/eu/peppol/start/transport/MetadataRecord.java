@@ -0,0 +1,451 @@
+/*
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package eu.peppol.start.transport;
+
+import eu.peppol.start.metadata.MessageMetadata;
+import eu.peppol.start.soap.SOAPHeaderObject;
+import eu.peppol.start.soap.handler.TransportHeaderReader;
+import eu.peppol.start.util.XMLToolkit;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.util.Date;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+import org.busdox.servicemetadata.types.DocumentIdentifierType;
+import org.busdox.servicemetadata.types.ParticipantIdentifierType;
+import org.busdox.servicemetadata.types.ProcessIdentifierType;
+import org.busdox.transport.Identifiers.Identifiers;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * Binary record of the metadata of a stored message.
+ * <p>
+ * The record starts with a magic number and a version, followed by the
+ * receive time and the identifiers of the message, each one as a presence
+ * flag and a modified UTF-8 string. It is written and read with
+ * DataOutputStream and DataInputStream only; toDocument gives the XML view
+ * written by the xml metadata format.
+ */
+public final class MetadataRecord {
+
+    /**
+     * Magic number of a record. XML never starts with 0x89.
+     */
+    static final byte[] MAGIC = {(byte) 0x89, 'P', 'M'};
+
+    /**
+     * Version of the records written.
+     */
+    static final int VERSION = 1;
+
+    private final long receivedTime;
+
+    private final String messageId;
+
+    private final String channelId;
+
+    private final String headerChannelId;
+
+    private final String senderScheme;
+
+    private final String senderValue;
+
+    private final String recipientScheme;
+
+    private final String recipientValue;
+
+    private final String documentIdScheme;
+
+    private final String documentIdValue;
+
+    private final String processIdScheme;
+
+    private final String processIdValue;
+
+    /**
+     * Creates the record of a received message. The receive time is the
+     * creation date of the metadata.
+     * @param metadata      Object that represent the metadata of the message.
+     */
+    public MetadataRecord(MessageMetadata metadata) {
+        this((metadata.getCreateDate() != null)
+                ? metadata.getCreateDate().getTime() : System.currentTimeMillis(),
+                metadata.getMessageId(), metadata.getChannelId(),
+                (metadata.getSoapHeader() != null)
+                ? metadata.getSoapHeader().getChannelIdentifier() : metadata.getChannelId(),
+                metadata.getSenderScheme(), metadata.getSenderValue(),
+                metadata.getRecipientScheme(), metadata.getRecipientValue(),
+                metadata.getDocumentIdScheme(), metadata.getDocumentIdValue(),
+                metadata.getProcessIdScheme(), metadata.getProcessIdValue());
+    }
+
+    /**
+     * Creates the record of the headers of a message.
+     * @param soapHeader    Transport headers of the message.
+     * @param channelId     Channel the message is stored in.
+     * @param receivedTime  Time in which the message was received.
+     */
+    public MetadataRecord(SOAPHeaderObject soapHeader, String channelId, long receivedTime) {
+        this(receivedTime, soapHeader.getMessageIdentifier(), channelId,
+                soapHeader.getChannelIdentifier(),
+                scheme(soapHeader.getSenderIdentifier()), value(soapHeader.getSenderIdentifier()),
+                scheme(soapHeader.getRecipientIdentifier()), value(soapHeader.getRecipientIdentifier()),
+                (soapHeader.getDocumentIdentifier() != null) ? soapHeader.getDocumentIdentifier().getScheme() : null,
+                (soapHeader.getDocumentIdentifier() != null) ? soapHeader.getDocumentIdentifier().getValue() : null,
+                (soapHeader.getProcessIdentifier() != null) ? soapHeader.getProcessIdentifier().getScheme() : null,
+                (soapHeader.getProcessIdentifier() != null) ? soapHeader.getProcessIdentifier().getValue() : null);
+    }
+
+    private MetadataRecord(long receivedTime, String messageId, String channelId,
+            String headerChannelId, String senderScheme, String senderValue,
+            String recipientScheme, String recipientValue,
+            String documentIdScheme, String documentIdValue,
+            String processIdScheme, String processIdValue) {
+        this.receivedTime = receivedTime;
+        this.messageId = messageId;
+        this.channelId = channelId;
+        this.headerChannelId = headerChannelId;
+        this.senderScheme = senderScheme;
+        this.senderValue = senderValue;
+        this.recipientScheme = recipientScheme;
+        this.recipientValue = recipientValue;
+        this.documentIdScheme = documentIdScheme;
+        this.documentIdValue = documentIdValue;
+        this.processIdScheme = processIdScheme;
+        this.processIdValue = processIdValue;
+    }
+
+    /**
+     * Checks if stored metadata is a binary record.
+     * @param bytes First bytes of the stored metadata.
+     * @param length Number of bytes available.
+     * @return true if the bytes start with the magic number of a record.
+     */
+    public static boolean isRecord(byte[] bytes, int length) {
+        if (length < MAGIC.length) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (bytes[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads a record.
+     * @param in    Stream positioned on the record.
+     * @return the record.
+     * @throws IOException if the stream does not hold a supported record.
+     */
+    public static MetadataRecord read(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        byte[] magic = new byte[MAGIC.length];
+        data.readFully(magic);
+        if (!isRecord(magic, magic.length)) {
+            throw new IOException("Not a metadata record");
+        }
+        int version = data.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported metadata record version: " + version);
+        }
+        return new MetadataRecord(data.readLong(),
+                readString(data), readString(data), readString(data),
+                readString(data), readString(data),
+                readString(data), readString(data),
+                readString(data), readString(data),
+                readString(data), readString(data));
+    }
+
+    /**
+     * Reads the metadata of a stored message as a record, whichever format
+     * it was stored in. Metadata stored as XML is read with StAX; its
+     * message ID and receive time come from the store.
+     * @param store     Backend holding the message.
+     * @param channelID ID of the Channel.
+     * @param messageID ID of the Message.
+     * @return the record.
+     * @throws Exception if the metadata cannot be read.
+     */
+    static MetadataRecord load(MessageStore store, String channelID,
+                               String messageID) throws Exception {
+
+        PushbackInputStream in = new PushbackInputStream(
+                store.openMetadata(channelID, messageID), MAGIC.length);
+        try {
+            if (startsWithRecord(in)) {
+                return read(in);
+            }
+
+            SOAPHeaderObject soapHeader = new SOAPHeaderObject();
+            soapHeader.setMessageIdentifier(messageID);
+            XMLStreamReader reader = XMLToolkit.getXMLInputFactory().createXMLStreamReader(in);
+            try {
+                while (reader.hasNext()) {
+                    if (reader.next() == XMLStreamConstants.START_ELEMENT
+                            && TransportHeaderReader.isTransportHeader(reader.getLocalName())) {
+                        TransportHeaderReader.readHeader(reader, soapHeader);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+            return new MetadataRecord(soapHeader, channelID,
+                    store.getCreationTime(channelID, messageID));
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads the record of an XML metadata document, the view given by
+     * toDocument.
+     * @param metadataDocument  XML Document for Metadata.
+     * @param channelId         Channel the message is stored in.
+     * @param receivedTime      Time in which the message was received.
+     * @return the record.
+     */
+    static MetadataRecord parse(Document metadataDocument, String channelId,
+                                long receivedTime) {
+
+        SOAPHeaderObject soapHeader = new SOAPHeaderObject();
+        NodeList elements = metadataDocument.getElementsByTagNameNS(
+                Identifiers.NAMESPACE_TRANSPORT_IDS, "*");
+        for (int i = 0; i < elements.getLength(); i++) {
+            Element element = (Element) elements.item(i);
+            String value = element.getTextContent();
+            String scheme = element.getAttribute(Identifiers.SCHEME_ATTR);
+            TransportHeaderReader.setHeader(element.getLocalName(),
+                    (value != null && value.length() > 0) ? value : null,
+                    (scheme.length() > 0) ? scheme : null, soapHeader);
+        }
+        return new MetadataRecord(soapHeader, channelId, receivedTime);
+    }
+
+    /**
+     * Checks if stored metadata is a record, leaving the stream at its start.
+     */
+    static boolean startsWithRecord(PushbackInputStream in) throws IOException {
+        byte[] magic = new byte[MAGIC.length];
+        int n = 0;
+        int read;
+        while (n < magic.length && (read = in.read(magic, n, magic.length - n)) != -1) {
+            n += read;
+        }
+        in.unread(magic, 0, n);
+        return isRecord(magic, n);
+    }
+
+    /**
+     * Writes the record.
+     * @param out   Stream to write to.
+     * @throws IOException if the stream cannot be written.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.write(MAGIC);
+        data.writeByte(VERSION);
+        data.writeLong(receivedTime);
+        writeString(data, messageId);
+        writeString(data, channelId);
+        writeString(data, headerChannelId);
+        writeString(data, senderScheme);
+        writeString(data, senderValue);
+        writeString(data, recipientScheme);
+        writeString(data, recipientValue);
+        writeString(data, documentIdScheme);
+        writeString(data, documentIdValue);
+        writeString(data, processIdScheme);
+        writeString(data, processIdValue);
+        data.flush();
+    }
+
+    /**
+     * Returns the transport headers held by the record.
+     * @return a new SOAPHeaderObject.
+     */
+    public SOAPHeaderObject toSoapHeader() {
+        SOAPHeaderObject header = new SOAPHeaderObject();
+        header.setMessageIdentifier(messageId);
+        header.setChannelIdentifier(headerChannelId);
+
+        ParticipantIdentifierType sender = new ParticipantIdentifierType();
+        sender.setScheme(senderScheme);
+        sender.setValue(senderValue);
+        header.setSenderIdentifier(sender);
+
+        ParticipantIdentifierType recipient = new ParticipantIdentifierType();
+        recipient.setScheme(recipientScheme);
+        recipient.setValue(recipientValue);
+        header.setRecipientIdentifier(recipient);
+
+        DocumentIdentifierType document = new DocumentIdentifierType();
+        document.setScheme(documentIdScheme);
+        document.setValue(documentIdValue);
+        header.setDocumentIdentifier(document);
+
+        ProcessIdentifierType process = new ProcessIdentifierType();
+        process.setScheme(processIdScheme);
+        process.setValue(processIdValue);
+        header.setProcessIdentifier(process);
+        return header;
+    }
+
+    /**
+     * Returns the metadata held by the record.
+     * @return a new MessageMetadata.
+     */
+    public MessageMetadata toMessageMetadata() {
+        MessageMetadata metadata = new MessageMetadata(toSoapHeader());
+        metadata.setChannelId(channelId);
+        metadata.setCreateDate(new Date(receivedTime));
+        return metadata;
+    }
+
+    /**
+     * Returns the XML view of the record, as written by the xml metadata
+     * format.
+     * @return the metadata Document.
+     */
+    public Document toDocument() {
+        return SOAPHeaderObject.getDocument(toSoapHeader());
+    }
+
+    /**
+     * @return Time in which the message was received.
+     */
+    public long getReceivedTime() {
+        return receivedTime;
+    }
+
+    /**
+     * @return Message identifier.
+     */
+    public String getMessageId() {
+        return messageId;
+    }
+
+    /**
+     * @return Channel the message is stored in.
+     */
+    public String getChannelId() {
+        return channelId;
+    }
+
+    /**
+     * @return Scheme of the sender's participant identifier.
+     */
+    public String getSenderScheme() {
+        return senderScheme;
+    }
+
+    /**
+     * @return Value of the sender's participant identifier.
+     */
+    public String getSenderValue() {
+        return senderValue;
+    }
+
+    /**
+     * @return Scheme of the recipient's participant identifier.
+     */
+    public String getRecipientScheme() {
+        return recipientScheme;
+    }
+
+    /**
+     * @return Value of the recipient's participant identifier.
+     */
+    public String getRecipientValue() {
+        return recipientValue;
+    }
+
+    /**
+     * @return Scheme of the document identifier.
+     */
+    public String getDocumentIdScheme() {
+        return documentIdScheme;
+    }
+
+    /**
+     * @return Value of the document identifier.
+     */
+    public String getDocumentIdValue() {
+        return documentIdValue;
+    }
+
+    /**
+     * @return Scheme of the process identifier.
+     */
+    public String getProcessIdScheme() {
+        return processIdScheme;
+    }
+
+    /**
+     * @return Value of the process identifier.
+     */
+    public String getProcessIdValue() {
+        return processIdValue;
+    }
+
+    private static String scheme(ParticipantIdentifierType participant) {
+        return (participant != null) ? participant.getScheme() : null;
+    }
+
+    private static String value(ParticipantIdentifierType participant) {
+        return (participant != null) ? participant.getValue() : null;
+    }
+
+    private static void writeString(DataOutputStream data, String value) throws IOException {
+        data.writeBoolean(value != null);
+        if (value != null) {
+            data.writeUTF(value);
+        }
+    }
+
+    private static String readString(DataInputStream data) throws IOException {
+        return data.readBoolean() ? data.readUTF() : null;
+    }
+}
@@ -0,0 +1,951 @@
+/*
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package eu.peppol.start.transport;
+
+import eu.peppol.start.util.Configuration;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * MessageStore spreading the channels of an inbox over several nodes.
+ * <p>
+ * Channels are assigned to nodes with a ConsistentHashRing, and every
+ * operation is forwarded to the store of the node owning the channel: the
+ * local store for this node, a RemoteMessageStore (talking to the
+ * InboxNodeServlet of the node) for the others. A backend can therefore
+ * poll a recipient on any node.
+ * <p>
+ * A node starts with itself alone on the ring and adds the other nodes as
+ * they answer its announce or announce themselves, so that a node down at
+ * start is not given channels. When a node joins or leaves, the ring is
+ * changed at once and each node then moves, on a background thread, the
+ * channels of its local store it no longer owns to their new owner,
+ * copying every message before deleting it; a message already on
+ * the target, left by an interrupted move, is not copied again. Reads that
+ * miss on the owner fall back to the owners of the rings replaced during
+ * the last inbox.partition.rebalance.window.millis, so messages stay
+ * readable while the nodes rebalance. The channels of the local store and
+ * the last rings are kept in files under &lt;store&gt;/partition, as the
+ * store has no listing of its channels and a restarted node must still
+ * find the channels that were moving.
+ * <p>
+ * Each node expires the messages of its local store with its own
+ * InboxExpirySweeper. The InboxIndex and the MessageIdIndex are kept per
+ * node and would miss the messages saved through the other nodes, so
+ * inbox.index.enabled and inbox.dedup.enabled are ignored on a partitioned
+ * inbox: queries read the metadata and duplicates are stored again.
+ * <p>
+ * Limits: a node that goes down after joining stays on the ring of the
+ * others, so saves to its channels fail (and the senders retry) until it
+ * is back or removed with removeNode; and the reads only fall back to the
+ * owners of the last MAX_PREVIOUS_RINGS rings within the window, so a
+ * channel not moved by then, because its owner was unreachable, is only
+ * readable again once moved.
+ */
+public class PartitionedMessageStore implements MessageStore {
+
+    /**
+     * Directory of the partition state, under the store path.
+     */
+    public static final String PARTITION_DIR = "partition";
+
+    /**
+     * File listing the channels of the local store.
+     */
+    private static final String CHANNELS_FILE = "channels";
+
+    /**
+     * File listing the nodes of the current and last rings.
+     */
+    private static final String RINGS_FILE = "rings";
+
+    /**
+     * Number of previous rings the reads fall back to.
+     */
+    public static final int MAX_PREVIOUS_RINGS = 8;
+
+    /**
+     * Default points of each node on the ring.
+     */
+    public static final int DEFAULT_VIRTUAL_NODES = 128;
+
+    /**
+     * Default time during which the reads fall back to the owners of a
+     * replaced ring.
+     */
+    public static final long DEFAULT_REBALANCE_WINDOW_MILLIS = 3600000L;
+
+    /**
+     * Default timeout of the requests to the other nodes.
+     */
+    public static final int DEFAULT_TIMEOUT_MILLIS = 30000;
+
+    /**
+     * Logger to follow this class behavior.
+     */
+    private static org.apache.log4j.Logger logger =
+            org.apache.log4j.Logger.getLogger(PartitionedMessageStore.class);
+
+    /**
+     * Open stores by absolute store path.
+     */
+    private static final ConcurrentMap<String, PartitionedMessageStore> STORES =
+            new ConcurrentHashMap<String, PartitionedMessageStore>();
+
+    /**
+     * Name of this node.
+     */
+    private final String localNode;
+
+    /**
+     * Store of the channels this node holds.
+     */
+    private final MessageStore local;
+
+    /**
+     * View of the local store recording its channels.
+     */
+    private final MessageStore localView = new LocalStore();
+
+    /**
+     * Stores by node name.
+     */
+    private final ConcurrentMap<String, MessageStore> nodes =
+            new ConcurrentHashMap<String, MessageStore>();
+
+    /**
+     * Stores of the configured nodes, added to the ring once they answer.
+     */
+    private final Map<String, MessageStore> configuredNodes =
+            new ConcurrentHashMap<String, MessageStore>();
+
+    /**
+     * URLs of the node servlets by node name, as configured.
+     */
+    private final Map<String, String> nodeURLs = new LinkedHashMap<String, String>();
+
+    /**
+     * File listing the channels of the local store.
+     */
+    private final File channelsFile;
+
+    /**
+     * File listing the nodes of the current and last rings.
+     */
+    private final File ringsFile;
+
+    /**
+     * Points of each node on the ring.
+     */
+    private final int virtualNodes;
+
+    /**
+     * Channels of the local store.
+     */
+    private final Set<String> localChannels =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * Current assignment of the channels.
+     */
+    private volatile ConsistentHashRing ring;
+
+    /**
+     * Assignments before the last ring changes, most recent first, for the
+     * reads of channels that may not have moved yet.
+     */
+    private volatile List<PreviousRing> previous;
+
+    /**
+     * Sweeper of the local store, if started.
+     */
+    private volatile InboxExpirySweeper sweeper;
+
+    /**
+     * Time during which the reads fall back to the owners of a replaced ring.
+     */
+    private long rebalanceWindowMillis = DEFAULT_REBALANCE_WINDOW_MILLIS;
+
+    /**
+     * Guards the rebalances, so that the ring can change during a move.
+     */
+    private final Object rebalanceLock = new Object();
+
+    /**
+     * Set while a background rebalance is waiting to start.
+     */
+    private final AtomicBoolean rebalancePending = new AtomicBoolean();
+
+    /**
+     * Thread of the background rebalances, stopped when idle.
+     */
+    private final ThreadPoolExecutor rebalancer;
+
+    /**
+     * Returns the partitioned store of a path, built from the
+     * inbox.partition.* properties on first use.
+     * @param storePath Path of the store.
+     * @return the shared store of that path.
+     * @throws IllegalStateException if inbox.partition.nodes is not set.
+     */
+    public static PartitionedMessageStore getInstance(String storePath) {
+        String key = new File(storePath).getAbsolutePath();
+        PartitionedMessageStore store = STORES.get(key);
+        if (store == null) {
+            synchronized (STORES) {
+                store = STORES.get(key);
+                if (store == null) {
+                    store = create(key);
+                    STORES.put(key, store);
+                }
+            }
+        }
+        return store;
+    }
+
+    /**
+     * Checks if the inbox is partitioned, that is, if inbox.partition.nodes is set.
+     * @return true if the inbox is partitioned.
+     */
+    public static boolean isEnabled() {
+        String nodes = Configuration.getInstance().getProperty("inbox.partition.nodes");
+        return nodes != null && nodes.trim().length() > 0;
+    }
+
+    /**
+     * Returns the secret shared by the nodes, inbox.partition.secret.
+     * @return the secret, or null if not set.
+     */
+    public static String getSecret() {
+        String secret = Configuration.getInstance().getProperty("inbox.partition.secret");
+        return (secret != null && secret.trim().length() > 0) ? secret.trim() : null;
+    }
+
+    private static PartitionedMessageStore create(String storePath) {
+        Configuration conf = Configuration.getInstance();
+        String localNode = conf.getProperty("inbox.partition.node");
+        String nodeList = conf.getProperty("inbox.partition.nodes");
+        if (localNode == null || localNode.trim().length() == 0
+                || nodeList == null || nodeList.trim().length() == 0) {
+            throw new IllegalStateException(
+                    "inbox.partition.node and inbox.partition.nodes must be set");
+        }
+        String points = conf.getProperty("inbox.partition.virtual.nodes");
+        int virtualNodes = (points != null && points.trim().length() > 0)
+                ? Integer.parseInt(points.trim()) : DEFAULT_VIRTUAL_NODES;
+        String timeout = conf.getProperty("inbox.partition.timeout.millis");
+        int timeoutMillis = (timeout != null && timeout.trim().length() > 0)
+                ? Integer.parseInt(timeout.trim()) : DEFAULT_TIMEOUT_MILLIS;
+        String window = conf.getProperty("inbox.partition.rebalance.window.millis");
+        String secret = getSecret();
+        if (secret == null) {
+            throw new IllegalStateException("inbox.partition.secret must be set");
+        }
+
+        PartitionedMessageStore store = new PartitionedMessageStore(localNode.trim(),
+                TransportChannel.createLocalStore(storePath),
+                new File(storePath, PARTITION_DIR), virtualNodes);
+        store.rebalanceWindowMillis = (window != null && window.trim().length() > 0)
+                ? Long.parseLong(window.trim()) : DEFAULT_REBALANCE_WINDOW_MILLIS;
+
+        for (String entry : nodeList.split(",")) {
+            int separator = entry.indexOf('=');
+            if (separator <= 0) {
+                throw new IllegalArgumentException("Invalid inbox.partition.nodes entry: " + entry);
+            }
+            String name = entry.substring(0, separator).trim();
+            String url = entry.substring(separator + 1).trim();
+            if (!url.toLowerCase().startsWith("https://")) {
+                throw new IllegalArgumentException("Inbox node URL must be https: " + url);
+            }
+            store.nodeURLs.put(name, url);
+            if (!name.equals(store.localNode)) {
+                store.configureNode(name, new RemoteMessageStore(url, secret, timeoutMillis));
+            }
+        }
+        // each node expires the messages it holds
+        store.sweeper = InboxExpirySweeper.getInstance(storePath, store.localView);
+        for (String channelID : store.localChannels) {
+            store.sweeper.track(channelID);
+        }
+        if (Boolean.valueOf(conf.getProperty("inbox.index.enabled")).booleanValue()
+                || Boolean.valueOf(conf.getProperty("inbox.dedup.enabled")).booleanValue()) {
+            logger.warn("inbox.index.enabled and inbox.dedup.enabled are ignored"
+                    + " on a partitioned inbox");
+        }
+        logger.info("Partitioned inbox " + storePath + " on node " + store.localNode
+                + " of " + store.nodeURLs.keySet());
+        return store;
+    }
+
+    /**
+     * Creates a store holding all the channels on the local node; the
+     * other nodes are added with addNode.
+     * @param localNode    Name of this node.
+     * @param local        Store of the channels this node holds.
+     * @param dir          Directory of the partition state.
+     * @param virtualNodes Points of each node on the ring.
+     * @throws IllegalStateException if the partition state cannot be read.
+     */
+    PartitionedMessageStore(final String localNode, final MessageStore local,
+                            final File dir, final int virtualNodes) {
+        this.localNode = localNode;
+        this.local = local;
+        this.channelsFile = new File(dir, CHANNELS_FILE);
+        this.ringsFile = new File(dir, RINGS_FILE);
+        this.virtualNodes = virtualNodes;
+        this.nodes.put(localNode, localView);
+        this.ring = new ConsistentHashRing(Collections.singleton(localNode), virtualNodes);
+        this.rebalancer = new ThreadPoolExecutor(1, 1, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "inbox-partition-rebalance");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        this.rebalancer.allowCoreThreadTimeOut(true);
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IllegalStateException("Cannot create the partition directory: "
+                    + dir.getAbsolutePath());
+        }
+        try {
+            for (String channelID : readLines(channelsFile)) {
+                localChannels.add(channelID);
+            }
+            // the ring current when the node stopped is replaced now
+            long now = System.currentTimeMillis();
+            List<PreviousRing> rings = new ArrayList<PreviousRing>();
+            for (String line : readLines(ringsFile)) {
+                int separator = line.indexOf(' ');
+                long replaced = Long.parseLong(line.substring(0, separator));
+                if (rings.size() < MAX_PREVIOUS_RINGS) {
+                    rings.add(new PreviousRing(new ConsistentHashRing(Arrays.asList(
+                            line.substring(separator + 1).split(",")), virtualNodes),
+                            (replaced < 0) ? now : replaced));
+                }
+            }
+            this.previous = Collections.unmodifiableList(rings);
+        } catch (IOException ex) {
+            throw new IllegalStateException("Cannot read the partition state in "
+                    + dir.getAbsolutePath(), ex);
+        }
+    }
+
+    /**
+     * Returns the name of this node.
+     * @return the node name.
+     */
+    public String getLocalNode() {
+        return localNode;
+    }
+
+    /**
+     * Returns the node owning a channel.
+     * @param channelID ID of the Channel.
+     * @return name of the node.
+     */
+    public String getNode(final String channelID) {
+        return ring.getNode(channelID);
+    }
+
+    /**
+     * Returns the URLs of the node servlets, as configured.
+     * @return URLs by node name.
+     */
+    public Map<String, String> getNodeURLs() {
+        return Collections.unmodifiableMap(nodeURLs);
+    }
+
+    /**
+     * Returns the store of a node.
+     * @param name Name of the node.
+     * @return the store, or null if the node is unknown.
+     */
+    public MessageStore getNodeStore(final String name) {
+        MessageStore store = nodes.get(name);
+        return (store != null) ? store : configuredNodes.get(name);
+    }
+
+    /**
+     * Returns the store of this node, as served to the other nodes. It
+     * does not forward anything.
+     * @return the local store.
+     */
+    public MessageStore getLocalStore() {
+        return localView;
+    }
+
+    /**
+     * Adds a node to the ring, then moves the local channels it now owns
+     * on a background thread.
+     * @param name  Name of the node.
+     * @param store Store of the node.
+     */
+    public void addNode(final String name, final MessageStore store) {
+        synchronized (this) {
+            nodes.put(name, store);
+            if (!ring.getNodes().contains(name)) {
+                setRing(ring.withNode(name));
+                logger.info("Node " + name + " joined the partitioned inbox");
+            }
+        }
+        rebalanceLater();
+    }
+
+    /**
+     * Removes a node from the ring, then moves the local channels it no
+     * longer owns on a background thread. On the leaving node itself this
+     * hands over all its channels, so the store of a node must not be
+     * removed before it has left.
+     * @param name Name of the node.
+     */
+    public void removeNode(final String name) {
+        synchronized (this) {
+            if (ring.getNodes().contains(name)) {
+                setRing(ring.withoutNode(name));
+                logger.info("Node " + name + " left the partitioned inbox");
+            }
+        }
+        rebalanceLater();
+    }
+
+    /**
+     * Starts a rebalance on the background thread, unless one is already
+     * waiting to start; a ring change during a rebalance starts another.
+     */
+    public void rebalanceLater() {
+        if (rebalancePending.compareAndSet(false, true)) {
+            rebalancer.execute(new Runnable() {
+
+                public void run() {
+                    rebalancePending.set(false);
+                    try {
+                        rebalance();
+                    } catch (RuntimeException ex) {
+                        logger.error("Rebalance of node " + localNode + " failed", ex);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Replaces the ring, keeping the current one in the previous rings.
+     */
+    private void setRing(final ConsistentHashRing next) {
+        List<PreviousRing> rings = new ArrayList<PreviousRing>();
+        rings.add(new PreviousRing(ring, System.currentTimeMillis()));
+        for (PreviousRing before : previous) {
+            if (rings.size() < MAX_PREVIOUS_RINGS) {
+                rings.add(before);
+            }
+        }
+        previous = Collections.unmodifiableList(rings);
+        ring = next;
+
+        List<String> lines = new ArrayList<String>();
+        lines.add("-1 " + join(next.getNodes()));
+        for (PreviousRing saved : rings) {
+            if (lines.size() < MAX_PREVIOUS_RINGS) {
+                lines.add(saved.replaced + " " + join(saved.ring.getNodes()));
+            }
+        }
+        try {
+            writeLines(ringsFile, lines);
+        } catch (IOException ex) {
+            logger.warn("Rings not saved in " + ringsFile.getAbsolutePath()
+                    + ": " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Adds a node to those announced to; it joins the ring once it answers.
+     * @param name  Name of the node.
+     * @param store Store of the node.
+     */
+    void configureNode(final String name, final MessageStore store) {
+        configuredNodes.put(name, store);
+    }
+
+    /**
+     * Returns the configured nodes not on the ring yet.
+     * @return names of the nodes.
+     */
+    public synchronized Set<String> getMissingNodes() {
+        Set<String> missing = new LinkedHashSet<String>(configuredNodes.keySet());
+        missing.removeAll(ring.getNodes());
+        return missing;
+    }
+
+    /**
+     * Tells the configured nodes not on the ring yet that this node is up,
+     * so that they move the channels it owns to it, and adds to the ring
+     * those that answer.
+     * @return number of configured nodes still not on the ring.
+     */
+    public int announce() {
+        String localURL = nodeURLs.get(localNode);
+        if (localURL == null) {
+            return 0;
+        }
+        for (String name : getMissingNodes()) {
+            MessageStore store = configuredNodes.get(name);
+            try {
+                if (store instanceof RemoteMessageStore) {
+                    ((RemoteMessageStore) store).join(localNode, localURL);
+                }
+                addNode(name, store);
+            } catch (Exception ex) {
+                logger.warn("Node " + name + " not told of " + localNode
+                        + ": " + ex.getMessage());
+            }
+        }
+        return getMissingNodes().size();
+    }
+
+    /**
+     * Moves the channels of the local store owned by other nodes. A
+     * channel stays listed while messages are left in it, so that a
+     * message saved during the move is moved on the next rebalance.
+     * Saves to the local store and ring changes are not blocked meanwhile.
+     * A channel whose owner cannot be reached is left here until the next
+     * rebalance.
+     * @return number of messages moved.
+     */
+    public int rebalance() {
+        synchronized (rebalanceLock) {
+            return moveChannels();
+        }
+    }
+
+    private int moveChannels() {
+        int moved = 0;
+        for (String channelID : new ArrayList<String>(localChannels)) {
+            String owner = ring.getNode(channelID);
+            MessageStore target = (owner != null) ? nodes.get(owner) : null;
+            if (owner == null || owner.equals(localNode) || target == null) {
+                continue;
+            }
+            try {
+                for (String messageID : local.getMessageIDs(channelID)) {
+                    move(channelID, messageID, target);
+                    moved++;
+                }
+                localChannels.remove(channelID);
+                if (!local.getMessageIDs(channelID).isEmpty()) {
+                    localChannels.add(channelID);
+                }
+                writeChannels();
+            } catch (Exception ex) {
+                logger.warn("Channel " + channelID + " not moved to node " + owner
+                        + ": " + ex.getMessage());
+            }
+        }
+        if (moved > 0) {
+            logger.info("Messages moved from node " + localNode + ": " + moved);
+        }
+        return moved;
+    }
+
+    /**
+     * Copies a message to another node, then deletes it here. A complete
+     * copy left on the target by an interrupted move is kept, a partial one
+     * is replaced.
+     */
+    private void move(final String channelID, final String messageID,
+                      final MessageStore target) throws Exception {
+        long length = local.getPayloadLength(channelID, messageID);
+        long copied;
+        try {
+            target.openMetadata(channelID, messageID).close();
+            copied = target.getPayloadLength(channelID, messageID);
+        } catch (FileNotFoundException ex) {
+            copied = -1;
+        }
+        if (copied == length) {
+            local.delete(channelID, messageID);
+            return;
+        }
+        if (copied >= 0) {
+            target.delete(channelID, messageID);
+        }
+        target.save(channelID, messageID, new MessageStore.Content() {
+
+            public void writeTo(OutputStream out) throws Exception {
+                copy(local.openMetadata(channelID, messageID), out);
+            }
+        }, new MessageStore.Content() {
+
+            public void writeTo(OutputStream out) throws Exception {
+                copy(local.openPayload(channelID, messageID), out);
+            }
+        });
+        local.delete(channelID, messageID);
+    }
+
+    public void save(String channelID, String messageID,
+                     Content metadata, Content payload) throws Exception {
+        owner(channelID, ring).save(channelID, messageID, metadata, payload);
+    }
+
+    public InputStream openMetadata(final String channelID, final String messageID)
+            throws Exception {
+        return read(channelID, new Read<InputStream>() {
+
+            InputStream from(MessageStore store) throws Exception {
+                return store.openMetadata(channelID, messageID);
+            }
+        });
+    }
+
+    public InputStream openPayload(final String channelID, final String messageID)
+            throws Exception {
+        return read(channelID, new Read<InputStream>() {
+
+            InputStream from(MessageStore store) throws Exception {
+                return store.openPayload(channelID, messageID);
+            }
+        });
+    }
+
+    public ByteBuffer mapPayload(final String channelID, final String messageID)
+            throws Exception {
+        return read(channelID, new Read<ByteBuffer>() {
+
+            ByteBuffer from(MessageStore store) throws Exception {
+                return store.mapPayload(channelID, messageID);
+            }
+        });
+    }
+
+    public long transferPayload(final String channelID, final String messageID,
+                                final WritableByteChannel target) throws Exception {
+        return read(channelID, new Read<Long>() {
+
+            Long from(MessageStore store) throws Exception {
+                return Long.valueOf(store.transferPayload(channelID, messageID, target));
+            }
+        }).longValue();
+    }
+
+    public boolean delete(String channelID, String messageID) throws Exception {
+        ConsistentHashRing current = ring;
+        boolean removed = owner(channelID, current).delete(channelID, messageID);
+        for (MessageStore before : previousOwners(channelID, current)) {
+            if (before.delete(channelID, messageID)) {
+                removed = true;
+            }
+        }
+        return removed;
+    }
+
+    public List<String> getMessageIDs(String channelID) throws Exception {
+        ConsistentHashRing current = ring;
+        List<String> ids = owner(channelID, current).getMessageIDs(channelID);
+        List<MessageStore> before = previousOwners(channelID, current);
+        if (before.isEmpty()) {
+            return ids;
+        }
+        Set<String> merged = new LinkedHashSet<String>();
+        for (MessageStore store : before) {
+            merged.addAll(store.getMessageIDs(channelID));
+        }
+        merged.addAll(ids);
+        return new ArrayList<String>(merged);
+    }
+
+    public long getPayloadLength(final String channelID, final String messageID)
+            throws Exception {
+        return read(channelID, new Read<Long>() {
+
+            Long from(MessageStore store) throws Exception {
+                return Long.valueOf(store.getPayloadLength(channelID, messageID));
+            }
+        }).longValue();
+    }
+
+    public long getCreationTime(final String channelID, final String messageID)
+            throws Exception {
+        return read(channelID, new Read<Long>() {
+
+            Long from(MessageStore store) throws Exception {
+                return Long.valueOf(store.getCreationTime(channelID, messageID));
+            }
+        }).longValue();
+    }
+
+    /**
+     * Read of a message from one node.
+     */
+    private abstract static class Read<T> {
+
+        abstract T from(MessageStore store) throws Exception;
+    }
+
+    /**
+     * Reads a message from the owner of its channel, falling back to the
+     * previous owners when the channel may not have moved yet.
+     */
+    private <T> T read(String channelID, Read<T> read) throws Exception {
+        ConsistentHashRing current = ring;
+        try {
+            return read.from(owner(channelID, current));
+        } catch (FileNotFoundException ex) {
+            for (MessageStore before : previousOwners(channelID, current)) {
+                try {
+                    return read.from(before);
+                } catch (FileNotFoundException missing) {
+                    logger.debug("Message not on a previous owner of " + channelID);
+                }
+            }
+            throw ex;
+        }
+    }
+
+    private MessageStore owner(String channelID, ConsistentHashRing current) throws IOException {
+        String name = current.getNode(channelID);
+        MessageStore store = (name != null) ? nodes.get(name) : null;
+        if (store == null) {
+            throw new IOException("No inbox node for channel " + channelID);
+        }
+        return store;
+    }
+
+    /**
+     * Returns the known previous owners of a channel other than its owner.
+     */
+    private List<MessageStore> previousOwners(String channelID, ConsistentHashRing current) {
+        String owner = current.getNode(channelID);
+        long oldest = System.currentTimeMillis() - rebalanceWindowMillis;
+        Set<String> names = new LinkedHashSet<String>();
+        for (PreviousRing before : previous) {
+            String name = before.ring.getNode(channelID);
+            if (before.replaced >= oldest && name != null && !name.equals(owner)) {
+                names.add(name);
+            }
+        }
+        List<MessageStore> stores = new ArrayList<MessageStore>();
+        for (String name : names) {
+            MessageStore store = nodes.get(name);
+            if (store == null) {
+                store = configuredNodes.get(name);
+            }
+            if (store != null) {
+                stores.add(store);
+            }
+        }
+        return stores;
+    }
+
+    /**
+     * Ring replaced by a ring change.
+     */
+    private static final class PreviousRing {
+
+        private final ConsistentHashRing ring;
+
+        /**
+         * Time the ring was replaced.
+         */
+        private final long replaced;
+
+        PreviousRing(final ConsistentHashRing ring, final long replaced) {
+            this.ring = ring;
+            this.replaced = replaced;
+        }
+    }
+
+    /**
+     * Local store recording the channels it holds.
+     */
+    private final class LocalStore implements MessageStore {
+
+        public void save(String channelID, String messageID,
+                         Content metadata, Content payload) throws Exception {
+            if (localChannels.add(channelID)) {
+                writeChannels();
+            }
+            local.save(channelID, messageID, metadata, payload);
+            // listed again if a rebalance dropped the channel meanwhile
+            if (localChannels.add(channelID)) {
+                writeChannels();
+            }
+            InboxExpirySweeper current = sweeper;
+            if (current != null) {
+                current.schedule(channelID, messageID, System.currentTimeMillis());
+            }
+        }
+
+        public InputStream openMetadata(String channelID, String messageID) throws Exception {
+            return local.openMetadata(channelID, messageID);
+        }
+
+        public InputStream openPayload(String channelID, String messageID) throws Exception {
+            return local.openPayload(channelID, messageID);
+        }
+
+        public ByteBuffer mapPayload(String channelID, String messageID) throws Exception {
+            return local.mapPayload(channelID, messageID);
+        }
+
+        public long transferPayload(String channelID, String messageID,
+                                    WritableByteChannel target) throws Exception {
+            return local.transferPayload(channelID, messageID, target);
+        }
+
+        public boolean delete(String channelID, String messageID) throws Exception {
+            return local.delete(channelID, messageID);
+        }
+
+        public List<String> getMessageIDs(String channelID) throws Exception {
+            return local.getMessageIDs(channelID);
+        }
+
+        public long getPayloadLength(String channelID, String messageID) throws Exception {
+            return local.getPayloadLength(channelID, messageID);
+        }
+
+        public long getCreationTime(String channelID, String messageID) throws Exception {
+            return local.getCreationTime(channelID, messageID);
+        }
+    }
+
+    private static List<String> readLines(File file) throws IOException {
+        List<String> lines = new ArrayList<String>();
+        if (!file.exists()) {
+            return lines;
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.length() > 0) {
+                    lines.add(line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return lines;
+    }
+
+    /**
+     * Rewrites the list of the local channels.
+     */
+    private void writeChannels() throws IOException {
+        synchronized (channelsFile) {
+            writeLines(channelsFile, localChannels);
+        }
+    }
+
+    /**
+     * Replaces a file with the given lines.
+     */
+    private static void writeLines(File file, Collection<String> lines) throws IOException {
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        Writer writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(tmp), "UTF-8"));
+        try {
+            for (String line : lines) {
+                writer.write(line + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Cannot replace " + file.getAbsolutePath());
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Cannot replace " + file.getAbsolutePath());
+        }
+    }
+
+    private static String join(Collection<String> values) {
+        StringBuilder joined = new StringBuilder();
+        for (String value : values) {
+            if (joined.length() > 0) {
+                joined.append(',');
+            }
+            joined.append(value);
+        }
+        return joined.toString();
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        try {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package eu.peppol.start.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Compression codec of the messages kept by a CompressingMessageStore.
+ * <p>
+ * The compressed stream must be self-delimiting: the store appends its own
+ * trailer after it, which decompress must not return. The name of the
+ * codec is stored with every message; a codec other than "deflate" must
+ * use its class name, and be configured in inbox.compression or
+ * inbox.compression.codecs for its messages to be read.
+ */
+public interface PayloadCodec {
+
+    /**
+     * Returns the name stored with the messages written by this codec.
+     * @return name of the codec.
+     */
+    String getName();
+
+    /**
+     * Returns a stream compressing into the given one. Closing the
+     * returned stream finishes the compressed data and closes out.
+     * @param out   Stream receiving the compressed data.
+     * @return stream to write the uncompressed data to.
+     * @throws IOException if the stream cannot be created.
+     */
+    OutputStream compress(OutputStream out) throws IOException;
+
+    /**
+     * Returns a stream decompressing the given one.
+     * @param in    Stream over the compressed data.
+     * @return stream over the uncompressed data.
+     * @throws IOException if the stream cannot be created.
+     */
+    InputStream decompress(InputStream in) throws IOException;
+}
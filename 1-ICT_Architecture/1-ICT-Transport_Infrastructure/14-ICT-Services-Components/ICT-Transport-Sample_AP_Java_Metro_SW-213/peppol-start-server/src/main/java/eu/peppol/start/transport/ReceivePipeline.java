@@ -0,0 +1,458 @@
+/*
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package eu.peppol.start.transport;
+
+import eu.peppol.start.exception.TransportException;
+import eu.peppol.start.metadata.MessageMetadata;
+import eu.peppol.start.util.Configuration;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.xml.transform.Source;
+import javax.xml.transform.stream.StreamSource;
+
+/**
+ * Asynchronous receive pipeline.
+ * <p>
+ * The receiving thread only appends the transport headers and the raw
+ * business document to a journal and returns. The metadata document, the
+ * storage in the inbox and the removal from the journal are then done by
+ * a bounded pool of workers. When all workers are busy and the queue is
+ * full, the receiving thread processes the message itself, which slows
+ * down the senders instead of growing the queue.
+ * <p>
+ * A message that cannot be stored is tried again after a delay doubling
+ * at each attempt, up to inbox.pipeline.retries times; a message already
+ * in the inbox, stored by an attempt that failed to clear the journal, is
+ * not stored twice. Messages left in the journal by a stop or by failed
+ * retries are processed again, by the workers, when the pipeline of the
+ * store is next started.
+ */
+public final class ReceivePipeline {
+
+    /**
+     * Directory of the journal, under the store path.
+     */
+    public static final String JOURNAL_DIR = "journal";
+
+    /**
+     * Journal channel holding the messages not yet stored.
+     */
+    private static final String JOURNAL_CHANNEL = "received";
+
+    /**
+     * Default number of workers.
+     */
+    private static final int DEFAULT_WORKERS = 4;
+
+    /**
+     * Default number of messages waiting for a worker.
+     */
+    private static final int DEFAULT_QUEUE_SIZE = 256;
+
+    /**
+     * Default number of attempts to store a message.
+     */
+    private static final int DEFAULT_ATTEMPTS = 3;
+
+    /**
+     * Default delay before the second attempt.
+     */
+    private static final long DEFAULT_RETRY_DELAY_MILLIS = 1000L;
+
+    /**
+     * Logger to follow this class behavior.
+     */
+    private static org.apache.log4j.Logger logger4J =
+            org.apache.log4j.Logger.getLogger(ReceivePipeline.class);
+
+    /**
+     * Pipelines by absolute store path.
+     */
+    private static final ConcurrentMap<String, ReceivePipeline> PIPELINES =
+            new ConcurrentHashMap<String, ReceivePipeline>();
+
+    /**
+     * Path of the inbox store.
+     */
+    private final String storePath;
+
+    /**
+     * Journal of the received messages.
+     */
+    private final MessageStore journal;
+
+    /**
+     * Workers storing the journaled messages.
+     */
+    private final ThreadPoolExecutor workers;
+
+    /**
+     * Schedules the retries of the failed messages.
+     */
+    private final ScheduledExecutorService retries;
+
+    /**
+     * Number of attempts to store a message.
+     */
+    private final int attempts;
+
+    /**
+     * Delay before the second attempt, doubled at each attempt.
+     */
+    private final long retryDelayMillis;
+
+    /**
+     * Messages handed to the workers and not yet processed.
+     */
+    private final AtomicInteger pending = new AtomicInteger();
+
+    /**
+     * Returns the pipeline of a store path, starting it on first use.
+     * @param storePath Path of the store.
+     * @return the pipeline of that path.
+     */
+    public static ReceivePipeline getInstance(String storePath) {
+        String key = new File(storePath).getAbsolutePath();
+        ReceivePipeline pipeline = PIPELINES.get(key);
+        if (pipeline != null) {
+            return pipeline;
+        }
+        ReceivePipeline started = null;
+        synchronized (PIPELINES) {
+            pipeline = PIPELINES.get(key);
+            if (pipeline == null) {
+                Configuration conf = Configuration.getInstance();
+                String segmentSize = conf.getProperty("inbox.log.segment.size");
+                // the response acknowledges the message, so the journal is
+                // forced whatever inbox.durability says
+                MessageStore journal = SegmentedLogStore.getInstance(
+                        new File(key, JOURNAL_DIR).getAbsolutePath(),
+                        (segmentSize != null && segmentSize.trim().length() > 0)
+                        ? Integer.parseInt(segmentSize.trim())
+                        : SegmentedLogStore.DEFAULT_SEGMENT_SIZE,
+                        GroupCommit.getForcingInstance());
+                String delay = conf.getProperty("inbox.pipeline.retry.delay.millis");
+
+                pipeline = new ReceivePipeline(key, journal,
+                        parseInt(conf.getProperty("inbox.pipeline.workers"), DEFAULT_WORKERS),
+                        parseInt(conf.getProperty("inbox.pipeline.queue.size"), DEFAULT_QUEUE_SIZE),
+                        parseInt(conf.getProperty("inbox.pipeline.retries"), DEFAULT_ATTEMPTS),
+                        (delay != null && delay.trim().length() > 0)
+                        ? Long.parseLong(delay.trim()) : DEFAULT_RETRY_DELAY_MILLIS);
+                PIPELINES.put(key, pipeline);
+                started = pipeline;
+            }
+        }
+        if (started != null) {
+            started.startRecovery();
+        }
+        return pipeline;
+    }
+
+    /**
+     * Creates a pipeline; use getInstance so that a store has a single one.
+     * @param storePath Path of the inbox store.
+     * @param journal   Journal of the received messages.
+     * @param threads   Number of workers.
+     * @param queueSize Number of messages waiting for a worker.
+     */
+    ReceivePipeline(final String storePath, final MessageStore journal,
+                    final int threads, final int queueSize) {
+        this(storePath, journal, threads, queueSize, DEFAULT_ATTEMPTS, DEFAULT_RETRY_DELAY_MILLIS);
+    }
+
+    /**
+     * Creates a pipeline; use getInstance so that a store has a single one.
+     * @param storePath        Path of the inbox store.
+     * @param journal          Journal of the received messages.
+     * @param threads          Number of workers.
+     * @param queueSize        Number of messages waiting for a worker.
+     * @param attempts         Number of attempts to store a message.
+     * @param retryDelayMillis Delay before the second attempt.
+     */
+    ReceivePipeline(final String storePath, final MessageStore journal,
+                    final int threads, final int queueSize,
+                    final int attempts, final long retryDelayMillis) {
+        this.storePath = storePath;
+        this.journal = journal;
+        this.attempts = Math.max(1, attempts);
+        this.retryDelayMillis = retryDelayMillis;
+        this.retries = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "inbox-pipeline-retry");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.workers = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable,
+                                "inbox-pipeline-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                }, new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /**
+     * Journals a received message and hands it to the workers.
+     * @param metadata          Object that represent the metadata of the message.
+     * @param businessDocument  Source of the Business Document from the Body.
+     * @throws TransportException if the message cannot be journaled.
+     */
+    public void submit(final MessageMetadata metadata, final Source businessDocument) {
+
+        final String entryID = UUID.randomUUID().toString();
+        try {
+            journal.save(JOURNAL_CHANNEL, entryID,
+                    new MessageStore.Content() {
+
+                        public void writeTo(OutputStream out) throws Exception {
+                            new MetadataRecord(metadata).writeTo(out);
+                        }
+                    },
+                    new MessageStore.Content() {
+
+                        public void writeTo(OutputStream out) throws Exception {
+                            TransportChannel.writeSource(businessDocument, out);
+                        }
+                    });
+        } catch (Exception ex) {
+            logger4J.error(ex.getMessage(), ex);
+            Logger.getLogger(ReceivePipeline.class.getName()).log(Level.SEVERE, ex.getMessage());
+
+            Configuration conf = Configuration.getInstance();
+            String errorMSG = conf.getProperty("error.message.transport") + metadata.getDocumentIdValue();
+            throw new TransportException(errorMSG, ex);
+        }
+        dispatch(entryID, 1);
+    }
+
+    /**
+     * Stops the workers after the queued messages; messages still in the
+     * journal are processed on the next start.
+     */
+    public void shutdown() {
+        retries.shutdownNow();
+        workers.shutdown();
+    }
+
+    /**
+     * Waits until the queued messages are stored.
+     * @param timeoutMillis maximum time to wait.
+     * @return true if all the workers are idle.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    boolean awaitIdle(long timeoutMillis) throws InterruptedException {
+        long end = System.currentTimeMillis() + timeoutMillis;
+        while (pending.get() > 0) {
+            if (System.currentTimeMillis() > end) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    /**
+     * Recovers the journal on a worker, so that the caller does not store
+     * the messages left in it.
+     */
+    void startRecovery() {
+        pending.incrementAndGet();
+        try {
+            workers.execute(new Runnable() {
+
+                public void run() {
+                    try {
+                        recover();
+                    } finally {
+                        pending.decrementAndGet();
+                    }
+                }
+            });
+        } catch (RuntimeException ex) {
+            pending.decrementAndGet();
+            throw ex;
+        }
+    }
+
+    /**
+     * Hands the messages left in the journal to the workers.
+     */
+    void recover() {
+        try {
+            int count = 0;
+            for (String entryID : journal.getMessageIDs(JOURNAL_CHANNEL)) {
+                dispatch(entryID, 1);
+                count++;
+            }
+            if (count > 0) {
+                logger4J.info("Journaled messages recovered: " + count);
+            }
+        } catch (Exception ex) {
+            logger4J.error("Error recovering the receive journal.", ex);
+            Logger.getLogger(ReceivePipeline.class.getName()).log(Level.SEVERE,
+                    "Error recovering the receive journal.", ex);
+        }
+    }
+
+    private void dispatch(final String entryID, final int attempt) {
+        pending.incrementAndGet();
+        try {
+            workers.execute(new Runnable() {
+
+                public void run() {
+                    try {
+                        if (!process(entryID)) {
+                            retry(entryID, attempt);
+                        }
+                    } finally {
+                        pending.decrementAndGet();
+                    }
+                }
+            });
+        } catch (RuntimeException ex) {
+            pending.decrementAndGet();
+            throw ex;
+        }
+    }
+
+    /**
+     * Dispatches a failed message again after the delay of its attempt, or
+     * leaves it in the journal after the last attempt.
+     */
+    private void retry(final String entryID, final int attempt) {
+        if (attempt >= attempts) {
+            logger4J.error("Journaled message " + entryID + " not stored after " + attempt
+                    + " attempts, left in the journal until the next start");
+            return;
+        }
+        pending.incrementAndGet();
+        try {
+            retries.schedule(new Runnable() {
+
+                public void run() {
+                    try {
+                        dispatch(entryID, attempt + 1);
+                    } finally {
+                        pending.decrementAndGet();
+                    }
+                }
+            }, retryDelayMillis << (attempt - 1), TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ex) {
+            pending.decrementAndGet();
+            logger4J.debug("Pipeline stopped, message left in the journal: " + entryID);
+        }
+    }
+
+    /**
+     * Stores a journaled message in the inbox and removes it from the journal.
+     * A message already in the inbox is only removed from the journal.
+     * @return false if the message failed and stays in the journal.
+     */
+    private boolean process(final String entryID) {
+        try {
+            MessageMetadata metadata;
+            InputStream header = journal.openMetadata(JOURNAL_CHANNEL, entryID);
+            try {
+                metadata = MetadataRecord.read(header).toMessageMetadata();
+            } finally {
+                header.close();
+            }
+
+            TransportChannel channel = new TransportChannel(storePath);
+            if (isStored(channel, metadata)) {
+                logger4J.info("Journaled message already stored: " + metadata.getMessageId());
+            } else {
+                InputStream payload = journal.openPayload(JOURNAL_CHANNEL, entryID);
+                try {
+                    channel.saveDocument(metadata.getChannelId(),
+                            metadata.getMessageId(), metadata, new StreamSource(payload));
+                } finally {
+                    payload.close();
+                }
+                logger4J.debug("Document stored : " + metadata.getDocumentIdValue());
+            }
+            journal.delete(JOURNAL_CHANNEL, entryID);
+            return true;
+        } catch (Exception ex) {
+            logger4J.error("Error storing journaled message " + entryID, ex);
+            Logger.getLogger(ReceivePipeline.class.getName()).log(Level.SEVERE,
+                    "Error storing journaled message " + entryID, ex);
+            return false;
+        }
+    }
+
+    /**
+     * Checks if a message is already in the inbox.
+     */
+    private static boolean isStored(TransportChannel channel, MessageMetadata metadata) {
+        try {
+            channel.openDocumentMetadata(metadata.getChannelId(), metadata.getMessageId())
+                    .close();
+            return true;
+        } catch (Exception ex) {
+            return false;
+        }
+    }
+
+    private static int parseInt(String value, int defaultValue) {
+        return (value != null && value.trim().length() > 0)
+                ? Integer.parseInt(value.trim()) : defaultValue;
+    }
+}
@@ -39,11 +39,12 @@ package eu.peppol.start.transport;
 
 import eu.peppol.start.exception.TransportException;
 import eu.peppol.start.metadata.MessageMetadata;
-import eu.peppol.start.soap.SOAPHeaderObject;
 import eu.peppol.start.util.Configuration;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.servlet.ServletContext;
+import javax.xml.transform.Source;
+import javax.xml.transform.dom.DOMSource;
 
 import org.w3c.dom.Document;
 
@@ -64,6 +65,16 @@ public class ReceiverChannel {
      */
     private static final String STORAGE_PATH = "userfolder";
 
+    /**
+     * Receive mode storing the message before the response is sent.
+     */
+    public static final String RECEIVE_MODE_SYNC = "sync";
+
+    /**
+     * Receive mode journaling the message and storing it in the background.
+     */
+    public static final String RECEIVE_MODE_ASYNC = "async";
+
     /**
      * Stores the message.
      * @param context           Servlet context.
@@ -72,21 +83,84 @@ public class ReceiverChannel {
      */
     public void deliverMessage(ServletContext context,
                 MessageMetadata metadata, Document businessDocument) {
+        deliverMessage(context, metadata, new DOMSource(businessDocument));
+    }
+
+    /**
+     * Stores the message, streaming the business document to the store.
+     * With inbox.receive.mode set to async the message is only journaled
+     * here and stored by the ReceivePipeline. With inbox.dedup.enabled a
+     * message ID already received is acknowledged without storing it again,
+     * and a message ID being stored by another request is refused so that
+     * the sender retries it, unless the inbox is partitioned.
+     * @param context           Servlet context.
+     * @param metadata          Object that represent the metadata of the message.
+     * @param businessDocument  Source of the Business Document from the Body.
+     */
+    public void deliverMessage(ServletContext context,
+                MessageMetadata metadata, Source businessDocument) {
 
-        Document metadataDocument = SOAPHeaderObject.getDocument(metadata.getSoapHeader());
+        Configuration conf = Configuration.getInstance();
         String storagePath = context.getInitParameter(STORAGE_PATH);
+
+        MessageIdIndex messageIds = null;
+        if (Boolean.valueOf(conf.getProperty("inbox.dedup.enabled")).booleanValue()
+                && !PartitionedMessageStore.isEnabled()) {
+            try {
+                messageIds = MessageIdIndex.getInstance(storagePath);
+            } catch (Exception ex) {
+                throw transportError(metadata, ex);
+            }
+            if (!messageIds.claim(metadata.getChannelId(), metadata.getMessageId())) {
+                if (messageIds.contains(metadata.getChannelId(), metadata.getMessageId())) {
+                    logger4J.info("Duplicate message acknowledged: " + metadata.getMessageId());
+                    return;
+                }
+                throw transportError(metadata, new IllegalStateException(
+                        "Message being received: " + metadata.getMessageId()));
+            }
+        }
+
+        boolean stored = false;
         try {
-            new TransportChannel(storagePath).saveDocument(metadata.getChannelId(),
-                    metadata.getMessageId(), metadataDocument, businessDocument);
+            if (RECEIVE_MODE_ASYNC.equalsIgnoreCase(conf.getProperty("inbox.receive.mode"))) {
+                ReceivePipeline.getInstance(storagePath).submit(metadata, businessDocument);
+                logger4J.debug("Document journaled : " + metadata.getDocumentIdValue());
+            } else {
+                try {
+                    new TransportChannel(storagePath).saveDocument(metadata.getChannelId(),
+                            metadata.getMessageId(), metadata, businessDocument);
 
-            logger4J.debug("Documetn stored : " + metadata.getDocumentIdValue());
-        } catch (Exception ex) {
-            logger4J.error(ex.getMessage(),ex);
-            Logger.getLogger(ReceiverChannel.class.getName()).log(Level.SEVERE, ex.getMessage());
+                    logger4J.debug("Documetn stored : " + metadata.getDocumentIdValue());
+                } catch (Exception ex) {
+                    throw transportError(metadata, ex);
+                }
+            }
+            stored = true;
+        } finally {
+            if (messageIds != null && !stored) {
+                messageIds.release(metadata.getChannelId(), metadata.getMessageId());
+            }
+        }
 
-            Configuration conf = Configuration.getInstance();
-            String errorMSG = conf.getProperty("error.message.transport") + metadata.getDocumentIdValue();
-            throw new TransportException(errorMSG, ex);
+        if (messageIds != null) {
+            try {
+                messageIds.add(metadata.getChannelId(), metadata.getMessageId());
+            } catch (Exception ex) {
+                logger4J.error("Message ID not indexed: " + metadata.getMessageId(), ex);
+            }
         }
     }
+
+    /**
+     * Logs a failure to store a message and wraps it for the service.
+     */
+    private TransportException transportError(MessageMetadata metadata, Exception ex) {
+        logger4J.error(ex.getMessage(),ex);
+        Logger.getLogger(ReceiverChannel.class.getName()).log(Level.SEVERE, ex.getMessage());
+
+        Configuration conf = Configuration.getInstance();
+        String errorMSG = conf.getProperty("error.message.transport") + metadata.getDocumentIdValue();
+        return new TransportException(errorMSG, ex);
+    }
 }
@@ -0,0 +1,257 @@
+/*
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package eu.peppol.start.transport;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * MessageStore of another inbox node, reached over HTTP through its
+ * InboxNodeServlet.
+ * <p>
+ * Every operation is one request naming the operation, the channel and
+ * the message in the query string. Payloads are streamed both ways, in
+ * chunks when saving; a save sends the length of the metadata in the
+ * X-Metadata-Length header, then the metadata and the payload. A message
+ * not found on the node gives a FileNotFoundException, as with the local
+ * stores. Every request carries the secret shared by the nodes in the
+ * X-Inbox-Node-Secret header, so the node URLs must be https.
+ */
+public class RemoteMessageStore implements MessageStore {
+
+    /**
+     * Header carrying the length of the metadata of a save.
+     */
+    public static final String METADATA_LENGTH_HEADER = "X-Metadata-Length";
+
+    /**
+     * Header carrying the secret shared by the nodes.
+     */
+    public static final String SECRET_HEADER = "X-Inbox-Node-Secret";
+
+    static final String OP_IDS = "ids";
+
+    static final String OP_METADATA = "metadata";
+
+    static final String OP_PAYLOAD = "payload";
+
+    static final String OP_LENGTH = "length";
+
+    static final String OP_TIME = "time";
+
+    static final String OP_SAVE = "save";
+
+    static final String OP_DELETE = "delete";
+
+    static final String OP_JOIN = "join";
+
+    /**
+     * Size of the chunks of a save.
+     */
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * URL of the node servlet.
+     */
+    private final String url;
+
+    /**
+     * Secret shared by the nodes.
+     */
+    private final String secret;
+
+    /**
+     * Connect and read timeout of the requests.
+     */
+    private final int timeoutMillis;
+
+    /**
+     * Creates the store of a node.
+     * @param url           URL of the InboxNodeServlet of the node.
+     * @param secret        Secret shared by the nodes.
+     * @param timeoutMillis Connect and read timeout of the requests.
+     */
+    public RemoteMessageStore(final String url, final String secret, final int timeoutMillis) {
+        this.url = url;
+        this.secret = secret;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    public void save(String channelID, String messageID,
+                     Content metadata, Content payload) throws Exception {
+        ByteArrayOutputStream metadataBytes = new ByteArrayOutputStream();
+        metadata.writeTo(metadataBytes);
+
+        HttpURLConnection connection = open(OP_SAVE, channelID, messageID, "POST");
+        connection.setDoOutput(true);
+        connection.setChunkedStreamingMode(CHUNK_SIZE);
+        connection.setRequestProperty(METADATA_LENGTH_HEADER,
+                String.valueOf(metadataBytes.size()));
+        OutputStream out = connection.getOutputStream();
+        try {
+            metadataBytes.writeTo(out);
+            payload.writeTo(out);
+        } finally {
+            out.close();
+        }
+        readText(connection);
+    }
+
+    public InputStream openMetadata(String channelID, String messageID) throws Exception {
+        return open(OP_METADATA, channelID, messageID, "GET").getInputStream();
+    }
+
+    public InputStream openPayload(String channelID, String messageID) throws Exception {
+        return open(OP_PAYLOAD, channelID, messageID, "GET").getInputStream();
+    }
+
+    /**
+     * Reads the payload in a heap buffer, as a remote file cannot be mapped.
+     */
+    public ByteBuffer mapPayload(String channelID, String messageID) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        copy(openPayload(channelID, messageID), bytes);
+        return ByteBuffer.wrap(bytes.toByteArray()).asReadOnlyBuffer();
+    }
+
+    public long transferPayload(String channelID, String messageID,
+                                WritableByteChannel target) throws Exception {
+        return copy(openPayload(channelID, messageID), Channels.newOutputStream(target));
+    }
+
+    public boolean delete(String channelID, String messageID) throws Exception {
+        return Boolean.valueOf(readText(open(OP_DELETE, channelID, messageID, "POST")))
+                .booleanValue();
+    }
+
+    public List<String> getMessageIDs(String channelID) throws Exception {
+        HttpURLConnection connection = open(OP_IDS, channelID, null, "GET");
+        List<String> ids = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                connection.getInputStream(), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.length() > 0) {
+                    ids.add(line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return ids;
+    }
+
+    public long getPayloadLength(String channelID, String messageID) throws Exception {
+        return Long.parseLong(readText(open(OP_LENGTH, channelID, messageID, "GET")));
+    }
+
+    public long getCreationTime(String channelID, String messageID) throws Exception {
+        return Long.parseLong(readText(open(OP_TIME, channelID, messageID, "GET")));
+    }
+
+    /**
+     * Tells the node that another node joined the inbox.
+     * @param node    Name of the joining node.
+     * @param nodeURL URL of the InboxNodeServlet of the joining node.
+     * @throws IOException if the node cannot be reached.
+     */
+    public void join(String node, String nodeURL) throws IOException {
+        readText(connect(url + "?op=" + OP_JOIN
+                + "&node=" + URLEncoder.encode(node, "UTF-8")
+                + "&url=" + URLEncoder.encode(nodeURL, "UTF-8"), "POST"));
+    }
+
+    private HttpURLConnection open(String op, String channelID, String messageID,
+                                   String method) throws IOException {
+        StringBuilder request = new StringBuilder(url);
+        request.append("?op=").append(op);
+        request.append("&channel=").append(URLEncoder.encode(channelID, "UTF-8"));
+        if (messageID != null) {
+            request.append("&message=").append(URLEncoder.encode(messageID, "UTF-8"));
+        }
+        return connect(request.toString(), method);
+    }
+
+    private HttpURLConnection connect(String request, String method) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(request).openConnection();
+        connection.setRequestMethod(method);
+        connection.setConnectTimeout(timeoutMillis);
+        connection.setReadTimeout(timeoutMillis);
+        connection.setRequestProperty(SECRET_HEADER, secret);
+        return connection;
+    }
+
+    /**
+     * Reads a short text response.
+     * @throws FileNotFoundException if the node answered 404.
+     */
+    private static String readText(HttpURLConnection connection) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        copy(connection.getInputStream(), bytes);
+        return new String(bytes.toByteArray(), "UTF-8").trim();
+    }
+
+    private static long copy(InputStream in, OutputStream out) throws IOException {
+        long total = 0;
+        try {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+                total += read;
+            }
+        } finally {
+            in.close();
+        }
+        return total;
+    }
+}
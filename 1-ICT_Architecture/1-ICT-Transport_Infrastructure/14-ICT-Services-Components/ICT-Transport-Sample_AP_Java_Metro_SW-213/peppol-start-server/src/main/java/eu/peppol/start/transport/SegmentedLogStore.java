@@ -0,0 +1,794 @@
+/*
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package eu.peppol.start.transport;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.CRC32;
+
+/**
+ * MessageStore keeping the messages of each channel in a segmented,
+ * append-only log instead of two files per message.
+ * <p>
+ * Every channel directory holds numbered segment files which are
+ * memory-mapped and only ever appended to. A record carries the message
+ * ID, the receive time, the Metadata and the Payload, and is protected by
+ * a CRC32. Deleting a message appends a tombstone record. When the active
+ * segment is full a new one is started, and segments are removed from the
+ * head of the log once none of their messages is alive any more.
+ * <p>
+ * The offset index (message ID to segment and position) is kept in memory
+ * and rebuilt by scanning the segments the first time a channel is used;
+ * a torn record at the tail of the log ends the scan.
+ * <p>
+ * The Metadata and the Payload of a message are written first to a buffer
+ * that spills to a file of the channel directory beyond SPILL_SIZE, so that
+ * a large message is not held in the heap; the record is then appended
+ * from the buffer once its size is known.
+ */
+public class SegmentedLogStore implements MessageStore {
+
+    /**
+     * Extension of the segment files.
+     */
+    public static final String EXT_SEGMENT = ".log";
+
+    /**
+     * Default size of a segment file.
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * Bytes of a Metadata or Payload kept in memory before spilling to a file.
+     */
+    static final int SPILL_SIZE = 256 * 1024;
+
+    /**
+     * Extension of the spill files.
+     */
+    private static final String EXT_SPILL = ".spill";
+
+    /**
+     * Marker at the start of every record.
+     */
+    private static final int RECORD_MAGIC = 0x50504c47;
+
+    /**
+     * Record type of a stored message.
+     */
+    private static final byte TYPE_MESSAGE = 1;
+
+    /**
+     * Record type of a deletion.
+     */
+    private static final byte TYPE_TOMBSTONE = 2;
+
+    /**
+     * Magic, type, receive time and the three lengths.
+     */
+    private static final int RECORD_HEADER_SIZE = 4 + 1 + 8 + 4 + 4 + 4;
+
+    /**
+     * CRC32 of the record.
+     */
+    private static final int RECORD_TRAILER_SIZE = 4;
+
+    /**
+     * Logger to follow this class behavior.
+     */
+    private static org.apache.log4j.Logger logger =
+            org.apache.log4j.Logger.getLogger(SegmentedLogStore.class);
+
+    /**
+     * Open stores by absolute store path; a log must have a single writer.
+     */
+    private static final ConcurrentMap<String, SegmentedLogStore> STORES =
+            new ConcurrentHashMap<String, SegmentedLogStore>();
+
+    /**
+     * Directory of the Inbox.
+     */
+    private final File inboxDir;
+
+    /**
+     * Size of new segment files.
+     */
+    private final int segmentSize;
+
+    /**
+     * Forces the appended records to disk.
+     */
+    private final GroupCommit durability;
+
+    /**
+     * Open channel logs by channel directory name.
+     */
+    private final ConcurrentMap<String, ChannelLog> channels =
+            new ConcurrentHashMap<String, ChannelLog>();
+
+    /**
+     * Returns the store for a path, opening it on first use.
+     * @param storePath     Path of the store.
+     * @param segmentSize   Size of new segment files.
+     * @return the shared store of that path.
+     */
+    public static SegmentedLogStore getInstance(String storePath, int segmentSize) {
+        return getInstance(storePath, segmentSize, GroupCommit.getInstance());
+    }
+
+    /**
+     * Returns the store for a path, opening it on first use.
+     * @param storePath     Path of the store.
+     * @param segmentSize   Size of new segment files.
+     * @param durability    Forces the appended records to disk.
+     * @return the shared store of that path.
+     * @throws IllegalArgumentException if the store of that path is already
+     *         open with another segment size or durability.
+     */
+    public static SegmentedLogStore getInstance(String storePath, int segmentSize,
+                                                GroupCommit durability) {
+        String key = new File(storePath).getAbsolutePath();
+        SegmentedLogStore store = STORES.get(key);
+        if (store == null) {
+            store = new SegmentedLogStore(key, segmentSize, durability);
+            SegmentedLogStore existing = STORES.putIfAbsent(key, store);
+            if (existing != null) {
+                store = existing;
+            }
+        }
+        if (store.segmentSize != segmentSize || store.durability != durability) {
+            throw new IllegalArgumentException("Log store " + key
+                    + " already open with segment size " + store.segmentSize
+                    + " or another durability");
+        }
+        return store;
+    }
+
+    /**
+     * Creates a store; use getInstance so that a path has a single writer.
+     * @param storePath     Path of the store.
+     * @param segmentSize   Size of new segment files.
+     */
+    SegmentedLogStore(String storePath, int segmentSize) {
+        this(storePath, segmentSize, GroupCommit.getInstance());
+    }
+
+    /**
+     * Creates a store; use getInstance so that a path has a single writer.
+     * @param storePath     Path of the store.
+     * @param segmentSize   Size of new segment files.
+     * @param durability    Forces the appended records to disk.
+     */
+    SegmentedLogStore(String storePath, int segmentSize, GroupCommit durability) {
+        this.inboxDir = new File(storePath, TransportChannel.INBOX_DIR);
+        this.segmentSize = segmentSize;
+        this.durability = durability;
+    }
+
+    public void save(String channelID, String messageID,
+                     Content metadata, Content payload) throws Exception {
+
+        ChannelLog log = getChannelLog(channelID);
+        SpillBuffer metadataBytes = new SpillBuffer(log.dir, 1024);
+        SpillBuffer payloadBytes = new SpillBuffer(log.dir, 16 * 1024);
+        try {
+            metadata.writeTo(metadataBytes);
+            metadataBytes.close();
+            payload.writeTo(payloadBytes);
+            payloadBytes.close();
+
+            Segment segment = log.append(messageID, metadataBytes, payloadBytes);
+            durability.commit(segment, metadataBytes.size() + payloadBytes.size());
+        } finally {
+            metadataBytes.discard();
+            payloadBytes.discard();
+        }
+        logger.info("Message appended to log: " + messageID);
+    }
+
+    public InputStream openMetadata(String channelID, String messageID) throws Exception {
+        RecordPointer pointer = getChannelLog(channelID).get(messageID);
+        return new ByteBufferInputStream(
+                pointer.segment.slice(pointer.metadataOffset, pointer.metadataLength));
+    }
+
+    public InputStream openPayload(String channelID, String messageID) throws Exception {
+        RecordPointer pointer = getChannelLog(channelID).get(messageID);
+        return new ByteBufferInputStream(
+                pointer.segment.slice(pointer.payloadOffset, pointer.payloadLength));
+    }
+
+    public ByteBuffer mapPayload(String channelID, String messageID) throws Exception {
+        RecordPointer pointer = getChannelLog(channelID).get(messageID);
+        return pointer.segment.slice(pointer.payloadOffset, pointer.payloadLength).asReadOnlyBuffer();
+    }
+
+    public long transferPayload(String channelID, String messageID, WritableByteChannel target)
+            throws Exception {
+        RecordPointer pointer = getChannelLog(channelID).get(messageID);
+        return FileMessageStore.transfer(pointer.segment.raf.getChannel(),
+                pointer.payloadOffset, pointer.payloadLength, target);
+    }
+
+    public boolean delete(String channelID, String messageID) throws Exception {
+        return getChannelLog(channelID).delete(messageID);
+    }
+
+    public List<String> getMessageIDs(String channelID) throws Exception {
+        return getChannelLog(channelID).getMessageIDs();
+    }
+
+    public long getPayloadLength(String channelID, String messageID) throws Exception {
+        return getChannelLog(channelID).get(messageID).payloadLength;
+    }
+
+    public long getCreationTime(String channelID, String messageID) throws Exception {
+        return getChannelLog(channelID).get(messageID).timestamp;
+    }
+
+    /**
+     * Returns the log of a channel, recovering it on first use.
+     */
+    private ChannelLog getChannelLog(String channelID) throws Exception {
+        String dirName = channelID.replace(':', '_');
+        ChannelLog log = channels.get(dirName);
+        if (log == null) {
+            synchronized (channels) {
+                log = channels.get(dirName);
+                if (log == null) {
+                    File channelDir = new File(inboxDir, dirName);
+                    if (!channelDir.exists() && !channelDir.mkdirs()) {
+                        logger.error("Inbox for channel \"" + dirName
+                                + "\" could not be found or created: "
+                                + channelDir.getAbsolutePath());
+                        throw new Exception("Inbox for channel \"" + dirName
+                                + "\" could not be found or created: "
+                                + channelDir.getAbsolutePath());
+                    }
+                    log = new ChannelLog(channelDir);
+                    channels.put(dirName, log);
+                }
+            }
+        }
+        return log;
+    }
+
+    /**
+     * The segments and the offset index of one channel.
+     */
+    private final class ChannelLog {
+
+        private final File dir;
+
+        private final LinkedList<Segment> segments = new LinkedList<Segment>();
+
+        private final Map<String, RecordPointer> index =
+                new LinkedHashMap<String, RecordPointer>();
+
+        ChannelLog(File dir) throws IOException {
+            this.dir = dir;
+            recover();
+        }
+
+        synchronized Segment append(String messageID, SpillBuffer metadata,
+                                    SpillBuffer payload) throws Exception {
+            if (index.containsKey(messageID)) {
+                throw new Exception("Message ID " + messageID
+                        + " already stored in inbox for channel " + dir.getName());
+            }
+            RecordPointer pointer = write(TYPE_MESSAGE, messageID, metadata, payload);
+            pointer.segment.live++;
+            index.put(messageID, pointer);
+            return pointer.segment;
+        }
+
+        synchronized boolean delete(String messageID) throws IOException {
+            RecordPointer pointer = index.remove(messageID);
+            if (pointer == null) {
+                return false;
+            }
+            write(TYPE_TOMBSTONE, messageID, null, null);
+            pointer.segment.live--;
+            removeDeadSegments();
+            return true;
+        }
+
+        synchronized RecordPointer get(String messageID) throws FileNotFoundException {
+            RecordPointer pointer = index.get(messageID);
+            if (pointer == null) {
+                throw new FileNotFoundException("Message ID " + messageID
+                        + " not found in inbox for channel " + dir.getName());
+            }
+            return pointer;
+        }
+
+        synchronized List<String> getMessageIDs() {
+            return new ArrayList<String>(index.keySet());
+        }
+
+        /**
+         * Appends a record, rolling over to a new segment if needed.
+         */
+        private RecordPointer write(byte type, String messageID, SpillBuffer metadata,
+                                    SpillBuffer payload) throws IOException {
+            byte[] id = messageID.getBytes("UTF-8");
+            long size = RECORD_HEADER_SIZE + id.length + RECORD_TRAILER_SIZE
+                    + ((metadata != null) ? metadata.size() : 0)
+                    + ((payload != null) ? payload.size() : 0);
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Message " + messageID + " too large for the log: "
+                        + size + " bytes");
+            }
+            int recordSize = (int) size;
+
+            Segment segment = segments.isEmpty() ? null : segments.getLast();
+            if (segment == null || segment.remaining() < recordSize) {
+                long number = (segment == null) ? 0 : segment.number + 1;
+                segment = Segment.open(new File(dir, segmentName(number)), number,
+                        Math.max(segmentSize, recordSize));
+                segments.add(segment);
+                logger.debug("New log segment: " + segment.file.getAbsolutePath());
+            }
+            return segment.append(type, System.currentTimeMillis(), id, metadata, payload);
+        }
+
+        /**
+         * Removes segments without live messages from the head of the log.
+         * Only the head is trimmed, so that a tombstone is never dropped
+         * while the record it deletes is still on disk.
+         */
+        private void removeDeadSegments() {
+            while (segments.size() > 1 && segments.getFirst().live == 0) {
+                Segment segment = segments.removeFirst();
+                segment.close();
+                if (segment.file.delete()) {
+                    logger.debug("Log segment deleted: " + segment.file.getAbsolutePath());
+                } else {
+                    logger.debug("Cannot delete log segment: " + segment.file.getAbsolutePath());
+                }
+            }
+        }
+
+        /**
+         * Rebuilds the offset index from the segment files, removing the
+         * spill files left by an interrupted save.
+         */
+        private void recover() throws IOException {
+            File[] spills = dir.listFiles(new FilenameFilter() {
+
+                public boolean accept(final File dir, final String name) {
+                    return name.endsWith(EXT_SPILL);
+                }
+            });
+            for (File spill : spills) {
+                if (!spill.delete()) {
+                    logger.debug("Cannot delete spill file: " + spill.getAbsolutePath());
+                }
+            }
+
+            File[] files = dir.listFiles(new FilenameFilter() {
+
+                public boolean accept(final File dir, final String name) {
+                    return name.endsWith(EXT_SEGMENT);
+                }
+            });
+            Arrays.sort(files);
+
+            for (File file : files) {
+                String name = file.getName();
+                long number = Long.parseLong(name.substring(0, name.length() - EXT_SEGMENT.length()));
+                Segment segment = Segment.open(file, number,
+                        (int) Math.max(segmentSize, file.length()));
+                segments.add(segment);
+                segment.scan(index);
+            }
+            removeDeadSegments();
+        }
+    }
+
+    /**
+     * One memory-mapped segment file.
+     */
+    private static final class Segment implements GroupCommit.Syncable {
+
+        private final long number;
+
+        private final File file;
+
+        private final RandomAccessFile raf;
+
+        private final MappedByteBuffer buffer;
+
+        /**
+         * End of the last complete record.
+         */
+        private int position;
+
+        /**
+         * Messages of this segment that are neither deleted nor expired.
+         */
+        private int live;
+
+        private Segment(File file, long number, RandomAccessFile raf, MappedByteBuffer buffer) {
+            this.file = file;
+            this.number = number;
+            this.raf = raf;
+            this.buffer = buffer;
+        }
+
+        static Segment open(File file, long number, int capacity) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                MappedByteBuffer buffer = raf.getChannel().map(
+                        FileChannel.MapMode.READ_WRITE, 0, capacity);
+                return new Segment(file, number, raf, buffer);
+            } catch (IOException ex) {
+                raf.close();
+                throw ex;
+            }
+        }
+
+        public void sync() {
+            buffer.force();
+        }
+
+        int remaining() {
+            return buffer.capacity() - position;
+        }
+
+        /**
+         * Appends a record, copying the Metadata and the Payload from their
+         * buffers straight into the mapped segment.
+         */
+        RecordPointer append(byte type, long timestamp, byte[] id,
+                             SpillBuffer metadata, SpillBuffer payload) throws IOException {
+            int metadataLength = (metadata != null) ? (int) metadata.size() : 0;
+            int payloadLength = (payload != null) ? (int) payload.size() : 0;
+
+            int start = position;
+            ByteBuffer out = buffer.duplicate();
+            out.position(start);
+            out.putInt(RECORD_MAGIC);
+            out.put(type);
+            out.putLong(timestamp);
+            out.putInt(id.length);
+            out.putInt(metadataLength);
+            out.putInt(payloadLength);
+            out.put(id);
+            int metadataOffset = out.position();
+            if (metadata != null) {
+                metadata.copyTo(out);
+            }
+            int payloadOffset = out.position();
+            if (payload != null) {
+                payload.copyTo(out);
+            }
+            out.putInt(crc(start + 4, out.position() - start - 4));
+            position = out.position();
+
+            return new RecordPointer(this, timestamp, metadataOffset, metadataLength,
+                    payloadOffset, payloadLength);
+        }
+
+        /**
+         * Reads the records of the segment into the index, stopping at the
+         * first torn or unwritten record.
+         */
+        void scan(Map<String, RecordPointer> index) throws IOException {
+            ByteBuffer in = buffer.duplicate();
+            int offset = 0;
+            while (offset + RECORD_HEADER_SIZE + RECORD_TRAILER_SIZE <= in.capacity()) {
+                in.position(offset);
+                if (in.getInt() != RECORD_MAGIC) {
+                    break;
+                }
+                byte type = in.get();
+                long timestamp = in.getLong();
+                int idLength = in.getInt();
+                int metadataLength = in.getInt();
+                int payloadLength = in.getInt();
+                long end = (long) offset + RECORD_HEADER_SIZE + idLength
+                        + metadataLength + payloadLength + RECORD_TRAILER_SIZE;
+                if (idLength < 0 || metadataLength < 0 || payloadLength < 0
+                        || end > in.capacity()) {
+                    break;
+                }
+                int bodyEnd = (int) end - RECORD_TRAILER_SIZE;
+                in.position(bodyEnd);
+                int storedCrc = in.getInt();
+                if (storedCrc != crc(offset + 4, bodyEnd - offset - 4)) {
+                    logger.warn("Torn record at " + offset + " of " + file.getAbsolutePath());
+                    break;
+                }
+
+                byte[] id = new byte[idLength];
+                in.position(offset + RECORD_HEADER_SIZE);
+                in.get(id);
+                String messageID = new String(id, "UTF-8");
+                int metadataOffset = offset + RECORD_HEADER_SIZE + idLength;
+
+                if (type == TYPE_MESSAGE) {
+                    index.put(messageID, new RecordPointer(this, timestamp,
+                            metadataOffset, metadataLength,
+                            metadataOffset + metadataLength, payloadLength));
+                    live++;
+                } else {
+                    RecordPointer deleted = index.remove(messageID);
+                    if (deleted != null) {
+                        deleted.segment.live--;
+                    }
+                }
+                offset = (int) end;
+            }
+            position = offset;
+        }
+
+        private int crc(int offset, int length) {
+            ByteBuffer in = buffer.duplicate();
+            in.position(offset);
+            byte[] chunk = new byte[Math.min(length, 8192)];
+            CRC32 crc = new CRC32();
+            while (length > 0) {
+                int n = Math.min(length, chunk.length);
+                in.get(chunk, 0, n);
+                crc.update(chunk, 0, n);
+                length -= n;
+            }
+            return (int) crc.getValue();
+        }
+
+        ByteBuffer slice(int offset, int length) {
+            ByteBuffer in = buffer.duplicate();
+            in.position(offset);
+            in.limit(offset + length);
+            return in.slice();
+        }
+
+        void close() {
+            try {
+                raf.close();
+            } catch (IOException ex) {
+                logger.debug("Cannot close log segment: " + file.getAbsolutePath());
+            }
+        }
+    }
+
+    /**
+     * Location of a stored message in the log.
+     */
+    private static final class RecordPointer {
+
+        private final Segment segment;
+
+        private final long timestamp;
+
+        private final int metadataOffset;
+
+        private final int metadataLength;
+
+        private final int payloadOffset;
+
+        private final int payloadLength;
+
+        RecordPointer(Segment segment, long timestamp, int metadataOffset,
+                      int metadataLength, int payloadOffset, int payloadLength) {
+            this.segment = segment;
+            this.timestamp = timestamp;
+            this.metadataOffset = metadataOffset;
+            this.metadataLength = metadataLength;
+            this.payloadOffset = payloadOffset;
+            this.payloadLength = payloadLength;
+        }
+    }
+
+    /**
+     * ByteArrayOutputStream giving access to its buffer without a copy.
+     */
+    private static final class RecordBuffer extends ByteArrayOutputStream {
+
+        RecordBuffer(int size) {
+            super(size);
+        }
+
+        byte[] buffer() {
+            return buf;
+        }
+    }
+
+    /**
+     * Buffer of a Metadata or Payload, kept in memory up to SPILL_SIZE
+     * bytes and in a spill file of the channel directory beyond.
+     */
+    private static final class SpillBuffer extends OutputStream {
+
+        private final File dir;
+
+        private final RecordBuffer memory;
+
+        private File file;
+
+        private OutputStream fileOut;
+
+        private long size;
+
+        SpillBuffer(File dir, int initialSize) {
+            this.dir = dir;
+            this.memory = new RecordBuffer(initialSize);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            if (fileOut == null && size + length > SPILL_SIZE) {
+                file = File.createTempFile("record", EXT_SPILL, dir);
+                fileOut = new BufferedOutputStream(new FileOutputStream(file), 64 * 1024);
+                fileOut.write(memory.buffer(), 0, memory.size());
+                memory.reset();
+            }
+            if (fileOut != null) {
+                fileOut.write(bytes, offset, length);
+            } else {
+                memory.write(bytes, offset, length);
+            }
+            size += length;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (fileOut != null) {
+                fileOut.close();
+            }
+        }
+
+        long size() {
+            return size;
+        }
+
+        /**
+         * Copies the content to a buffer, advancing its position.
+         */
+        void copyTo(ByteBuffer out) throws IOException {
+            if (file == null) {
+                out.put(memory.buffer(), 0, memory.size());
+                return;
+            }
+            ByteBuffer target = out.slice();
+            target.limit((int) size);
+            FileChannel in = new FileInputStream(file).getChannel();
+            try {
+                while (target.hasRemaining()) {
+                    if (in.read(target) < 0) {
+                        throw new EOFException("Spill file truncated: " + file.getAbsolutePath());
+                    }
+                }
+            } finally {
+                in.close();
+            }
+            out.position(out.position() + (int) size);
+        }
+
+        /**
+         * Deletes the spill file, if any.
+         */
+        void discard() {
+            if (file == null) {
+                return;
+            }
+            try {
+                close();
+            } catch (IOException ex) {
+                logger.debug("Cannot close spill file: " + file.getAbsolutePath());
+            }
+            if (!file.delete()) {
+                logger.debug("Cannot delete spill file: " + file.getAbsolutePath());
+            }
+        }
+    }
+
+    /**
+     * InputStream over a slice of a segment.
+     */
+    private static final class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? (buffer.get() & 0xff) : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, n);
+            return n;
+        }
+
+        @Override
+        public long skip(long count) {
+            int n = (int) Math.max(0, Math.min(count, buffer.remaining()));
+            buffer.position(buffer.position() + n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+
+    /**
+     * Returns the file name of a segment.
+     */
+    private static String segmentName(long number) {
+        return String.format("%020d", Long.valueOf(number)) + EXT_SEGMENT;
+    }
+}
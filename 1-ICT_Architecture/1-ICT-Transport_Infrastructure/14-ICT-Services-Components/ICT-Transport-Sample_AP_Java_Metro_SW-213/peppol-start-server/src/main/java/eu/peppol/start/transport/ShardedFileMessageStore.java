@@ -0,0 +1,473 @@
+/*
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package eu.peppol.start.transport;
+
+import eu.peppol.start.util.Util;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * MessageStore keeping the two files of each message in a fan-out of
+ * sub directories hashed on the message ID,
+ * &lt;channel&gt;/&lt;xx&gt;/&lt;yy&gt;/&lt;id&gt;.payload, so that no directory grows
+ * beyond a few entries per message.
+ * <p>
+ * Each channel also has an index file, an append-only journal of added
+ * and deleted messages with their receive time and payload length. The
+ * index is loaded once per channel and answers getMessageIDs, getSize and
+ * getCreationTime without listing or stating the message files. It is
+ * compacted when most of its entries are deletions.
+ * <p>
+ * The message files are written before their journal entry and deleted
+ * before theirs, and the journal is forced to disk (in groups when
+ * inbox.durability is none). When the index of a channel is loaded it is
+ * reconciled with the shard directories, so that the messages saved or
+ * deleted around a crash are listed as they are on disk; a missing index
+ * is rebuilt the same way. Message IDs are escaped as in the InboxIndex.
+ */
+public class ShardedFileMessageStore extends FileMessageStore {
+
+    /**
+     * Name of the per-channel index file.
+     */
+    public static final String INDEX_FILE = "messages.idx";
+
+    /**
+     * Journal entry of a stored message.
+     */
+    private static final char ENTRY_ADD = 'A';
+
+    /**
+     * Journal entry of a deleted message.
+     */
+    private static final char ENTRY_DELETE = 'D';
+
+    /**
+     * Minimum number of deletions before the index is compacted.
+     */
+    private static final int COMPACT_THRESHOLD = 1024;
+
+    /**
+     * Logger to follow this class behavior.
+     */
+    private static org.apache.log4j.Logger logger =
+            org.apache.log4j.Logger.getLogger(ShardedFileMessageStore.class);
+
+    /**
+     * Open stores by absolute store path; an index must have a single writer.
+     */
+    private static final ConcurrentMap<String, ShardedFileMessageStore> STORES =
+            new ConcurrentHashMap<String, ShardedFileMessageStore>();
+
+    /**
+     * Forces the index journals to disk.
+     */
+    private final GroupCommit journalDurability = GroupCommit.getForcingInstance();
+
+    /**
+     * Loaded channel indexes by channel directory.
+     */
+    private final ConcurrentMap<File, ChannelIndex> indexes =
+            new ConcurrentHashMap<File, ChannelIndex>();
+
+    /**
+     * Returns the store for a path, opening it on first use.
+     * @param storePath Path of the store.
+     * @return the shared store of that path.
+     */
+    public static ShardedFileMessageStore getInstance(String storePath) {
+        String key = new File(storePath).getAbsolutePath();
+        ShardedFileMessageStore store = STORES.get(key);
+        if (store == null) {
+            store = new ShardedFileMessageStore(key);
+            ShardedFileMessageStore existing = STORES.putIfAbsent(key, store);
+            if (existing != null) {
+                store = existing;
+            }
+        }
+        return store;
+    }
+
+    /**
+     * Creates a store; use getInstance so that a path has a single writer.
+     * @param storePath Path of the store.
+     */
+    ShardedFileMessageStore(final String storePath) {
+        super(storePath);
+    }
+
+    @Override
+    public void save(String channelID, String messageID,
+                     Content metadata, Content payload) throws Exception {
+
+        ChannelIndex index = getIndex(channelID);
+        File channelDir = getChannelInboxDir(channelID);
+        File shardDir = getMessageDir(channelDir, messageID);
+        if (!shardDir.exists() && !shardDir.mkdirs()) {
+            logger.debug("Cannot create the shard directory: " + shardDir.getAbsolutePath());
+        }
+        super.save(channelID, messageID, metadata, payload);
+
+        File payloadFile = getPayloadFile(channelDir, messageID);
+        index.add(messageID, payloadFile.lastModified(), payloadFile.length());
+    }
+
+    @Override
+    public boolean delete(String channelID, String messageID) throws Exception {
+        boolean removed = super.delete(channelID, messageID);
+        getIndex(channelID).remove(messageID);
+        return removed;
+    }
+
+    @Override
+    public List<String> getMessageIDs(String channelID) throws Exception {
+        return getIndex(channelID).getMessageIDs();
+    }
+
+    @Override
+    public long getPayloadLength(String channelID, String messageID) throws Exception {
+        return getIndex(channelID).get(messageID).length;
+    }
+
+    @Override
+    public long getCreationTime(String channelID, String messageID) throws Exception {
+        return getIndex(channelID).get(messageID).time;
+    }
+
+    /**
+     * Returns the shard directory of a message; it is created by save only.
+     */
+    @Override
+    protected File getMessageDir(final File channelInboxDir, final String messageID) {
+        String hash;
+        try {
+            hash = Util.calculateMD5(messageID);
+        } catch (Exception ex) {
+            hash = String.format("%08x", Integer.valueOf(messageID.hashCode()));
+        }
+        return new File(new File(channelInboxDir, hash.substring(0, 2)), hash.substring(2, 4));
+    }
+
+    /**
+     * Returns the index of a channel, loading it on first use.
+     */
+    private ChannelIndex getIndex(String channelID) throws Exception {
+        File channelDir = getChannelInboxDir(channelID);
+        ChannelIndex index = indexes.get(channelDir);
+        if (index == null) {
+            synchronized (indexes) {
+                index = indexes.get(channelDir);
+                if (index == null) {
+                    index = new ChannelIndex(channelDir);
+                    indexes.put(channelDir, index);
+                }
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Receive time and payload length of an indexed message.
+     */
+    private static final class Entry {
+
+        private final long time;
+
+        private final long length;
+
+        Entry(long time, long length) {
+            this.time = time;
+            this.length = length;
+        }
+    }
+
+    /**
+     * In-memory view of a channel index file, kept in sync with its journal.
+     */
+    private final class ChannelIndex {
+
+        private final File channelDir;
+
+        private final File indexFile;
+
+        private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+
+        private int deletions;
+
+        private FileOutputStream journalFile;
+
+        private Writer journal;
+
+        ChannelIndex(File channelDir) throws IOException {
+            this.channelDir = channelDir;
+            this.indexFile = new File(channelDir, INDEX_FILE);
+            if (indexFile.exists()) {
+                load();
+            }
+            reconcile();
+            openJournal();
+        }
+
+        void add(String messageID, long time, long length) throws IOException {
+            GroupCommit.Syncable target;
+            synchronized (this) {
+                entries.put(messageID, new Entry(time, length));
+                target = append(ENTRY_ADD + "\t" + time + "\t" + length + "\t"
+                        + InboxIndex.escape(messageID) + "\n");
+            }
+            journalDurability.commit(target, length);
+        }
+
+        void remove(String messageID) throws IOException {
+            GroupCommit.Syncable target;
+            synchronized (this) {
+                if (entries.remove(messageID) == null) {
+                    return;
+                }
+                target = append(ENTRY_DELETE + "\t" + InboxIndex.escape(messageID) + "\n");
+                deletions++;
+                if (deletions > COMPACT_THRESHOLD && deletions > entries.size()) {
+                    compact();
+                }
+            }
+            journalDurability.commit(target, 0);
+        }
+
+        /**
+         * Appends a journal entry; the returned Syncable forces it.
+         */
+        private GroupCommit.Syncable append(String entry) throws IOException {
+            journal.write(entry);
+            journal.flush();
+            final FileChannel channel = journalFile.getChannel();
+            return new GroupCommit.Syncable() {
+
+                public void sync() throws IOException {
+                    try {
+                        channel.force(false);
+                    } catch (ClosedChannelException ex) {
+                        // compacted meanwhile: the snapshot was forced
+                        logger.debug("Index journal compacted before its force");
+                    }
+                }
+            };
+        }
+
+        synchronized Entry get(String messageID) throws FileNotFoundException {
+            Entry entry = entries.get(messageID);
+            if (entry == null) {
+                throw new FileNotFoundException("Message ID " + messageID
+                        + " not found in index of " + channelDir.getAbsolutePath());
+            }
+            return entry;
+        }
+
+        synchronized List<String> getMessageIDs() {
+            return new ArrayList<String>(entries.keySet());
+        }
+
+        /**
+         * Replays the journal.
+         */
+        private void load() throws IOException {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(indexFile), "UTF-8"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.length() < 2) {
+                        continue;
+                    }
+                    try {
+                        if (line.charAt(0) == ENTRY_ADD) {
+                            String[] fields = line.split("\t", 4);
+                            if (fields.length == 4) {
+                                entries.put(InboxIndex.unescape(fields[3]),
+                                        new Entry(Long.parseLong(fields[1]),
+                                        Long.parseLong(fields[2])));
+                            }
+                        } else if (line.charAt(0) == ENTRY_DELETE) {
+                            entries.remove(InboxIndex.unescape(line.substring(2)));
+                            deletions++;
+                        }
+                    } catch (NumberFormatException ex) {
+                        logger.warn("Torn index entry skipped in " + indexFile.getAbsolutePath());
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+
+        /**
+         * Brings the index in line with the shard directories: adds the
+         * messages on disk it misses, oldest first, and drops the messages
+         * no longer on disk.
+         */
+        private void reconcile() throws IOException {
+            List<File> payloads = new ArrayList<File>();
+            File[] level1 = channelDir.listFiles();
+            if (level1 != null) {
+                for (File dir1 : level1) {
+                    File[] level2 = dir1.isDirectory() ? dir1.listFiles() : null;
+                    if (level2 == null) {
+                        continue;
+                    }
+                    for (File dir2 : level2) {
+                        File[] files = dir2.isDirectory() ? dir2.listFiles() : null;
+                        if (files == null) {
+                            continue;
+                        }
+                        for (File file : files) {
+                            if (file.getName().endsWith(TransportChannel.EXT_PAYLOAD)) {
+                                payloads.add(file);
+                            }
+                        }
+                    }
+                }
+            }
+            Map<String, File> onDisk = new LinkedHashMap<String, File>();
+            for (File payload : payloads) {
+                onDisk.put(payload.getName(), payload);
+            }
+            int changes = 0;
+            Set<String> indexed = new HashSet<String>();
+            for (String messageID : new ArrayList<String>(entries.keySet())) {
+                File payload = getPayloadFile(channelDir, messageID);
+                if (onDisk.containsKey(payload.getName())) {
+                    indexed.add(payload.getName());
+                } else {
+                    entries.remove(messageID);
+                    changes++;
+                }
+            }
+
+            List<File> missing = new ArrayList<File>();
+            for (File payload : payloads) {
+                if (!indexed.contains(payload.getName())) {
+                    missing.add(payload);
+                }
+            }
+            Collections.sort(missing, new Comparator<File>() {
+
+                public int compare(File a, File b) {
+                    long diff = a.lastModified() - b.lastModified();
+                    return (diff < 0) ? -1 : ((diff > 0) ? 1 : 0);
+                }
+            });
+            for (File payload : missing) {
+                String name = payload.getName();
+                String messageID = name.substring(0, name.length()
+                        - TransportChannel.EXT_PAYLOAD.length()).replace('_', ':');
+                entries.put(messageID, new Entry(payload.lastModified(), payload.length()));
+                changes++;
+            }
+            if (changes > 0 || !indexFile.exists()) {
+                writeSnapshot();
+                logger.info("Index reconciled for " + channelDir.getAbsolutePath()
+                        + ": " + changes + " changes, " + entries.size() + " messages");
+            }
+        }
+
+        /**
+         * Rewrites the journal with the live entries only.
+         */
+        private void compact() throws IOException {
+            journal.close();
+            writeSnapshot();
+            openJournal();
+            logger.debug("Index compacted for " + channelDir.getAbsolutePath());
+        }
+
+        /**
+         * Replaces the journal with the live entries, forced to disk before
+         * the rename.
+         */
+        private void writeSnapshot() throws IOException {
+            if (!channelDir.exists() && !channelDir.mkdirs()) {
+                throw new IOException("Cannot create " + channelDir.getAbsolutePath());
+            }
+            File tmp = new File(channelDir, INDEX_FILE + ".tmp");
+            FileOutputStream file = new FileOutputStream(tmp);
+            Writer writer = new BufferedWriter(new OutputStreamWriter(file, "UTF-8"));
+            try {
+                for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                    writer.write(ENTRY_ADD + "\t" + entry.getValue().time + "\t"
+                            + entry.getValue().length + "\t"
+                            + InboxIndex.escape(entry.getKey()) + "\n");
+                }
+                writer.flush();
+                file.getChannel().force(false);
+            } finally {
+                writer.close();
+            }
+            if (indexFile.exists() && !indexFile.delete()) {
+                throw new IOException("Cannot replace index " + indexFile.getAbsolutePath());
+            }
+            if (!tmp.renameTo(indexFile)) {
+                throw new IOException("Cannot replace index " + indexFile.getAbsolutePath());
+            }
+            deletions = 0;
+        }
+
+        private void openJournal() throws IOException {
+            journalFile = new FileOutputStream(indexFile, true);
+            journal = new BufferedWriter(new OutputStreamWriter(journalFile, "UTF-8"));
+        }
+    }
+}
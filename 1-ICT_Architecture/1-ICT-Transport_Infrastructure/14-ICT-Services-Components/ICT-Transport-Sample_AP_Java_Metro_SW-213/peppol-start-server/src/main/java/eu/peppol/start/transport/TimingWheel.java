@@ -0,0 +1,199 @@
+/*
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package eu.peppol.start.transport;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hierarchical timing wheel holding elements by deadline.
+ * <p>
+ * The first level has one slot per tick; each further level, created on
+ * demand, has slots as wide as the whole level below it. When time reaches
+ * the start of an upper slot its elements are cascaded down, so adding
+ * an element is O(1) and advancing costs one slot per elapsed tick,
+ * independently of the number of elements held.
+ * <p>
+ * Elements are released at most one tick after their deadline. The class
+ * is not thread safe.
+ *
+ * @param <E> type of the elements.
+ */
+final class TimingWheel<E> {
+
+    /**
+     * Width of a slot in milliseconds.
+     */
+    private final long tick;
+
+    /**
+     * Number of slots.
+     */
+    private final int size;
+
+    /**
+     * Time covered by all the slots of this level.
+     */
+    private final long interval;
+
+    /**
+     * Start of the next slot to release; earlier slots are empty.
+     */
+    private long currentTime;
+
+    /**
+     * Slots, created on first use.
+     */
+    private final List<List<Timed<E>>> slots;
+
+    /**
+     * Next level, created when an element is beyond this level's interval.
+     */
+    private TimingWheel<E> overflow;
+
+    /**
+     * Creates a timing wheel.
+     * @param tick      Width of a slot in milliseconds.
+     * @param size      Number of slots of each level.
+     * @param startTime Current time in milliseconds.
+     */
+    TimingWheel(final long tick, final int size, final long startTime) {
+        this.tick = tick;
+        this.size = size;
+        this.interval = tick * size;
+        this.currentTime = startTime - (startTime % tick);
+        this.slots = new ArrayList<List<Timed<E>>>(size);
+        for (int i = 0; i < size; i++) {
+            slots.add(null);
+        }
+    }
+
+    /**
+     * Adds an element. An element already due is released by the next
+     * call to advance.
+     * @param element  Element to add.
+     * @param deadline Time in milliseconds at which the element is due.
+     */
+    void add(final E element, final long deadline) {
+        add(new Timed<E>(element, Math.max(deadline, currentTime)));
+    }
+
+    /**
+     * Advances the wheel to a time, releasing the due elements.
+     * @param now     Current time in milliseconds.
+     * @param expired List receiving the due elements.
+     */
+    void advance(final long now, final List<E> expired) {
+        while (currentTime + tick <= now) {
+            cascadeFromOverflow();
+            List<Timed<E>> slot = takeSlot(currentTime);
+            if (slot != null) {
+                for (Timed<E> timed : slot) {
+                    expired.add(timed.element);
+                }
+            }
+            currentTime += tick;
+        }
+    }
+
+    private void add(final Timed<E> timed) {
+        if (timed.deadline < currentTime + interval) {
+            int index = (int) ((timed.deadline / tick) % size);
+            List<Timed<E>> slot = slots.get(index);
+            if (slot == null) {
+                slot = new ArrayList<Timed<E>>();
+                slots.set(index, slot);
+            }
+            slot.add(timed);
+        } else {
+            if (overflow == null) {
+                long start = ((currentTime + interval - 1) / interval) * interval;
+                overflow = new TimingWheel<E>(interval, size, start);
+            }
+            overflow.add(timed);
+        }
+    }
+
+    /**
+     * Moves the elements of the upper slot starting now into this level.
+     */
+    private void cascadeFromOverflow() {
+        if (overflow != null && currentTime % interval == 0) {
+            List<Timed<E>> moved = overflow.release(currentTime);
+            if (moved != null) {
+                for (Timed<E> timed : moved) {
+                    add(timed);
+                }
+            }
+        }
+    }
+
+    /**
+     * Releases the slot starting at a time, called by the level below
+     * when its time reaches that slot.
+     */
+    private List<Timed<E>> release(final long time) {
+        currentTime = time;
+        cascadeFromOverflow();
+        List<Timed<E>> slot = takeSlot(time);
+        currentTime = time + tick;
+        return slot;
+    }
+
+    private List<Timed<E>> takeSlot(final long time) {
+        int index = (int) ((time / tick) % size);
+        List<Timed<E>> slot = slots.get(index);
+        slots.set(index, null);
+        return slot;
+    }
+
+    /**
+     * Element with its deadline.
+     */
+    private static final class Timed<E> {
+
+        private final E element;
+
+        private final long deadline;
+
+        Timed(final E element, final long deadline) {
+            this.element = element;
+            this.deadline = deadline;
+        }
+    }
+}
@@ -37,22 +37,38 @@
  */
 package eu.peppol.start.transport;
 
-import java.io.BufferedOutputStream;
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.FilenameFilter;
+import eu.peppol.start.metadata.MessageMetadata;
+import eu.peppol.start.soap.SOAPHeaderObject;
+import eu.peppol.start.util.Configuration;
+import eu.peppol.start.util.XMLToolkit;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+import javax.xml.transform.Source;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stax.StAXSource;
 import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
 
 import org.w3c.dom.Document;
 
@@ -78,15 +94,62 @@ public class TransportChannel {
     public static final String INBOX_DIR = "inbox";
 
     /**
-     * Time limit for Messages.
+     * Time limit for Messages, unless set by inbox.retention.millis.
      */
     public static final long MESSAGE_INVALID_TIME_IN_MILLIS = 1000L * 60L * 60L * 2L;
 
+    /**
+     * Storage mode keeping two files per message.
+     */
+    public static final String STORAGE_MODE_FILES = "files";
+
+    /**
+     * Storage mode keeping a segmented append-only log per channel.
+     */
+    public static final String STORAGE_MODE_LOG = "log";
+
+    /**
+     * Storage mode keeping two files per message in hashed sub directories,
+     * with a per-channel message index.
+     */
+    public static final String STORAGE_MODE_SHARDED = "sharded";
+
+    /**
+     * Value of inbox.metadata.format storing the metadata as a MetadataRecord.
+     */
+    public static final String METADATA_FORMAT_BINARY = "binary";
+
+    /**
+     * Value of inbox.compression keeping the messages uncompressed.
+     */
+    public static final String COMPRESSION_NONE = "none";
+
+    /**
+     * Size of the buffer used when copying payload streams.
+     */
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
     /**
      * Path of the Store.
      */
     protected String storePath;
 
+    /**
+     * Backend holding the messages.
+     */
+    private final MessageStore store;
+
+    /**
+     * Sweeper deleting the expired messages of the store.
+     */
+    private final InboxExpirySweeper sweeper;
+
+    /**
+     * Secondary indexes of the store, or null if inbox.index.enabled is off
+     * or the inbox is partitioned.
+     */
+    private final InboxIndex index;
+
      /**
      * Indicates if the document was saved.
      */
@@ -103,12 +166,37 @@ public class TransportChannel {
     public boolean isPayloadRemoved = false;
 
     /**
-     * Set the path of the Store.
+     * Set the path of the Store. The storage backend is selected by the
+     * inbox.storage.mode property.
      *
      * @param storePath Path of the store.
      */
     public TransportChannel(final String storePath) {
+        this(storePath, createStore(storePath));
+    }
+
+    /**
+     * Set the path and the backend of the Store.
+     *
+     * @param storePath Path of the store.
+     * @param store     Backend holding the messages.
+     */
+    public TransportChannel(final String storePath, final MessageStore store) {
         this.storePath = storePath;
+        this.store = store;
+        // a partitioned inbox is swept on each node and not indexed
+        boolean partitioned = PartitionedMessageStore.isEnabled();
+        this.sweeper = partitioned
+                ? InboxExpirySweeper.getInstance(storePath,
+                        PartitionedMessageStore.getInstance(storePath).getLocalStore())
+                : InboxExpirySweeper.getInstance(storePath, store);
+        if (!partitioned && Boolean.valueOf(Configuration.getInstance().getProperty(
+                "inbox.index.enabled")).booleanValue()) {
+            this.index = InboxIndex.getInstance(storePath, store);
+            sweeper.setIndex(index);
+        } else {
+            this.index = null;
+        }
     }
 
     /**
@@ -117,6 +205,70 @@ public class TransportChannel {
     private static org.apache.log4j.Logger logger =
             org.apache.log4j.Logger.getLogger(TransportChannel.class);
 
+    /**
+     * Creates the storage backend configured for the inbox: the
+     * PartitionedMessageStore of the path when inbox.partition.nodes is
+     * set, the local store otherwise, compressed if inbox.compression is set.
+     * @param storePath Path of the store.
+     * @return the MessageStore.
+     */
+    private static MessageStore createStore(String storePath) {
+        MessageStore store = PartitionedMessageStore.isEnabled()
+                ? PartitionedMessageStore.getInstance(storePath)
+                : createLocalStore(storePath);
+
+        String compression = Configuration.getInstance().getProperty("inbox.compression");
+        if (compression == null || compression.trim().length() == 0
+                || COMPRESSION_NONE.equalsIgnoreCase(compression.trim())) {
+            return store;
+        }
+        return new CompressingMessageStore(store, createCodec(compression.trim()));
+    }
+
+    /**
+     * Creates the storage backend selected by inbox.storage.mode, holding
+     * the messages on this node.
+     * @param storePath Path of the store.
+     * @return the MessageStore.
+     */
+    static MessageStore createLocalStore(String storePath) {
+        Configuration conf = Configuration.getInstance();
+        String mode = conf.getProperty("inbox.storage.mode");
+
+        MessageStore store;
+        if (STORAGE_MODE_LOG.equalsIgnoreCase(mode)) {
+            String segmentSize = conf.getProperty("inbox.log.segment.size");
+            store = SegmentedLogStore.getInstance(storePath,
+                    (segmentSize != null && segmentSize.trim().length() > 0)
+                    ? Integer.parseInt(segmentSize.trim())
+                    : SegmentedLogStore.DEFAULT_SEGMENT_SIZE);
+        } else if (STORAGE_MODE_SHARDED.equalsIgnoreCase(mode)) {
+            store = ShardedFileMessageStore.getInstance(storePath);
+        } else {
+            store = new FileMessageStore(storePath);
+        }
+        return store;
+    }
+
+    /**
+     * Creates the codec configured by inbox.compression.
+     * @param name Name of the codec.
+     * @return the PayloadCodec.
+     */
+    private static PayloadCodec createCodec(String name) {
+        if (DeflateCodec.NAME.equalsIgnoreCase(name)) {
+            String level = Configuration.getInstance().getProperty("inbox.compression.level");
+            return (level != null && level.trim().length() > 0)
+                    ? new DeflateCodec(Integer.parseInt(level.trim()))
+                    : new DeflateCodec();
+        }
+        try {
+            return CompressingMessageStore.getCodec(name);
+        } catch (Exception ex) {
+            throw new IllegalArgumentException("Unknown inbox.compression codec: " + name, ex);
+        }
+    }
+
     /**
      * Save a Document.
      * @param channelID
@@ -134,74 +286,108 @@ public class TransportChannel {
                              String messageID,
                              Document metadataDocument,
                              Document payloadDocument) throws Exception{
-        isSaved = false;
+        saveDocument(channelID, messageID, metadataDocument,
+                new DOMSource(payloadDocument));
+    }
 
-        File channelInboxDir = getChannelInboxDir(channelID);
-
-        File metadataFile = getMetadataFile(channelInboxDir, messageID);
-        File payloadFile = getPayloadFile(channelInboxDir, messageID);
-
-        if (!metadataFile.createNewFile()) {
-            Logger.getLogger(TransportChannel.class.getName()).log(Level.SEVERE,
-                                "Cannot create new metadata file for message ID "
-                                + messageID
-                                + " in inbox for channel "
-                                + channelID);
-            logger.error("Cannot create new metadata file for message ID "
-                                + messageID
-                                + " in inbox for channel "
-                                + channelID);
-            throw new Exception(
-                                "Cannot create new metadata file for message ID "
-                                + messageID
-                                + " in inbox for channel "
-                                + channelID);
-        }
-        if (!payloadFile.createNewFile()) {
-            Logger.getLogger(TransportChannel.class.getName()).log(Level.SEVERE,
-                                "Cannot create new payload file for message ID "
-                                + messageID
-                                + " in inbox for channel "
-                                + channelID);
-            logger.error("Cannot create new payload file for message ID "
-                                + messageID
-                                + " in inbox for channel "
-                                + channelID);
-            if (!metadataFile.delete()) {
-                logger.debug("Cannot delete metadata file for message ID "
-                                + messageID
-                                + " in inbox for channel "
-                                + channelID);
-            } else {
-                logger.debug("Metadata file deleted: " + metadataFile.getAbsolutePath());
+    /**
+     * Save a Document, streaming the payload to the store.
+     * A StAXSource or StreamSource payload is copied to the store
+     * event by event (or byte by byte) without building a DOM.
+     * @param channelID
+     *                  ID for channel.
+     * @param messageID
+     *                  ID for message.
+     * @param metadataDocument
+     *                  XML Document for Metadata.
+     * @param payloadSource
+     *                  Source of the Payload.
+     * @throws Exception
+     *                  Exception if document cannot be saved.
+     */
+    public final void saveDocument(String channelID,
+                             String messageID,
+                             Document metadataDocument,
+                             final Source payloadSource) throws Exception{
+
+        final Source metadataSource = new DOMSource(metadataDocument);
+        save(channelID, messageID, new MessageStore.Content() {
+
+            public void writeTo(OutputStream out) throws Exception {
+                writeSource(metadataSource, out);
             }
-            throw new Exception(
-                                "Cannot create new payload file for message ID "
-                                + messageID
-                                + " in inbox for channel "
-                                + channelID);
+        }, payloadSource, (index != null)
+                ? MetadataRecord.parse(metadataDocument, channelID, System.currentTimeMillis())
+                : null);
+    }
+
+    /**
+     * Save a Document, streaming the payload to the store. The metadata is
+     * written in the format selected by inbox.metadata.format: a
+     * MetadataRecord for "binary", the XML of SOAPHeaderObject.getDocument
+     * otherwise.
+     * @param channelID
+     *                  ID for channel.
+     * @param messageID
+     *                  ID for message.
+     * @param metadata
+     *                  Metadata of the message.
+     * @param payloadSource
+     *                  Source of the Payload.
+     * @throws Exception
+     *                  Exception if document cannot be saved.
+     */
+    public final void saveDocument(String channelID,
+                             String messageID,
+                             MessageMetadata metadata,
+                             final Source payloadSource) throws Exception{
+
+        final MetadataRecord record = new MetadataRecord(metadata);
+        String format = Configuration.getInstance().getProperty("inbox.metadata.format");
+        if (!METADATA_FORMAT_BINARY.equalsIgnoreCase(format)) {
+            final Source metadataSource = new DOMSource(
+                    SOAPHeaderObject.getDocument(metadata.getSoapHeader()));
+            save(channelID, messageID, new MessageStore.Content() {
+
+                public void writeTo(OutputStream out) throws Exception {
+                    writeSource(metadataSource, out);
+                }
+            }, payloadSource, record);
+            return;
         }
 
-        try {
+        save(channelID, messageID, new MessageStore.Content() {
+
+            public void writeTo(OutputStream out) throws Exception {
+                record.writeTo(out);
+            }
+        }, payloadSource, record);
+    }
+
+    /**
+     * Saves the metadata and the payload of a message in the store, and
+     * indexes the record of the metadata when the index is enabled.
+     */
+    private void save(String channelID, String messageID,
+                      MessageStore.Content metadata, final Source payloadSource,
+                      MetadataRecord record) throws Exception {
+        isSaved = false;
 
-            writeDocumentToFile(metadataFile, metadataDocument);
-            logger.info("Metadata created: " + metadataFile.getName());
-            writeDocumentToFile(payloadFile, payloadDocument);
-            logger.info("Payload created: " + payloadFile.getName());
+        try {
+            store.save(channelID, messageID, metadata,
+                    new MessageStore.Content() {
 
+                        public void writeTo(OutputStream out) throws Exception {
+                            writeSource(payloadSource, out);
+                        }
+                    });
             isSaved = true;
+            long now = System.currentTimeMillis();
+            sweeper.schedule(channelID, messageID, now);
+            if (index != null) {
+                index(channelID, messageID, record, now);
+            }
         } catch (Exception ex) {
-            if (metadataFile.delete()) {
-                    logger.debug("Metadata file deleted: " + metadataFile.getAbsolutePath());
-                } else {
-                    logger.debug("Cannot delete Metadata file: " + metadataFile.getAbsolutePath());
-                }
-             if (payloadFile.delete()) {
-                    logger.debug("Payload file deleted: " + payloadFile.getAbsolutePath());
-                } else {
-                    logger.debug("Cannot delete Payload file: " + payloadFile.getAbsolutePath());
-                }
-
             Logger.getLogger(TransportChannel.class.getName()).log(Level.SEVERE, "Error saving a document.", ex);
             logger.error("Error saving a document.", ex);
 
@@ -209,6 +395,21 @@ public class TransportChannel {
         }
     }
 
+    /**
+     * Adds a saved message to the index. A failure is logged only, as the
+     * message is already stored; deleting the index journal of the channel
+     * makes it indexed again on next use.
+     */
+    private void index(String channelID, String messageID, MetadataRecord record, long now) {
+        try {
+            index.add(channelID, messageID, record, now);
+        } catch (Exception ex) {
+            Logger.getLogger(TransportChannel.class.getName()).log(Level.WARNING,
+                    "Message not indexed: " + messageID, ex);
+            logger.error("Message not indexed: " + messageID, ex);
+        }
+    }
+
     /**
      * Delete a Document.
      * @param channelID
@@ -222,31 +423,19 @@ public class TransportChannel {
                 final String messageID) throws Exception {
 
         if (channelID != null && messageID != null) {
-            File channelInboxDir = getChannelInboxDir(channelID);
-            File metadataFile = getMetadataFile(channelInboxDir, messageID);
-            File payloadFile = getPayloadFile(channelInboxDir, messageID);
-
-            if (metadataFile.exists()) {
-                if (metadataFile.delete()) {
-                    isMetadataRemoved = true;
-                    logger.debug("Metadata file deleted: " + metadataFile.getAbsolutePath());
-                } else {
-                    logger.debug("Cannot delete Metadata file: " + metadataFile.getAbsolutePath());
-                }
+            if (store.delete(channelID, messageID)) {
+                isMetadataRemoved = true;
+                isPayloadRemoved = true;
             }
-            if (payloadFile.exists()) {
-                if (payloadFile.delete()) {
-                    isPayloadRemoved = true;
-                    logger.debug("Payload file deleted: " + payloadFile.getAbsolutePath());
-                } else {
-                    logger.debug("Cannot delete Payload file: " + payloadFile.getAbsolutePath());
-                }
+            if (index != null) {
+                index.remove(channelID, messageID);
             }
         }
     }
 
     /**
-     * Get MessagesID from a Channel.
+     * Get MessagesID from a Channel. Expired messages are deleted by
+     * the InboxExpirySweeper, not by this method.
      * @param channelID
      *        ID of the Channel.
      * @return  Array of MessagesID.
@@ -255,32 +444,60 @@ public class TransportChannel {
      */
     public final String[] getMessageIDs(final String channelID) throws Exception {
 
-        File dir = getChannelInboxDir(channelID);
-        File[] files = dir.listFiles(new FilenameFilter() {
+        sweeper.track(channelID);
 
-            public boolean accept(final File dir, final String name) {
-                return (name.endsWith(EXT_PAYLOAD));
-            }
-        });
+        List<String> ids = store.getMessageIDs(channelID);
+        return ids.toArray(new String[ids.size()]);
+    }
 
-        String[] messageIDs = new String[files.length];
-        int i = 0;
-        for (File payloadFile : files) {
-            String curMessageId = getMessageIDFromPayloadFile(payloadFile);
-
-            if ((System.currentTimeMillis() - payloadFile.lastModified())
-                 > MESSAGE_INVALID_TIME_IN_MILLIS) {
-                deleteDocument(channelID, curMessageId);
-            } else {
-                messageIDs[i] = curMessageId;
-                i++;
+    /**
+     * Find the MessagesID of a Channel matching a query, by receive time.
+     * The query is answered by the InboxIndex when inbox.index.enabled is
+     * set; otherwise the metadata of every message is read.
+     * @param channelID
+     *        ID of the Channel.
+     * @param query
+     *        Criteria of the messages.
+     * @return  Array of MessagesID.
+     * @throws Exception
+     *         Throws an exception.
+     */
+    public final String[] findMessageIDs(final String channelID,
+                final InboxQuery query) throws Exception {
+
+        sweeper.track(channelID);
+
+        if (index != null) {
+            List<String> ids = index.query(channelID, query);
+            return ids.toArray(new String[ids.size()]);
+        }
+
+        final Map<String, Long> matches = new HashMap<String, Long>();
+        for (String messageID : store.getMessageIDs(channelID)) {
+            try {
+                MetadataRecord record = MetadataRecord.load(store, channelID, messageID);
+                long time = store.getCreationTime(channelID, messageID);
+                if (query.matches(record.getSenderValue(), record.getRecipientValue(),
+                        record.getDocumentIdValue(), record.getProcessIdValue(), time)) {
+                    matches.put(messageID, Long.valueOf(time));
+                }
+            } catch (Exception ex) {
+                logger.debug("Message " + messageID + " removed while querying " + channelID);
             }
         }
-        return messageIDs;
+        String[] ids = matches.keySet().toArray(new String[matches.size()]);
+        Arrays.sort(ids, new Comparator<String>() {
+
+            public int compare(String a, String b) {
+                return matches.get(a).compareTo(matches.get(b));
+            }
+        });
+        return ids;
     }
 
     /**
-     * Get Metadata of a Document.
+     * Get Metadata of a Document. Metadata stored as a MetadataRecord is
+     * returned as its XML view.
      * @param channelID
      *        ID of the Channel.
      * @param messageID
@@ -292,13 +509,35 @@ public class TransportChannel {
     public final Document getDocumentMetadata(final String channelID,
                 final String messageID) throws Exception {
 
-        File channelInboxDir = getChannelInboxDir(channelID);
-        File metadataFile = getMetadataFile(channelInboxDir, messageID);
-        DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
-        documentBuilderFactory.setNamespaceAware(false);
-        DocumentBuilder documentBuilder =
-                                    documentBuilderFactory.newDocumentBuilder();
-        return documentBuilder.parse(metadataFile);
+        PushbackInputStream in = new PushbackInputStream(
+                store.openMetadata(channelID, messageID), MetadataRecord.MAGIC.length);
+        try {
+            if (MetadataRecord.startsWithRecord(in)) {
+                return MetadataRecord.read(in).toDocument();
+            }
+            DocumentBuilder documentBuilder = XMLToolkit.getDocumentBuilder(false);
+            return documentBuilder.parse(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Get the Metadata of a Document as a MetadataRecord, whichever format
+     * it was stored in. Metadata stored as XML is read with StAX; its
+     * message ID and receive time come from the store.
+     * @param channelID
+     *        ID of the Channel.
+     * @param messageID
+     *        ID of the Message.
+     * @return  Metadata record.
+     * @throws Exception
+     *         throws an exception.
+     */
+    public final MetadataRecord getMetadataRecord(final String channelID,
+                final String messageID) throws Exception {
+
+        return MetadataRecord.load(store, channelID, messageID);
     }
 
     /**
@@ -315,180 +554,292 @@ public class TransportChannel {
     public final Document getDocument(final String channelID,
                 final String messageID) throws Exception {
 
-        File channelInboxDir = getChannelInboxDir(channelID);
-        File payloadFile = getPayloadFile(channelInboxDir, messageID);
-        DocumentBuilderFactory documentBuilderFactory
-                                            = DocumentBuilderFactory.newInstance();
-        DocumentBuilder documentBuilder =
-                                    documentBuilderFactory.newDocumentBuilder();
-        return documentBuilder.parse(payloadFile);
+        DocumentBuilder documentBuilder = XMLToolkit.getDocumentBuilder(false);
+        InputStream in = store.openPayload(channelID, messageID);
+        try {
+            return documentBuilder.parse(in);
+        } finally {
+            in.close();
+        }
     }
 
     /**
-     * Returns the size of a file.
+     * Opens the stored Metadata of a message, without parsing it.
+     * The caller must close the stream.
      * @param channelID
-     *               Represents the channel identifier.
+     *              Represents the channel identifier.
      * @param messageID
-     *               Represents the message identifier.
+     *              Represents the message identifier.
      * @return
-     *          long primitive type representing the size of file.
+     *              stream over the Metadata bytes.
      * @throws Exception
-     *          generic exception.
+     *              Generic exception.
      */
-    public final long getSize(final String channelID,
-                              final String messageID) throws Exception {
-
-        File channelInboxDir = getChannelInboxDir(channelID);
-        File payloadFile = getPayloadFile(channelInboxDir, messageID);
-        long fileLength = payloadFile.length();
-        //calculate length in Kilobytes and round up
-        final int kb = 1023;
-        final int size = 1024;
-        long fileLenghtInKB = (fileLength + kb) / size;
-        return fileLenghtInKB;
+    public final InputStream openDocumentMetadata(final String channelID,
+                final String messageID) throws Exception {
+        return store.openMetadata(channelID, messageID);
     }
 
     /**
-     * Returns the date in which a file was created.
+     * Opens the stored document of a message, without parsing it.
+     * The caller must close the stream.
      * @param channelID
      *              Represents the channel identifier.
      * @param messageID
      *              Represents the message identifier.
      * @return
-     *          Date complex type with data of the creation time.
+     *              stream over the document bytes.
      * @throws Exception
-     *          Generic exception.
+     *              Generic exception.
      */
-    public final Date getCreationTime(final String channelID,
-                                      final String messageID) throws Exception {
-
-        File channelInboxDir = getChannelInboxDir(channelID);
-        File payloadFile = getPayloadFile(channelInboxDir, messageID);
-        return new Date(payloadFile.lastModified());
+    public final InputStream openDocument(final String channelID,
+                final String messageID) throws Exception {
+        return store.openPayload(channelID, messageID);
     }
 
     /**
-     * Returns the message ID of a payload file.
-     * @param payloadFile
-     *              File containing the document data.
+     * Maps the stored document of a message, read-only and without
+     * parsing it.
+     * @param channelID
+     *              Represents the channel identifier.
+     * @param messageID
+     *              Represents the message identifier.
      * @return
-     *          String data type containing the message id.
+     *              read-only buffer over the document bytes.
+     * @throws Exception
+     *              Generic exception.
      */
-    private String getMessageIDFromPayloadFile(final File payloadFile) {
-
-        String str = payloadFile.getName();
-
-        String messageID =
-                str.substring(
-                0, str.length()
-                - EXT_PAYLOAD.length());
+    public final ByteBuffer mapDocument(final String channelID,
+                final String messageID) throws Exception {
+        return store.mapPayload(channelID, messageID);
+    }
 
-        messageID = messageID.replace('_', ':');
-        return messageID;
+    /**
+     * Writes the stored document of a message to a channel, such as a
+     * socket, without parsing it. Uncompressed documents are sent with
+     * FileChannel.transferTo, so the bytes need not pass through the heap.
+     * @param channelID
+     *              Represents the channel identifier.
+     * @param messageID
+     *              Represents the message identifier.
+     * @param target
+     *              Channel receiving the document.
+     * @return
+     *              number of bytes written.
+     * @throws Exception
+     *              Generic exception.
+     */
+    public final long transferDocument(final String channelID,
+                final String messageID, final WritableByteChannel target) throws Exception {
+        return store.transferPayload(channelID, messageID, target);
     }
 
     /**
-     * Returns a file in binary format containing data of soap header.
-     * @param channelInboxDir
-     *              Represents the path in which message will be saved.
+     * Returns the size of a document, uncompressed.
+     * @param channelID
+     *               Represents the channel identifier.
      * @param messageID
-     *              Represents identifier of the message.
+     *               Represents the message identifier.
      * @return
-     *          File complex type containing information of SOAP Header.
+     *          long primitive type representing the size in Kilobytes.
+     * @throws Exception
+     *          generic exception.
      */
-    private File getMetadataFile(final File channelInboxDir, String messageID) {
-        messageID = removeSpecialChars(messageID);
-        return new File(channelInboxDir, messageID + EXT_METADATA);
+    public final long getSize(final String channelID,
+                              final String messageID) throws Exception {
+
+        return toKilobytes(store.getPayloadLength(channelID, messageID));
     }
 
     /**
-     * Returns a file in binary format containing data of document.
-     * @param channelInboxDir
-     *              Represents the path in which message will be saved.
+     * Returns the size a document takes in the store, which is smaller than
+     * getSize when inbox.compression is enabled.
+     * @param channelID
+     *               Represents the channel identifier.
      * @param messageID
-     *              Represents identifier of the message.
+     *               Represents the message identifier.
      * @return
-     *          File complex type containing information of xml document.
+     *          long primitive type representing the size in Kilobytes.
+     * @throws Exception
+     *          generic exception.
      */
-    private File getPayloadFile(final File channelInboxDir, String messageID) {
-        messageID = removeSpecialChars(messageID);
-        File file = new File(channelInboxDir, messageID + EXT_PAYLOAD);
+    public final long getStoredSize(final String channelID,
+                                    final String messageID) throws Exception {
 
-        return file;
+        long fileLength = (store instanceof CompressingMessageStore)
+                ? ((CompressingMessageStore) store).getStoredPayloadLength(channelID, messageID)
+                : store.getPayloadLength(channelID, messageID);
+        return toKilobytes(fileLength);
+    }
+
+    /**
+     * Calculates a length in Kilobytes, rounded up.
+     */
+    private static long toKilobytes(long fileLength) {
+        final int kb = 1023;
+        final int size = 1024;
+        return (fileLength + kb) / size;
     }
 
     /**
-     * Returns the path in which messages will be stored.
+     * Returns the date in which a file was created.
      * @param channelID
      *              Represents the channel identifier.
+     * @param messageID
+     *              Represents the message identifier.
      * @return
-     *              File representing storage path.
+     *          Date complex type with data of the creation time.
      * @throws Exception
-     *              Generic exception.
+     *          Generic exception.
      */
-    private File getChannelInboxDir(String channelID) throws Exception {
+    public final Date getCreationTime(final String channelID,
+                                      final String messageID) throws Exception {
 
-        File inboxDir = new File(storePath, INBOX_DIR);
-        if (!inboxDir.exists()) {
-            if (!inboxDir.mkdir()) {
-                logger.debug("Cannot create the inbox directory: "
-                            + storePath + "/" + inboxDir);
-            }
-        }
-        channelID = removeSpecialChars(channelID);
+        return new Date(store.getCreationTime(channelID, messageID));
+    }
 
-        File channelDir = new File(inboxDir, channelID);
-        if (!channelDir.exists()) {
-            if (!channelDir.mkdir()) {
-                logger.debug("Cannot create the channel directory: "
-                            + inboxDir + "/" + channelID);
-            }
-        }
-        if (!channelDir.exists()) {
-
-            Logger.getLogger(TransportChannel.class.getName()).log(Level.SEVERE,
-                    "Inbox for channel \""
-                    + channelID
-                    + "\" could not be found or created: "
-                    + channelDir.getAbsolutePath());
-
-            logger.error("Inbox for channel \""
-                    + channelID
-                    + "\" could not be found or created: "
-                    + channelDir.getAbsolutePath());
-
-            throw new Exception("Inbox for channel \""
-                    + channelID
-                    + "\" could not be found or created: "
-                    + channelDir.getAbsolutePath());
+    /**
+     * Writes an XML source to a stream. StAX and stream sources are
+     * copied directly; other sources go through an identity Transformer.
+     * @param source
+     *              XML content to write.
+     * @param out
+     *              Stream to write to.
+     * @throws TransformerException
+     *              if the source cannot be serialized.
+     * @throws IOException
+     *              if the stream cannot be written.
+     */
+    static void writeSource(Source source, OutputStream out)
+                                     throws TransformerException, IOException {
+
+        if (source instanceof StreamSource
+                && ((StreamSource) source).getInputStream() != null) {
+            copyStream(((StreamSource) source).getInputStream(), out);
+        } else if (source instanceof StAXSource
+                && ((StAXSource) source).getXMLStreamReader() != null) {
+            copyEvents(((StAXSource) source).getXMLStreamReader(), out);
+        } else {
+            Transformer transformer = XMLToolkit.getTransformer();
+            transformer.transform(source, new StreamResult(out));
         }
-        return channelDir;
     }
 
     /**
-     * Remove characters that are not allowed for folder creation.
-     * @param fileOrDirName
-     *              Name of the directory or path to be created.
-     * @return
-     *              String with special characters removed.
+     * Copies raw bytes from a stream to the store.
      */
-    private String removeSpecialChars(String fileOrDirName) {
-        fileOrDirName = fileOrDirName.replace(':', '_');
-        return fileOrDirName;
+    private static void copyStream(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
     }
 
-    private void writeDocumentToFile(File messageFile, Document document)
-                                     throws TransformerException, IOException {
+    /**
+     * Copies the events of the element the reader is positioned on (or the
+     * whole document, if positioned at its start) to the message file.
+     * The namespaces of the element and attribute names declared on
+     * ancestors not copied are declared where they are first used.
+     */
+    private static void copyEvents(XMLStreamReader reader, OutputStream out)
+                            throws TransformerException {
+        try {
+            XMLStreamWriter writer =
+                    XMLToolkit.getXMLOutputFactory().createXMLStreamWriter(out, "UTF-8");
+            writer.writeStartDocument("UTF-8", "1.0");
+
+            // namespaces declared in the output, innermost element first
+            ArrayDeque<Map<String, String>> scopes = new ArrayDeque<Map<String, String>>();
+            int depth = 0;
+            int event = reader.getEventType();
+            do {
+                switch (event) {
+                    case XMLStreamConstants.START_ELEMENT:
+                        depth++;
+                        Map<String, String> scope = new HashMap<String, String>();
+                        scopes.push(scope);
+                        String prefix = nullToEmpty(reader.getPrefix());
+                        String namespace = nullToEmpty(reader.getNamespaceURI());
+                        writer.writeStartElement(prefix, reader.getLocalName(), namespace);
+                        for (int i = 0; i < reader.getNamespaceCount(); i++) {
+                            String declared = nullToEmpty(reader.getNamespacePrefix(i));
+                            writer.writeNamespace(declared, nullToEmpty(reader.getNamespaceURI(i)));
+                            scope.put(declared, nullToEmpty(reader.getNamespaceURI(i)));
+                        }
+                        declareNamespace(writer, scopes, prefix, namespace);
+                        for (int i = 0; i < reader.getAttributeCount(); i++) {
+                            String attributePrefix = nullToEmpty(reader.getAttributePrefix(i));
+                            if (attributePrefix.length() > 0) {
+                                declareNamespace(writer, scopes, attributePrefix,
+                                        nullToEmpty(reader.getAttributeNamespace(i)));
+                            }
+                        }
+                        for (int i = 0; i < reader.getAttributeCount(); i++) {
+                            writer.writeAttribute(nullToEmpty(reader.getAttributePrefix(i)),
+                                    nullToEmpty(reader.getAttributeNamespace(i)),
+                                    reader.getAttributeLocalName(i),
+                                    reader.getAttributeValue(i));
+                        }
+                        break;
+                    case XMLStreamConstants.END_ELEMENT:
+                        depth--;
+                        scopes.pop();
+                        writer.writeEndElement();
+                        break;
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.SPACE:
+                        writer.writeCharacters(reader.getTextCharacters(),
+                                reader.getTextStart(), reader.getTextLength());
+                        break;
+                    case XMLStreamConstants.CDATA:
+                        writer.writeCData(reader.getText());
+                        break;
+                    case XMLStreamConstants.COMMENT:
+                        writer.writeComment(reader.getText());
+                        break;
+                    case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                        writer.writeProcessingInstruction(reader.getPITarget(), reader.getPIData());
+                        break;
+                    default:
+                        break;
+                }
+                if (depth == 0 && event == XMLStreamConstants.END_ELEMENT) {
+                    break;
+                }
+                event = reader.next();
+            } while (event != XMLStreamConstants.END_DOCUMENT);
+
+            writer.writeEndDocument();
+            writer.flush();
+            writer.close();
+        } catch (XMLStreamException ex) {
+            throw new TransformerException(ex);
+        }
+    }
 
-        BufferedOutputStream bos =
-                new BufferedOutputStream(new FileOutputStream(messageFile));
+    /**
+     * Declares a namespace on the element just started, unless the prefix
+     * is already bound to it in the output.
+     */
+    private static void declareNamespace(XMLStreamWriter writer,
+                                         ArrayDeque<Map<String, String>> scopes,
+                                         String prefix, String namespace)
+                                         throws XMLStreamException {
+        String bound = "";
+        for (Map<String, String> scope : scopes) {
+            if (scope.containsKey(prefix)) {
+                bound = scope.get(prefix);
+                break;
+            }
+        }
+        if (!bound.equals(namespace)) {
+            writer.writeNamespace(prefix, namespace);
+            scopes.peek().put(prefix, namespace);
+        }
+    }
 
-        TransformerFactory transformerFactory =
-                                            TransformerFactory.newInstance();
-        Transformer transformer = transformerFactory.newTransformer();
-        DOMSource source = new DOMSource(document);
-        StreamResult result = new StreamResult(bos);
-        transformer.transform(source, result);
-        bos.close();
+    private static String nullToEmpty(String value) {
+        return (value != null) ? value : "";
     }
 }
\ No newline at end of file
@@ -0,0 +1,172 @@
+/*
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package eu.peppol.start.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class AdmissionControlTest {
+
+    private static final long MILLIS = 1000000L;
+
+    /**
+     * Test of reserve and cancel, of class TokenBucket.
+     */
+    @Test
+    public void testTokenBucket() throws Exception {
+
+        TokenBucket bucket = new TokenBucket(10.0, 2, 0L);
+        assertEquals(0L, bucket.reserve(0L, 0L));
+        assertEquals(0L, bucket.reserve(0L, 0L));
+        assertEquals(-1L, bucket.reserve(0L, 0L));
+        assertEquals(100 * MILLIS, bucket.reserve(0L, 150 * MILLIS));
+        bucket.cancel();
+        assertEquals(-1L, bucket.reserve(50 * MILLIS, 0L));
+        assertEquals(0L, bucket.reserve(100 * MILLIS, 0L));
+    }
+
+    /**
+     * Test of the weighted fair order and of shedding, of class FairScheduler.
+     */
+    @Test
+    public void testFairScheduler() throws Exception {
+
+        final FairScheduler scheduler = new FairScheduler(1, 3);
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        assertTrue(scheduler.acquire("busy", 1, 0));
+
+        List<Thread> threads = new ArrayList<Thread>();
+        String[] senders = {"flood", "flood", "flood", "other"};
+        for (int i = 0; i < senders.length; i++) {
+            final String name = senders[i] + i;
+            final String sender = senders[i];
+            Thread thread = new Thread(new Runnable() {
+
+                public void run() {
+                    if (scheduler.acquire(sender, 1, 10000)) {
+                        order.add(name);
+                        scheduler.release();
+                    } else {
+                        order.add("shed " + name);
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+            while (scheduler.getQueued() < Math.min(i + 1, 3) && order.size() == 0) {
+                Thread.sleep(5);
+            }
+            Thread.sleep(20);
+        }
+
+        scheduler.release();
+        for (Thread thread : threads) {
+            thread.join(5000);
+        }
+        assertEquals(Arrays.asList("shed flood2", "flood0", "other3", "flood1"), order);
+    }
+
+    /**
+     * Test of the rate of a sender set by identifier, of class AdmissionControl.
+     */
+    @Test
+    public void testAdmit() throws Exception {
+
+        Properties settings = new Properties();
+        settings.setProperty("admission.sender.rate", "1000");
+        settings.setProperty("admission.sender.rate.scheme.flood", "0.001");
+        settings.setProperty("admission.sender.burst.scheme", "2");
+        settings.setProperty("admission.max.wait.millis", "0");
+        AdmissionControl admission = new AdmissionControl(settings);
+
+        assertTrue(admission.admit("scheme", "flood", "scheme", "recipient"));
+        assertTrue(admission.admit("scheme", "flood", "scheme", "recipient"));
+        assertFalse(admission.admit("scheme", "flood", "scheme", "recipient"));
+        assertTrue(admission.admit("scheme", "other", "scheme", "recipient"));
+        assertEquals(3, admission.getAdmitted());
+        assertEquals(1, admission.getThrottled());
+    }
+
+    /**
+     * Test of the eviction of the buckets, of class AdmissionControl.
+     */
+    @Test
+    public void testMaxIdentifiers() throws Exception {
+
+        Properties settings = new Properties();
+        settings.setProperty("admission.sender.rate", "0.001");
+        settings.setProperty("admission.sender.burst", "1");
+        settings.setProperty("admission.max.wait.millis", "0");
+        settings.setProperty("admission.max.identifiers", "1");
+        AdmissionControl admission = new AdmissionControl(settings);
+
+        assertTrue(admission.admit("scheme", "first", "scheme", "recipient"));
+        assertFalse(admission.admit("scheme", "first", "scheme", "recipient"));
+        assertTrue(admission.admit("scheme", "second", "scheme", "recipient"));
+        assertTrue(admission.admit("scheme", "first", "scheme", "recipient"));
+    }
+
+    /**
+     * Test that a message shed gives its tokens back, of class AdmissionControl.
+     */
+    @Test
+    public void testShedCancels() throws Exception {
+
+        Properties settings = new Properties();
+        settings.setProperty("admission.sender.rate", "0.001");
+        settings.setProperty("admission.sender.burst", "2");
+        settings.setProperty("admission.channel.rate", "0.001");
+        settings.setProperty("admission.channel.burst", "2");
+        settings.setProperty("admission.max.wait.millis", "0");
+        settings.setProperty("admission.max.concurrent", "1");
+        settings.setProperty("admission.queue.size", "0");
+        AdmissionControl admission = new AdmissionControl(settings);
+
+        assertTrue(admission.admit("scheme", "sender", "scheme", "recipient"));
+        assertFalse(admission.admit("scheme", "sender", "scheme", "recipient"));
+        admission.release();
+        assertTrue(admission.admit("scheme", "sender", "scheme", "recipient"));
+        assertEquals(1, admission.getShed());
+        assertEquals(0, admission.getThrottled());
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package eu.peppol.start.transport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class CompressingMessageStoreTest extends StoreTestCase {
+
+    /**
+     * Test of save and read back, of class CompressingMessageStore.
+     */
+    @Test
+    public void testSaveAndRead() throws Exception {
+
+        String payload = createPayload();
+        FileMessageStore files = new FileMessageStore(createStore());
+        CompressingMessageStore store = new CompressingMessageStore(files, new DeflateCodec());
+
+        store.save("channel:1", "uuid:1", content("<Headers/>"), content(payload));
+
+        assertEquals("<Headers/>", read(store.openMetadata("channel:1", "uuid:1")));
+        assertEquals(payload, read(store.openPayload("channel:1", "uuid:1")));
+        assertEquals(payload.length(), store.getPayloadLength("channel:1", "uuid:1"));
+        assertTrue(store.getStoredPayloadLength("channel:1", "uuid:1") < payload.length() / 8);
+    }
+
+    /**
+     * Test that messages stored before compression was enabled are read
+     * as they are, of class CompressingMessageStore.
+     */
+    @Test
+    public void testUncompressedEntries() throws Exception {
+
+        FileMessageStore files = new FileMessageStore(createStore());
+        files.save("channel", "uuid:1", content("<Headers/>"), content("<Invoice/>"));
+
+        CompressingMessageStore store = new CompressingMessageStore(files, new DeflateCodec());
+        assertEquals("<Invoice/>", read(store.openPayload("channel", "uuid:1")));
+        assertEquals(10, store.getPayloadLength("channel", "uuid:1"));
+    }
+
+    /**
+     * Test of compression over the segmented log, of class CompressingMessageStore.
+     */
+    @Test
+    public void testSegmentedLog() throws Exception {
+
+        String payload = createPayload();
+        CompressingMessageStore store = new CompressingMessageStore(
+                new SegmentedLogStore(createStore(), 1024 * 1024), new DeflateCodec(1));
+
+        store.save("channel", "uuid:1", content("<Headers/>"), content(payload));
+        assertEquals(payload, read(store.openPayload("channel", "uuid:1")));
+        assertEquals(payload.length(), store.getPayloadLength("channel", "uuid:1"));
+    }
+
+    /**
+     * Test of transferPayload and mapPayload for compressed and uncompressed
+     * entries, of class CompressingMessageStore.
+     */
+    @Test
+    public void testRawAccess() throws Exception {
+
+        String payload = createPayload();
+        FileMessageStore files = new FileMessageStore(createStore());
+        files.save("channel", "uuid:1", content("<Headers/>"), content("<Invoice/>"));
+        CompressingMessageStore store = new CompressingMessageStore(files, new DeflateCodec());
+        store.save("channel", "uuid:2", content("<Headers/>"), content(payload));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(10, store.transferPayload("channel", "uuid:1", Channels.newChannel(out)));
+        assertEquals("<Invoice/>", new String(out.toByteArray(), "UTF-8"));
+
+        out.reset();
+        assertEquals(payload.length(), store.transferPayload("channel", "uuid:2", Channels.newChannel(out)));
+        assertEquals(payload, new String(out.toByteArray(), "UTF-8"));
+
+        ByteBuffer mapped = store.mapPayload("channel", "uuid:2");
+        assertTrue(mapped.isReadOnly());
+        assertEquals(payload.length(), mapped.remaining());
+    }
+
+    private static String createPayload() {
+        StringBuilder payload = new StringBuilder("<Invoice>");
+        for (int i = 0; i < 500; i++) {
+            payload.append("<InvoiceLine><ID>").append(i).append("</ID><Price>10.00</Price></InvoiceLine>");
+        }
+        return payload.append("</Invoice>").toString();
+    }
+
+    private static MessageStore.Content content(final String value) {
+        return new MessageStore.Content() {
+
+            public void writeTo(OutputStream out) throws Exception {
+                out.write(value.getBytes("UTF-8"));
+            }
+        };
+    }
+
+    private static String read(InputStream in) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[512];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        in.close();
+        return new String(out.toByteArray(), "UTF-8");
+    }
+}
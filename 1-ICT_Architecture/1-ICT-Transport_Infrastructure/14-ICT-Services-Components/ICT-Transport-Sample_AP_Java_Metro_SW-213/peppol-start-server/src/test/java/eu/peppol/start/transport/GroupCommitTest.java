@@ -0,0 +1,102 @@
+/*
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package eu.peppol.start.transport;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class GroupCommitTest {
+
+    /**
+     * Test that concurrent commits share the force of their batch.
+     */
+    @Test
+    public void testGroupCommit() throws Exception {
+
+        final GroupCommit commit = new GroupCommit(GroupCommit.DURABILITY_GROUP, 200L, 1024L * 1024L);
+        final AtomicInteger syncs = new AtomicInteger();
+        final GroupCommit.Syncable log = new GroupCommit.Syncable() {
+
+            public void sync() {
+                syncs.incrementAndGet();
+            }
+        };
+        final CountDownLatch done = new CountDownLatch(8);
+        final AtomicInteger failures = new AtomicInteger();
+        for (int i = 0; i < 8; i++) {
+            new Thread() {
+
+                @Override
+                public void run() {
+                    try {
+                        commit.commit(log, 100);
+                    } catch (IOException ex) {
+                        failures.incrementAndGet();
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+        done.await();
+        assertEquals(0, failures.get());
+        assertTrue(syncs.get() >= 1 && syncs.get() < 8);
+    }
+
+    /**
+     * Test that a failed force fails the commit.
+     */
+    @Test
+    public void testFailedSync() throws Exception {
+
+        GroupCommit commit = new GroupCommit(GroupCommit.DURABILITY_GROUP, 1L, 1024L);
+        try {
+            commit.commit(new GroupCommit.Syncable() {
+
+                public void sync() throws IOException {
+                    throw new IOException("disk full");
+                }
+            }, 10);
+            fail("IOException expected");
+        } catch (IOException ex) {
+            assertEquals("disk full", ex.getCause().getMessage());
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package eu.peppol.start.transport;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.util.Arrays;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class InboxExpirySweeperTest extends StoreTestCase {
+
+    /**
+     * Test of sweep, of class InboxExpirySweeper.
+     */
+    @Test
+    public void testSweep() throws Exception {
+
+        File dir = new File(createStore());
+        MessageStore store = new ShardedFileMessageStore(dir.getAbsolutePath());
+        MessageStore.Content content = new MessageStore.Content() {
+
+            public void writeTo(OutputStream out) throws Exception {
+                out.write("<Invoice/>".getBytes("UTF-8"));
+            }
+        };
+        store.save("channel", "uuid:old", content, content);
+        store.save("channel", "uuid:new", content, content);
+
+        long now = System.currentTimeMillis();
+        InboxExpirySweeper sweeper = new InboxExpirySweeper(store, 60000L, 1000L, now);
+        sweeper.track("channel");
+        assertEquals(0, sweeper.sweep(now));
+
+        assertEquals(2, sweeper.sweep(now + 62000L));
+        assertTrue(store.getMessageIDs("channel").isEmpty());
+
+        store.save("channel", "uuid:3", content, content);
+        sweeper.schedule("channel", "uuid:3", now);
+        assertEquals(Arrays.asList("uuid:3"), store.getMessageIDs("channel"));
+        assertTrue(store.delete("channel", "uuid:3"));
+        assertEquals(0, sweeper.sweep(now + 130000L));
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package eu.peppol.start.transport;
+
+import eu.peppol.start.metadata.MessageMetadata;
+import eu.peppol.start.soap.SOAPHeaderObject;
+import java.io.File;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import javax.xml.transform.stream.StreamSource;
+import org.busdox.servicemetadata.types.DocumentIdentifierType;
+import org.busdox.servicemetadata.types.ParticipantIdentifierType;
+import org.busdox.servicemetadata.types.ProcessIdentifierType;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class InboxIndexTest extends StoreTestCase {
+
+    /**
+     * Test of add, remove and query, of class InboxIndex.
+     */
+    @Test
+    public void testQuery() throws Exception {
+
+        String path = createStore();
+        FileMessageStore store = new FileMessageStore(path);
+        for (int i = 1; i <= 4; i++) {
+            store.save("channel:1", "uuid:" + i, content("<Headers/>"), content("<Invoice/>"));
+        }
+        InboxIndex index = new InboxIndex(new File(path, InboxIndex.INDEX_DIR), store);
+        index.add("channel:1", "uuid:3", record("uuid:3", "0088:a", "invoice"), 3000L);
+        index.add("channel:1", "uuid:1", record("uuid:1", "0088:a", "invoice"), 1000L);
+        index.add("channel:1", "uuid:2", record("uuid:2", "0088:b", "order"), 2000L);
+        index.add("channel:1", "uuid:4", record("uuid:4", "0088:a", "order"), 4000L);
+
+        InboxQuery query = new InboxQuery();
+        assertEquals(Arrays.asList("uuid:1", "uuid:2", "uuid:3", "uuid:4"),
+                index.query("channel:1", query));
+
+        query.setSenderValue("0088:a");
+        assertEquals(Arrays.asList("uuid:1", "uuid:3", "uuid:4"), index.query("channel:1", query));
+
+        query.setDocumentIdValue("invoice");
+        query.setFrom(new Date(2000L));
+        assertEquals(Arrays.asList("uuid:3"), index.query("channel:1", query));
+
+        InboxQuery range = new InboxQuery();
+        range.setFrom(new Date(2000L));
+        range.setTo(new Date(3000L));
+        assertEquals(Arrays.asList("uuid:2", "uuid:3"), index.query("channel:1", range));
+
+        InboxQuery unknown = new InboxQuery();
+        unknown.setProcessIdValue("other");
+        assertEquals(Collections.<String>emptyList(), index.query("channel:1", unknown));
+
+        store.delete("channel:1", "uuid:3");
+        index.remove("channel:1", "uuid:3");
+        assertEquals(Arrays.asList("uuid:2"), index.query("channel:1", range));
+
+        InboxIndex reloaded = new InboxIndex(new File(path, InboxIndex.INDEX_DIR),
+                new FileMessageStore(path));
+        assertEquals(Arrays.asList("uuid:1", "uuid:4"),
+                reloaded.query("channel:1", bySender("0088:a")));
+    }
+
+    /**
+     * Test that a channel without journal is indexed from the stored
+     * metadata, and that a journal is reconciled with the store on load.
+     */
+    @Test
+    public void testRebuild() throws Exception {
+
+        String path = createStore();
+        FileMessageStore store = new FileMessageStore(path);
+        TransportChannel channel = new TransportChannel(path, store);
+        channel.saveDocument("channel:1", "uuid:1",
+                SOAPHeaderObject.getDocument(record("uuid:1", "0088:a", "invoice").toSoapHeader()),
+                new StreamSource(new StringReader("<Invoice/>")));
+        channel.saveDocument("channel:1", "uuid:2",
+                SOAPHeaderObject.getDocument(record("uuid:2", "0088:b", "invoice").toSoapHeader()),
+                new StreamSource(new StringReader("<Invoice/>")));
+
+        InboxIndex index = new InboxIndex(new File(path, "rebuilt"), store);
+        assertEquals(Arrays.asList("uuid:2"), index.query("channel:1", bySender("0088:b")));
+        assertTrue(new File(new File(path, "rebuilt"), "channel_1.idx").exists());
+
+        // saved and deleted while the index was off
+        store.delete("channel:1", "uuid:1");
+        channel.saveDocument("channel:1", "uuid:3",
+                SOAPHeaderObject.getDocument(record("uuid:3", "0088:a", "invoice").toSoapHeader()),
+                new StreamSource(new StringReader("<Invoice/>")));
+        InboxIndex reloaded = new InboxIndex(new File(path, "rebuilt"), store);
+        assertEquals(Arrays.asList("uuid:3"), reloaded.query("channel:1", bySender("0088:a")));
+        assertEquals(Arrays.asList("uuid:2", "uuid:3"),
+                reloaded.query("channel:1", new InboxQuery()));
+    }
+
+    private static MessageStore.Content content(final String value) {
+        return new MessageStore.Content() {
+
+            public void writeTo(OutputStream out) throws Exception {
+                out.write(value.getBytes("UTF-8"));
+            }
+        };
+    }
+
+    private static InboxQuery bySender(String sender) {
+        InboxQuery query = new InboxQuery();
+        query.setSenderValue(sender);
+        return query;
+    }
+
+    private static MetadataRecord record(String messageId, String senderValue,
+                                         String documentValue) {
+        SOAPHeaderObject header = new SOAPHeaderObject();
+        header.setMessageIdentifier(messageId);
+        header.setChannelIdentifier("channel:1");
+
+        ParticipantIdentifierType sender = new ParticipantIdentifierType();
+        sender.setScheme("iso6523-actorid-upis");
+        sender.setValue(senderValue);
+        header.setSenderIdentifier(sender);
+
+        ParticipantIdentifierType recipient = new ParticipantIdentifierType();
+        recipient.setScheme("iso6523-actorid-upis");
+        recipient.setValue("0088:recipient");
+        header.setRecipientIdentifier(recipient);
+
+        DocumentIdentifierType document = new DocumentIdentifierType();
+        document.setScheme("busdox-docid-qns");
+        document.setValue(documentValue);
+        header.setDocumentIdentifier(document);
+
+        ProcessIdentifierType process = new ProcessIdentifierType();
+        process.setValue("process");
+        header.setProcessIdentifier(process);
+
+        return new MetadataRecord(new MessageMetadata(header));
+    }
+}
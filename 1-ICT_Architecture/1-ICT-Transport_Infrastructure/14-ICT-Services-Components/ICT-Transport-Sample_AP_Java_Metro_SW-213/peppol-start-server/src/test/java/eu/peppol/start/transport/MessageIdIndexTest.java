@@ -0,0 +1,107 @@
+/*
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package eu.peppol.start.transport;
+
+import java.io.File;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class MessageIdIndexTest extends StoreTestCase {
+
+    private static final long WINDOW = 24000L;
+
+    /**
+     * Test of contains after add and after reload, of class MessageIdIndex.
+     */
+    @Test
+    public void testContains() throws Exception {
+
+        File dir = new File(createStore());
+        long now = 1000000L;
+        MessageIdIndex index = new MessageIdIndex(dir, WINDOW, 1000, now);
+        for (int i = 0; i < 5000; i++) {
+            index.add("channel", "uuid:" + i, now + i);
+        }
+        assertTrue(index.contains("channel", "uuid:42", now + 5000));
+        assertFalse(index.contains("channel", "uuid:5000", now + 5000));
+        assertFalse(index.contains("other", "uuid:42", now + 5000));
+
+        MessageIdIndex reloaded = new MessageIdIndex(dir, WINDOW, 1000, now + 5000);
+        for (int i = 0; i < 5000; i++) {
+            assertTrue(reloaded.contains("channel", "uuid:" + i, now + 5000));
+        }
+    }
+
+    /**
+     * Test that IDs are forgotten once out of the window.
+     */
+    @Test
+    public void testWindow() throws Exception {
+
+        File dir = new File(createStore());
+        long now = 1000000L;
+        MessageIdIndex index = new MessageIdIndex(dir, WINDOW, 1000, now);
+        index.add("channel", "uuid:1", now);
+
+        assertTrue(index.contains("channel", "uuid:1", now + WINDOW - 2000));
+        assertFalse(index.contains("channel", "uuid:1", now + WINDOW + 1000));
+
+        index.add("channel", "uuid:2", now + WINDOW + 1000);
+        assertEquals(1, dir.list().length);
+        assertFalse(new MessageIdIndex(dir, WINDOW, 1000, now + WINDOW + 1000)
+                .contains("channel", "uuid:1", now + WINDOW + 1000));
+    }
+
+    /**
+     * Test that a message is claimed once until it is added or released.
+     */
+    @Test
+    public void testClaim() throws Exception {
+
+        long now = 1000000L;
+        MessageIdIndex index = new MessageIdIndex(new File(createStore()), WINDOW, 1000, now);
+
+        assertTrue(index.claim("channel", "uuid:1", now));
+        assertFalse(index.claim("channel", "uuid:1", now));
+        index.release("channel", "uuid:1");
+        assertTrue(index.claim("channel", "uuid:1", now));
+        index.add("channel", "uuid:1", now);
+        assertFalse(index.claim("channel", "uuid:1", now));
+        assertTrue(index.contains("channel", "uuid:1", now));
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package eu.peppol.start.transport;
+
+import eu.peppol.start.metadata.MessageMetadata;
+import eu.peppol.start.soap.SOAPHeaderObject;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.util.Date;
+import javax.xml.transform.stream.StreamSource;
+import org.busdox.servicemetadata.types.DocumentIdentifierType;
+import org.busdox.servicemetadata.types.ParticipantIdentifierType;
+import org.busdox.servicemetadata.types.ProcessIdentifierType;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.w3c.dom.Document;
+
+public class MetadataRecordTest extends StoreTestCase {
+
+    /**
+     * Test of writeTo and read, of class MetadataRecord.
+     */
+    @Test
+    public void testWriteAndRead() throws Exception {
+
+        MessageMetadata metadata = createMetadata();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new MetadataRecord(metadata).writeTo(out);
+        byte[] bytes = out.toByteArray();
+        assertTrue(MetadataRecord.isRecord(bytes, bytes.length));
+
+        MetadataRecord record = MetadataRecord.read(new ByteArrayInputStream(bytes));
+        assertEquals("uuid:1", record.getMessageId());
+        assertEquals("channel:1", record.getChannelId());
+        assertEquals(1300000000000L, record.getReceivedTime());
+        assertEquals("0088:sender", record.getSenderValue());
+        assertEquals("iso6523-actorid-upis", record.getRecipientScheme());
+        assertEquals("invoice", record.getDocumentIdValue());
+        assertEquals("process", record.getProcessIdValue());
+        assertNull(record.getProcessIdScheme());
+
+        MessageMetadata read = record.toMessageMetadata();
+        assertEquals("0088:recipient", read.getRecipientValue());
+        assertEquals(new Date(1300000000000L), read.getCreateDate());
+
+        bytes[MetadataRecord.MAGIC.length] = 2;
+        try {
+            MetadataRecord.read(new ByteArrayInputStream(bytes));
+            fail("Unknown version read");
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage().contains("version"));
+        }
+    }
+
+    /**
+     * Test of binary metadata read back through TransportChannel, and of
+     * getMetadataRecord over XML metadata.
+     */
+    @Test
+    public void testTransportChannel() throws Exception {
+
+        String path = createStore();
+        FileMessageStore store = new FileMessageStore(path);
+        final MetadataRecord record = new MetadataRecord(createMetadata());
+        store.save("channel:1", "uuid:1", new MessageStore.Content() {
+
+            public void writeTo(OutputStream out) throws Exception {
+                record.writeTo(out);
+            }
+        }, content("<Invoice/>"));
+
+        TransportChannel channel = new TransportChannel(path, store);
+        Document view = channel.getDocumentMetadata("channel:1", "uuid:1");
+        assertEquals("Headers", view.getDocumentElement().getLocalName());
+        assertEquals("0088:sender", channel.getMetadataRecord("channel:1", "uuid:1").getSenderValue());
+
+        channel.saveDocument("channel:1", "uuid:2", SOAPHeaderObject.getDocument(
+                createMetadata().getSoapHeader()), new StreamSource(new StringReader("<Invoice/>")));
+        MetadataRecord fromXml = channel.getMetadataRecord("channel:1", "uuid:2");
+        assertEquals("uuid:2", fromXml.getMessageId());
+        assertEquals("0088:recipient", fromXml.getRecipientValue());
+        assertEquals("busdox-docid-qns", fromXml.getDocumentIdScheme());
+        assertEquals("process", fromXml.getProcessIdValue());
+    }
+
+    private static MessageMetadata createMetadata() {
+        SOAPHeaderObject header = new SOAPHeaderObject();
+        header.setMessageIdentifier("uuid:1");
+        header.setChannelIdentifier("channel:1");
+
+        ParticipantIdentifierType sender = new ParticipantIdentifierType();
+        sender.setScheme("iso6523-actorid-upis");
+        sender.setValue("0088:sender");
+        header.setSenderIdentifier(sender);
+
+        ParticipantIdentifierType recipient = new ParticipantIdentifierType();
+        recipient.setScheme("iso6523-actorid-upis");
+        recipient.setValue("0088:recipient");
+        header.setRecipientIdentifier(recipient);
+
+        DocumentIdentifierType document = new DocumentIdentifierType();
+        document.setScheme("busdox-docid-qns");
+        document.setValue("invoice");
+        header.setDocumentIdentifier(document);
+
+        ProcessIdentifierType process = new ProcessIdentifierType();
+        process.setValue("process");
+        header.setProcessIdentifier(process);
+
+        MessageMetadata metadata = new MessageMetadata(header);
+        metadata.setCreateDate(new Date(1300000000000L));
+        return metadata;
+    }
+
+    private static MessageStore.Content content(final String value) {
+        return new MessageStore.Content() {
+
+            public void writeTo(OutputStream out) throws Exception {
+                out.write(value.getBytes("UTF-8"));
+            }
+        };
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package eu.peppol.start.transport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class PartitionedMessageStoreTest extends StoreTestCase {
+
+    private static final int CHANNELS = 30;
+
+    /**
+     * Test that a key only moves to a joining node, of class ConsistentHashRing.
+     */
+    @Test
+    public void testRing() throws Exception {
+
+        ConsistentHashRing ring = new ConsistentHashRing(Arrays.asList("a", "b", "c"), 128);
+        ConsistentHashRing joined = ring.withNode("d");
+
+        int moved = 0;
+        for (int i = 0; i < 10000; i++) {
+            String before = ring.getNode("channel:" + i);
+            String after = joined.getNode("channel:" + i);
+            if (!before.equals(after)) {
+                assertEquals("d", after);
+                moved++;
+            }
+        }
+        assertTrue("moved " + moved, moved > 1500 && moved < 3500);
+        assertEquals(ring.getNode("channel:1"), joined.withoutNode("d").getNode("channel:1"));
+    }
+
+    /**
+     * Test of forwarding between nodes and of rebalancing when a node joins.
+     */
+    @Test
+    public void testJoin() throws Exception {
+
+        PartitionedMessageStore a = createNode("a");
+        PartitionedMessageStore b = createNode("b");
+        a.addNode("b", b.getLocalStore());
+        b.addNode("a", a.getLocalStore());
+
+        for (int i = 0; i < CHANNELS; i++) {
+            a.save("channel:" + i, "uuid:" + i, content("<Headers/>"), content("<Invoice" + i + "/>"));
+        }
+        for (int i = 0; i < CHANNELS; i++) {
+            String channelID = "channel:" + i;
+            assertEquals(a.getNode(channelID), b.getNode(channelID));
+            assertEquals("<Invoice" + i + "/>", read(b.openPayload(channelID, "uuid:" + i)));
+            PartitionedMessageStore owner = a.getNode(channelID).equals("a") ? a : b;
+            assertEquals(1, owner.getLocalStore().getMessageIDs(channelID).size());
+        }
+
+        PartitionedMessageStore c = createNode("c");
+        c.addNode("a", a.getLocalStore());
+        c.addNode("b", b.getLocalStore());
+        a.addNode("c", c.getLocalStore());
+        b.addNode("c", c.getLocalStore());
+        // the moves run in the background, wait for them
+        a.rebalance();
+        b.rebalance();
+
+        int owned = 0;
+        for (int i = 0; i < CHANNELS; i++) {
+            String channelID = "channel:" + i;
+            String node = c.getNode(channelID);
+            assertEquals(node, a.getNode(channelID));
+            assertEquals("<Invoice" + i + "/>", read(a.openPayload(channelID, "uuid:" + i)));
+            assertEquals(Arrays.asList("uuid:" + i), b.getMessageIDs(channelID));
+            if (node.equals("c")) {
+                owned++;
+                assertEquals(1, c.getLocalStore().getMessageIDs(channelID).size());
+                assertTrue(a.getLocalStore().getMessageIDs(channelID).isEmpty());
+                assertTrue(b.getLocalStore().getMessageIDs(channelID).isEmpty());
+            } else {
+                assertTrue(c.getLocalStore().getMessageIDs(channelID).isEmpty());
+            }
+        }
+        assertTrue(owned > 0);
+
+        assertTrue(b.delete("channel:0", "uuid:0"));
+        assertTrue(c.getMessageIDs("channel:0").isEmpty());
+    }
+
+    /**
+     * Test of a move interrupted after the copy, and of the reads of a
+     * restarted node falling back to the owners of its last ring.
+     */
+    @Test
+    public void testInterruptedMove() throws Exception {
+
+        String path = createStore();
+        PartitionedMessageStore a = createNode("a", path);
+        PartitionedMessageStore b = createNode("b");
+        ConsistentHashRing ring = new ConsistentHashRing(Arrays.asList("a", "b"), 64);
+        String channelID = "channel:0";
+        for (int i = 1; !ring.getNode(channelID).equals("b"); i++) {
+            channelID = "channel:" + i;
+        }
+        a.save(channelID, "uuid:1", content("<Headers/>"), content("<Invoice/>"));
+        b.getLocalStore().save(channelID, "uuid:1", content("<Headers/>"), content("<Invoice/>"));
+
+        a.addNode("b", b.getLocalStore());
+        a.rebalance();
+        assertTrue(a.getLocalStore().getMessageIDs(channelID).isEmpty());
+        assertEquals(Arrays.asList("uuid:1"), b.getLocalStore().getMessageIDs(channelID));
+
+        PartitionedMessageStore restarted = createNode("a", path);
+        restarted.configureNode("b", b.getLocalStore());
+        assertEquals("a", restarted.getNode(channelID));
+        assertEquals(Arrays.asList("uuid:1"), restarted.getMessageIDs(channelID));
+        assertEquals("<Invoice/>", read(restarted.openPayload(channelID, "uuid:1")));
+    }
+
+    private PartitionedMessageStore createNode(String name) throws Exception {
+        return createNode(name, createStore());
+    }
+
+    private static PartitionedMessageStore createNode(String name, String path) throws Exception {
+        return new PartitionedMessageStore(name, new FileMessageStore(path),
+                new File(path, PartitionedMessageStore.PARTITION_DIR), 64);
+    }
+
+    private static MessageStore.Content content(final String value) {
+        return new MessageStore.Content() {
+
+            public void writeTo(OutputStream out) throws Exception {
+                out.write(value.getBytes("UTF-8"));
+            }
+        };
+    }
+
+    private static String read(InputStream in) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[512];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        in.close();
+        return new String(out.toByteArray(), "UTF-8");
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package eu.peppol.start.transport;
+
+import eu.peppol.start.metadata.MessageMetadata;
+import java.io.File;
+import java.io.StringReader;
+import javax.xml.transform.stream.StreamSource;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ReceivePipelineTest extends StoreTestCase {
+
+    /**
+     * Test of submit, of class ReceivePipeline.
+     */
+    @Test
+    public void testSubmit() throws Exception {
+
+        File dir = new File(createStore());
+        String path = dir.getAbsolutePath();
+        MessageStore journal = new SegmentedLogStore(
+                new File(dir, ReceivePipeline.JOURNAL_DIR).getAbsolutePath(), 64 * 1024);
+
+        ReceivePipeline pipeline = new ReceivePipeline(path, journal, 2, 4);
+        for (int i = 0; i < 20; i++) {
+            pipeline.submit(new MessageMetadata(),
+                    new StreamSource(new StringReader("<Invoice>" + i + "</Invoice>")));
+        }
+        assertTrue(pipeline.awaitIdle(10000));
+        assertEquals(20, new TransportChannel(path).getMessageIDs("PingInbox").length);
+        assertTrue(journal.getMessageIDs("received").isEmpty());
+        pipeline.shutdown();
+    }
+
+    /**
+     * Test of a journaled message already stored, of class ReceivePipeline.
+     */
+    @Test
+    public void testAlreadyStored() throws Exception {
+
+        File dir = new File(createStore());
+        String path = dir.getAbsolutePath();
+        MessageStore journal = new SegmentedLogStore(
+                new File(dir, ReceivePipeline.JOURNAL_DIR).getAbsolutePath(), 64 * 1024);
+
+        MessageMetadata metadata = new MessageMetadata();
+        new TransportChannel(path).saveDocument(metadata.getChannelId(), metadata.getMessageId(),
+                metadata, new StreamSource(new StringReader("<Invoice>0</Invoice>")));
+
+        ReceivePipeline pipeline = new ReceivePipeline(path, journal, 1, 1, 2, 10);
+        pipeline.submit(metadata, new StreamSource(new StringReader("<Invoice>0</Invoice>")));
+        assertTrue(pipeline.awaitIdle(10000));
+        assertEquals(1, new TransportChannel(path).getMessageIDs("PingInbox").length);
+        assertTrue(journal.getMessageIDs("received").isEmpty());
+        pipeline.shutdown();
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package eu.peppol.start.transport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class SegmentedLogStoreTest extends StoreTestCase {
+
+    private static final int SEGMENT_SIZE = 4096;
+
+    /**
+     * Test of save and read back, of class SegmentedLogStore.
+     */
+    @Test
+    public void testSaveAndRead() throws Exception {
+
+        SegmentedLogStore store = new SegmentedLogStore(createStore(), SEGMENT_SIZE);
+        store.save("channel:1", "uuid:1", content("<Headers/>"), content("<Invoice/>"));
+
+        assertEquals("<Headers/>", read(store.openMetadata("channel:1", "uuid:1")));
+        assertEquals("<Invoice/>", read(store.openPayload("channel:1", "uuid:1")));
+        assertEquals(10, store.getPayloadLength("channel:1", "uuid:1"));
+        assertEquals(Arrays.asList("uuid:1"), store.getMessageIDs("channel:1"));
+    }
+
+    /**
+     * Test of segment rollover and recovery of the offset index.
+     */
+    @Test
+    public void testRolloverAndRecovery() throws Exception {
+
+        String path = createStore();
+        SegmentedLogStore store = new SegmentedLogStore(path, SEGMENT_SIZE);
+        char[] filler = new char[1000];
+        Arrays.fill(filler, 'x');
+        String payload = "<Invoice>" + new String(filler) + "</Invoice>";
+
+        for (int i = 0; i < 10; i++) {
+            store.save("channel", "uuid:" + i, content("<Headers/>"), content(payload));
+        }
+        assertTrue(store.delete("channel", "uuid:3"));
+        assertFalse(store.delete("channel", "uuid:3"));
+
+        File channelDir = new File(new File(path, TransportChannel.INBOX_DIR), "channel");
+        assertTrue(channelDir.list().length > 1);
+
+        SegmentedLogStore reopened = new SegmentedLogStore(path, SEGMENT_SIZE);
+        List<String> ids = reopened.getMessageIDs("channel");
+        assertEquals(9, ids.size());
+        assertFalse(ids.contains("uuid:3"));
+        assertEquals("uuid:0", ids.get(0));
+        assertEquals(payload, read(reopened.openPayload("channel", "uuid:9")));
+    }
+
+    /**
+     * Test that a torn record at the tail of the log is dropped on recovery.
+     */
+    @Test
+    public void testTornRecord() throws Exception {
+
+        String path = createStore();
+        SegmentedLogStore store = new SegmentedLogStore(path, SEGMENT_SIZE);
+        store.save("channel", "uuid:1", content("<Headers/>"), content("<A/>"));
+        store.save("channel", "uuid:2", content("<Headers/>"), content("<B/>"));
+
+        File segment = new File(new File(new File(path, TransportChannel.INBOX_DIR), "channel"),
+                String.format("%020d", 0) + SegmentedLogStore.EXT_SEGMENT);
+        RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+        raf.seek(80);
+        raf.write(0x7f);
+        raf.close();
+
+        SegmentedLogStore reopened = new SegmentedLogStore(path, SEGMENT_SIZE);
+        assertEquals(Arrays.asList("uuid:1"), reopened.getMessageIDs("channel"));
+
+        reopened.save("channel", "uuid:3", content("<Headers/>"), content("<C/>"));
+        assertEquals("<C/>", read(reopened.openPayload("channel", "uuid:3")));
+    }
+
+    /**
+     * Test that fully deleted segments are removed from disk.
+     */
+    @Test
+    public void testSegmentCleanup() throws Exception {
+
+        String path = createStore();
+        SegmentedLogStore store = new SegmentedLogStore(path, SEGMENT_SIZE);
+        char[] filler = new char[3000];
+        Arrays.fill(filler, 'x');
+
+        for (int i = 0; i < 4; i++) {
+            store.save("channel", "uuid:" + i, content("<Headers/>"), content(new String(filler)));
+        }
+        File channelDir = new File(new File(path, TransportChannel.INBOX_DIR), "channel");
+        assertEquals(4, channelDir.list().length);
+
+        for (int i = 0; i < 4; i++) {
+            store.delete("channel", "uuid:" + i);
+        }
+        assertEquals(1, channelDir.list().length);
+        assertTrue(store.getMessageIDs("channel").isEmpty());
+    }
+
+    /**
+     * Test of mapPayload and transferPayload, of class SegmentedLogStore.
+     */
+    @Test
+    public void testRawAccess() throws Exception {
+
+        SegmentedLogStore store = new SegmentedLogStore(createStore(), SEGMENT_SIZE);
+        store.save("channel", "uuid:1", content("<Headers/>"), content("<A/>"));
+        store.save("channel", "uuid:2", content("<Headers/>"), content("<Invoice/>"));
+
+        ByteBuffer mapped = store.mapPayload("channel", "uuid:2");
+        assertTrue(mapped.isReadOnly());
+        byte[] bytes = new byte[mapped.remaining()];
+        mapped.get(bytes);
+        assertEquals("<Invoice/>", new String(bytes, "UTF-8"));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(10, store.transferPayload("channel", "uuid:2", Channels.newChannel(out)));
+        assertEquals("<Invoice/>", new String(out.toByteArray(), "UTF-8"));
+    }
+
+    /**
+     * Test of a Payload spilled to a file before it is appended.
+     */
+    @Test
+    public void testSpilledPayload() throws Exception {
+
+        String path = createStore();
+        SegmentedLogStore store = new SegmentedLogStore(path, SEGMENT_SIZE);
+        char[] filler = new char[SegmentedLogStore.SPILL_SIZE + 1000];
+        Arrays.fill(filler, 'x');
+        String payload = new String(filler);
+        store.save("channel", "uuid:1", content("<Headers/>"), content(payload));
+        store.save("channel", "uuid:2", content("<Headers/>"), content("<B/>"));
+
+        assertEquals(payload, read(store.openPayload("channel", "uuid:1")));
+        assertEquals("<Headers/>", read(store.openMetadata("channel", "uuid:2")));
+        File channelDir = new File(new File(path, TransportChannel.INBOX_DIR), "channel");
+        for (String name : channelDir.list()) {
+            assertTrue(name.endsWith(SegmentedLogStore.EXT_SEGMENT));
+        }
+        assertEquals(payload, read(new SegmentedLogStore(path, SEGMENT_SIZE)
+                .openPayload("channel", "uuid:1")));
+    }
+
+    private static MessageStore.Content content(final String value) {
+        return new MessageStore.Content() {
+
+            public void writeTo(OutputStream out) throws Exception {
+                out.write(value.getBytes("UTF-8"));
+            }
+        };
+    }
+
+    private static String read(InputStream in) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[512];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        in.close();
+        return new String(out.toByteArray(), "UTF-8");
+    }
+}
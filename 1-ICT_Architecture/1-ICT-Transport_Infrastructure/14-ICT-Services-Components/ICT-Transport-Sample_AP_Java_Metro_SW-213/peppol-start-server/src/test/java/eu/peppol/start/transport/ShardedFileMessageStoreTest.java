@@ -0,0 +1,149 @@
+/*
+ * Version: MPL 1.1/EUPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at:
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Copyright The PEPPOL project (http://www.peppol.eu)
+ *
+ * Alternatively, the contents of this file may be used under the
+ * terms of the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL
+ * (the "Licence"); You may not use this work except in compliance
+ * with the Licence.
+ * You may obtain a copy of the Licence at:
+ * http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ *
+ * If you wish to allow use of your version of this file only
+ * under the terms of the EUPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the EUPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the EUPL License.
+ */
+package eu.peppol.start.transport;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ShardedFileMessageStoreTest extends StoreTestCase {
+
+    /**
+     * Test of save, index and delete, of class ShardedFileMessageStore.
+     */
+    @Test
+    public void testSaveAndIndex() throws Exception {
+
+        String path = createStore();
+        ShardedFileMessageStore store = new ShardedFileMessageStore(path);
+        store.save("channel:1", "uuid:1", content("<Headers/>"), content("<Invoice/>"));
+        store.save("channel:1", "uuid:2", content("<Headers/>"), content("<CreditNote/>"));
+
+        assertEquals("<Invoice/>", read(store.openPayload("channel:1", "uuid:1")));
+        assertEquals(13, store.getPayloadLength("channel:1", "uuid:2"));
+        assertEquals(Arrays.asList("uuid:1", "uuid:2"), store.getMessageIDs("channel:1"));
+
+        File channelDir = new File(new File(path, TransportChannel.INBOX_DIR), "channel_1");
+        assertTrue(new File(channelDir, ShardedFileMessageStore.INDEX_FILE).exists());
+        assertFalse(new File(channelDir, "uuid_1" + TransportChannel.EXT_PAYLOAD).exists());
+
+        assertTrue(store.delete("channel:1", "uuid:1"));
+        ShardedFileMessageStore reopened = new ShardedFileMessageStore(path);
+        assertEquals(Arrays.asList("uuid:2"), reopened.getMessageIDs("channel:1"));
+    }
+
+    /**
+     * Test that a missing index is rebuilt from the shard directories.
+     */
+    @Test
+    public void testRebuildIndex() throws Exception {
+
+        String path = createStore();
+        ShardedFileMessageStore store = new ShardedFileMessageStore(path);
+        for (int i = 0; i < 5; i++) {
+            store.save("channel", "uuid:" + i, content("<Headers/>"), content("<Invoice/>"));
+        }
+        File channelDir = new File(new File(path, TransportChannel.INBOX_DIR), "channel");
+        assertTrue(new File(channelDir, ShardedFileMessageStore.INDEX_FILE).delete());
+
+        ShardedFileMessageStore reopened = new ShardedFileMessageStore(path);
+        assertEquals(5, reopened.getMessageIDs("channel").size());
+        assertEquals(10, reopened.getPayloadLength("channel", "uuid:4"));
+    }
+
+    /**
+     * Test that a loaded index is reconciled with the shard directories.
+     */
+    @Test
+    public void testReconcileIndex() throws Exception {
+
+        String path = createStore();
+        ShardedFileMessageStore store = new ShardedFileMessageStore(path);
+        for (int i = 0; i < 3; i++) {
+            store.save("channel", "uuid:" + i, content("<Headers/>"), content("<Invoice/>"));
+        }
+        File channelDir = store.getChannelInboxDir("channel");
+        File index = new File(channelDir, ShardedFileMessageStore.INDEX_FILE);
+        List<String> lines = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new FileReader(index));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lines.add(line);
+        }
+        reader.close();
+        Writer writer = new FileWriter(index);
+        writer.write(lines.get(0) + "\n" + lines.get(1) + "\n" + "A\t12");
+        writer.close();
+        assertTrue(store.getPayloadFile(channelDir, "uuid:0").delete());
+        assertTrue(store.getMetadataFile(channelDir, "uuid:0").delete());
+
+        ShardedFileMessageStore reopened = new ShardedFileMessageStore(path);
+        assertEquals(Arrays.asList("uuid:1", "uuid:2"), reopened.getMessageIDs("channel"));
+        assertEquals(10, reopened.getPayloadLength("channel", "uuid:2"));
+    }
+
+    private static MessageStore.Content content(final String value) {
+        return new MessageStore.Content() {
+
+            public void writeTo(OutputStream out) throws Exception {
+                out.write(value.getBytes("UTF-8"));
+            }
+        };
+    }
+
+    private static String read(InputStream in) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[512];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        in.close();
+        return new String(out.toByteArray(), "UTF-8");
+    }
+}
@@ -37,15 +37,27 @@
  */
 package eu.peppol.start.transport;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.transform.stax.StAXSource;
 import org.junit.Test;
 import static org.junit.Assert.*;
 import org.w3c.dom.Document;
+import org.w3c.dom.Element;
 
 /**
  *
  * @author ppnon
  */
-public class TransportChannelTest {
+public class TransportChannelTest extends StoreTestCase {
 
     /**
      * Test of saveDocument method, of class TransportChannel.
@@ -72,4 +84,106 @@ public class TransportChannelTest {
 
         instance.saveDocument(channelID, messageID, metadataDocument, payloadDocument);
     }
+
+    /**
+     * Test of saveDocument method, of class TransportChannel, with a payload
+     * streamed from a StAX reader.
+     */
+    @Test
+    public void testSaveDocumentFromStAXSource() throws Exception {
+
+        File store = new File(createStore());
+        String payload = "<Invoice xmlns=\"urn:test\" xmlns:cbc=\"urn:test:cbc\">"
+                + "<cbc:ID schemeID=\"x\">42</cbc:ID><!-- note --><Note>a &amp; b</Note></Invoice>";
+
+        Document metadataDocument = DocumentBuilderFactory.newInstance()
+                .newDocumentBuilder().newDocument();
+        metadataDocument.appendChild(metadataDocument.createElement("Headers"));
+
+        XMLStreamReader reader = XMLInputFactory.newInstance()
+                .createXMLStreamReader(new StringReader(payload));
+
+        TransportChannel instance = new TransportChannel(store.getAbsolutePath());
+        instance.saveDocument("channel:1", "uuid:1", metadataDocument, new StAXSource(reader));
+
+        assertTrue(instance.isSaved);
+        Document stored = instance.getDocument("channel:1", "uuid:1");
+        assertEquals("Invoice", stored.getDocumentElement().getNodeName());
+        assertEquals("42", stored.getElementsByTagName("cbc:ID").item(0).getTextContent());
+        assertEquals("a & b", stored.getElementsByTagName("Note").item(0).getTextContent());
+    }
+
+    /**
+     * Test of writeSource method, of class TransportChannel, with a reader
+     * positioned on a nested element using prefixes declared on its
+     * ancestors.
+     */
+    @Test
+    public void testWriteSourceFromNestedElement() throws Exception {
+
+        String envelope = "<s:Envelope xmlns:s=\"urn:soap\" xmlns=\"urn:test\""
+                + " xmlns:cbc=\"urn:test:cbc\"><s:Body><Invoice>"
+                + "<cbc:ID cbc:schemeID=\"x\">42</cbc:ID></Invoice></s:Body></s:Envelope>";
+
+        XMLStreamReader reader = XMLInputFactory.newInstance()
+                .createXMLStreamReader(new StringReader(envelope));
+        while (!(reader.isStartElement() && "Invoice".equals(reader.getLocalName()))) {
+            reader.next();
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TransportChannel.writeSource(new StAXSource(reader), out);
+
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        Document copied = factory.newDocumentBuilder().parse(
+                new ByteArrayInputStream(out.toByteArray()));
+        assertEquals("urn:test", copied.getDocumentElement().getNamespaceURI());
+        Element id = (Element) copied.getElementsByTagNameNS("urn:test:cbc", "ID").item(0);
+        assertEquals("42", id.getTextContent());
+        assertEquals("x", id.getAttributeNS("urn:test:cbc", "schemeID"));
+    }
+
+    /**
+     * Test of openDocument, mapDocument and transferDocument, of class
+     * TransportChannel, on the default FileMessageStore of inbox.storage.mode.
+     */
+    @Test
+    public void testRawDocumentAccess() throws Exception {
+
+        File store = new File(createStore());
+        String payload = "<Invoice xmlns=\"urn:test\"><Note>raw</Note></Invoice>";
+
+        Document metadataDocument = DocumentBuilderFactory.newInstance()
+                .newDocumentBuilder().newDocument();
+        metadataDocument.appendChild(metadataDocument.createElement("Headers"));
+
+        TransportChannel instance = new TransportChannel(store.getAbsolutePath());
+        instance.saveDocument("channel:1", "uuid:1", metadataDocument,
+                new StAXSource(XMLInputFactory.newInstance()
+                        .createXMLStreamReader(new StringReader(payload))));
+        byte[] stored = read(instance.openDocument("channel:1", "uuid:1"));
+        assertTrue(new String(stored, "UTF-8").contains("<Note>raw</Note>"));
+
+        ByteBuffer mapped = instance.mapDocument("channel:1", "uuid:1");
+        assertTrue(mapped.isReadOnly());
+        byte[] bytes = new byte[mapped.remaining()];
+        mapped.get(bytes);
+        assertArrayEquals(stored, bytes);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(stored.length,
+                instance.transferDocument("channel:1", "uuid:1", Channels.newChannel(out)));
+        assertArrayEquals(stored, out.toByteArray());
+    }
+
+    private static byte[] read(InputStream in) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[512];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        in.close();
+        return out.toByteArray();
+    }
 }